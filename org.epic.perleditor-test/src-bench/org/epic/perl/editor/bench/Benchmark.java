@@ -0,0 +1,45 @@
+package org.epic.perl.editor.bench;
+
+/**
+ * A single benchmark executed by {@link BenchmarkRunner}.
+ * The measured operation is implemented by {@link #run}.
+ */
+public abstract class Benchmark
+{
+    private final String name;
+
+    protected Benchmark(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * @return a unique name which identifies the benchmark in reports
+     *         and baseline files
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Prepares the benchmark's fixture. This method is invoked once,
+     * before the warm-up; its execution time is not measured.
+     */
+    public void setUp() throws Exception
+    {
+    }
+
+    /**
+     * Performs one measured operation.
+     */
+    public abstract void run() throws Exception;
+
+    /**
+     * Releases the benchmark's fixture, so that it can be garbage-collected
+     * before the next benchmark.
+     */
+    public void tearDown() throws Exception
+    {
+    }
+}
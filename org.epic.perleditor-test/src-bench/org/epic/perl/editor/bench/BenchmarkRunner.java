@@ -0,0 +1,208 @@
+package org.epic.perl.editor.bench;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Executes {@link Benchmark}s and reports the average time and the average
+ * number of bytes allocated per operation. Each benchmark is first run
+ * repeatedly for a warm-up period (to let the JIT compiler do its work),
+ * then for a measurement period.
+ * <p>
+ * Allocations are measured with the per-thread allocation counter
+ * of HotSpot's ThreadMXBean. On JVMs which do not provide it, the number
+ * of allocated bytes is reported as -1.
+ * </p>
+ * <p>
+ * Results can be saved to a baseline file and compared against it in
+ * a later run. A benchmark which is slower or allocates more than
+ * the baseline (by more than the given tolerance) is reported as
+ * a regression.
+ * </p>
+ */
+public class BenchmarkRunner
+{
+    private final long warmupMillis;
+    private final long measureMillis;
+    private final PrintStream out;
+    private final Properties results;
+    private final Method allocatedBytesMethod;
+    private final Object threadBean;
+
+    public BenchmarkRunner(long warmupMillis, long measureMillis, PrintStream out)
+    {
+        this.warmupMillis = warmupMillis;
+        this.measureMillis = measureMillis;
+        this.out = out;
+        this.results = new Properties();
+        this.threadBean = ManagementFactory.getThreadMXBean();
+        this.allocatedBytesMethod = findAllocatedBytesMethod(threadBean);
+    }
+
+    /**
+     * Compares the results of benchmarks run so far with the given
+     * baseline and reports regressions.
+     *
+     * @param tolerance     allowed relative increase of time and allocated
+     *                      bytes per operation, e.g. 0.2 for 20%
+     * @return number of regressions found
+     */
+    public int compare(File baselineFile, double tolerance) throws IOException
+    {
+        Properties baseline = load(baselineFile);
+        int regressions = 0;
+
+        for (Iterator<Object> i = new TreeSet<Object>(results.keySet()).iterator(); i.hasNext();)
+        {
+            String key = (String) i.next();
+            String base = baseline.getProperty(key);
+            if (base == null) continue;
+
+            double current = Double.parseDouble(results.getProperty(key));
+            double previous = Double.parseDouble(base);
+            if (previous > 0 && current > previous * (1 + tolerance))
+            {
+                out.println(
+                    "REGRESSION " + key + ": " + format(current) +
+                    " (baseline: " + format(previous) + ")");
+                regressions++;
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Executes the given benchmark and records its results.
+     */
+    public void run(Benchmark benchmark) throws Exception
+    {
+        benchmark.setUp();
+        try
+        {
+            measure(benchmark, warmupMillis);
+            System.gc();
+
+            long[] m = measure(benchmark, measureMillis);
+            long ops = m[0];
+            double nanosPerOp = (double) m[1] / ops;
+            double bytesPerOp = m[2] < 0 ? -1 : (double) m[2] / ops;
+
+            results.setProperty(benchmark.getName() + ".nanos", format(nanosPerOp));
+            if (bytesPerOp >= 0)
+                results.setProperty(benchmark.getName() + ".bytes", format(bytesPerOp));
+
+            out.println(
+                pad(benchmark.getName(), 40) +
+                pad(format(nanosPerOp / 1000000.0) + " ms/op", 18) +
+                pad((bytesPerOp < 0 ? "n/a" : format(bytesPerOp / 1024.0)) + " KB/op", 18) +
+                ops + " ops");
+        }
+        finally
+        {
+            benchmark.tearDown();
+        }
+    }
+
+    /**
+     * Saves the results of benchmarks run so far, for use as a baseline.
+     */
+    public void save(File file) throws IOException
+    {
+        OutputStream os = new FileOutputStream(file);
+        try
+        {
+            results.store(os, "EPIC benchmark results");
+        }
+        finally
+        {
+            os.close();
+        }
+    }
+
+    private long allocatedBytes()
+    {
+        if (allocatedBytesMethod == null) return -1;
+        try
+        {
+            return ((Long) allocatedBytesMethod.invoke(
+                threadBean,
+                new Object[] { new Long(Thread.currentThread().getId()) })).longValue();
+        }
+        catch (Exception e)
+        {
+            return -1;
+        }
+    }
+
+    private static Method findAllocatedBytesMethod(Object threadBean)
+    {
+        try
+        {
+            // com.sun.management.ThreadMXBean, available in HotSpot
+            // since Java 6 update 25; looked up through the public interface
+            // because the implementing class may not be accessible
+            Method m = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+                "getThreadAllocatedBytes", new Class[] { long.class });
+            m.invoke(threadBean, new Object[] { new Long(Thread.currentThread().getId()) });
+            return m;
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    private static String format(double d)
+    {
+        return String.valueOf(Math.round(d * 100) / 100.0);
+    }
+
+    private static Properties load(File file) throws IOException
+    {
+        Properties props = new Properties();
+        InputStream is = new FileInputStream(file);
+        try
+        {
+            props.load(is);
+        }
+        finally
+        {
+            is.close();
+        }
+        return props;
+    }
+
+    /**
+     * @return { number of operations, elapsed nanos, allocated bytes or -1 }
+     */
+    private long[] measure(Benchmark benchmark, long millis) throws Exception
+    {
+        long ops = 0;
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long deadline = start + millis * 1000000L;
+        long now;
+
+        do
+        {
+            benchmark.run();
+            ops++;
+        }
+        while ((now = System.nanoTime()) < deadline);
+
+        long bytesAfter = allocatedBytes();
+        return new long[] {
+            ops,
+            now - start,
+            bytesBefore < 0 || bytesAfter < 0 ? -1 : bytesAfter - bytesBefore };
+    }
+
+    private static String pad(String str, int len)
+    {
+        StringBuffer buf = new StringBuffer(str);
+        while (buf.length() < len) buf.append(' ');
+        return buf.toString();
+    }
+}
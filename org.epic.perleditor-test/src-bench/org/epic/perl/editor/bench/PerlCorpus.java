@@ -0,0 +1,188 @@
+package org.epic.perl.editor.bench;
+
+import java.util.Random;
+
+/**
+ * Generates synthetic, but realistic Perl source files for benchmarks.
+ * The generated code consists of packages with subroutines which contain
+ * nested blocks, variable declarations, regular expressions, quote-like
+ * operators, heredocs and comments (some with task markers). POD sections
+ * are placed between the subroutines. The output only depends on
+ * the requested number of lines and the seed, so that results of
+ * different benchmark runs are comparable.
+ * <p>
+ * The words "func" and "method" are avoided because lexing them consults
+ * the plug-in's preferences, which are not available outside of Eclipse.
+ * </p>
+ */
+public class PerlCorpus
+{
+    private static final String[] NAMES = {
+        "item", "count", "result", "node", "path", "text", "line", "value",
+        "entry", "buffer", "config", "handle", "key", "list", "offset" };
+
+    private final Random random;
+    private final StringBuffer buf;
+    private int lines;
+    private int subs;
+    private int packages;
+
+    private PerlCorpus(long seed)
+    {
+        this.random = new Random(seed);
+        this.buf = new StringBuffer();
+    }
+
+    /**
+     * @return Perl source code consisting of approximately
+     *         the given number of lines
+     */
+    public static String generate(int lines, long seed)
+    {
+        PerlCorpus corpus = new PerlCorpus(seed);
+        corpus.generate(lines);
+        return corpus.buf.toString();
+    }
+
+    private void generate(int maxLines)
+    {
+        while (lines < maxLines)
+        {
+            if (lines == 0 || random.nextInt(40) == 0) openPackage();
+            if (random.nextInt(4) == 0) pod();
+            sub(maxLines);
+        }
+        line("1;");
+    }
+
+    private void openPackage()
+    {
+        packages++;
+        if (lines > 0) line("1;");
+        line("");
+        line("package Bench::Module" + packages + ";");
+        line("");
+        line("use warnings;");
+        line("use Carp qw(croak carp);");
+        line("use File::Spec;");
+        line("");
+        line("our $VERSION = '1." + packages + "';");
+        line("my %defaults = (name => 'bench', depth => 3, verbose => 0);");
+        line("");
+    }
+
+    private void pod()
+    {
+        line("=head2 sub" + (subs + 1));
+        line("");
+        line("Processes the given C<$" + name() + "> and returns a list of");
+        line("results. Dies with a message like C<< invalid input >> on error.");
+        line("");
+        line("  my @r = sub" + (subs + 1) + "($obj, { depth => 2 });");
+        line("");
+        line("=cut");
+        line("");
+    }
+
+    private void sub(int maxLines)
+    {
+        subs++;
+        line("sub sub" + subs);
+        line("{");
+        line("    my ($self, $" + name() + ", %args) = @_;");
+
+        int statements = 5 + random.nextInt(30);
+        for (int i = 0; i < statements && lines < maxLines; i++) statement(1);
+
+        line("    return wantarray ? @{$self->{" + name() + "}} : $" + name() + ";");
+        line("}");
+        line("");
+    }
+
+    private void statement(int depth)
+    {
+        String indent = indent(depth);
+        switch (random.nextInt(depth < 3 ? 14 : 11))
+        {
+        case 0:
+            line(indent + "my $" + name() + " = $self->{" + name() + "} || $defaults{" + name() + "};");
+            break;
+        case 1:
+            line(indent + "if ($" + name() + " =~ /^\\s*(\\w+)\\s*=\\s*(.*?)\\s*$/) { $args{$1} = $2; }");
+            break;
+        case 2:
+            line(indent + "(my $" + name() + " = $" + name() + ") =~ s{\\\\}{/}g;");
+            break;
+        case 3:
+            line(indent + "$" + name() + " =~ tr/a-z/A-Z/;");
+            break;
+        case 4:
+            line(indent + "my @" + name() + " = grep { defined && length } split /,\\s*/, $" + name() + ";");
+            break;
+        case 5:
+            line(indent + "print STDERR qq{[$" + name() + "] processing }, scalar(@_), \" items\\n\" if $args{verbose};");
+            break;
+        case 6:
+            line(indent + "my $sql = <<\"SQL\";");
+            for (int i = 0, n = 2 + random.nextInt(6); i < n; i++)
+                line("SELECT " + name() + ", " + name() + " FROM t" + i + " WHERE id = ? -- { not a block");
+            line("SQL");
+            break;
+        case 7:
+            line(indent + "# " + (random.nextInt(5) == 0 ? "TODO: " : "") +
+                "check the " + name() + " before using it (see perldoc perlop)");
+            break;
+        case 8:
+            line(indent + "croak \"invalid " + name() + ": $" + name() + "\" unless ref $" + name() + " eq 'HASH';");
+            break;
+        case 9:
+            line(indent + "my %" + name() + " = map { $_ => 1 } qw(alpha beta gamma delta);");
+            break;
+        case 10:
+            line(indent + "$self->{" + name() + "}->[$#{$self->{" + name() + "}}] //= 0;");
+            break;
+        case 11:
+            line(indent + "foreach my $" + name() + " (@{$args{list} || []})");
+            line(indent + "{");
+            block(depth + 1);
+            line(indent + "}");
+            break;
+        case 12:
+            line(indent + "if ($" + name() + " > 1)");
+            line(indent + "{");
+            block(depth + 1);
+            line(indent + "}");
+            line(indent + "else");
+            line(indent + "{");
+            block(depth + 1);
+            line(indent + "}");
+            break;
+        default:
+            line(indent + "my $code = sub { my $x = shift; return $x * 2 + ($x % 3 ? 1 : 0); };");
+        }
+    }
+
+    private void block(int depth)
+    {
+        for (int i = 0, n = 1 + random.nextInt(4); i < n; i++) statement(depth);
+    }
+
+    private String indent(int depth)
+    {
+        StringBuffer indent = new StringBuffer();
+        for (int i = 0; i < depth; i++) indent.append("    ");
+        return indent.toString();
+    }
+
+    private void line(String text)
+    {
+        buf.append(text);
+        buf.append('\n');
+        lines++;
+    }
+
+    private String name()
+    {
+        return NAMES[random.nextInt(NAMES.length)];
+    }
+}
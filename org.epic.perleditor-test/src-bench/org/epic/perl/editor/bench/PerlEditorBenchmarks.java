@@ -0,0 +1,339 @@
+package org.epic.perl.editor.bench;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.*;
+
+import org.eclipse.jface.text.*;
+import org.epic.core.model.SourceFile;
+import org.epic.core.parser.PerlMultiLexer;
+import org.epic.perl.editor.test.Log;
+import org.epic.perleditor.editors.PartitionTypes;
+import org.epic.perleditor.editors.PerlPartitioner;
+
+import antlr.Token;
+
+/**
+ * Benchmarks of the lexer, the partitioner and the SourceFile model,
+ * executed on files generated by {@link PerlCorpus}. Run as a plain Java
+ * application with the test plug-in's classpath:
+ * <pre>
+ * PerlEditorBenchmarks [-lines 1000,10000,100000] [-warmup millis]
+ *     [-measure millis] [-save file] [-baseline file] [-tolerance percent]
+ * </pre>
+ * With -baseline, results are compared against those saved by a previous
+ * run with -save, and the process exits with status 1 if any benchmark
+ * has regressed by more than the tolerance (20% by default).
+ * <p>
+ * After the benchmarks for each file size, two figures which are not
+ * timings are reported: how much text the partitioner re-lexes after
+ * typical edits at various positions of the file, and how much heap
+ * the partitioner's tokens retain (compared to a list of token objects
+ * created by the lexer).
+ * </p>
+ */
+public class PerlEditorBenchmarks
+{
+    private static final long SEED = 20070512L;
+
+    public static void main(String[] args) throws Exception
+    {
+        int[] sizes = { 1000, 10000, 100000 };
+        long warmup = 2000, measure = 3000;
+        File saveFile = null, baselineFile = null;
+        double tolerance = 0.2;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if ("-lines".equals(args[i])) sizes = parseInts(args[++i]);
+            else if ("-warmup".equals(args[i])) warmup = Long.parseLong(args[++i]);
+            else if ("-measure".equals(args[i])) measure = Long.parseLong(args[++i]);
+            else if ("-save".equals(args[i])) saveFile = new File(args[++i]);
+            else if ("-baseline".equals(args[i])) baselineFile = new File(args[++i]);
+            else if ("-tolerance".equals(args[i])) tolerance = Double.parseDouble(args[++i]) / 100;
+            else
+            {
+                System.err.println("unrecognized argument: " + args[i]);
+                System.exit(2);
+            }
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, measure, System.out);
+        for (int i = 0; i < sizes.length; i++)
+        {
+            String text = PerlCorpus.generate(sizes[i], SEED);
+            List<Benchmark> benchmarks = createBenchmarks(sizes[i], text);
+            for (Iterator<Benchmark> j = benchmarks.iterator(); j.hasNext();)
+                runner.run(j.next());
+
+            reportRelexLengths(sizes[i], text, System.out);
+            reportTokensFootprint(sizes[i], text, System.out);
+        }
+
+        if (saveFile != null) runner.save(saveFile);
+        if (baselineFile != null && runner.compare(baselineFile, tolerance) > 0)
+            System.exit(1);
+    }
+
+    /**
+     * @return benchmarks for a file with the given text and
+     *         number of lines
+     */
+    public static List<Benchmark> createBenchmarks(int lines, final String text)
+    {
+        List<Benchmark> ret = new ArrayList<Benchmark>();
+        String suffix = "." + lines;
+
+        ret.add(new LexBenchmark("lex" + suffix, text, false));
+        ret.add(new LexBenchmark("lexLazyText" + suffix, text, true));
+
+        ret.add(new Benchmark("partitionFull" + suffix) {
+            private Document doc;
+
+            public void setUp() { doc = new Document(text); }
+            public void run() { new PerlPartitioner(new Log()).connect(doc); }
+            public void tearDown() { doc = null; }
+        });
+
+        ret.add(new EditBenchmark("editStart" + suffix, text, 0.0, "x"));
+        ret.add(new EditBenchmark("editMiddle" + suffix, text, 0.5, "x"));
+        ret.add(new EditBenchmark("editEnd" + suffix, text, 1.0, "x"));
+        ret.add(new EditBenchmark("commentLineMiddle" + suffix, text, 0.5, "#"));
+        ret.add(new EditBenchmark("openCurlyMiddle" + suffix, text, 0.5, "{"));
+        ret.add(new EditBenchmark("openHeredocMiddle" + suffix, text, 0.5, "<<EOT;\n"));
+
+        ret.add(new Benchmark("computePartitioning" + suffix) {
+            private PerlPartitioner partitioner;
+            private int length;
+
+            public void setUp()
+            {
+                Document doc = new Document(text);
+                partitioner = new PerlPartitioner(new Log(), doc);
+                length = doc.getLength();
+            }
+            public void run() { partitioner.computePartitioning(0, length); }
+            public void tearDown() { partitioner = null; }
+        });
+
+        ret.add(new Benchmark("sourceFileParse" + suffix) {
+            private Document doc;
+
+            public void setUp()
+            {
+                doc = new Document(text);
+                new PerlPartitioner(new Log(), doc);
+            }
+            // a new SourceFile each time, as parse() only re-examines
+            // what has changed since the previous parse
+            public void run() { new SourceFile(new Log(), doc).parse(); }
+            public void tearDown() { doc = null; }
+        });
+
+        ret.add(new Benchmark("sourceFileEditMiddle" + suffix) {
+            private Document doc;
+            private SourceFile source;
+            private int offset;
+
+            public void setUp() throws BadLocationException
+            {
+                doc = new Document(text);
+                new PerlPartitioner(new Log(), doc);
+                source = new SourceFile(new Log(), doc);
+                source.parse();
+                offset = doc.getLineOffset((doc.getNumberOfLines() - 1) / 2);
+            }
+            public void run() throws BadLocationException
+            {
+                doc.replace(offset, 0, "x");
+                source.parse();
+                doc.replace(offset, 1, "");
+                source.parse();
+            }
+            public void tearDown() { doc = null; source = null; }
+        });
+        return ret;
+    }
+
+    /**
+     * Reports how much text is re-lexed after typical edits
+     * at the beginnings of lines spread over the whole file.
+     */
+    public static void reportRelexLengths(int lines, String text, PrintStream out)
+        throws BadLocationException
+    {
+        Document doc = new Document(text);
+        new PerlPartitioner(new Log(), doc);
+        final int[] relexed = new int[1];
+        doc.addDocumentPartitioningListener(new IDocumentPartitioningListenerExtension2() {
+            public void documentPartitioningChanged(IDocument document) { }
+            public void documentPartitioningChanged(DocumentPartitioningChangedEvent event)
+            {
+                IRegion r = event.getChangedRegion(PartitionTypes.PERL_PARTITIONING);
+                if (r != null) relexed[0] = r.getLength();
+            } });
+
+        String[] edits = { "#", "x", "{", "\"", "<<EOT;\n", "\n=pod\n\n" };
+        int step = Math.max(1, doc.getNumberOfLines() / 100);
+        for (int i = 0; i < edits.length; i++)
+        {
+            long max = 0, total = 0, count = 0;
+            for (int l = 0; l < doc.getNumberOfLines(); l += step)
+            {
+                int offset = doc.getLineOffset(l);
+                relexed[0] = 0;
+                doc.replace(offset, 0, edits[i]);
+                max = Math.max(max, relexed[0]);
+                total += relexed[0];
+                count++;
+                doc.replace(offset, edits[i].length(), "");
+            }
+            out.println(
+                "relex." + lines + ": inserting '" + edits[i].trim() + "' at " +
+                count + " lines re-lexes " + total / count + " chars on average, " +
+                max + " chars at most (document length: " + doc.getLength() + ")");
+        }
+    }
+
+    /**
+     * Reports the heap retained by the partitioner (mostly its tokens) and,
+     * for comparison, by a list of the token objects created by the lexer.
+     * Several copies of small files are measured to reduce the noise.
+     */
+    public static void reportTokensFootprint(int lines, String text, PrintStream out)
+        throws Exception
+    {
+        int copies = Math.max(1, Math.min(10, 100000 / lines));
+        Document[] docs = new Document[copies];
+        for (int i = 0; i < copies; i++) docs[i] = new Document(text);
+
+        long before = usedMemory();
+        for (int i = 0; i < copies; i++) new PerlPartitioner(new Log(), docs[i]);
+        long after = usedMemory();
+
+        PerlPartitioner partitioner = (PerlPartitioner)
+            PartitionTypes.getPerlPartitioner(docs[0]);
+        int tokenCount = partitioner.getTokens().size();
+        reportFootprint("footprint." + lines + ": partitioner",
+            tokenCount, (after - before) / copies, out);
+
+        List<List<Token>> tokenLists = new ArrayList<List<Token>>();
+        before = usedMemory();
+        for (int i = 0; i < copies; i++)
+        {
+            List<Token> tokens = new ArrayList<Token>();
+            PerlMultiLexer lexer = new PerlMultiLexer(docs[i], null);
+            Token t;
+            while ((t = lexer.nextToken()).getType() != Token.EOF_TYPE) tokens.add(t);
+            tokenLists.add(tokens);
+        }
+        after = usedMemory();
+        reportFootprint("footprint." + lines + ": token objects",
+            tokenLists.get(0).size(), (after - before) / copies, out);
+    }
+
+    private static void reportFootprint(
+        String label, int tokenCount, long bytes, PrintStream out)
+    {
+        out.println(
+            label + ": " + tokenCount + " tokens, " +
+            bytes / 1024 + " KB, " + bytes / tokenCount + " bytes per token");
+    }
+
+    private static long usedMemory() throws InterruptedException
+    {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++)
+        {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static int[] parseInts(String str)
+    {
+        StringTokenizer st = new StringTokenizer(str, ",");
+        int[] ret = new int[st.countTokens()];
+        for (int i = 0; i < ret.length; i++) ret[i] = Integer.parseInt(st.nextToken().trim());
+        return ret;
+    }
+
+    /**
+     * Lexes the whole file.
+     */
+    private static class LexBenchmark extends Benchmark
+    {
+        private final String text;
+        private final boolean lazyText;
+        private Document doc;
+        private PerlMultiLexer lexer;
+
+        public LexBenchmark(String name, String text, boolean lazyText)
+        {
+            super(name);
+            this.text = text;
+            this.lazyText = lazyText;
+        }
+
+        public void setUp()
+        {
+            doc = new Document(text);
+            lexer = new PerlMultiLexer();
+            lexer.setTextLazy(lazyText);
+        }
+
+        public void run() throws Exception
+        {
+            lexer.reset(null, doc, null);
+            while (lexer.nextToken().getType() != Token.EOF_TYPE);
+        }
+
+        public void tearDown()
+        {
+            doc = null;
+            lexer = null;
+        }
+    }
+
+    /**
+     * Inserts text at the beginning of a line at the given relative
+     * position in the file, then removes it again. Each operation consists
+     * of two incremental updates of the partitioning.
+     */
+    private static class EditBenchmark extends Benchmark
+    {
+        private final String text;
+        private final double position;
+        private final String insertion;
+        private Document doc;
+        private int offset;
+
+        public EditBenchmark(String name, String text, double position, String insertion)
+        {
+            super(name);
+            this.text = text;
+            this.position = position;
+            this.insertion = insertion;
+        }
+
+        public void setUp() throws BadLocationException
+        {
+            doc = new Document(text);
+            new PerlPartitioner(new Log(), doc);
+            int line = (int) ((doc.getNumberOfLines() - 1) * position);
+            offset = doc.getLineOffset(line);
+        }
+
+        public void run() throws BadLocationException
+        {
+            doc.replace(offset, 0, insertion);
+            doc.replace(offset, insertion.length(), "");
+        }
+
+        public void tearDown()
+        {
+            doc = null;
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package org.epic.core.model;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import org.eclipse.jface.text.Document;
 import org.eclipse.jface.text.IDocument;
+import org.epic.core.parser.PerlToken;
 import org.epic.perl.editor.test.BaseTestCase;
 import org.epic.perl.editor.test.Log;
 import org.epic.perleditor.editors.PartitionTypes;
@@ -25,6 +28,85 @@ public class TestSourceFile extends BaseTestCase
             "test.in/TestSourceFile-expected2.txt");
     }
     
+    public void testSnapshot() throws Exception
+    {
+        Document doc = new Document(readFile("workspace/EPICTest/lib/TestPackage.pm"));
+        new PerlPartitioner(new Log(), doc);
+        
+        SourceFile src = new SourceFile(new Log(), doc);
+        src.parse();
+        String expected = dumpPackages(src);
+        
+        SourceFile src2 = new SourceFile(new Log(), doc);
+        SourceFile.Snapshot snapshot = src2.parseSnapshot();
+        assertTrue(src2.getPackages().isEmpty()); // not installed yet
+        assertTrue(src2.update(snapshot));
+        assertEquals(expected, dumpPackages(src2));
+        
+        // a snapshot taken before a document change must be rejected
+        snapshot = src2.parseSnapshot();
+        doc.replace(0, 0, "sub foo { }\n");
+        assertFalse(src2.isCurrent(snapshot));
+        assertFalse(src2.update(snapshot));
+        assertEquals(expected, dumpPackages(src2));
+        
+        // texts of a snapshot's tokens are not affected by document changes
+        snapshot = src2.parseSnapshot();
+        String text = doc.get();
+        doc.replace(0, 0, "sub bar { }\n");
+        assertEquals(text, snapshot.getDocument().get());
+        PerlToken t = snapshot.getTokens().get(0);
+        assertEquals(
+            text.substring(t.getOffset(), t.getOffset() + t.getLength()),
+            t.getText());
+    }
+    
+    public void testIncrementalParse() throws Exception
+    {
+        Document doc = new Document(readFile("workspace/EPICTest/Twig.pm"));
+        new PerlPartitioner(new Log(), doc);
+
+        final List<SourceFileDelta> deltas = new ArrayList<SourceFileDelta>();
+        SourceFile src = new SourceFile(new Log(), doc);
+        src.addListener(new ISourceFileListener() {
+            public void sourceFileChanged(SourceFile source, SourceFileDelta delta)
+            {
+                deltas.add(delta);
+            }
+        });
+        src.parse();
+        assertTrue(deltas.get(0).isFullChange());
+
+        int offset = doc.getLineOffset(doc.getNumberOfLines() / 2);
+        String[] edits = {
+            "sub inserted { my $x = 1; }\n",
+            "package Inserted;\n",
+            "if ($x) { $y = { a => 1 }; }\n",
+            "=pod\n\nsub not_a_sub { }\n\n=cut\n",
+            "my $s = <<EOT;\nsub not_a_sub {\nEOT\n" };
+
+        for (int i = 0; i < edits.length; i++)
+        {
+            doc.replace(offset, 0, edits[i]);
+            _testIncrementalParse(src, doc, deltas);
+            doc.replace(offset, edits[i].length(), "");
+            _testIncrementalParse(src, doc, deltas);
+        }
+    }
+    
+    private void _testIncrementalParse(
+        SourceFile src, IDocument doc, List<SourceFileDelta> deltas)
+    {
+        deltas.clear();
+        src.parse();
+        assertEquals(1, deltas.size());
+        assertFalse(deltas.get(0).isFullChange());
+
+        SourceFile full = new SourceFile(new Log(), doc);
+        full.parse();
+        assertEquals(dumpPackages(full), dumpPackages(src));
+    }
+    
     private void _testFile(String inFile, String outFile) throws IOException
     {
         Document doc = new Document(readFile(inFile));
@@ -35,6 +117,19 @@ public class TestSourceFile extends BaseTestCase
         SourceFile src = new SourceFile(new Log(), doc);
         src.parse();
         
+        /*
+        PrintWriter pw = new PrintWriter(
+            new FileWriter("/tmp/outf"));
+        
+        pw.println(buf);
+        pw.close();
+        */
+        
+        assertEquals(expected, dumpPackages(src));
+    }
+    
+    private String dumpPackages(SourceFile src)
+    {
         StringBuffer buf = new StringBuffer();
         for (Iterator<Package> i = src.getPackages().iterator(); i.hasNext();)
         {
@@ -59,15 +154,6 @@ public class TestSourceFile extends BaseTestCase
             buf.append('}');
             buf.append(String.format("%n"));
         }
-        
-        /*
-        PrintWriter pw = new PrintWriter(
-            new FileWriter("/tmp/outf"));
-        
-        pw.println(buf);
-        pw.close();
-        */
-        
-        assertEquals(expected, buf.toString());
+        return buf.toString();
     }
 }
\ No newline at end of file
@@ -29,6 +29,22 @@ public class TestPerlMultiLexer extends BaseTestCase
             new PrintWriter(new OutputStreamWriter(System.out), true));   
     }
     
+    public void testLazyText() throws Exception
+    {
+        String path = "workspace/EPICTest/test_Heredoc.pl";
+        _testLazyText(new Document(readFile(path)), path);
+    }
+    
+    public void testLazyTextQuotedHeredoc() throws Exception
+    {
+        // the heredoc's terminator must be found although the text
+        // of the OPEN_HEREDOC token differs from the document's text,
+        // which is why the OPEN_HEREDOC token's text must not be lazy
+        Document doc = new Document(
+            "sub a {\n  my $s = <<\"SQL\";\nabc {\nSQL\n  1;\n}\nsub b { 1 }\n");
+        _testLazyText(doc, "quoted heredoc");
+    }
+    
     /*public void testSelectedCase() throws Exception
     {
         _testFile(
@@ -121,6 +137,26 @@ public class TestPerlMultiLexer extends BaseTestCase
         }
     }
     
+    private void _testLazyText(Document doc, String path)
+        throws Exception
+    {
+        PerlMultiLexer eager = new PerlMultiLexer(doc, null);
+        PerlMultiLexer lazy = new PerlMultiLexer();
+        lazy.setTextLazy(true);
+        lazy.reset(null, doc, null);
+
+        PerlToken t;
+        while ((t = nextToken(eager, path)).getType() != Token.EOF_TYPE)
+        {
+            PerlToken lt = nextToken(lazy, path);
+            assertEquals(t, lt);
+            assertEquals(t.getLine(), lt.getLine());
+            assertEquals(t.getOffset(), lt.getOffset());
+            assertEquals(t.getText(), lt.getText());
+        }
+        assertEquals(Token.EOF_TYPE, nextToken(lazy, path).getType());
+    }
+    
     private PerlToken nextToken(PerlMultiLexer lexer, String path) throws TokenStreamException
     {
         try
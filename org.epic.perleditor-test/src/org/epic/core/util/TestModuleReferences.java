@@ -0,0 +1,36 @@
+package org.epic.core.util;
+
+import org.epic.perl.editor.test.BaseTestCase;
+
+public class TestModuleReferences extends BaseTestCase
+{
+    public void testModuleNames() throws Exception
+    {
+        _test("use strict;\nuse Foo::Bar qw(baz);\n", "[strict, Foo::Bar]");
+        _test("BEGIN { require Foo }", "[Foo]");
+        _test("use parent 'Foo';", "[parent, Foo]");
+        _test("use parent -norequire, \"Foo\", 'Bar';", "[parent, Foo, Bar]");
+        _test("use base qw(Foo Bar::Baz);", "[base, Foo, Bar::Baz]");
+        _test("use base\n  qw/Foo/;\nmy $base = 1;", "[base, Foo]");
+    }
+
+    public void testRequiredPaths() throws Exception
+    {
+        assertEquals(
+            "[lib.pl, sub/lib2.pl]",
+            ModuleReferences.getRequiredPaths(
+                "require \"lib.pl\";\nrequire('sub/lib2.pl');\n" +
+                "require \"$dir/lib3.pl\";\nrequire Foo;\n").toString());
+    }
+
+    public void testModulePath() throws Exception
+    {
+        assertEquals("Foo/Bar.pm", ModuleReferences.getModulePath("Foo::Bar"));
+    }
+
+    private void _test(String sourceCode, String expected)
+    {
+        assertEquals(
+            expected, ModuleReferences.getModuleNames(sourceCode).toString());
+    }
+}
@@ -8,12 +8,13 @@ import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.Position;
 import org.eclipse.jface.text.source.Annotation;
 import org.eclipse.jface.text.source.IAnnotationModel;
+import org.eclipse.jface.text.source.IAnnotationModelExtension;
 import org.eclipse.jface.text.source.IAnnotationModelListener;
 
 /**
  * Simple implementation of <code>IAnnotationModel</code> for use in unit-testing.
  */
-public class MockAnnotationModel implements IAnnotationModel
+public class MockAnnotationModel implements IAnnotationModel, IAnnotationModelExtension
 {
     private Map<Annotation, Position> map = new HashMap<Annotation, Position>();
 
@@ -31,6 +32,14 @@ public class MockAnnotationModel implements IAnnotationModel
         map.put(annotation, position);
     }
 
+    /*
+     * @see org.eclipse.jface.text.source.IAnnotationModelExtension#addAnnotationModel(java.lang.Object, org.eclipse.jface.text.source.IAnnotationModel)
+     */
+    public void addAnnotationModel(Object key, IAnnotationModel attachment)
+    {
+        throw new RuntimeException("unimplemented");
+    }
+
     /*
      * @see org.eclipse.jface.text.source.IAnnotationModel#addAnnotationModelListener(org.eclipse.jface.text.source.IAnnotationModelListener)
      */
@@ -87,4 +96,90 @@ public class MockAnnotationModel implements IAnnotationModel
         throw new RuntimeException("unimplemented");
     }
 
+    /*
+     * @see org.eclipse.jface.text.source.IAnnotationModelExtension#getAnnotationModel(java.lang.Object)
+     */
+    public IAnnotationModel getAnnotationModel(Object key)
+    {
+        throw new RuntimeException("unimplemented");
+    }
+
+    /*
+     * @see org.eclipse.jface.text.source.IAnnotationModelExtension#getLockObject()
+     */
+    public Object getLockObject()
+    {
+        return this;
+    }
+
+    /*
+     * @see org.eclipse.jface.text.source.IAnnotationModelExtension#getModificationStamp()
+     */
+    public Object getModificationStamp()
+    {
+        throw new RuntimeException("unimplemented");
+    }
+
+    /*
+     * @see org.eclipse.jface.text.source.IAnnotationModelExtension#modifyAnnotationPosition(org.eclipse.jface.text.source.Annotation, org.eclipse.jface.text.Position)
+     */
+    public void modifyAnnotationPosition(Annotation annotation, Position position)
+    {
+        map.put(annotation, position);
+    }
+
+    /*
+     * @see org.eclipse.jface.text.source.IAnnotationModelExtension#removeAllAnnotations()
+     */
+    public void removeAllAnnotations()
+    {
+        map.clear();
+    }
+
+    /*
+     * @see org.eclipse.jface.text.source.IAnnotationModelExtension#removeAnnotationModel(java.lang.Object)
+     */
+    public IAnnotationModel removeAnnotationModel(Object key)
+    {
+        throw new RuntimeException("unimplemented");
+    }
+
+    /*
+     * @see org.eclipse.jface.text.source.IAnnotationModelExtension#replaceAnnotations(org.eclipse.jface.text.source.Annotation[], java.util.Map)
+     */
+    public void replaceAnnotations(Annotation[] annotationsToRemove, Map annotationsToAdd)
+    {
+        if (annotationsToRemove != null)
+        {
+            for (int i = 0; i < annotationsToRemove.length; i++)
+                map.remove(annotationsToRemove[i]);
+        }
+        if (annotationsToAdd != null)
+        {
+            for (Iterator i = annotationsToAdd.entrySet().iterator(); i.hasNext();)
+            {
+                Map.Entry entry = (Map.Entry) i.next();
+                map.put((Annotation) entry.getKey(), (Position) entry.getValue());
+            }
+        }
+    }
+
+    /*
+     * @see org.eclipse.jface.text.source.IAnnotationModelExtension#setLockObject(java.lang.Object)
+     */
+    public void setLockObject(Object lockObject)
+    {
+        throw new RuntimeException("unimplemented");
+    }
+
+    /** @returns the annotation at the given offset, or null if there is none */
+    public Annotation getAnnotationAt(int offset)
+    {
+        for (Iterator<Map.Entry<Annotation, Position>> i = map.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry<Annotation, Position> entry = i.next();
+            if (entry.getValue().getOffset() == offset) return entry.getKey();
+        }
+        return null;
+    }
 }
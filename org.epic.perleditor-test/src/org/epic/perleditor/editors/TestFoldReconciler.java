@@ -6,6 +6,7 @@ import org.eclipse.core.runtime.ILog;
 
 import org.eclipse.jface.text.Document;
 import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.source.Annotation;
 import org.eclipse.jface.text.source.IAnnotationModel;
 
 import org.epic.core.model.SourceFile;
@@ -53,6 +54,36 @@ public class TestFoldReconciler extends BaseTestCase
         // TODO: additional tests
     }
 
+    public void testReconcileInPlace() throws Exception
+    {
+        FoldReconciler uut = new MockedFoldReconciler();
+
+        sourceFile = loadSourceFile(null);
+        IDocument doc = sourceFile.getDocument();
+        doc.set(
+            "sub foo\n{\n    1;\n}\n" +
+            "my $x = <<EOT;\na\nb\nEOT\n" +
+            "BEGIN\n{\n    1;\n    2;\n    3;\n}\n");
+        sourceFile.parse();
+
+        uut.reconcile();
+        Assert.assertEquals(3, mockModel.size()); // sub, heredoc, BEGIN
+        Annotation sub = mockModel.getAnnotationAt(0);
+        Assert.assertNotNull(sub);
+
+        // unchanged folds keep their annotations
+        uut.reconcile();
+        Assert.assertEquals(3, mockModel.size());
+        Assert.assertSame(sub, mockModel.getAnnotationAt(0));
+
+        // a moved subroutine keeps its annotation, too
+        doc.replace(0, 0, "\n");
+        sourceFile.parse();
+        uut.reconcile();
+        Assert.assertEquals(3, mockModel.size());
+        Assert.assertSame(sub, mockModel.getAnnotationAt(1));
+    }
+
     protected void setUp() throws Exception
     {
         mockModel = new MockAnnotationModel();
@@ -60,7 +91,7 @@ public class TestFoldReconciler extends BaseTestCase
 
     private SourceFile loadSourceFile(String file) throws Exception
     {
-        Document doc = new Document(readFile(file));
+        Document doc = new Document(file != null ? readFile(file) : "");
         new PerlPartitioner(new Log(), doc);
 
         return new SourceFile(getLoggerForTests(), doc);
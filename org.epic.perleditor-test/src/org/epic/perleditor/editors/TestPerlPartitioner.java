@@ -1,5 +1,8 @@
 package org.epic.perleditor.editors;
 
+import java.util.*;
+import java.util.regex.*;
+
 import org.eclipse.jface.text.*;
 import org.epic.perl.editor.test.BaseTestCase;
 import org.epic.perl.editor.test.Log;
@@ -35,4 +38,281 @@ public class TestPerlPartitioner extends BaseTestCase
         assertEquals(expected, buf.toString());
         //System.err.println(buf);
     }
+    
+    public void testIncrementalEdits() throws Exception
+    {
+        // Partitioning after incremental updates must be the same as
+        // that of the resulting text partitioned from scratch
+        
+        Document doc = new Document(readFile("workspace/EPICTest/syntax.pl").replace("\r",""));
+        PerlPartitioner partitioner = new PerlPartitioner(new Log(), doc);
+        
+        int middle = doc.getLineOffset(doc.getNumberOfLines() / 2);
+        doc.replace(middle, 0, "{\n");
+        _testSamePartitioning(doc, partitioner);
+        doc.replace(middle, 2, "");
+        _testSamePartitioning(doc, partitioner);
+        doc.replace(middle, 0, "print <<EOT;\n");
+        _testSamePartitioning(doc, partitioner);
+        doc.replace(0, 0, "# comment\n");
+        _testSamePartitioning(doc, partitioner);
+        doc.replace(doc.getLength(), 0, "\nsub foo { }\n");
+        _testSamePartitioning(doc, partitioner);
+        
+        int line = doc.getLineOffset(doc.getNumberOfLines() / 3);
+        doc.replace(line, 0, "#");
+        _testSamePartitioning(doc, partitioner);
+        doc.replace(line, 1, "");
+        _testSamePartitioning(doc, partitioner);
+        doc.replace(line, 0, "\"");
+        _testSamePartitioning(doc, partitioner);
+        doc.replace(line, 1, "");
+        _testSamePartitioning(doc, partitioner);
+        doc.replace(line, 0, "}");
+        _testSamePartitioning(doc, partitioner);
+    }
+    
+    public void testRunawayString() throws Exception
+    {
+        // A bracketed string which is cut off after too many lines must not
+        // leave the lexer in a state which affects the strings that follow,
+        // or else re-lexing from a sync token would yield different tokens
+        
+        StringBuffer buf = new StringBuffer();
+        for (int i = 0; i < 600; i++) buf.append("1;\n");
+        buf.append("my @y = split /,/, $x;\n");
+        
+        Document doc = new Document(buf.toString());
+        PerlPartitioner partitioner = new PerlPartitioner(new Log(), doc);
+        doc.replace(0, 0, "q{ {");
+        _testSamePartitioning(doc, partitioner);
+    }
+    
+    public void testIdentifierIndex() throws Exception
+    {
+        // The incrementally updated identifier index must match the index
+        // of the resulting text built from scratch
+        
+        Document doc = new Document(readFile("workspace/EPICTest/syntax.pl").replace("\r",""));
+        PerlPartitioner partitioner = new PerlPartitioner(new Log(), doc);
+        partitioner.getIdentifierOffsets("$x");
+        
+        int middle = doc.getLineOffset(doc.getNumberOfLines() / 2);
+        doc.replace(middle, 0, "my $x = \"$y @z\";\n");
+        _testSameIdentifiers(doc, partitioner);
+        doc.replace(middle, 0, "{\n");
+        _testSameIdentifiers(doc, partitioner);
+        doc.replace(middle, 2, "");
+        _testSameIdentifiers(doc, partitioner);
+        doc.replace(0, 0, "print <<EOT;\n");
+        _testSameIdentifiers(doc, partitioner);
+        doc.replace(0, 13, "");
+        _testSameIdentifiers(doc, partitioner);
+        
+        // enough edits to flush the index's pending changes
+        for (int i = 0; i < 200; i++)
+        {
+            int line = doc.getLineOffset(i * 7 % doc.getNumberOfLines());
+            if (i % 2 == 0) doc.replace(line, 0, "$x" + i + " ");
+            else doc.replace(line, 0, "'$x" + i + "'; ");
+        }
+        _testSameIdentifiers(doc, partitioner);
+        doc.set(doc.get().substring(0, middle));
+        _testSameIdentifiers(doc, partitioner);
+        
+        // no index is built while a change is pending, as the document's
+        // text may no longer match the tokens
+        doc = new Document("my $x = 1; $x++;\n");
+        partitioner = new PerlPartitioner(new Log(), doc);
+        partitioner.documentAboutToBeChanged(new DocumentEvent(doc, 0, 0, "$x; "));
+        assertEquals(0, partitioner.getIdentifierOffsets("$x").length);
+        assertNull(partitioner.getDocumentSnapshot());
+        doc.replace(0, 0, "$x; ");
+        assertEquals(3, partitioner.getIdentifierOffsets("$x").length);
+    }
+    
+    public void testVariableScopes() throws Exception
+    {
+        String text =
+            "my $x = 1; our $g;\n" +
+            "sub foo\n" +
+            "{\n" +
+            "    my ($x, @y) = @_;\n" +
+            "    print \"$x $g\";\n" +
+            "    for my $i (@{$x}) { print $i; }\n" +
+            "    $i = $x;\n" +
+            "}\n" +
+            "print $x, $i;\n";
+        Document doc = new Document(text);
+        PerlPartitioner partitioner = new PerlPartitioner(new Log(), doc);
+        
+        int outerX = text.indexOf("$x");
+        int innerX = text.indexOf("$x", text.indexOf("my ($x"));
+        int loopI = text.indexOf("$i");
+        
+        assertEquals(
+            dumpOffsets(new int[] { outerX, text.lastIndexOf("$x") }),
+            dumpOffsets(partitioner.getVariableOffsets("$x", outerX)));
+        assertEquals(
+            dumpOffsets(new int[] {
+                innerX,
+                text.indexOf("$x", innerX + 1),
+                text.indexOf("$x", text.indexOf("@{")),
+                text.indexOf("$x", text.indexOf("$i =")) }),
+            dumpOffsets(partitioner.getVariableOffsets("$x", innerX)));
+        assertEquals(
+            dumpOffsets(new int[] { loopI, text.indexOf("$i", loopI + 1) }),
+            dumpOffsets(partitioner.getVariableOffsets("$i", loopI)));
+        assertEquals(
+            dumpOffsets(new int[] { text.indexOf("$i ="), text.lastIndexOf("$i") }),
+            dumpOffsets(partitioner.getVariableOffsets("$i", text.lastIndexOf("$i"))));
+        
+        assertEquals("@y $x $g $x ", dumpVariables(doc, partitioner, text.indexOf("print")));
+        assertEquals("$i @y $x $g $x ", dumpVariables(doc, partitioner, text.indexOf("print $i")));
+        assertEquals("$g $x ", dumpVariables(doc, partitioner, text.lastIndexOf("print")));
+        
+        // the index follows edits
+        doc.replace(text.indexOf("sub"), 0, "{ my $g; }\n");
+        assertEquals("$g $x ", dumpVariables(doc, partitioner, doc.getLength()));
+    }
+    
+    public void testPackageVariables() throws Exception
+    {
+        String text =
+            "use vars qw($v @w);\n" +
+            "my ($lex, @arr);\n" +
+            "$v = $lex + $arr[0];\n" +
+            "push @w, $Foo::x;\n" +
+            "sub foo { $global = \"$v\"; }\n";
+        Document doc = new Document(text);
+        PerlPartitioner partitioner = new PerlPartitioner(new Log(), doc);
+        
+        assertEquals(
+            "$Foo::x $global $v @w ",
+            dumpRegions(doc, partitioner.getPackageVariables()));
+        assertEquals(
+            text.indexOf("$v ="),
+            partitioner.getPackageVariables().get(2).getOffset());
+    }
+    
+    public void testTopLevelRegion() throws Exception
+    {
+        String text =
+            "use strict;\n" +
+            "my %h = (\n" +
+            "    a => sub { 1 },\n" +
+            ");\n" +
+            "sub foo\n" +
+            "{\n" +
+            "    print <<EOT;\n" +
+            "}\n" +
+            "EOT\n" +
+            "}\n" +
+            "if ($x) { foo(); }\n" +
+            "else { bar(); }\n" +
+            "print 1;\n" +
+            "__END__\n" +
+            "data\n";
+        Document doc = new Document(text);
+        PerlPartitioner partitioner = new PerlPartitioner(new Log(), doc);
+
+        assertEquals("use strict;\n", dumpTopLevelRegion(doc, partitioner, "strict", 0));
+        assertEquals(
+            "my %h = (\n    a => sub { 1 },\n);\n",
+            dumpTopLevelRegion(doc, partitioner, "a =>", 0));
+        assertEquals(
+            "sub foo\n{\n    print <<EOT;\n}\nEOT\n}\n",
+            dumpTopLevelRegion(doc, partitioner, "print <<", 0));
+        assertEquals(
+            "if ($x) { foo(); }\nelse { bar(); }\n",
+            dumpTopLevelRegion(doc, partitioner, "foo()", 0));
+        assertEquals(
+            "if ($x) { foo(); }\nelse { bar(); }\nprint 1;\n",
+            dumpTopLevelRegion(doc, partitioner, "bar()", "bar(); }\nprint".length()));
+        assertNull(partitioner.getTopLevelRegion(text.indexOf("data"), 0));
+    }
+
+    private String dumpTopLevelRegion(
+        Document doc, PerlPartitioner partitioner, String at, int length)
+        throws BadLocationException
+    {
+        IRegion r = partitioner.getTopLevelRegion(doc.get().indexOf(at), length);
+        return doc.get(r.getOffset(), r.getLength());
+    }
+
+    private void _testSamePartitioning(Document doc, PerlPartitioner partitioner)
+    {
+        Document doc2 = new Document(doc.get());
+        PerlPartitioner partitioner2 = new PerlPartitioner(new Log(), doc2);
+        
+        assertEquals(
+            dumpPartitioning(partitioner2.computePartitioning(0, doc2.getLength())),
+            dumpPartitioning(partitioner.computePartitioning(0, doc.getLength())));
+    }
+    
+    private void _testSameIdentifiers(Document doc, PerlPartitioner partitioner)
+    {
+        Document doc2 = new Document(doc.get());
+        PerlPartitioner partitioner2 = new PerlPartitioner(new Log(), doc2);
+        
+        Set<String> names = new TreeSet<String>();
+        Matcher m = Pattern.compile("[$@%&]?[a-zA-Z_][a-zA-Z0-9_:]*").matcher(doc.get());
+        while (m.find()) names.add(m.group());
+        
+        StringBuffer expected = new StringBuffer();
+        StringBuffer actual = new StringBuffer();
+        for (Iterator<String> i = names.iterator(); i.hasNext();)
+        {
+            String name = i.next();
+            expected.append(name + ": " + dumpOffsets(partitioner2.getIdentifierOffsets(name)) + "\n");
+            actual.append(name + ": " + dumpOffsets(partitioner.getIdentifierOffsets(name)) + "\n");
+        }
+        assertEquals(expected.toString(), actual.toString());
+    }
+    
+    private String dumpVariables(Document doc, PerlPartitioner partitioner, int offset)
+        throws BadLocationException
+    {
+        return dumpRegions(doc, partitioner.getVisibleVariables(offset));
+    }
+    
+    private String dumpRegions(Document doc, List<IRegion> regions)
+        throws BadLocationException
+    {
+        StringBuffer buf = new StringBuffer();
+        for (Iterator<IRegion> i = regions.iterator(); i.hasNext();)
+        {
+            IRegion r = i.next();
+            buf.append(doc.get(r.getOffset(), r.getLength()));
+            buf.append(' ');
+        }
+        return buf.toString();
+    }
+    
+    private String dumpOffsets(int[] offsets)
+    {
+        StringBuffer buf = new StringBuffer();
+        for (int i = 0; i < offsets.length; i++)
+        {
+            if (i > 0) buf.append(',');
+            buf.append(offsets[i]);
+        }
+        return buf.toString();
+    }
+    
+    private String dumpPartitioning(ITypedRegion[] partitioning)
+    {
+        StringBuffer buf = new StringBuffer();
+        for (int i = 0; i < partitioning.length; i++)
+        {
+            ITypedRegion r = partitioning[i];
+            buf.append(r.getOffset());
+            buf.append(':');
+            buf.append(r.getLength());
+            buf.append(':');
+            buf.append(r.getType());
+            buf.append('\n');
+        }
+        return buf.toString();
+    }
 }
@@ -0,0 +1,125 @@
+package org.epic.perleditor.editors;
+
+import java.util.Iterator;
+import java.util.regex.Pattern;
+
+import org.eclipse.jface.text.Document;
+import org.epic.perl.editor.test.BaseTestCase;
+import org.epic.perl.editor.test.Log;
+
+public class TestTasksReconciler extends BaseTestCase
+{
+    private final Pattern tagPattern =
+        TasksReconciler.createTagPattern(new String[] { "TODO", "TASK" }, true, true);
+
+    public void testTagPattern() throws Exception
+    {
+        Document doc = new Document(
+            "my $x; # TODO fix\n" +
+            "# todo: lower case # TASK other # TODO repeated\n" +
+            "#TODO\n" +
+            "# FIXME not a tag\n");
+        PerlPartitioner partitioner = new PerlPartitioner(new Log(), doc);
+
+        assertEquals(
+            "7:16:1:fix\n" +
+            "18:65:2:: lower case # TASK other # TODO repeated\n" +
+            "37:64:2:other # TODO repeated\n",
+            dumpTasks(computeTasks(partitioner, null)));
+    }
+
+    public void testIncrementalEdits() throws Exception
+    {
+        // Tasks found after incremental updates must be the same as
+        // those found in the resulting text from scratch
+
+        Document doc = new Document(readFile("workspace/EPICTest/syntax.pl").replace("\r",""));
+        int middle = doc.getLineOffset(doc.getNumberOfLines() / 2);
+        for (int i = 0; i < 20; i++)
+            doc.replace(middle, 0, "# TODO task " + i + "\n");
+        PerlPartitioner partitioner = new PerlPartitioner(new Log(), doc);
+
+        TasksReconciler.TaskList tasks = computeTasks(partitioner, null);
+        assertTrue(tasks.tasks.size() >= 20);
+
+        String[] edits = {
+            "# TODO new task\n", "x", "# TASK one # TODO two\n", "print <<EOT;\n",
+            "{\n", "=pod\n\n", "\n\n\n", "'", "TODO" };
+
+        for (int i = 0; i < edits.length; i++)
+        {
+            int offset = doc.getLineOffset(doc.getNumberOfLines() * (i + 1) / (edits.length + 2));
+            doc.replace(offset, 0, edits[i]);
+            tasks = _testSameTasks(partitioner, tasks);
+            doc.replace(0, 0, edits[i]);
+            tasks = _testSameTasks(partitioner, tasks);
+            doc.replace(offset + edits[i].length(), edits[i].length(), "");
+            tasks = _testSameTasks(partitioner, tasks);
+        }
+
+        // several changes since the previous scan
+        TasksReconciler.TaskList previous = tasks;
+        doc.replace(middle, 0, "# TODO first\n");
+        doc.replace(doc.getLength(), 0, "\n# TODO last\n");
+        doc.replace(0, 10, "");
+        _testSameTasks(partitioner, previous);
+    }
+
+    private TasksReconciler.TaskList _testSameTasks(
+        PerlPartitioner partitioner, TasksReconciler.TaskList previous)
+    {
+        TasksReconciler.TaskList tasks = computeTasks(partitioner, previous);
+        assertEquals(
+            dumpTasks(computeTasks(partitioner, null)),
+            dumpTasks(tasks));
+        return tasks;
+    }
+
+    private TasksReconciler.TaskList computeTasks(
+        PerlPartitioner partitioner, TasksReconciler.TaskList previous)
+    {
+        synchronized (partitioner.getTokensLock())
+        {
+            return new MockedTasksReconciler().computeTasks(
+                partitioner,
+                partitioner.getTokens(),
+                partitioner.getTokensVersion(),
+                previous);
+        }
+    }
+
+    private String dumpTasks(TasksReconciler.TaskList tasks)
+    {
+        StringBuffer buf = new StringBuffer();
+        for (Iterator<TasksReconciler.Task> i = tasks.tasks.iterator(); i.hasNext();)
+        {
+            TasksReconciler.Task task = i.next();
+            buf.append(task.start);
+            buf.append(':');
+            buf.append(task.stop);
+            buf.append(':');
+            buf.append(task.line);
+            buf.append(':');
+            buf.append(task.text);
+            buf.append('\n');
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Testable sub-class
+     */
+    private class MockedTasksReconciler extends TasksReconciler
+    {
+        MockedTasksReconciler()
+        {
+            // safe only b/c all methods referencing have been overridden
+            super(null);
+        }
+
+        protected Pattern getTagPattern()
+        {
+            return tagPattern;
+        }
+    }
+}
@@ -67,25 +67,15 @@ public class PerlValidatorStub extends PerlValidatorBase
         perlExecutor.dispose();
     }
     
-    protected void addMarker(IResource resource, Map<String, Serializable> attributes)
-    {                
-    }
-    
-    protected void clearAllUsedMarkers(IResource resource)
-    {
-    }
-
-    protected boolean isProblemMarkerPresent(ParsedErrorLine line, IResource resource)
-    {
-        return false;
-    }
-
-    protected void removeUnusedMarkers(IResource resource)
+    protected boolean shouldUnderlineError(IResource resource, int lineNr)
     {
+        return true;
     }
     
-    protected boolean shouldUnderlineError(IResource resource, int lineNr)
+    protected void updateMarkers(
+        IResource resource,
+        List<Map<String, Serializable>> markers,
+        boolean deleteUnmatched)
     {
-        return true;
     }
 }
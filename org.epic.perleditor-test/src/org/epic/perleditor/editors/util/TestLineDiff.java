@@ -0,0 +1,88 @@
+package org.epic.perleditor.editors.util;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.ITypedRegion;
+import org.epic.perl.editor.test.BaseTestCase;
+import org.epic.perl.editor.test.Log;
+import org.epic.perleditor.editors.PerlPartitioner;
+
+public class TestLineDiff extends BaseTestCase
+{
+    public void testCompute() throws Exception
+    {
+        assertEquals("", dumpHunks("a\nb\n", "a\nb\n"));
+        assertEquals("2-4>2-4 ", dumpHunks("a\nb\nc\n", "a\nX\nc\n"));
+        assertEquals("2-2>2-4 6-8>8-8 ", dumpHunks("a\nb\nc\nd\n", "a\nX\nb\nc\n"));
+        assertEquals("0-0>0-2 ", dumpHunks("b\n", "a\nb\n"));
+        assertEquals("2-3>2-4 ", dumpHunks("a\nb", "a\nb\n"));
+        assertEquals("0-2>0-0 ", dumpHunks("a\n", ""));
+    }
+
+    public void testApply() throws Exception
+    {
+        // Applying the differences must produce the new text, and the
+        // partitioner must keep up without being re-initialized
+
+        String oldText = readFile("workspace/EPICTest/syntax.pl").replace("\r","");
+        Random random = new Random(0);
+
+        for (int n = 0; n < 50; n++)
+        {
+            StringBuffer buf = new StringBuffer();
+            String[] lines = oldText.split("\n", -1);
+            for (int i = 0; i < lines.length; i++)
+            {
+                int r = random.nextInt(20);
+                if (r == 0) continue; // deleted
+                if (r == 1) buf.append("inserted line\n");
+                if (r == 2) buf.append("    ");
+                buf.append(lines[i]);
+                if (i < lines.length - 1) buf.append('\n');
+            }
+            String newText = buf.toString();
+
+            Document doc = new Document("prefix\n" + oldText + "suffix");
+            PerlPartitioner partitioner = new PerlPartitioner(new Log(), doc);
+            int count = LineDiff.apply(doc, 7, oldText.length(), newText);
+            assertEquals("prefix\n" + newText + "suffix", doc.get());
+            assertEquals(
+                dumpPartitioning(new PerlPartitioner(new Log(), new Document(doc.get())), doc),
+                dumpPartitioning(partitioner, doc));
+            assertTrue(count <= LineDiff.compute(oldText, newText).size());
+            assertEquals(0, LineDiff.apply(doc, 7, newText.length(), newText));
+        }
+    }
+
+    private String dumpPartitioning(PerlPartitioner partitioner, Document doc)
+    {
+        ITypedRegion[] partitioning = partitioner.computePartitioning(0, doc.getLength());
+        StringBuffer buf = new StringBuffer();
+        for (int i = 0; i < partitioning.length; i++)
+        {
+            ITypedRegion r = partitioning[i];
+            buf.append(r.getOffset());
+            buf.append(':');
+            buf.append(r.getLength());
+            buf.append(':');
+            buf.append(r.getType());
+            buf.append('\n');
+        }
+        return buf.toString();
+    }
+
+    private String dumpHunks(String oldText, String newText)
+    {
+        List<LineDiff.Hunk> hunks = LineDiff.compute(oldText, newText);
+        StringBuffer buf = new StringBuffer();
+        for (Iterator<LineDiff.Hunk> i = hunks.iterator(); i.hasNext();)
+        {
+            buf.append(i.next());
+            buf.append(' ');
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,205 @@
+#
+# EPIC compile server
+#
+# long-lived replacement for "perl -c" used by EPIC's syntax validation.
+# the server is started once per project with the project's include path
+# and then compiles any number of sources submitted over stdin. each source
+# is compiled in a forked child, so that the server itself is not affected
+# by the compiled code; modules used by the submitted sources are loaded
+# into the server after each request, so that later children find them
+# already compiled and start warm. modules found in the project's folders
+# (passed as arguments to the server) or in the directory of the compiled
+# source are never preloaded: the user edits them, and children compiled
+# against a preloaded copy would not see the edits.
+#
+# the source is compiled with "do" from an in-memory file, so that it is read
+# line by line like a script run by "perl -c" and the diagnostics match.
+# differences which remain: "used only once" warnings are not reported
+# (they are only issued for a main program) and CHECK blocks are not run
+# (it is too late for them after the main program has been compiled).
+# switches on the #! line are not examined by the server; the client passes
+# the -w switch from there and uses "perl -c" for any other switch.
+#
+# request:  <number of header lines>\n
+#           <arg>\n ...               (perl switches, only -w is honoured)
+#           <working directory>\n      (the last header line)
+#           <length in bytes>\n
+#           <source code>
+#
+# response: <length in bytes>\n
+#           <diagnostics>             (the same text "perl -c" prints to stderr)
+#
+
+use strict;
+use File::Spec;
+use POSIX ();
+
+my %preloadFailed;
+my @projectDirs = map { canonical_dir($_) } @ARGV;
+@ARGV = ();
+
+# the protocol uses private handles; anything the compiled code or the
+# preloaded modules print to STDOUT or read from STDIN must not interfere
+open(my $in, '<&', \*STDIN) or die "cannot dup STDIN: $!";
+open(my $out, '>&', \*STDOUT) or die "cannot dup STDOUT: $!";
+open(STDIN, '<', File::Spec->devnull);
+open(STDOUT, '>', File::Spec->devnull);
+binmode($in);
+binmode($out);
+select((select($out), $| = 1)[0]);
+
+while (defined(my $argc = <$in>))
+{
+    chomp $argc;
+    my @args;
+    for (1 .. $argc)
+    {
+        my $arg = <$in>;
+        exit(0) unless defined $arg;
+        chomp $arg;
+        push @args, $arg;
+    }
+    my $dir = pop @args;
+
+    my $len = <$in>;
+    exit(0) unless defined $len && defined $dir;
+    chomp $len;
+
+    my $source = '';
+    while (length($source) < $len)
+    {
+        my $n = read($in, $source, $len - length($source), length($source));
+        exit(0) unless $n;
+    }
+
+    my $output = compile(\@args, $dir, $source);
+    print $out length($output), "\n", $output;
+
+    preload($source, $dir);
+}
+exit(0);
+
+sub compile
+{
+    my ($args, $dir, $source) = @_;
+
+    my ($reader, $writer);
+    pipe($reader, $writer) or return "EPIC compile server: pipe failed: $!\n";
+
+    my $pid = fork();
+    return "EPIC compile server: fork failed: $!\n" unless defined $pid;
+
+    if ($pid == 0)
+    {
+        close($reader);
+        close($in);
+        open(STDERR, '>&', $writer);
+        select((select(STDERR), $| = 1)[0]);
+
+        chdir($dir) if length($dir);
+        $0 = '-';
+        @ARGV = ();
+        $^W = 1 if grep { $_ eq '-w' } @$args;
+
+        if (compile_source($source)) { print STDERR "- syntax OK\n"; }
+        else
+        {
+            print STDERR $@;
+            # as perl, unless compilation was aborted by a die
+            print STDERR "- had compilation errors.\n"
+                unless $@ =~ /(?:compilation aborted at .*|has too many errors)\.\n\z/;
+        }
+        close(STDERR);
+        POSIX::_exit(0);
+    }
+
+    close($writer);
+    binmode($reader);
+    local $/;
+    my $output = <$reader>;
+    close($reader);
+    waitpid($pid, 0);
+
+    return defined($output) ? $output : '';
+}
+
+# compiles the given source as file "-", returning before it is run,
+# which mirrors "perl -c": BEGIN blocks and use statements are executed,
+# everything else is only compiled. returns false on compilation errors
+sub compile_source
+{
+    my $source = shift;
+
+    open(my $fh, '<', \$source) or return 0;
+    my $prefix = "package main; return 1;\n#line 1 \"-\"\n";
+    my $hook;
+    $hook = sub
+    {
+        return unless $_[1] eq '-';
+        @INC = grep { !ref($_) || $_ != $hook } @INC;
+        return (\$prefix, $fh);
+    };
+    unshift @INC, $hook;
+
+    # perl -c runs CHECK blocks and skips INIT blocks; neither can be run
+    # after the main program has been compiled, which is not worth a warning
+    local $SIG{__WARN__} = sub
+    {
+        print STDERR $_[0] unless $_[0] =~ /^Too late to run (?:CHECK|INIT) block/;
+    };
+    return do '-';
+}
+
+sub preload
+{
+    my ($source, $dir) = @_;
+    my @excludedDirs = (@projectDirs, canonical_dir($dir));
+
+    while ($source =~ /^\s*use\s+([A-Z][\w:]*)/mg)
+    {
+        my $module = $1;
+        (my $file = "$module.pm") =~ s{::}{/}g;
+        next if exists $INC{$file} || $preloadFailed{$file};
+
+        my $path = find_module($file);
+        next if !defined($path) || grep { is_in_dir($path, $_) } @excludedDirs;
+
+        local $SIG{__WARN__} = sub { };
+        local $SIG{__DIE__};
+        $preloadFailed{$file} = 1 unless eval { require $file; 1 };
+    }
+}
+
+# returns the path from which require would load the given file,
+# or undef if it is not found or the @INC entry providing it is relative
+# or a hook (its location then depends on the child's working directory)
+sub find_module
+{
+    my $file = shift;
+
+    foreach my $incDir (@INC)
+    {
+        return undef if ref($incDir) || !File::Spec->file_name_is_absolute($incDir);
+        my $path = File::Spec->catfile($incDir, $file);
+        return $path if -f $path;
+    }
+    return undef;
+}
+
+sub is_in_dir
+{
+    my ($path, $dir) = @_;
+    return 0 unless length($dir);
+
+    $path = canonical_dir($path);
+    return $path eq $dir || index($path, "$dir/") == 0;
+}
+
+sub canonical_dir
+{
+    my $dir = File::Spec->canonpath(shift);
+    $dir =~ s{\\}{/}g;
+    $dir =~ s{/+$}{};
+    $dir = lc($dir) if $^O eq 'MSWin32' || $^O eq 'cygwin';
+    return $dir;
+}
@@ -0,0 +1,145 @@
+#
+# EPIC Perl::Critic server
+#
+# long-lived replacement for running the perlcritic script once per file.
+# the server is started once per project, in the project's folder, and then
+# critiques any number of files submitted over stdin, one or more files per
+# request. creating a critic
+# (reading the profile and instantiating all policies) is the expensive
+# part of a perlcritic run, so critics are cached per set of options and
+# reused until one of the profile files they may have read is modified.
+#
+# request:  <number of args>\n
+#           <arg>\n ...               (perlcritic options, then the files)
+#           0\n                       (no body)
+#
+# response: <length in bytes>\n
+#           OK\n<output>              (what perlcritic would print to stdout)
+#     or:   ERROR\n<message>          (options not supported by the server
+#                                      or critique failed; the client should
+#                                      run perlcritic itself)
+#
+
+use strict;
+use File::Spec;
+use Getopt::Long ();
+use Perl::Critic;
+use Perl::Critic::Utils ();
+use Perl::Critic::Violation;
+
+my %SEVERITIES = (gentle => 5, stern => 4, harsh => 3, cruel => 2, brutal => 1);
+
+my %critics;    # options key => [ profile stamp, critic ]
+
+# the protocol uses private handles; anything the policies print to STDOUT
+# or read from STDIN must not interfere
+open(my $in, '<&', \*STDIN) or die "cannot dup STDIN: $!";
+open(my $out, '>&', \*STDOUT) or die "cannot dup STDOUT: $!";
+open(STDIN, '<', File::Spec->devnull);
+open(STDOUT, '>', File::Spec->devnull);
+binmode($in);
+binmode($out);
+select((select($out), $| = 1)[0]);
+
+while (defined(my $argc = <$in>))
+{
+    chomp $argc;
+    my @args;
+    for (1 .. $argc)
+    {
+        my $arg = <$in>;
+        exit(0) unless defined $arg;
+        chomp $arg;
+        push @args, $arg;
+    }
+
+    my $len = <$in>;
+    exit(0) unless defined $len;
+    chomp $len;
+
+    my $body = '';
+    while (length($body) < $len)
+    {
+        my $n = read($in, $body, $len - length($body), length($body));
+        exit(0) unless $n;
+    }
+
+    my $output = eval { "OK\n" . critique(@args) };
+    $output = "ERROR\n" . ($@ || "unknown error\n") unless defined $output;
+    print $out length($output), "\n", $output;
+}
+exit(0);
+
+sub critique
+{
+    my @args = @_;
+
+    my (%opts, $verbose, @files);
+    {
+        local @ARGV = @args;
+        local $SIG{__WARN__} = sub { die $_[0] }; # unknown options
+        Getopt::Long::GetOptions(
+            'profile|p=s'           => \$opts{-profile},
+            'noprofile'             => sub { $opts{-profile} = '' },
+            'severity=s'            => \$opts{-severity},
+            'theme=s'               => \$opts{-theme},
+            'include=s@'            => \$opts{-include},
+            'exclude=s@'            => \$opts{-exclude},
+            'single-policy=s'       => \$opts{'-single-policy'},
+            'force!'                => \$opts{-force},
+            'only!'                 => \$opts{-only},
+            'profile-strictness=s'  => \$opts{'-profile-strictness'},
+            'verbose=s'             => \$verbose,
+            map {
+                my $severity = $SEVERITIES{$_};
+                ($_ => sub { $opts{-severity} = $severity })
+            } keys %SEVERITIES)
+            or die "unsupported perlcritic options: @args\n";
+        @files = @ARGV;
+    }
+    die "no file given\n" unless @files;
+
+    delete $opts{$_} for grep { !defined $opts{$_} } keys %opts;
+
+    my $critic = get_critic(\%opts);
+
+    $verbose = $critic->config()->verbose() unless defined $verbose;
+    Perl::Critic::Violation::set_format(
+        Perl::Critic::Utils::verbosity_to_format($verbose));
+
+    my $output = '';
+    foreach my $file (@files)
+    {
+        my @violations = $critic->critique($file);
+        $output .= @violations
+            ? join('', map { "$_" } @violations)
+            : "$file source OK\n";
+    }
+    return $output;
+}
+
+sub get_critic
+{
+    my $opts = shift;
+
+    my $key = join("\0", map {
+        my $value = $opts->{$_};
+        $_ . '=' . (ref($value) ? join(',', @$value) : $value)
+    } sort keys %$opts);
+
+    # profile files which Perl::Critic may read, in its search order
+    my @profiles = defined $opts->{-profile}
+        ? ($opts->{-profile})
+        : ($ENV{PERLCRITIC}, '.perlcriticrc',
+           defined $ENV{HOME} ? File::Spec->catfile($ENV{HOME}, '.perlcriticrc') : undef);
+    my $stamp = join(',', map {
+        defined($_) && length($_) ? (stat($_))[9] || 0 : 0
+    } @profiles);
+
+    my $cached = $critics{$key};
+    return $cached->[1] if $cached && $cached->[0] eq $stamp;
+
+    my $critic = Perl::Critic->new(%$opts);
+    $critics{$key} = [ $stamp, $critic ];
+    return $critic;
+}
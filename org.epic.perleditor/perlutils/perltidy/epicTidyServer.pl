@@ -0,0 +1,108 @@
+#
+# EPIC perltidy server
+#
+# long-lived replacement for running the perltidy script once per request.
+# Perl::Tidy is loaded only once; each submitted source is then formatted
+# by calling Perl::Tidy::perltidy with the request's options, the source
+# and in-memory output streams. the server does not fork: on Windows, fork
+# is emulated with threads, and a child's exit could end the whole server.
+# instead, options which make perltidy exit (printing help, its version or
+# dumps) are rejected, and any other attempt of perltidy to exit or die
+# is turned into an error message for the request.
+#
+# request:  <number of options>\n
+#           <option>\n ...            (perltidy command line options)
+#           <length in bytes>\n
+#           <source code>
+#
+# response: <length in bytes>\n
+#           <length of stdout in bytes>\n
+#           <stdout><stderr>          (what perltidy would print to them)
+#
+
+use strict;
+
+# perltidy exits after some options; this must be in place before
+# Perl::Tidy is compiled, the server itself uses CORE::exit
+BEGIN { *CORE::GLOBAL::exit = sub { die "EPIC perltidy server: perltidy exited\n" }; }
+
+use FindBin;
+use lib $FindBin::Bin;
+use File::Spec;
+use Perl::Tidy;
+
+# options (or their abbreviations) which make perltidy exit
+# instead of formatting the source
+my $EXITING_OPTIONS = qr/^--?(h|help|H|HELP|v|version|ss|stylesheet|
+    ddf|dln|dsn|dtt|dpro|dop|dwls|dwrs|dump-.*)(=.*)?$/x;
+
+# the protocol uses private handles; nothing printed by perltidy to
+# STDOUT or read from STDIN outside of a request may interfere
+open(my $in, '<&', \*STDIN) or die "cannot dup STDIN: $!";
+open(my $out, '>&', \*STDOUT) or die "cannot dup STDOUT: $!";
+open(STDIN, '<', File::Spec->devnull);
+open(STDOUT, '>', File::Spec->devnull);
+binmode($in);
+binmode($out);
+select((select($out), $| = 1)[0]);
+
+while (defined(my $argc = <$in>))
+{
+    chomp $argc;
+    my @args;
+    for (1 .. $argc)
+    {
+        my $arg = <$in>;
+        CORE::exit(0) unless defined $arg;
+        chomp $arg;
+        push @args, $arg;
+    }
+
+    my $len = <$in>;
+    CORE::exit(0) unless defined $len;
+    chomp $len;
+
+    my $source = '';
+    while (length($source) < $len)
+    {
+        my $n = read($in, $source, $len - length($source), length($source));
+        CORE::exit(0) unless $n;
+    }
+
+    my $output = tidy(\@args, $source);
+    print $out length($output), "\n", $output;
+}
+CORE::exit(0);
+
+sub tidy
+{
+    my ($args, $source) = @_;
+
+    my @rejected = grep { $_ =~ $EXITING_OPTIONS } @$args;
+    return response('', "EPIC perltidy server: unsupported option(s): @rejected\n")
+        if @rejected;
+
+    my ($stdout, $stderr) = ('', '');
+    eval
+    {
+        # as in: Unknown option: ... (from Getopt::Long)
+        local $SIG{__WARN__} = sub { $stderr .= $_[0] };
+        Perl::Tidy::perltidy(
+            argv => [ @$args ],
+            source => \$source,
+            destination => \$stdout,
+            stderr => \$stderr);
+    };
+    if ($@)
+    {
+        $stderr .= $@;
+        $stdout = '';
+    }
+    return response($stdout, $stderr);
+}
+
+sub response
+{
+    my ($stdout, $stderr) = @_;
+    return length($stdout) . "\n" . $stdout . $stderr;
+}
@@ -0,0 +1,439 @@
+package org.epic.core.builders;
+
+import java.io.*;
+import java.util.*;
+
+import org.eclipse.core.resources.*;
+import org.eclipse.core.runtime.*;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IDocument;
+import org.epic.core.PerlCore;
+import org.epic.core.model.Package;
+import org.epic.core.model.SourceFile;
+import org.epic.core.util.ModuleReferences;
+import org.epic.perleditor.PerlEditorPlugin;
+import org.epic.perleditor.editors.PerlPartitioner;
+
+/**
+ * Persistent index of dependencies between Perl files in the workspace,
+ * stored in the plug-in's state location. PerlBuilder uses it to find
+ * files which have to be validated again because a module which they
+ * (directly or indirectly) use has changed.
+ * <p>
+ * For each indexed file, the index records the packages declared in it
+ * (as reported by {@link SourceFile}), the modules it refers to through
+ * <code>use</code>, <code>use parent</code>, <code>use base</code> or
+ * bareword <code>require</code> statements, and the files it refers to
+ * through <code>require</code> with a literal path (as reported by
+ * {@link ModuleReferences}). A literal path is resolved against the file's
+ * folder and the project's include path; all candidates up to the first
+ * existing file are recorded, so that adding a file which was not found
+ * before affects the requiring file. A file depends on another file if it
+ * uses a package declared there or requires it by path. Entries are updated
+ * by PerlBuilderJob after each successful validation; unchanged files
+ * (according to their modification stamps) are not parsed again.
+ * </p>
+ */
+public class DependencyIndex
+{
+    private static final int FORMAT_VERSION = 2;
+    private static final String FILE_NAME = "dependencies.index"; //$NON-NLS-1$
+
+    private static DependencyIndex instance;
+
+    private final File file;
+
+    /**
+     * Maps full paths of indexed files (Strings) to Entries
+     */
+    private final Map<String, Entry> entries;
+    private boolean dirty;
+
+    private DependencyIndex(File file)
+    {
+        this.file = file;
+        this.entries = new HashMap<String, Entry>();
+        load();
+    }
+
+    /**
+     * @return the DependencyIndex singleton
+     */
+    public synchronized static DependencyIndex instance()
+    {
+        if (instance == null) instance = new DependencyIndex(
+            PerlEditorPlugin.getDefault().getStateLocation().append(FILE_NAME).toFile());
+        return instance;
+    }
+
+    /**
+     * Saves the index, if it was used. Invoked when the plug-in is stopped.
+     */
+    public synchronized static void shutdown()
+    {
+        if (instance != null) instance.save();
+        instance = null;
+    }
+
+    /**
+     * Computes files which (transitively) depend on the given changed, added
+     * or removed files. Entries of changed files are updated and entries of
+     * removed files are dropped as a side effect, so that both packages
+     * declared before and after the change are taken into account.
+     *
+     * @param changed   changed or added Perl files
+     * @param removed   files which no longer exist
+     * @return dependent files, excluding the changed ones, ordered by
+     *         their distance in the dependency graph (closest first)
+     */
+    public List<IResource> getDependents(
+        Collection<IResource> changed, Collection<IResource> removed)
+    {
+        Set<String> visited = new HashSet<String>();
+        List<String> level = new ArrayList<String>();
+        Set<String> modules = new HashSet<String>();
+
+        for (Iterator<IResource> i = removed.iterator(); i.hasNext();)
+        {
+            String path = i.next().getFullPath().toString();
+            Entry entry = removeEntry(path);
+            if (entry != null) modules.addAll(Arrays.asList(entry.packages));
+            visited.add(path);
+            level.add(path);
+        }
+        for (Iterator<IResource> i = changed.iterator(); i.hasNext();)
+        {
+            IResource resource = i.next();
+            String path = resource.getFullPath().toString();
+            Entry entry = getEntry(path);
+            if (entry != null) modules.addAll(Arrays.asList(entry.packages));
+            if (entry != null || isPerlModule(resource))
+            {
+                entry = update(resource);
+                if (entry != null) modules.addAll(Arrays.asList(entry.packages));
+            }
+            visited.add(path);
+            level.add(path);
+        }
+
+        Map<String, Set<String>> usedBy = new HashMap<String, Set<String>>();
+        Map<String, Set<String>> requiredBy = new HashMap<String, Set<String>>();
+        buildReverseMaps(usedBy, requiredBy);
+
+        List<IResource> ret = new ArrayList<IResource>();
+        IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
+
+        // breadth-first search, so that closer dependents come first
+        while (!level.isEmpty())
+        {
+            List<String> nextLevel = new ArrayList<String>();
+            Set<String> dependents = new TreeSet<String>();
+
+            for (Iterator<String> i = modules.iterator(); i.hasNext();)
+                addAll(dependents, usedBy.get(i.next()));
+            for (Iterator<String> i = level.iterator(); i.hasNext();)
+                addAll(dependents, requiredBy.get(i.next()));
+
+            modules = new HashSet<String>();
+            for (Iterator<String> i = dependents.iterator(); i.hasNext();)
+            {
+                String path = i.next();
+                if (!visited.add(path)) continue;
+
+                nextLevel.add(path);
+                ret.add(root.getFile(new Path(path)));
+
+                Entry entry = getEntry(path);
+                if (entry != null) modules.addAll(Arrays.asList(entry.packages));
+            }
+            level = nextLevel;
+        }
+        return ret;
+    }
+
+    /**
+     * Writes the index to the state location, if it has been modified.
+     */
+    public synchronized void save()
+    {
+        if (!dirty) return;
+
+        File tmpFile = new File(file.getPath() + ".tmp"); //$NON-NLS-1$
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)));
+
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); i.hasNext();)
+            {
+                Map.Entry<String, Entry> e = i.next();
+                out.writeUTF(e.getKey());
+                e.getValue().write(out);
+            }
+            out.close();
+            out = null;
+
+            file.delete();
+            if (!tmpFile.renameTo(file)) throw new IOException(
+                "Could not rename " + tmpFile + " to " + file);
+            dirty = false;
+        }
+        catch (IOException e)
+        {
+            PerlEditorPlugin.getDefault().getLog().log(new Status(
+                IStatus.WARNING,
+                PerlEditorPlugin.getPluginId(),
+                IStatus.OK,
+                "Could not save dependency index " + file.getAbsolutePath(),
+                e));
+        }
+        finally
+        {
+            if (out != null) try { out.close(); } catch (IOException e) { }
+        }
+    }
+
+    /**
+     * Updates the index entry for the given Perl file, unless it is
+     * already up to date.
+     *
+     * @return the updated entry, or null if the file could not be read
+     */
+    public Entry update(IResource resource)
+    {
+        String path = resource.getFullPath().toString();
+        long stamp = resource.getModificationStamp();
+
+        Entry entry = getEntry(path);
+        if (entry != null && entry.stamp == stamp) return entry;
+        if (!(resource instanceof IFile) || !resource.exists()) return null;
+
+        try
+        {
+            entry = parse((IFile) resource, stamp);
+        }
+        catch (CoreException e)
+        {
+            return null; // out of sync with the file system, try next time
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+
+        synchronized (this)
+        {
+            entries.put(path, entry);
+            dirty = true;
+        }
+        return entry;
+    }
+
+    private static void addAll(Set<String> set, Set<String> elements)
+    {
+        if (elements != null) set.addAll(elements);
+    }
+
+    private synchronized void buildReverseMaps(
+        Map<String, Set<String>> usedBy, Map<String, Set<String>> requiredBy)
+    {
+        for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry<String, Entry> e = i.next();
+            Entry entry = e.getValue();
+
+            for (int j = 0; j < entry.uses.length; j++)
+                getSet(usedBy, entry.uses[j]).add(e.getKey());
+            for (int j = 0; j < entry.requires.length; j++)
+                getSet(requiredBy, entry.requires[j]).add(e.getKey());
+        }
+    }
+
+    private static Set<String> getSet(Map<String, Set<String>> map, String key)
+    {
+        Set<String> set = map.get(key);
+        if (set == null)
+        {
+            set = new HashSet<String>();
+            map.put(key, set);
+        }
+        return set;
+    }
+
+    private synchronized Entry getEntry(String path)
+    {
+        return entries.get(path);
+    }
+
+    private static boolean isPerlModule(IResource resource)
+    {
+        String ext = resource.getFileExtension();
+        return "pm".equals(ext) || "pl".equals(ext); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    private void load()
+    {
+        if (!file.isFile()) return;
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+
+            if (in.readInt() != FORMAT_VERSION) return;
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                String path = in.readUTF();
+                entries.put(path, Entry.read(in));
+            }
+        }
+        catch (IOException e)
+        {
+            // a corrupt index is no problem, it is rebuilt by the next build
+            entries.clear();
+        }
+        finally
+        {
+            if (in != null) try { in.close(); } catch (IOException e) { }
+        }
+    }
+
+    private Entry parse(IFile file, long stamp) throws CoreException, IOException
+    {
+        String text = readFile(file);
+        IDocument doc = new Document(text);
+        new PerlPartitioner(PerlEditorPlugin.getDefault().getLog(), doc);
+        SourceFile source = new SourceFile(PerlEditorPlugin.getDefault().getLog(), doc);
+        source.parse();
+
+        Set<String> packages = new HashSet<String>();
+        Set<String> uses = new HashSet<String>();
+        Set<String> requires = new HashSet<String>();
+
+        for (Iterator<Package> i = source.getPackages().iterator(); i.hasNext();)
+        {
+            Package pkg = i.next();
+            if (pkg.getOffset() != -1) packages.add(pkg.getName());
+        }
+        uses.addAll(ModuleReferences.getModuleNames(text));
+
+        List<IPath> dirs = new ArrayList<IPath>();
+        dirs.add(file.getLocation().removeLastSegments(1));
+        for (Iterator<File> i = PerlCore.create(file.getProject()).getIncPath().iterator(); i.hasNext();)
+            dirs.add(new Path(i.next().getAbsolutePath()));
+
+        for (Iterator<String> i = ModuleReferences.getRequiredPaths(text).iterator(); i.hasNext();)
+            addRequiredFiles(requires, dirs, new Path(i.next()));
+
+        return new Entry(stamp, toArray(packages), toArray(uses), toArray(requires));
+    }
+
+    /**
+     * Adds full paths of workspace files which perl might load for
+     * the given required path to requires, up to the first one which
+     * exists.
+     */
+    private static void addRequiredFiles(
+        Set<String> requires, List<IPath> dirs, IPath path)
+    {
+        IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
+        List<IPath> candidates = new ArrayList<IPath>();
+
+        if (path.isAbsolute()) candidates.add(path);
+        else for (Iterator<IPath> i = dirs.iterator(); i.hasNext();)
+            candidates.add(i.next().append(path));
+
+        for (Iterator<IPath> i = candidates.iterator(); i.hasNext();)
+        {
+            IFile required = root.getFileForLocation(i.next());
+            if (required == null) continue; // outside of the workspace
+
+            requires.add(required.getFullPath().toString());
+            if (required.exists()) break;
+        }
+    }
+
+    private static String readFile(IFile file) throws CoreException, IOException
+    {
+        Reader r = null;
+        try
+        {
+            r = new InputStreamReader(file.getContents(), file.getCharset());
+            StringWriter sw = new StringWriter();
+            char[] buf = new char[4096];
+            int bread;
+            while ((bread = r.read(buf)) > 0) sw.write(buf, 0, bread);
+            return sw.toString();
+        }
+        finally
+        {
+            if (r != null) try { r.close(); } catch (IOException e) { }
+        }
+    }
+
+    private synchronized Entry removeEntry(String path)
+    {
+        Entry entry = entries.remove(path);
+        if (entry != null) dirty = true;
+        return entry;
+    }
+
+    private static String[] toArray(Set<String> set)
+    {
+        return set.toArray(new String[set.size()]);
+    }
+
+    /**
+     * Dependency information recorded for a single file.
+     */
+    public static class Entry
+    {
+        public final long stamp;
+        public final String[] packages;
+        public final String[] uses;
+        public final String[] requires;
+
+        public Entry(long stamp, String[] packages, String[] uses, String[] requires)
+        {
+            this.stamp = stamp;
+            this.packages = packages;
+            this.uses = uses;
+            this.requires = requires;
+        }
+
+        public static Entry read(DataInputStream in) throws IOException
+        {
+            long stamp = in.readLong();
+            return new Entry(
+                stamp, readArray(in), readArray(in), readArray(in));
+        }
+
+        public void write(DataOutputStream out) throws IOException
+        {
+            out.writeLong(stamp);
+            writeArray(out, packages);
+            writeArray(out, uses);
+            writeArray(out, requires);
+        }
+
+        private static String[] readArray(DataInputStream in) throws IOException
+        {
+            String[] ret = new String[in.readInt()];
+            for (int i = 0; i < ret.length; i++) ret[i] = in.readUTF();
+            return ret;
+        }
+
+        private static void writeArray(DataOutputStream out, String[] array)
+            throws IOException
+        {
+            out.writeInt(array.length);
+            for (int i = 0; i < array.length; i++) out.writeUTF(array[i]);
+        }
+    }
+}
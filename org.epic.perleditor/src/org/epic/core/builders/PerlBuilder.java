@@ -7,6 +7,7 @@ import org.eclipse.core.runtime.*;
 import org.eclipse.core.runtime.jobs.IJobManager;
 import org.eclipse.core.runtime.jobs.Job;
 import org.epic.perleditor.PerlEditorPlugin;
+import org.epic.perleditor.editors.util.ValidationCache;
 
 /**
  * Manages incremental and full builds of Perl projects.
@@ -31,6 +32,26 @@ public class PerlBuilder extends IncrementalProjectBuilder
      */
     private Set<IResource> newDirtyResources;
     
+    /**
+     * IResource instances representing Perl files that need to be
+     * validated during the current build because they depend on
+     * members of newDirtyResources or on removed files, ordered by
+     * their distance in the dependency graph (closest first).
+     */
+    private List<IResource> dependentResources;
+    
+    /**
+     * IResource instances representing files that were added
+     * since the previous build.
+     */
+    private Set<IResource> addedResources;
+    
+    /**
+     * IResource instances representing files that were removed
+     * since the previous build.
+     */
+    private Set<IResource> removedResources;
+    
     /**
      * IResource instances whose labels have to be updated after
      * the current build finishes (normally or by being cancelled).
@@ -58,6 +79,9 @@ public class PerlBuilder extends IncrementalProjectBuilder
         {
             dirtyResources = new HashSet<IResource>();
             newDirtyResources = new HashSet<IResource>();
+            dependentResources = new ArrayList<IResource>();
+            addedResources = new HashSet<IResource>();
+            removedResources = new HashSet<IResource>();
             validatedResources = new HashSet<IResource>();
         
             return buildImpl(kind, args, monitor);
@@ -67,10 +91,20 @@ public class PerlBuilder extends IncrementalProjectBuilder
             // don't keep unnecessary references
             dirtyResources = null;
             newDirtyResources = null;
+            dependentResources = null;
+            addedResources = null;
+            removedResources = null;
             validatedResources = null;
         }
     }
     
+    protected void clean(IProgressMonitor monitor) throws CoreException
+    {
+        // "Clean" is used to force validation of all files, e.g. after
+        // modules have been installed outside of the workspace
+        ValidationCache.instance().clear(getProject());
+    }
+    
     private IProject[] buildImpl(int kind, Map<?, ?> args, IProgressMonitor monitor)
         throws CoreException
     {
@@ -133,7 +167,8 @@ public class PerlBuilder extends IncrementalProjectBuilder
     /**
      * Visits all of project resources or just changed resources (depending
      * on the build kind) and schedules them for validation by adding them
-     * to the dirtyResources set.
+     * to the dirtyResources set. During incremental builds, files which
+     * depend on the changed, added or removed files are scheduled as well.
      */
     private void findDirtyResources(int buildKind)
     {
@@ -144,7 +179,10 @@ public class PerlBuilder extends IncrementalProjectBuilder
             if (buildKind == IncrementalProjectBuilder.FULL_BUILD || delta == null)
                 getProject().accept(new BuildFullVisitor());
             else
+            {
                 delta.accept(new BuildDeltaVisitor());
+                findDependentResources();
+            }
         }
         catch (CoreException e)
         {
@@ -163,12 +201,41 @@ public class PerlBuilder extends IncrementalProjectBuilder
         }
     }
     
+    /**
+     * Schedules files which (transitively) depend on changed, added or
+     * removed files for validation by adding them to dependentResources
+     * and dirtyResources. Added files matter because files which failed
+     * to find them (e.g. "Can't locate Foo.pm") have to be validated again.
+     */
+    private void findDependentResources()
+    {
+        if (newDirtyResources.isEmpty() &&
+            addedResources.isEmpty() &&
+            removedResources.isEmpty()) return;
+        
+        Set<IResource> changed = new HashSet<IResource>(newDirtyResources);
+        changed.addAll(addedResources);
+        
+        List<IResource> dependents = DependencyIndex.instance().getDependents(
+            changed, removedResources);
+        
+        for (Iterator<IResource> i = dependents.iterator(); i.hasNext();)
+        {
+            IResource resource = i.next();
+            if (newDirtyResources.contains(resource)) continue;
+            
+            dependentResources.add(resource);
+            dirtyResources.add(resource);
+        }
+    }
+    
     /**
      * Returns the elements from dirtyResources sorted so that members
-     * of newDirtyResources precede non-members. Validation will occur
-     * in that order, improving responsiveness (under assumption that
-     * incremental builds are "interactive" and thus have higher priority
-     * than "background" full builds).
+     * of newDirtyResources precede members of dependentResources, which
+     * precede the remaining resources. Validation will occur in that order,
+     * improving responsiveness (under assumption that incremental builds
+     * are "interactive" and thus have higher priority than "background"
+     * full builds).
      * 
      * Note: the dirtyResources set is modified as a side effect.
      */
@@ -178,6 +245,8 @@ public class PerlBuilder extends IncrementalProjectBuilder
         
         sorted.addAll(newDirtyResources);
         dirtyResources.removeAll(newDirtyResources);
+        sorted.addAll(dependentResources);
+        dirtyResources.removeAll(dependentResources);
         sorted.addAll(dirtyResources);
         
         return sorted;
@@ -203,6 +272,12 @@ public class PerlBuilder extends IncrementalProjectBuilder
         {       
             if (delta.getKind() == IResourceDelta.CHANGED)
                 visitResource(delta.getResource());
+            else if (delta.getKind() == IResourceDelta.ADDED &&
+                delta.getResource().getType() == IResource.FILE)
+                addedResources.add(delta.getResource());
+            else if (delta.getKind() == IResourceDelta.REMOVED &&
+                delta.getResource().getType() == IResource.FILE)
+                removedResources.add(delta.getResource());
 
             return true;
         }
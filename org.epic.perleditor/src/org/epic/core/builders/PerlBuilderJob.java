@@ -10,12 +10,26 @@ import org.epic.core.ResourceMessages;
 import org.epic.core.decorators.PerlDecorator;
 import org.epic.perleditor.PerlEditorPlugin;
 import org.epic.perleditor.editors.util.PerlValidator;
+import org.epic.perleditor.editors.util.ValidationCache;
+import org.epic.perleditor.preferences.PreferenceConstants;
 
 /**
  * This low-priority job is started by PerlBuilder and executes
  * asynchronously to validate Perl files using PerlValidator.
  * Note that it can be cancelled and rescheduled by PerlBuilder
  * if another build request comes in the meantime.
+ * <p>
+ * Several Perl files are validated in parallel by a bounded number
+ * of worker threads (see {@link PreferenceConstants#BUILDER_VALIDATION_WORKERS}).
+ * The files are dispatched to the workers in the order of the dirty
+ * resources list. The job's run method returns only after all workers
+ * have finished, so that a cancelled job can be joined safely.
+ * </p>
+ * <p>
+ * If Perl::Critic should be run automatically, the validated files
+ * are critiqued after all of them have been validated, many files
+ * per perlcritic run (see {@link PerlCriticBuilderHelper#buildResources}).
+ * </p>
  * 
  * @author jploski
  */
@@ -28,16 +42,31 @@ class PerlBuilderJob extends Job
 
     /**
      * A list of IResources representing Perl files that still need
-     * to be validated during this job's run.
+     * to be validated during this job's run and whose validation
+     * has not started yet.
      */
     private final List<IResource> dirtyResources;
     
+    /**
+     * A list of IResources representing Perl files whose validation
+     * is currently in progress. Access to this list and dirtyResources
+     * is synchronized on dirtyResources.
+     */
+    private final List<IResource> activeResources;
+    
     /**
      * A set of IResources representing Perl files that have been
      * validated during this job's run as well as their parent folders
      * (and their ancestors).
      */
     private final Set<IResource> validatedResources;
+    
+    /**
+     * A list of IResources representing Perl files that have been
+     * validated during this job's run and should be critiqued by
+     * Perl::Critic afterwards, in batches.
+     */
+    private final List<IResource> criticResources;
 
     /**
      * @param dirtyResources
@@ -55,7 +84,9 @@ class PerlBuilderJob extends Job
         super(ResourceMessages.getString("PerlBuilderJob.name"));
         
         this.validatedResources = successResources;
-        this.dirtyResources = dirtyResources;
+        this.dirtyResources = new LinkedList<IResource>(dirtyResources);
+        this.activeResources = new ArrayList<IResource>();
+        this.criticResources = new ArrayList<IResource>();
     }
     
     public boolean belongsTo(Object family)
@@ -68,7 +99,12 @@ class PerlBuilderJob extends Job
      */
     public Collection<IResource> getDirtyResources()
     {
-        return Collections.unmodifiableList(dirtyResources);
+        synchronized (dirtyResources)
+        {
+            List<IResource> ret = new ArrayList<IResource>(activeResources);
+            ret.addAll(dirtyResources);
+            return Collections.unmodifiableList(ret);
+        }
     }
     
     /**
@@ -82,16 +118,32 @@ class PerlBuilderJob extends Job
     protected IStatus run(IProgressMonitor monitor)
     {        
         monitor.beginTask("", dirtyResources.size());
-        for (Iterator<IResource> i = dirtyResources.iterator(); i.hasNext();)
+        
+        // this job's own thread acts as the first worker
+        int workerCount = Math.min(getWorkerCount(), dirtyResources.size());
+        Worker worker = new Worker(monitor);
+        List<Thread> threads = new ArrayList<Thread>();
+        
+        for (int i = 1; i < workerCount; i++)
         {
-            if (monitor.isCanceled()) break;
-            IResource resource = i.next();
-            monitor.subTask(resource.getProjectRelativePath().toString());
-            buildResource(resource);
-            i.remove();
-            monitor.worked(1);
+            Thread t = new Thread(worker, "EPIC:PerlBuilderJob:worker" + i);
+            t.start();
+            threads.add(t);
+        }
+        try { worker.run(); }
+        finally { joinAll(threads); }
+        
+        if (!monitor.isCanceled() && !criticResources.isEmpty())
+        {
+            monitor.subTask("Perl::Critic");
+            PerlCriticBuilderHelper.instance().buildResources(criticResources, monitor);
         }
         monitor.done();       
+        
+        // persist validation results as soon as possible, rather than
+        // only when the workbench shuts down cleanly
+        ValidationCache.instance().save();
+        DependencyIndex.instance().save();
 
         PerlDecorator decorator = PerlDecorator.getPerlDecorator();
         if (decorator != null)
@@ -115,14 +167,25 @@ class PerlBuilderJob extends Job
         {
             if (PerlValidator.instance().validate(resource))
             {
-                validatedResources.add(resource);
-                markParentFoldersUpdated(resource);
+                DependencyIndex.instance().update(resource);
+                
+                synchronized (validatedResources)
+                {
+                    validatedResources.add(resource);
+                    markParentFoldersUpdated(resource);
+                }
 
-                // Run Perl::Critic after perl validator has run.
+                // Run Perl::Critic after perl validator has run,
+                // for all validated files at once when the workers are done.
                 PerlCriticBuilderHelper perlCriticHelper = PerlCriticBuilderHelper.instance();
                 // check preconditions (perlcritic found and auto-run activated) 
                 if (perlCriticHelper.isCriticAutoRunPreconditions())
-                    perlCriticHelper.buildResource(resource);
+                {
+                    synchronized (criticResources)
+                    {
+                        criticResources.add(resource);
+                    }
+                }
             }
         }
         catch (CoreException e)
@@ -150,10 +213,116 @@ class PerlBuilderJob extends Job
         }
     }
     
+    /**
+     * @return the number of Perl files to validate in parallel
+     */
+    private static int getWorkerCount()
+    {
+        int workers = PerlEditorPlugin.getDefault().getPreferenceStore().getInt(
+            PreferenceConstants.BUILDER_VALIDATION_WORKERS);
+        
+        return workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+    }
+    
+    /**
+     * Waits until all of the given threads have terminated.
+     */
+    private static void joinAll(List<Thread> threads)
+    {
+        for (Iterator<Thread> i = threads.iterator(); i.hasNext();)
+        {
+            Thread t = i.next();
+            while (t.isAlive())
+            {
+                try { t.join(); }
+                catch (InterruptedException e)
+                {
+                    // workers stop on their own after cancellation,
+                    // so we must keep waiting for them
+                }
+            }
+        }
+    }
+    
     private void markParentFoldersUpdated(IResource resource)
     {
         while ((resource = resource.getParent()) != null)
             if (resource.getType() == IResource.FOLDER)
                 validatedResources.add(resource);
     }
+    
+    /**
+     * @return the next Perl file to be validated, moved to the list
+     *         of active resources; or null if there are no more files
+     */
+    private IResource nextDirtyResource()
+    {
+        synchronized (dirtyResources)
+        {
+            if (dirtyResources.isEmpty()) return null;
+            IResource resource = dirtyResources.remove(0);
+            activeResources.add(resource);
+            return resource;
+        }
+    }
+    
+    private void resourceDone(IResource resource)
+    {
+        synchronized (dirtyResources)
+        {
+            activeResources.remove(resource);
+        }
+    }
+    
+    /**
+     * Validates dirty resources one by one until there are no more left
+     * or the job is cancelled. A single instance is shared by all worker
+     * threads of the job.
+     */
+    private class Worker implements Runnable
+    {
+        private final IProgressMonitor monitor;
+        
+        public Worker(IProgressMonitor monitor)
+        {
+            this.monitor = monitor;
+        }
+        
+        public void run()
+        {
+            IResource resource;
+            while (!monitor.isCanceled() &&
+                   (resource = nextDirtyResource()) != null)
+            {
+                try
+                {
+                    synchronized (monitor)
+                    {
+                        monitor.subTask(resource.getProjectRelativePath().toString());
+                    }
+                    buildResource(resource);
+                }
+                catch (RuntimeException e)
+                {
+                    // keep this worker alive for the remaining resources
+                    PerlEditorPlugin.getDefault().getLog().log(
+                        new Status(Status.ERROR,
+                            PerlEditorPlugin.getPluginId(),
+                            IStatus.OK,
+                            "An unexpected exception occurred while validating " +
+                            resource.getProjectRelativePath(),
+                            e));
+                }
+                finally
+                {
+                    resourceDone(resource);
+                }
+                
+                synchronized (monitor)
+                {
+                    monitor.worked(1);
+                }
+            }
+        }
+    }
 }
\ No newline at end of file
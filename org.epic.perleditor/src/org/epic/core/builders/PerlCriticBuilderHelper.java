@@ -2,10 +2,13 @@ package org.epic.core.builders;
 
 import java.io.File;
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
-import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.*;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.core.runtime.jobs.MultiRule;
 import org.epic.core.util.MarkerUtilities;
 import org.epic.perleditor.PerlEditorPlugin;
 import org.epic.perleditor.editors.util.SourceCritic;
@@ -18,6 +21,17 @@ public class PerlCriticBuilderHelper {
     //~ Static fields/initializers
 
     public static String METRICS_MARKER = "org.epic.perleditor.markers.critic";
+
+    /**
+     * Maximum number of files critiqued by a single run of perlcritic
+     */
+    private static final int MAX_BATCH_FILES = 100;
+
+    /**
+     * Maximum total length of the paths passed to a single run of perlcritic;
+     * command lines are limited to 32K characters on Windows
+     */
+    private static final int MAX_BATCH_PATHS_LENGTH = 16000;
 	private static PerlCriticBuilderHelper instance;
 	private boolean criticResourcePreconditions;
 	private boolean criticAutoRunPreconditions;
@@ -62,21 +76,115 @@ public class PerlCriticBuilderHelper {
     }
     
     /**
-     * Attempts to validate a single Perl file, schedules label update
-     * for this file and its ancestor folders if validation was performed.
+     * Runs Perl::Critic on a single Perl file and replaces
+     * its critic markers with the found violations.
      */
     public void buildResource(IResource resource)
     {
-    	
-        Object[] violations = doJob(resource);
+        updateMarkers(Collections.singletonMap(
+            resource,
+            SourceCritic.critique(resource, PerlEditorPlugin.getDefault().getLog())));
+    }
 
-        final MarkerUtilities factory = new MarkerUtilities(PerlEditorPlugin.getDefault().getLog(), PerlEditorPlugin.getPluginId());
-        factory.deleteMarkers(resource, METRICS_MARKER);
+    /**
+     * Runs Perl::Critic on the given Perl files and replaces their critic
+     * markers with the found violations. Files of the same project are
+     * critiqued in batches, each with a single run of perlcritic, so that
+     * its start-up costs are shared by many files. If perlcritic fails
+     * for a batch, the markers of its files are left unchanged rather than
+     * deleted as if no violations had been found.
+     *
+     * @param resources     files to critique
+     * @param monitor       progress monitor; files which have not been
+     *                      critiqued yet when it is cancelled are skipped
+     */
+    public void buildResources(List<IResource> resources, IProgressMonitor monitor)
+    {
+        Map<IProject, List<IResource>> byProject = new LinkedHashMap<IProject, List<IResource>>();
+        for (Iterator<IResource> i = resources.iterator(); i.hasNext();)
+        {
+            IResource resource = i.next();
+            List<IResource> list = byProject.get(resource.getProject());
+            if (list == null)
+            {
+                list = new ArrayList<IResource>();
+                byProject.put(resource.getProject(), list);
+            }
+            list.add(resource);
+        }
+
+        for (Iterator<List<IResource>> i = byProject.values().iterator(); i.hasNext();)
+        {
+            List<IResource> list = i.next();
+            int start = 0;
+            while (start < list.size())
+            {
+                if (monitor.isCanceled()) return;
+
+                int end = getBatchEnd(list, start);
+                Map<IResource, Violation[]> violations = SourceCritic.critique(
+                    list.subList(start, end),
+                    PerlEditorPlugin.getDefault().getLog());
+                if (violations != null) updateMarkers(violations);
+                start = end;
+            }
+        }
+    }
 
-        for (int i = 0; i < violations.length; i++)
+    /**
+     * @return index of the first file after the batch which starts at
+     *         the given index; the batch is limited so that the paths of
+     *         its files fit on a command line on all platforms
+     */
+    private static int getBatchEnd(List<IResource> resources, int start)
+    {
+        int end = start;
+        int length = 0;
+        while (end < resources.size() && end - start < MAX_BATCH_FILES)
+        {
+            length += resources.get(end).getRawLocation().toOSString().length() + 3;
+            if (length > MAX_BATCH_PATHS_LENGTH && end > start) break;
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Replaces critic markers of the given resources with markers for
+     * the given violations, in a single batch.
+     */
+    private void updateMarkers(final Map<IResource, Violation[]> violations)
+    {
+        final MarkerUtilities factory = new MarkerUtilities(PerlEditorPlugin.getDefault().getLog(), PerlEditorPlugin.getPluginId());
+        IWorkspace workspace = ResourcesPlugin.getWorkspace();
+        ISchedulingRule rule = null;
+
+        for (Iterator<IResource> i = violations.keySet().iterator(); i.hasNext();)
+            rule = MultiRule.combine(rule, workspace.getRuleFactory().markerRule(i.next()));
+
+        IWorkspaceRunnable update = new IWorkspaceRunnable() {
+            public void run(IProgressMonitor monitor)
+            {
+                for (Iterator<Map.Entry<IResource, Violation[]>> i = violations.entrySet().iterator(); i.hasNext();)
+                {
+                    Map.Entry<IResource, Violation[]> e = i.next();
+                    Violation[] v = e.getValue();
+                    List<Map<String, Serializable>> required = new ArrayList<Map<String, Serializable>>(v.length);
+
+                    for (int j = 0; j < v.length; j++)
+                        required.add(createMarkerAttributes(factory, v[j]));
+
+                    factory.updateMarkers(e.getKey(), METRICS_MARKER, required, true);
+                }
+            } };
+        
+        try
+        {
+            workspace.run(update, rule, IWorkspace.AVOID_UPDATE, null);
+        }
+        catch (CoreException e)
         {
-            Map<String, Serializable> attributes = createMarkerAttributes(factory, violations[i]);
-            factory.createMarker(resource, METRICS_MARKER, attributes);
+            PerlEditorPlugin.getDefault().getLog().log(e.getStatus());
         }
     }
 
@@ -8,8 +8,9 @@ public interface ISourceFileListener
     /**
      * Invoked by a SourceFile to notify that its contents have
      * (potentially) changed.
-     * 
+     *
      * @param source the reporting source file
+     * @param delta  describes which elements have changed
      */
-    public void sourceFileChanged(SourceFile source);
+    public void sourceFileChanged(SourceFile source, SourceFileDelta delta);
 }
@@ -19,11 +19,28 @@ import org.epic.perleditor.editors.PerlPartitioner;
  */
 public class SourceFile
 {
+    /**
+     * Minimal number of tokens in a {@link Segment}, which limits
+     * the overhead of recording segments; incremental parsing examines
+     * at least the segments which overlap the changed region
+     */
+    private static final int SEGMENT_TOKENS = 512;
+    
+    private static final int OP_OPEN_PACKAGE = 0;
+    private static final int OP_CLOSE_PACKAGE = 1;
+    private static final int OP_OPEN_SUB = 2;
+    private static final int OP_CLOSE_SUB = 3;
+    private static final int OP_USE = 4;
+    private static final int OP_PARENT = 5;
+    private static final int OP_POD = 6;
+    
     private final ListenerList listeners = new ListenerList(1);
     private final ILog log;
     private final IDocument doc;
     private List<PODComment> pods;
     private List<Package> packages;
+    private List<Segment> segments;
+    private int version;
     
     /**
      * Creates a SourceFile which will be reflecting contents of the given
@@ -38,6 +55,7 @@ public class SourceFile
         this.doc = doc;
         this.pods = Collections.emptyList();
         this.packages = Collections.emptyList();
+        this.version = -1;
     }
     
     /**
@@ -84,7 +102,7 @@ public class SourceFile
      */
     public Iterator<Subroutine> getSubs()
     {
-        return new SubIterator();
+        return new SubIterator(packages);
     }
     
     /**
@@ -96,37 +114,132 @@ public class SourceFile
         return new ModuleUseIterator();
     }
     
+    /**
+     * Parses the source document's current tokens, blocking modifications
+     * of the document until finished. Registered listeners are notified.
+     */
     public synchronized void parse()
     {
-        this.pods = new ArrayList<PODComment>();
-        this.packages = new ArrayList<Package>();
-        
         PerlPartitioner partitioner = (PerlPartitioner)
             PartitionTypes.getPerlPartitioner(doc);
-        if (partitioner == null) return;
+        if (partitioner == null)
+        {
+            this.pods = new ArrayList<PODComment>();
+            this.packages = new ArrayList<Package>();
+            this.segments = null;
+            this.version = -1;
+            return;
+        }
 
+        SourceFileDelta delta;
         synchronized (partitioner.getTokensLock())
         {
-            try
-            {
-                ParsingState state = new ParsingState(partitioner.getTokens());
+            ParsingState state = new ParsingState(
+                partitioner, partitioner.getTokens(), doc);
+            parse(state);
+            delta = state.getDelta();
+            this.pods = state.pods;
+            this.packages = state.packages;
+            this.segments = state.segments;
+            this.version = state.version;
+        }
+        fireSourceFileChanged(delta);
+    }
+    
+    /**
+     * Parses an immutable copy of the source document's current tokens.
+     * Unlike {@link #parse()}, this method only blocks modifications of
+     * the document while the tokens are copied and it does not alter
+     * this SourceFile; the result has to be installed with
+     * {@link #update(Snapshot)}. This method may be called from any
+     * thread.
+     * <p>
+     * Only the tokens in the region changed since the current contents of
+     * this SourceFile were parsed are examined (as reported by
+     * {@link PerlPartitioner#getChangedRegion}); elements found in
+     * the remaining tokens are taken over from the current contents.
+     * </p>
+     *
+     * @return the parsed snapshot, or null if the document is not
+     *         partitioned or if it is being changed by another thread
+     */
+    public Snapshot parseSnapshot()
+    {
+        PerlPartitioner partitioner = (PerlPartitioner)
+            PartitionTypes.getPerlPartitioner(doc);
+        if (partitioner == null) return null;
 
-                while (state.hasMoreTokens()) state.processToken();
-                state.finish();
-            }
-            catch (BadLocationException e)
+        // Texts of the copied tokens are read from a copy of the document
+        // taken along with them, which the UI thread cannot modify while
+        // we parse. Such a snapshot is rejected by update if the document
+        // has changed in the meantime.
+        ParsingState state;
+        synchronized (this)
+        {
+            synchronized (partitioner.getTokensLock())
             {
-                log.log(new Status(
-                    Status.ERROR,
-                    PerlEditorPlugin.getPluginId(),
-                    IStatus.OK,
-                    "Unexpected exception: " + e.getClass().getName() +
-                    "; report it as a bug " +
-                    "in plug-in " + PerlEditorPlugin.getPluginId(),
-                    e));
+                IDocument copy = partitioner.getDocumentSnapshot();
+                if (copy == null) return null;
+                state = new ParsingState(
+                    partitioner, partitioner.getTokensSnapshot(copy), copy);
             }
         }
-        fireSourceFileChanged();
+        parse(state);
+        
+        Snapshot snapshot = new Snapshot(state.textSource, state.tokens, state.version);
+        snapshot.pods = state.pods;
+        snapshot.packages = state.packages;
+        snapshot.segments = state.segments;
+        snapshot.baseVersion = state.baseVersion;
+        snapshot.delta = state.getDelta();
+        return snapshot;
+    }
+    
+    /**
+     * Installs the given snapshot obtained from {@link #parseSnapshot}
+     * as the current contents of this SourceFile, provided that the source
+     * document has not changed since the snapshot was taken. Registered
+     * listeners are notified.
+     *
+     * @return true if the snapshot was installed;
+     *         false if it was out of date
+     */
+    public boolean update(Snapshot snapshot)
+    {
+        SourceFileDelta delta;
+        synchronized (this)
+        {
+            if (!isCurrent(snapshot)) return false;
+
+            // the snapshot's delta is relative to the contents from which
+            // it was derived, which may have been replaced in the meantime
+            delta = snapshot.baseVersion == this.version
+                ? snapshot.delta
+                : createFullDelta(pods, packages, snapshot.pods, snapshot.packages);
+
+            this.pods = snapshot.pods;
+            this.packages = snapshot.packages;
+            this.segments = snapshot.segments;
+            this.version = snapshot.version;
+        }
+        fireSourceFileChanged(delta);
+        return true;
+    }
+    
+    /**
+     * @return true if the source document has not changed since
+     *         the given snapshot was taken, false otherwise
+     */
+    public boolean isCurrent(Snapshot snapshot)
+    {
+        PerlPartitioner partitioner = (PerlPartitioner)
+            PartitionTypes.getPerlPartitioner(doc);
+        if (partitioner == null) return false;
+
+        synchronized (partitioner.getTokensLock())
+        {
+            return partitioner.getTokensVersion() == snapshot.version;
+        }
     }
     
     /**
@@ -138,23 +251,269 @@ public class SourceFile
         listeners.remove(listener);
     }
     
-    private void addPOD(PerlToken podStart, PerlToken podEnd)
-        throws BadLocationException
+    private void fireSourceFileChanged(SourceFileDelta delta)
     {
-        pods.add(new PODComment(podStart, podEnd));
+        Object[] listeners = this.listeners.getListeners();
+        for (int i = 0; i < listeners.length; i++)
+            ((ISourceFileListener) listeners[i]).sourceFileChanged(this, delta);
     }
     
-    private void fireSourceFileChanged()
+    private void parse(ParsingState state)
     {
-        Object[] listeners = this.listeners.getListeners();
-        for (int i = 0; i < listeners.length; i++)
-            ((ISourceFileListener) listeners[i]).sourceFileChanged(this);
+        try
+        {
+            state.run();
+        }
+        catch (BadLocationException e)
+        {
+            log.log(new Status(
+                Status.ERROR,
+                PerlEditorPlugin.getPluginId(),
+                IStatus.OK,
+                "Unexpected exception: " + e.getClass().getName() +
+                "; report it as a bug " +
+                "in plug-in " + PerlEditorPlugin.getPluginId(),
+                e));
+        }
+    }
+    
+    private static SourceFileDelta createFullDelta(
+        List<PODComment> oldPods,
+        List<Package> oldPackages,
+        List<PODComment> newPods,
+        List<Package> newPackages)
+    {
+        List<ISourceElement> added = new ArrayList<ISourceElement>();
+        List<ISourceElement> removed = new ArrayList<ISourceElement>();
+        collectElements(newPods, newPackages, Integer.MIN_VALUE, Integer.MAX_VALUE, added);
+        collectElements(oldPods, oldPackages, Integer.MIN_VALUE, Integer.MAX_VALUE, removed);
+        return new SourceFileDelta(null, added, removed);
+    }
+    
+    /**
+     * Adds elements whose offsets are within the given range
+     * to the given list, ordered by offsets.
+     */
+    private static void collectElements(
+        List<PODComment> pods,
+        List<Package> packages,
+        int start,
+        int end,
+        List<ISourceElement> out)
+    {
+        int size = out.size();
+        for (Iterator<Package> i = packages.iterator(); i.hasNext();)
+        {
+            Package pkg = i.next();
+            addElement(pkg, start, end, out);
+            for (Iterator<Subroutine> j = pkg.getSubs().iterator(); j.hasNext();)
+                addElement(j.next(), start, end, out);
+            for (Iterator<ModuleUse> j = pkg.getUses().iterator(); j.hasNext();)
+                addElement(j.next(), start, end, out);
+        }
+        for (Iterator<PODComment> i = pods.iterator(); i.hasNext();)
+            addElement(i.next(), start, end, out);
+        
+        Collections.sort(out.subList(size, out.size()), new Comparator<ISourceElement>() {
+            public int compare(ISourceElement e1, ISourceElement e2)
+            {
+                return e1.getOffset() - e2.getOffset();
+            } });
+    }
+    
+    private static void addElement(
+        ISourceElement elem, int start, int end, List<ISourceElement> out)
+    {
+        int offset = elem.getOffset();
+        if (start <= offset && offset < end) out.add(elem);
+    }
+    
+    /**
+     * Result of parsing an immutable copy of the source document's tokens,
+     * see {@link SourceFile#parseSnapshot}.
+     */
+    public static class Snapshot
+    {
+        private final IDocument doc;
+        private final List<PerlToken> tokens;
+        private final int version;
+        private List<PODComment> pods;
+        private List<Package> packages;
+        private List<Segment> segments;
+        private int baseVersion;
+        private SourceFileDelta delta;
+        
+        private Snapshot(IDocument doc, List<PerlToken> tokens, int version)
+        {
+            this.doc = doc;
+            this.tokens = tokens;
+            this.version = version;
+        }
+        
+        /**
+         * @return the changes relative to the contents of the SourceFile
+         *         at the time when the snapshot was taken
+         */
+        public SourceFileDelta getDelta()
+        {
+            return delta;
+        }
+        
+        /**
+         * @return version of the partitioner's tokens from which
+         *         the snapshot was derived
+         * @see org.epic.perleditor.editors.PerlPartitioner#getTokensVersion()
+         */
+        public int getVersion()
+        {
+            return version;
+        }
+        
+        /**
+         * @return the copy of the source document from which the snapshot
+         *         was taken; it is never modified, so that it can be
+         *         examined by any thread
+         */
+        public IDocument getDocument()
+        {
+            return doc;
+        }
+        
+        /**
+         * @return the copied tokens, whose texts are read from
+         *         {@link #getDocument()}
+         */
+        public List<PerlToken> getTokens()
+        {
+            return tokens;
+        }
+        
+        /**
+         * @see SourceFile#getPODs()
+         */
+        public Iterator<PODComment> getPODs()
+        {
+            return Collections.unmodifiableList(pods).iterator();
+        }
+        
+        /**
+         * @see SourceFile#getSubs()
+         */
+        public Iterator<Subroutine> getSubs()
+        {
+            return new SubIterator(packages);
+        }
+    }
+    
+    /**
+     * An operation which alters the model while it is being built,
+     * recorded so that it can be replayed without examining the tokens
+     * again. The meaning of the token arguments depends on the type.
+     */
+    private static class Op
+    {
+        public final int type;
+        public final int blockLevel;
+        public final PerlToken t1;
+        public final PerlToken t2;
+        public final PerlToken t3;
+        
+        public Op(int type, int blockLevel, PerlToken t1, PerlToken t2, PerlToken t3)
+        {
+            this.type = type;
+            this.blockLevel = blockLevel;
+            this.t1 = t1;
+            this.t2 = t2;
+            this.t3 = t3;
+        }
+    }
+    
+    /**
+     * A range of consecutive tokens together with the operations performed
+     * while parsing them. A segment starts at a top-level token at which
+     * no construct recognised by the parser is pending, so that parsing
+     * the tokens which follow it only depends on whether a package is
+     * open. Segments are immutable after they have been parsed; when
+     * they are taken over by a later parse, they are copied with shifted
+     * offsets and lines.
+     */
+    private static class Segment
+    {
+        public final int startOffset;
+        public final int startLine;
+        public final boolean inPackage;
+        public final List<Op> ops;
+        
+        /**
+         * Distances by which the tokens referenced by ops and lastToken
+         * must be shifted to obtain their current positions
+         */
+        public final int offsetShift;
+        public final int lineShift;
+        
+        public PerlToken lastToken;
+        public int endBlockLevel;
+        
+        public Segment(PerlToken firstToken, boolean inPackage)
+        {
+            this(
+                firstToken.getOffset(),
+                firstToken.getLine(),
+                inPackage,
+                new ArrayList<Op>(),
+                0,
+                0);
+        }
+        
+        private Segment(
+            int startOffset,
+            int startLine,
+            boolean inPackage,
+            List<Op> ops,
+            int offsetShift,
+            int lineShift)
+        {
+            this.startOffset = startOffset;
+            this.startLine = startLine;
+            this.inPackage = inPackage;
+            this.ops = ops;
+            this.offsetShift = offsetShift;
+            this.lineShift = lineShift;
+        }
+        
+        public Segment shift(int offsetDelta, int lineDelta)
+        {
+            if (offsetDelta == 0 && lineDelta == 0) return this;
+            
+            Segment ret = new Segment(
+                startOffset + offsetDelta,
+                startLine + lineDelta,
+                inPackage,
+                ops,
+                offsetShift + offsetDelta,
+                lineShift + lineDelta);
+            ret.lastToken = lastToken;
+            ret.endBlockLevel = endBlockLevel;
+            return ret;
+        }
     }
     
     private class ParsingState
     {
         private final int tokenCount;
         private final List<PerlToken> tokens;
+        
+        /**
+         * Document from which texts of the tokens are read. If it is
+         * a copy made by parseSnapshot, texts of the tokens kept in
+         * the result are read immediately (see {@link #detach}), so that
+         * the tokens do not keep the copy alive.
+         */
+        private final IDocument textSource;
+        private final List<PODComment> pods;
+        private final List<Package> packages;
+        private final List<Segment> segments;
+        private final int version;
         private int tIndex;
         private PerlToken t;
         private int type;
@@ -170,24 +529,350 @@ public class SourceFile
         private boolean inSubProto;
         private PerlToken baseKeyword;
         
-        public ParsingState(List<PerlToken> tokens)
+        // contents from which the result is derived
+        private final int baseVersion;
+        private final List<PODComment> basePods;
+        private final List<Package> basePackages;
+        private final List<Segment> baseSegments;
+        private final IRegion changedRegion;
+        private final int lengthDelta;
+        
+        private Segment segment;
+        private int segmentStartIndex;
+        private PerlToken lastSegmentToken;
+        private int offsetShift;
+        private int lineShift;
+        
+        // the examined range of tokens, in current and base offsets
+        private int walkStart;
+        private int walkEnd;
+        private int baseWalkEnd;
+        
+        /**
+         * Creates a ParsingState for the given tokens, which will build
+         * on the current contents of this SourceFile if possible.
+         * The caller must hold the partitioner's tokens lock.
+         *
+         * @param textSource    document from which texts of the tokens
+         *                      are read
+         */
+        public ParsingState(
+            PerlPartitioner partitioner, List<PerlToken> tokens, IDocument textSource)
         {
             this.tIndex = 0;
             this.tokens = tokens;
+            this.textSource = textSource;
             this.tokenCount = tokens.size();
+            this.version = partitioner.getTokensVersion();
+            this.pods = new ArrayList<PODComment>();
+            this.packages = new ArrayList<Package>();
+            this.segments = new ArrayList<Segment>();
             this.pkgStack = new Stack<Package>();
             this.subStack = new Stack<Subroutine>();
+            
+            this.baseVersion = SourceFile.this.version;
+            this.basePods = SourceFile.this.pods;
+            this.basePackages = SourceFile.this.packages;
+            
+            IRegion changedRegion = SourceFile.this.segments != null
+                ? partitioner.getChangedRegion(baseVersion)
+                : null;
+            if (changedRegion != null)
+            {
+                this.baseSegments = SourceFile.this.segments;
+                this.changedRegion = changedRegion;
+                this.lengthDelta = partitioner.getLengthDelta(baseVersion);
+            }
+            else
+            {
+                this.baseSegments = null;
+                this.changedRegion = null;
+                this.lengthDelta = 0;
+            }
+        }
+        
+        /**
+         * @return the changes of the parsed elements relative to
+         *         the contents from which the ParsingState was created
+         */
+        public SourceFileDelta getDelta()
+        {
+            if (baseSegments == null)
+                return createFullDelta(basePods, basePackages, pods, packages);
+
+            List<ISourceElement> added = new ArrayList<ISourceElement>();
+            List<ISourceElement> removed = new ArrayList<ISourceElement>();
+            collectElements(pods, packages, walkStart, walkEnd, added);
+            collectElements(basePods, basePackages, walkStart, baseWalkEnd, removed);
+            
+            // the default package has no offset of its own
+            Package main = findMainPackage(packages);
+            Package baseMain = findMainPackage(basePackages);
+            if (main != null && baseMain == null) added.add(0, main);
+            else if (main == null && baseMain != null) removed.add(0, baseMain);
+
+            int end = walkEnd;
+            if (end == Integer.MAX_VALUE)
+            {
+                PerlToken last = tokenCount > 0 ? tokens.get(tokenCount-1) : null;
+                end = last != null
+                    ? Math.max(walkStart, last.getOffset() + last.getLength())
+                    : walkStart;
+            }
+            return new SourceFileDelta(
+                new Region(walkStart, end - walkStart), added, removed);
+        }
+        
+        /**
+         * Parses the tokens. Segments of the base contents which precede
+         * the changed region are replayed, then tokens are examined from
+         * the end of the last replayed segment until a segment boundary
+         * following the changed region is found which coincides with
+         * a boundary of the base contents. The base segments from there
+         * on are replayed with shifted positions.
+         */
+        public void run() throws BadLocationException
+        {
+            int baseI = 0;
+            if (baseSegments != null)
+            {
+                int changeStart = changedRegion.getOffset();
+                while (baseI+1 < baseSegments.size() &&
+                       baseSegments.get(baseI+1).startOffset <= changeStart) baseI++;
+                
+                if (baseI > 0)
+                {
+                    tIndex = findToken(baseSegments.get(baseI).startOffset);
+                    if (tIndex < 0)
+                    {
+                        assert false : "segment boundary not found";
+                        baseI = tIndex = 0;
+                    }
+                }
+                for (int i = 0; i < baseI; i++) replay(baseSegments.get(i), 0, 0);
+                walkStart = baseI > 0 ? baseSegments.get(baseI).startOffset : 0;
+            }
+            walkEnd = baseWalkEnd = Integer.MAX_VALUE;
+            
+            int changeEnd = baseSegments != null
+                ? changedRegion.getOffset() + changedRegion.getLength()
+                : Integer.MAX_VALUE;
+            int searchI = baseI;
+            
+            while (tIndex < tokenCount)
+            {
+                t = tokens.get(tIndex);
+                if (isTopLevel())
+                {
+                    if (t.getOffset() >= changeEnd)
+                    {
+                        int baseOffset = t.getOffset() - lengthDelta;
+                        while (searchI < baseSegments.size() &&
+                               baseSegments.get(searchI).startOffset < baseOffset) searchI++;
+                        
+                        if (searchI < baseSegments.size() &&
+                            baseSegments.get(searchI).startOffset == baseOffset &&
+                            baseSegments.get(searchI).inPackage == !pkgStack.isEmpty())
+                        {
+                            converge(searchI);
+                            break;
+                        }
+                    }
+                    if (segment == null ||
+                        tIndex - segmentStartIndex >= SEGMENT_TOKENS) startSegment();
+                }
+                processToken();
+            }
+            finish();
+        }
+        
+        private void converge(int baseI)
+            throws BadLocationException
+        {
+            endSegment();
+            
+            Segment base = baseSegments.get(baseI);
+            walkEnd = t.getOffset();
+            baseWalkEnd = base.startOffset;
+            
+            int lineDelta = t.getLine() - base.startLine;
+            for (int i = baseI; i < baseSegments.size(); i++)
+                replay(baseSegments.get(i), lengthDelta, lineDelta);
         }
         
-        public void finish()
+        private void finish()
+            throws BadLocationException
         {
+            endSegment();
+            
+            // not recorded in any segment: the end of the last segment
+            // is where the file ends
+            t = lastSegmentToken;
+            segmentStartIndex = tIndex;
             closePackage();
             closeSub();
         }
         
-        public boolean hasMoreTokens()
+        private int findToken(int offset)
+        {
+            int low = 0;
+            int high = tokenCount - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                int midOffset = tokens.get(mid).getOffset();
+                if (midOffset < offset) low = mid + 1;
+                else if (midOffset > offset) high = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
+        
+        private Package findMainPackage(List<Package> packages)
+        {
+            for (Iterator<Package> i = packages.iterator(); i.hasNext();)
+            {
+                Package pkg = i.next();
+                if (pkg.getOffset() < 0) return pkg;
+            }
+            return null;
+        }
+        
+        /**
+         * @return true if no construct recognised by the parser
+         *         is pending at the current token
+         */
+        private boolean isTopLevel()
+        {
+            return
+                blockLevel == 0 &&
+                subStack.isEmpty() &&
+                pkgStack.size() <= 1 &&
+                podStart == null &&
+                packageKeyword == null &&
+                subKeyword == null &&
+                useKeyword == null;
+        }
+        
+        private void startSegment()
+        {
+            endSegment();
+            segment = new Segment(t, !pkgStack.isEmpty());
+            segments.add(segment);
+            segmentStartIndex = tIndex;
+        }
+        
+        private void endSegment()
+        {
+            if (segment == null) return;
+            
+            segment.lastToken = detach(tokens.get(tIndex-1));
+            segment.endBlockLevel = blockLevel;
+            lastSegmentToken = segment.lastToken;
+            segment = null;
+        }
+        
+        private void replay(Segment base, int offsetDelta, int lineDelta)
+            throws BadLocationException
+        {
+            Segment seg = base.shift(offsetDelta, lineDelta);
+            segments.add(seg);
+            
+            offsetShift = seg.offsetShift;
+            lineShift = seg.lineShift;
+            try
+            {
+                for (Iterator<Op> i = seg.ops.iterator(); i.hasNext();)
+                    apply(i.next());
+                
+                lastSegmentToken = shifted(seg.lastToken);
+                blockLevel = seg.endBlockLevel;
+            }
+            finally
+            {
+                offsetShift = lineShift = 0;
+            }
+        }
+        
+        private void emit(
+            int opType, int level, PerlToken t1, PerlToken t2, PerlToken t3)
+            throws BadLocationException
+        {
+            Op op = new Op(opType, level, detach(t1), detach(t2), detach(t3));
+            if (segment != null) segment.ops.add(op);
+            apply(op);
+        }
+        
+        private void apply(Op op)
+            throws BadLocationException
+        {
+            switch (op.type)
+            {
+            case OP_OPEN_PACKAGE:
+                openPackage(new Package(
+                    packages.size(), op.blockLevel, shifted(op.t1), retain(shifted(op.t2))));
+                break;
+            case OP_CLOSE_PACKAGE:
+                //System.err.println("closePackage " + pkgStack.peek().getName() + " " + t);
+                pkgStack.pop().setLastToken(
+                    op.t1 != null ? shifted(op.t1) : lastSegmentToken);
+                break;
+            case OP_OPEN_SUB:
+                subStack.push(getCurrentPackage().addSub(
+                    shifted(op.t1), retain(shifted(op.t2)), (CurlyToken) shifted(op.t3)));
+                break;
+            case OP_CLOSE_SUB:
+                Subroutine sub = subStack.pop();
+                if (op.t1 != null) sub.setCloseCurly((CurlyToken) shifted(op.t1));
+                break;
+            case OP_USE:
+                getCurrentPackage().addUse(shifted(op.t1), shifted(op.t2));
+                break;
+            case OP_PARENT:
+                getCurrentPackage().addParent(shifted(op.t1), shifted(op.t2));
+                break;
+            case OP_POD:
+                pods.add(new PODComment(retain(shifted(op.t1)), shifted(op.t2)));
+                break;
+            default:
+                assert false;
+            }
+        }
+        
+        /**
+         * @return a token at the current position of the given token,
+         *         which is recorded in a segment being replayed
+         */
+        private PerlToken shifted(PerlToken token)
+        {
+            if (token == null || (offsetShift == 0 && lineShift == 0))
+                return token;
+            
+            PerlToken ret;
+            if (token instanceof CurlyToken)
+                ret = new CurlyToken(token.getType(), null, ((CurlyToken) token).getLevel());
+            else if (token instanceof OperatorToken)
+                ret = new OperatorToken(token.getType(), null);
+            else
+            {
+                ret = new PerlToken();
+                ret.setType(token.getType());
+            }
+            ret.setOffset(token.getOffset() + offsetShift);
+            ret.setLine(token.getLine() + lineShift);
+            ret.setColumn(token.getColumn());
+            ret.setText(textSource, token.getLength());
+            return detach(ret);
+        }
+        
+        /**
+         * Reads the text of the given token if it refers to a copy
+         * of the document made by parseSnapshot.
+         */
+        private PerlToken detach(PerlToken token)
         {
-            return tIndex < tokenCount;
+            if (token != null && textSource != doc) token.getText();
+            return token;
         }
         
         public void processToken() throws BadLocationException
@@ -205,25 +890,32 @@ public class SourceFile
         } 
         
         private void closePackage()
+            throws BadLocationException
         {            
             if (pkgStack.isEmpty()) return;
 
             Package pkg = pkgStack.peek();
             if (blockLevel > pkg.getBlockLevel()) return;
-            //System.err.println("closePackage " + pkg.getName() + " " + t);
-            pkgStack.pop();
-            pkg.setLastToken(tokens.get(tIndex-1));
+            
+            // the last token of the previous segment is not known
+            // to the segment, refer to it with null
+            emit(
+                OP_CLOSE_PACKAGE, 0,
+                tIndex > segmentStartIndex ? tokens.get(tIndex-1) : null,
+                null, null);
         }
         
         private void closeSub()
+            throws BadLocationException
         {
             if (subStack.isEmpty()) return;
             
             Subroutine sub = subStack.peek();
             if (blockLevel-1 > sub.getBlockLevel()) return;
-            subStack.pop();
-            if (t instanceof CurlyToken) // could be false on finish()
-                sub.setCloseCurly((CurlyToken) t);
+            emit(
+                OP_CLOSE_SUB, 0,
+                t instanceof CurlyToken ? t : null, // could be false on finish()
+                null, null);
         }
         
         private Package getCurrentPackage()
@@ -239,7 +931,19 @@ public class SourceFile
             packages.add(pkg);
         }
         
+        /**
+         * Reads the text of a token which becomes part of the model,
+         * so that it remains available after the document changes
+         * (see {@link PerlToken#setText(IDocument, int)}).
+         */
+        private PerlToken retain(PerlToken token)
+        {
+            token.getText();
+            return token;
+        }
+        
         private void updateBlockLevel()
+            throws BadLocationException
         {
             if (type == PerlTokenTypes.OPEN_CURLY) blockLevel++;
             else if (type == PerlTokenTypes.CLOSE_CURLY && blockLevel > 0)
@@ -283,11 +987,8 @@ public class SourceFile
                 else if (type == PerlTokenTypes.OPEN_CURLY)
                 {
                     if (subName != null)
-                    {
-                        Subroutine sub = getCurrentPackage().addSub(
-                            subKeyword, subName, (CurlyToken) t);
-                        subStack.push(sub);
-                    }
+                        emit(OP_OPEN_SUB, 0, subKeyword, retain(subName), t);
+
                     subKeyword = null;
                     subName = null;
                     inSubProto = false;
@@ -296,6 +997,7 @@ public class SourceFile
         }
         
         private void updatePackageState()
+            throws BadLocationException
         {
             if (packageKeyword == null)
             {
@@ -309,8 +1011,7 @@ public class SourceFile
             {
                 if (type == PerlTokenTypes.WORD)
                 {
-                    openPackage(new Package(
-                        packages.size(), blockLevel, packageKeyword, t));
+                    emit(OP_OPEN_PACKAGE, blockLevel, packageKeyword, retain(t), null);
                     packageKeyword = null;
                 }
             }
@@ -326,7 +1027,7 @@ public class SourceFile
             {
                 if (type == PerlTokenTypes.CLOSE_POD)
                 {
-                    addPOD(podStart, t);
+                    emit(OP_POD, 0, retain(podStart), t, null);
                     podStart = null;
                 }
             }
@@ -353,8 +1054,8 @@ public class SourceFile
                         !"feature".equals(text) &&
                         !"qw".equals(text))
                     {
-                        getCurrentPackage().addUse(useKeyword, t);
-                        if (baseKeyword != null) getCurrentPackage().addParent(useKeyword, t);
+                        emit(OP_USE, 0, useKeyword, t, null);
+                        if (baseKeyword != null) emit(OP_PARENT, 0, useKeyword, t, null);
                     }
                     if (baseKeyword == null) useKeyword = null;
                 }
@@ -369,12 +1070,12 @@ public class SourceFile
         }
     }
     
-    private class SubIterator implements Iterator<Subroutine>
+    private static class SubIterator implements Iterator<Subroutine>
     {
         private Iterator<Package> pkgIterator;
         private Iterator<Subroutine> subIterator;
         
-        public SubIterator()
+        public SubIterator(List<Package> packages)
         {
             pkgIterator = packages.iterator();
         }
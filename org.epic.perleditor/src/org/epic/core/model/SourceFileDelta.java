@@ -0,0 +1,87 @@
+package org.epic.core.model;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jface.text.IRegion;
+
+/**
+ * Describes how the contents of a SourceFile have changed, see
+ * {@link ISourceFileListener}.
+ * <p>
+ * Only the tokens within the changed region were examined while updating
+ * the SourceFile. Elements which start within this region are reported as
+ * removed (the old instances) and added (the new instances). Elements
+ * which start outside of it are replaced by equal instances, possibly
+ * with shifted offsets and lines. In particular, packages which enclose
+ * the changed region are not reported, even though their subroutines or
+ * end lines may have changed.
+ * </p>
+ */
+public class SourceFileDelta
+{
+    private final IRegion changedRegion;
+    private final List<ISourceElement> added;
+    private final List<ISourceElement> removed;
+
+    /**
+     * @param changedRegion
+     *        the re-examined region of the current document,
+     *        or null if the whole document has been parsed anew
+     */
+    public SourceFileDelta(
+        IRegion changedRegion,
+        List<ISourceElement> added,
+        List<ISourceElement> removed)
+    {
+        this.changedRegion = changedRegion;
+        this.added = Collections.unmodifiableList(added);
+        this.removed = Collections.unmodifiableList(removed);
+    }
+
+    /**
+     * @return elements which have been added by this change,
+     *         in their order of appearance in the source
+     */
+    public List<ISourceElement> getAddedElements()
+    {
+        return added;
+    }
+
+    /**
+     * @return the region of the current document which has been
+     *         re-examined, or null if the whole document was parsed
+     *         anew (in which case all old elements are reported as
+     *         removed and all new elements as added)
+     */
+    public IRegion getChangedRegion()
+    {
+        return changedRegion;
+    }
+
+    /**
+     * @return elements which have been removed by this change,
+     *         in their order of appearance in the old source
+     */
+    public List<ISourceElement> getRemovedElements()
+    {
+        return removed;
+    }
+
+    /**
+     * @return true if the whole document was parsed anew
+     */
+    public boolean isFullChange()
+    {
+        return changedRegion == null;
+    }
+
+    /**
+     * @return true if no elements have been added or removed;
+     *         existing elements may still have moved
+     */
+    public boolean isStructureUnchanged()
+    {
+        return added.isEmpty() && removed.isEmpty();
+    }
+}
@@ -55,6 +55,14 @@ public class Subroutine implements IMultilineElement, IPackageElement
         return closeCurly;
     }
     
+    /**
+     * @return position of this subroutine within its package
+     */
+    public int getIndex()
+    {
+        return index;
+    }
+    
     public int getLength()
     {
         return name.getLength();
@@ -10,6 +10,12 @@ import antlr.*;
 public abstract class LexExpectHereDocEndBase extends LexerBase
 {
     protected String terminator;
+
+    /**
+     * Indices in the text buffer at which the last heredoc line
+     * starts and ends, excluding the line separator
+     */
+    protected int lineStart, lineEnd;
     
     protected LexExpectHereDocEndBase()
     {
@@ -29,4 +35,20 @@ public abstract class LexExpectHereDocEndBase extends LexerBase
     {
         this.terminator = terminator;
     }
+
+    /**
+     * @return true if the last heredoc line (see {@link #lineStart},
+     *         {@link #lineEnd}) equals the terminator; the line is compared
+     *         in the text buffer rather than copied to a String
+     */
+    protected boolean isTerminatorLine()
+    {
+        int length = lineEnd - lineStart;
+        if (length != terminator.length()) return false;
+
+        char[] buf = text.getBuffer();
+        for (int i = 0; i < length; i++)
+            if (buf[lineStart + i] != terminator.charAt(i)) return false;
+        return true;
+    }
 }
@@ -1,5 +1,7 @@
 package org.epic.core.parser;
 
+import org.eclipse.jface.text.IDocument;
+
 import antlr.*;
 
 /**
@@ -86,6 +88,39 @@ public abstract class LexerBase extends CharScanner
         return getLine() > endLine;
     }
     
+    /**
+     * Creates a token of the given type for the text matched by
+     * the current rule. Rules use this method through $setToken to avoid
+     * the copy of the matched text which ANTLR's generated code makes for
+     * every token: in lazy text mode (see {@link PerlMultiLexer#setTextLazy}),
+     * the token refers to the lexed document instead.
+     *
+     * @param begin     index in the text buffer at which the rule's
+     *                  text starts (the rule's <code>_begin</code>)
+     */
+    protected Token createToken(int type, int begin)
+    {
+        return createToken(type, begin, null);
+    }
+
+    /**
+     * Like {@link #createToken(int, int)}, for rules which have already
+     * obtained their text as a String.
+     */
+    protected Token createToken(int type, int begin, String str)
+    {
+        PerlToken t = (PerlToken) makeToken(type);
+        int length = text.length() - begin;
+        IDocument doc = getParent().getLazyTextSource();
+
+        // the token's offset is where the token being lexed starts,
+        // which is where the text buffer starts
+        if (doc != null && begin == 0) t.setText(doc, length);
+        else if (str != null) t.setText(str);
+        else t.setText(new String(text.getBuffer(), begin, length));
+        return t;
+    }
+
     protected Token makeToken(int t)
     {
         PerlToken pt = (PerlToken) super.makeToken(t);
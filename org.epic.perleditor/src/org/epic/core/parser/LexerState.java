@@ -0,0 +1,93 @@
+package org.epic.core.parser;
+
+/**
+ * A utility class for lexer state checkpoints, which are returned by
+ * {@link PerlMultiLexer#getState} and accepted by
+ * {@link PerlMultiLexer#reset(org.eclipse.jface.text.IDocument, int, int)}.
+ * <p>
+ * A checkpoint is an int which encodes the complete state of the lexer
+ * between two tokens: the stack of sublexers, the curly brace nesting
+ * level and the flags of the main lexer. Checkpoints are only available
+ * when the main lexer is selected and no sublexers are on the stack,
+ * which means that no quote-like operator, heredoc or POD is pending.
+ * Because heredoc, POD and string bodies are each lexed as a small number
+ * of tokens, this is the case for all but a few token boundaries.
+ * Otherwise, the state is {@link #NONE}.
+ * </p>
+ * <p>
+ * Given the same checkpoint and the same remaining input, the lexer
+ * emits the same tokens. The curly brace nesting level only affects
+ * the levels recorded in CurlyTokens, therefore
+ * {@link #isSameLexicalState} ignores it.
+ * </p>
+ */
+public class LexerState
+{
+    /**
+     * The state reported at token boundaries for which no checkpoint
+     * is available
+     */
+    public static final int NONE = 0;
+
+    /**
+     * The state of a lexer which starts lexing a document
+     */
+    public static final int INITIAL;
+
+    static final int FLAGS_BITS = 10;
+    static final int FLAGS_MASK = (1 << FLAGS_BITS) - 1;
+    private static final int VALID = 1 << FLAGS_BITS;
+    private static final int LEVEL_SHIFT = FLAGS_BITS + 1;
+
+    static
+    {
+        INITIAL = create(0, 0);
+    }
+
+    private LexerState()
+    {
+    }
+
+    /**
+     * @return the curly brace nesting level recorded in the given
+     *         checkpoint, which must not be {@link #NONE}
+     */
+    public static int getCurlyLevel(int state)
+    {
+        assert state != NONE;
+        return state >> LEVEL_SHIFT;
+    }
+
+    /**
+     * @return true if both given states are checkpoints which differ
+     *         at most in the curly brace nesting level
+     */
+    public static boolean isSameLexicalState(int state1, int state2)
+    {
+        return
+            state1 != NONE &&
+            state2 != NONE &&
+            (state1 & FLAGS_MASK) == (state2 & FLAGS_MASK);
+    }
+
+    /**
+     * @return a copy of the given checkpoint with a changed curly brace
+     *         nesting level; NONE if the given state is NONE
+     */
+    public static int withCurlyLevel(int state, int level)
+    {
+        if (state == NONE) return NONE;
+        return create(state & FLAGS_MASK, level);
+    }
+
+    static int create(int flags, int level)
+    {
+        assert (flags & ~FLAGS_MASK) == 0;
+        return (level << LEVEL_SHIFT) | VALID | flags;
+    }
+
+    static int getFlags(int state)
+    {
+        return state & FLAGS_MASK;
+    }
+}
@@ -145,6 +145,45 @@ public abstract class PerlLexerBase extends LexerBase
     {
         this.pc = level;
     }
+    
+    /**
+     * @return the current state of this lexer, encoded as described
+     *         in {@link LexerState}
+     */
+    int getState()
+    {
+        int flags = 0;
+        if (qmarkRegexp) flags |= 1;
+        if (slashRegexp) flags |= 1 << 1;
+        if (glob) flags |= 1 << 2;
+        if (afterColon) flags |= 1 << 3;
+        if (afterArrow) flags |= 1 << 4;
+        if (afterDArrow) flags |= 1 << 5;
+        if (afterSub) flags |= 1 << 6;
+        if (notOper) flags |= 1 << 7;
+        if (format) flags |= 1 << 8;
+        if (proto) flags |= 1 << 9;
+        return LexerState.create(flags, pc);
+    }
+    
+    /**
+     * Restores a state previously returned by {@link #getState}.
+     */
+    void setState(int state)
+    {
+        int flags = LexerState.getFlags(state);
+        qmarkRegexp = (flags & 1) != 0;
+        slashRegexp = (flags & (1 << 1)) != 0;
+        glob = (flags & (1 << 2)) != 0;
+        afterColon = (flags & (1 << 3)) != 0;
+        afterArrow = (flags & (1 << 4)) != 0;
+        afterDArrow = (flags & (1 << 5)) != 0;
+        afterSub = (flags & (1 << 6)) != 0;
+        notOper = (flags & (1 << 7)) != 0;
+        format = (flags & (1 << 8)) != 0;
+        proto = (flags & (1 << 9)) != 0;
+        pc = LexerState.getCurlyLevel(state);
+    }
 
     private static void initKeywords(Set<String> dest, String[] src)
     {
@@ -24,6 +24,7 @@ public class PerlMultiLexer extends TokenStreamSelector
     private final LexExpectSubstExpr lexExpectSubstExpr;
     private final LexExpectHereDocEnd lexExpectHereDocEnd;
     private IDocument doc;
+    private boolean textLazy;
     
     public PerlMultiLexer()
     {
@@ -90,6 +91,30 @@ public class PerlMultiLexer extends TokenStreamSelector
         return mainLexer.getCurlyLevel();
     }
     
+    /**
+     * @return a checkpoint of the lexer's current state, to be used with
+     *         {@link #reset(IDocument, int, int)}, or {@link LexerState#NONE}
+     *         if the state cannot be captured (see {@link LexerState});
+     *         when called between calls to {@link #nextToken}, this is
+     *         the state in which the next token will be lexed
+     */
+    public int getState()
+    {
+        if (getCurrentStream() != mainLexer || streamStack.height() > 0)
+            return LexerState.NONE;
+        else
+            return mainLexer.getState();
+    }
+    
+    /**
+     * @return true if the lexer is in lazy text mode, see
+     *         {@link #setTextLazy}
+     */
+    public boolean isTextLazy()
+    {
+        return textLazy;
+    }
+    
     public void recover()
     {
         LexerSharedInputState inputState = mainLexer.getInputState();
@@ -104,9 +129,31 @@ public class PerlMultiLexer extends TokenStreamSelector
     {
         this.doc = doc;
         
-        LexerSharedInputState inputState =
-            createInputState(reader, doc, parseStartCurly);
+        reset(
+            createInputState(reader, doc, parseStartCurly),
+            parseStartCurly != null
+                ? LexerState.withCurlyLevel(LexerState.INITIAL, parseStartCurly.getLevel())
+                : LexerState.INITIAL);
+    }
+    
+    /**
+     * Prepares the lexer to continue lexing the given document at
+     * the given offset, in a state previously returned by {@link #getState}.
+     *
+     * @param startOffset   offset of the token before which the state
+     *                      was captured
+     * @param state         the captured state; must not be
+     *                      {@link LexerState#NONE}
+     */
+    public void reset(IDocument doc, int startOffset, int state)
+    {
+        assert state != LexerState.NONE;
+        this.doc = doc;
+        reset(new PerlLexerSharedInputState(doc, startOffset), state);
+    }
 
+    private void reset(LexerSharedInputState inputState, int state)
+    {
         mainLexer.setInputState(inputState);
         lexExpectPODEnd.setInputState(inputState);
         lexExpectStringEnd.setInputState(inputState);
@@ -114,10 +161,43 @@ public class PerlMultiLexer extends TokenStreamSelector
         lexExpectSubstExpr.setInputState(inputState);
         lexExpectStringSuffix.setInputState(inputState);
         lexExpectHereDocEnd.setInputState(inputState);
-        if (parseStartCurly != null) mainLexer.setCurlyLevel(parseStartCurly.getLevel());
+        mainLexer.setState(state);
+        while (streamStack.height() > 0) streamStack.pop();
         select(mainLexer);
     }
 
+    /**
+     * Enables or disables the lazy text mode. In this mode, the emitted
+     * tokens only record their ranges over the lexed document; their
+     * texts are not retained, but read from the document when first
+     * requested through {@link PerlToken#getText}. This mode is intended
+     * for clients such as PerlPartitioner, which only need the types,
+     * offsets and lengths of most tokens and which process the tokens
+     * before the document changes again. The lazy text mode only applies
+     * when lexing from a document; by default, it is disabled.
+     * <p>
+     * The mode only affects tokens created with {@link LexerBase#createToken},
+     * which the grammars use for the most frequent and longest tokens
+     * (whitespace, comments, words, string, heredoc and POD bodies).
+     * Other tokens carry the text copied by ANTLR's generated code or
+     * a constant text, as in the default mode.
+     * </p>
+     */
+    public void setTextLazy(boolean textLazy)
+    {
+        this.textLazy = textLazy;
+    }
+
+    /**
+     * @return the document to which tokens created by the sublexers
+     *         should refer instead of copying their texts, or null if
+     *         the lexer is not in lazy text mode or not lexing a document
+     */
+    IDocument getLazyTextSource()
+    {
+        return textLazy ? doc : null;
+    }
+
     void expectFormatEnd()
     {
         // For the time being, we treat formats the same way as heredocs:
@@ -1,5 +1,7 @@
 package org.epic.core.parser;
 
+import org.eclipse.jface.text.*;
+
 import antlr.CommonToken;
 
 /**
@@ -8,12 +10,20 @@ import antlr.CommonToken;
  * WARNING: PerlTokens lack fixed identity and are modifiable, for this
  * reason great care must be exercised if they are used as keys in a hash
  * table.
+ * <p>
+ * A PerlToken's text may be either set explicitly (which is what
+ * the lexer does) or read lazily from a document, see
+ * {@link #setText(IDocument, int)}.
+ * </p>
  * 
  * @author jploski
  */
 public class PerlToken extends CommonToken
 {
     private int offset;
+    private int length = -1;
+    private IDocument textSource;
+    private long textSourceStamp;
     
     public PerlToken()
     {
@@ -42,6 +52,7 @@ public class PerlToken extends CommonToken
 
     public int getLength()
     {
+        if (length >= 0) return length;
         return text != null ? text.length() : 0;
     }
     
@@ -50,6 +61,16 @@ public class PerlToken extends CommonToken
         return offset;
     }
     
+    public String getText()
+    {
+        if (textSource != null)
+        {
+            text = readText();
+            textSource = null;
+        }
+        return text;
+    }
+    
     public int hashCode()
     {
         return (offset * 31 + getLength()) * 31 + getType();
@@ -65,12 +86,56 @@ public class PerlToken extends CommonToken
         this.offset = offset;
     }
     
+    public void setText(String text)
+    {
+        super.setText(text);
+        this.length = -1;
+        this.textSource = null;
+    }
+    
+    /**
+     * Sets the length of this token, deferring retrieval of its text
+     * from the given document until {@link #getText} is first called.
+     * The token's offset must be set before. If the document is modified
+     * before the text is retrieved, the text becomes unavailable and
+     * getText returns an empty string. Clients which intend to keep
+     * the token must therefore call getText while the document remains
+     * unchanged.
+     */
+    public void setText(IDocument doc, int length)
+    {
+        this.text = null;
+        this.length = length;
+        this.textSource = doc;
+        this.textSourceStamp = getModificationStamp(doc);
+    }
+    
     public void shift(int offsetDelta, int lineDelta)
     {
         offset += offsetDelta;
         setLine(getLine() + lineDelta);
     }
     
+    private static long getModificationStamp(IDocument doc)
+    {
+        return doc instanceof IDocumentExtension4
+            ? ((IDocumentExtension4) doc).getModificationStamp()
+            : IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+    }
+    
+    private String readText()
+    {
+        if (getModificationStamp(textSource) != textSourceStamp) return "";
+        try
+        {
+            return textSource.get(offset, length);
+        }
+        catch (BadLocationException e)
+        {
+            return ""; // the document is being modified by another thread
+        }
+    }
+    
     public String toString()
     {
         return "[\"" + getText() + "\",<" + type + ">,line=" + line + ",col=" + col + ",offset=" + offset + ",length=" + getLength() + "]";
@@ -25,13 +25,16 @@ CLOSE_HEREDOC:
 	{
 		endOfHeredoc = false;
 		getParent().pop();
+		if (_createToken) $setToken(createToken(_ttype, _begin));
 	}
 	;
 
 protected
 HEREDOC_LINE:
-	t:HEREDOC_LINE_CHARS
-	(NEWLINE { endOfHeredoc = terminator.equals(t.getText()) || maxLinesExceeded(); } |
+	{ lineStart = text.length(); }
+	HEREDOC_LINE_CHARS
+	{ lineEnd = text.length(); }
+	(NEWLINE { endOfHeredoc = isTerminatorLine() || maxLinesExceeded(); } |
 	'\uFFFF'! { endOfHeredoc = true; })
 	;
 
@@ -30,10 +30,16 @@ OPEN_QUOTE:
 	}
 	;
 
-COMMENT: { expectComment }? '#' (NOTNEWLINE)* NEWLINE!;
+COMMENT: { expectComment }? '#' (NOTNEWLINE)* NEWLINE!
+	{ if (_createToken) $setToken(createToken(_ttype, _begin)); }
+	;
 
 WS:
-	(' ' | '\t' | NEWLINE)+ { expectComment = true; }
+	(' ' | '\t' | NEWLINE)+
+	{
+		expectComment = true;
+		if (_createToken) $setToken(createToken(_ttype, _begin));
+	}
 	;
 
 protected
@@ -25,12 +25,19 @@ EOF: '\uFFFF' { uponEOF(); };
 
 STRING_BODY:
 	({ if (LA(1) == '\uFFFF' || maxLinesExceeded() ||
-		   LA(1) == quoteEndChar && pc == 0) break; } NOT_QUOTE)*;
+		   LA(1) == quoteEndChar && pc == 0) break; } NOT_QUOTE)*
+	{ if (_createToken) $setToken(createToken(_ttype, _begin)); }
+	;
 
 CLOSE_QUOTE:
 	{ LA(1) == quoteEndChar || maxLinesExceeded() }?
 	.
-	{ getParent().pop(); }
+	{
+		// an unbalanced string cut off by maxLinesExceeded must not
+		// affect the nesting of brackets in the strings which follow
+		pc = 0;
+		getParent().pop();
+	}
 	;
 
 protected
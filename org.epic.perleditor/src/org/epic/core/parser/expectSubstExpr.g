@@ -22,8 +22,16 @@ options
 }
 
 OPEN_QUOTE: OPEN_QUOTE1 | OPEN_QUOTE2;
-COMMENT: { expectComment }? '#' (NOT_NEWLINE)* (NEWLINE! | '\uFFFF'!);
-WS: (' ' | '\t' | NEWLINE)+ { expectComment = true; };
+COMMENT: { expectComment }? '#' (NOT_NEWLINE)* (NEWLINE! | '\uFFFF'!)
+	{ if (_createToken) $setToken(createToken(_ttype, _begin)); }
+	;
+
+WS: (' ' | '\t' | NEWLINE)+
+	{
+		expectComment = true;
+		if (_createToken) $setToken(createToken(_ttype, _begin));
+	}
+	;
 
 protected OPEN_QUOTE1
 	: ('{' | '[' | '(' | '<')
@@ -13,9 +13,11 @@ options
 	exportVocab = Perl;
 }
 
-WS: (' ' | '\t' | NEWLINE)+;
+WS: (' ' | '\t' | NEWLINE)+ { if (_createToken) $setToken(createToken(_ttype, _begin)); };
 
-COMMENT: '#' (NOT_NEWLINE)* (NEWLINE! | '\uFFFF'!);
+COMMENT: '#' (NOT_NEWLINE)* (NEWLINE! | '\uFFFF'!)
+	{ if (_createToken) $setToken(createToken(_ttype, _begin)); }
+	;
 
 SEMI
 	: ';'
@@ -503,6 +505,7 @@ protected WORD
 		
 		slashRegexp = !(afterArrow || slashRegexp);
 		qmarkRegexp = afterArrow = notOper = false;
+		if (_createToken && _token == null) $setToken(createToken(_ttype, _begin, str));
 	}
 	;
 
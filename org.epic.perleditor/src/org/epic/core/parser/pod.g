@@ -26,6 +26,7 @@ POD_BODY
 		    LA(4) == 't' &&
 		    (LA(5) == EOF_CHAR || Character.isWhitespace(LA(5)))) break;
 	} | NOTNEWLINE)+
+	{ if (_createToken) $setToken(createToken(_ttype, _begin)); }
 	;
 
 protected
@@ -0,0 +1,24 @@
+package org.epic.core.util;
+
+/**
+ * Receives the output of an external process line by line, as soon as
+ * each line has been read and decoded.
+ * <p>
+ * Lines are delivered on a {@link StreamPump} thread, one at a time and
+ * in order. The process's output is not read while the listener is busy,
+ * so a slow listener eventually makes the process block on a full pipe
+ * instead of its output piling up in memory. For the same reason,
+ * a listener must not wait for the thread which executes the process.
+ * </p>
+ *
+ * @see org.epic.core.util.PerlExecutor#execute(java.io.File, java.util.List, String, ILineListener)
+ */
+public interface ILineListener
+{
+    /**
+     * Invoked for each line of output.
+     *
+     * @param line  the line, without its terminating line separator
+     */
+    public void lineRead(String line);
+}
@@ -2,6 +2,9 @@ package org.epic.core.util;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.eclipse.core.resources.IMarker;
@@ -124,6 +127,87 @@ public class MarkerUtilities
         }
     }
 
+    /**
+     * Updates markers of the given type on the given resource so that they
+     * match the given list of marker attributes. Existing markers are matched
+     * with the required ones by their line numbers and messages. Attributes of
+     * a matched marker are only written if they differ; missing markers are
+     * created and unmatched markers are deleted, if requested.
+     * <p>
+     * This method should be called from within an IWorkspaceRunnable, so that
+     * all of the changes result in a single resource change notification.
+     * </p>
+     *
+     * @param required        attributes of the required markers
+     * @param deleteUnmatched true if existing markers which do not match any
+     *                        of the required markers should be deleted
+     */
+    public void updateMarkers(
+        IResource resource, String type, List<? extends Map<String, ?>> required,
+        boolean deleteUnmatched)
+    {
+        assert isNotNullOrEmpty(type);
+
+        IMarker[] markers = resource.exists() ? findMarkers(resource, type) : EMPTY_ARRAY;
+        Map<String, List<IMarker>> existing = new HashMap<String, List<IMarker>>();
+        for (int i = 0; i < markers.length; i++)
+        {
+            String key = getMarkerKey(
+                getAttribute(markers[i], IMarker.LINE_NUMBER),
+                getAttribute(markers[i], IMarker.MESSAGE));
+            List<IMarker> list = existing.get(key);
+            if (list == null)
+            {
+                list = new ArrayList<IMarker>(1);
+                existing.put(key, list);
+            }
+            list.add(markers[i]);
+        }
+
+        for (Iterator<? extends Map<String, ?>> i = required.iterator(); i.hasNext();)
+        {
+            Map<String, ?> attributes = i.next();
+            List<IMarker> list = existing.get(getMarkerKey(
+                attributes.get(IMarker.LINE_NUMBER), attributes.get(IMarker.MESSAGE)));
+
+            if (list == null || list.isEmpty())
+            {
+                createMarker(resource, type, attributes);
+                continue;
+            }
+
+            IMarker marker = list.remove(list.size() - 1);
+            try
+            {
+                if (!attributes.equals(marker.getAttributes())) marker.setAttributes(attributes);
+            }
+            catch (CoreException e)
+            {
+                // the marker no longer exists
+                createMarker(resource, type, attributes);
+            }
+        }
+
+        if (!deleteUnmatched) { return; }
+
+        List<IMarker> toDelete = new ArrayList<IMarker>();
+        for (Iterator<List<IMarker>> i = existing.values().iterator(); i.hasNext();)
+        {
+            toDelete.addAll(i.next());
+        }
+
+        if (toDelete.isEmpty()) { return; }
+
+        try
+        {
+            resource.getWorkspace().deleteMarkers(toDelete.toArray(new IMarker[toDelete.size()]));
+        }
+        catch (CoreException e)
+        {
+            log.log(StatusFactory.createError(pluginId, "unable to delete markers", e));
+        }
+    }
+
     public void setLineNumber(Map<String, Serializable> attributes, int lineNumber)
     {
         attributes.put(IMarker.LINE_NUMBER, new Integer(lineNumber));
@@ -175,6 +259,11 @@ public class MarkerUtilities
         }
     }
 
+    private String getMarkerKey(Object lineNumber, Object message)
+    {
+        return lineNumber + ":" + message;
+    }
+
     private boolean isNotNullOrEmpty(String s)
     {
         return ((s != null) && ! "".equals(s)) ? true : false;
@@ -0,0 +1,85 @@
+package org.epic.core.util;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds modules and files which Perl source code loads through
+ * <code>use</code> and <code>require</code> statements, including
+ * the base classes listed in <code>use parent</code> and
+ * <code>use base</code>. The source code is scanned with regular
+ * expressions rather than parsed, so occurrences in comments or
+ * strings are reported too; this is acceptable for dependency
+ * tracking, where a superfluous dependency only causes an extra
+ * validation.
+ */
+public class ModuleReferences
+{
+    private static final Pattern USE_PATTERN = Pattern.compile(
+        "\\b(?:use|require)\\s+([A-Za-z_][\\w:]*)");
+
+    private static final Pattern BASE_PATTERN = Pattern.compile(
+        "\\buse\\s+(?:parent|base)\\b([^;]*)");
+
+    private static final Pattern BASE_NAME_PATTERN = Pattern.compile(
+        "(?<![-\\w:$@%&])([A-Za-z_][\\w:]*)");
+
+    private static final Pattern REQUIRE_PATH_PATTERN = Pattern.compile(
+        "\\brequire\\s*\\(?\\s*['\"]([^'\"$@\\s]+)['\"]");
+
+    private ModuleReferences() { }
+
+    /**
+     * @return names of modules referred to by bareword <code>use</code>
+     *         and <code>require</code> statements and listed as base
+     *         classes in <code>use parent</code> or <code>use base</code>,
+     *         in order of appearance, without duplicates; pragmas
+     *         (including <code>parent</code> and <code>base</code>)
+     *         are reported as well
+     */
+    public static List<String> getModuleNames(String sourceCode)
+    {
+        Set<String> names = new LinkedHashSet<String>();
+
+        Matcher m = USE_PATTERN.matcher(sourceCode);
+        while (m.find()) names.add(m.group(1));
+
+        m = BASE_PATTERN.matcher(sourceCode);
+        while (m.find())
+        {
+            // e.g. 'Foo', "Foo", qw(Foo Bar), -norequire, 'Foo'
+            Matcher n = BASE_NAME_PATTERN.matcher(m.group(1));
+            while (n.find())
+            {
+                if (!"qw".equals(n.group(1))) names.add(n.group(1)); //$NON-NLS-1$
+            }
+        }
+        return new ArrayList<String>(names);
+    }
+
+    /**
+     * @return paths passed as literal strings to <code>require</code>
+     *         (e.g. "lib.pl" for <code>require "lib.pl"</code>), in order
+     *         of appearance, without duplicates; strings which contain
+     *         interpolated variables are not reported
+     */
+    public static List<String> getRequiredPaths(String sourceCode)
+    {
+        Set<String> paths = new LinkedHashSet<String>();
+
+        Matcher m = REQUIRE_PATH_PATTERN.matcher(sourceCode);
+        while (m.find()) paths.add(m.group(1));
+
+        return new ArrayList<String>(paths);
+    }
+
+    /**
+     * @return the path relative to an include directory under which
+     *         the given module is stored, e.g. "Foo/Bar.pm" for "Foo::Bar"
+     */
+    public static String getModulePath(String moduleName)
+    {
+        return moduleName.replaceAll("::", "/") + ".pm"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+}
@@ -89,6 +89,22 @@ public class PerlExecutor
      */
     public ProcessOutput execute(File workingDir, List<String> args, String input)
         throws CoreException
+    {
+        return execute(workingDir, args, input, null);
+    }
+    
+    /**
+     * Same as {@link #execute(File, List, String)}, except that lines written
+     * by the interpreter to stdout are passed to the given listener as they
+     * arrive, rather than collected in the returned ProcessOutput.
+     * 
+     * @param stdoutListener  receives the lines of stdout, or null
+     *                        to collect them in the returned ProcessOutput
+     * @see ILineListener
+     */
+    public ProcessOutput execute(
+        File workingDir, List<String> args, String input, ILineListener stdoutListener)
+        throws CoreException
     {
         if (disposed) throw new IllegalStateException("PerlExecutor disposed");
         
@@ -97,7 +113,7 @@ public class PerlExecutor
         
         try
         {
-            return executor.execute(commandLine, input, workingDir, null);
+            return executor.execute(commandLine, input, workingDir, null, stdoutListener);
         }
         catch (InterruptedException e) { throwCoreException(e); return null;}
         catch (IOException e) { throwCoreException(e, commandLine); return null; }
@@ -130,6 +146,22 @@ public class PerlExecutor
      */
     public ProcessOutput execute(IResource resource, List<String> args, String sourceCode)
         throws CoreException
+    {
+        return execute(resource, args, sourceCode, null);
+    }
+    
+    /**
+     * Same as {@link #execute(IResource, List, String)}, except that lines
+     * written by the script to stdout are passed to the given listener
+     * as they arrive, rather than collected in the returned ProcessOutput.
+     * 
+     * @param stdoutListener  receives the lines of stdout, or null
+     *                        to collect them in the returned ProcessOutput
+     * @see ILineListener
+     */
+    public ProcessOutput execute(
+        IResource resource, List<String> args, String sourceCode, ILineListener stdoutListener)
+        throws CoreException
     {
         if (disposed) throw new IllegalStateException("PerlExecutor disposed");       
         if (sourceCode.length() < 1) return new ProcessOutput("", "");
@@ -148,7 +180,8 @@ public class PerlExecutor
                 commandLine,
                 sourceCode,
                 getPerlWorkingDir(resource),
-                charset);
+                charset,
+                stdoutListener);
         }
         catch (InterruptedException e) { throwCoreException(e); return null;}
         catch (IOException e) { throwCoreException(e, commandLine); return null; }
@@ -166,11 +199,27 @@ public class PerlExecutor
      */
     public ProcessOutput execute(ITextEditor editor, List<String> args, String sourceCode)
         throws CoreException
+    {
+        return execute(editor, args, sourceCode, null);
+    }
+    
+    /**
+     * Same as {@link #execute(ITextEditor, List, String)}, except that lines
+     * written by the script to stdout are passed to the given listener
+     * as they arrive, rather than collected in the returned ProcessOutput.
+     * 
+     * @param stdoutListener  receives the lines of stdout, or null
+     *                        to collect them in the returned ProcessOutput
+     */
+    public ProcessOutput execute(
+        ITextEditor editor, List<String> args, String sourceCode, ILineListener stdoutListener)
+        throws CoreException
     {
         return execute(
             ((IFileEditorInput) editor.getEditorInput()).getFile(),
             args,
-            sourceCode);
+            sourceCode,
+            stdoutListener);
     }
 
     protected List<String> getPerlCommandLine(PerlProject project)
@@ -0,0 +1,203 @@
+package org.epic.core.util;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A long-lived helper Perl process which answers requests sent to it
+ * over stdin with responses written to stdout. Both directions use
+ * a simple framing: a request consists of a line containing the number
+ * of header lines, the header lines themselves, a line containing the
+ * length of the body in bytes and the body; a response consists of
+ * a line containing its length in bytes followed by that many bytes.
+ * <p>
+ * The process is started on first use and restarted transparently
+ * if it has terminated since the previous request. If communication
+ * fails, the process is destroyed and the IOException is passed on
+ * to the client, which is expected to fall back to a one-shot execution.
+ * </p>
+ */
+public class PerlServerProcess
+{
+    private static final Timer watchdog =
+        new Timer("EPIC:PerlServerProcess:watchdog", true);
+
+    private final List<String> commandLine;
+    private final File workingDir;
+    private boolean disposed;
+    private Process proc;
+    private OutputStream procStdin;
+    private InputStream procStdout;
+
+    /**
+     * Creates a PerlServerProcess. The process itself is not started
+     * until the first request is sent.
+     *
+     * @param commandLine   path to the interpreter, its command line
+     *                      parameters and path to the server script
+     * @param workingDir    working directory in which to start the process
+     */
+    public PerlServerProcess(List<String> commandLine, File workingDir)
+    {
+        this.commandLine = new ArrayList<String>(commandLine);
+        this.workingDir = workingDir;
+    }
+
+    /**
+     * Terminates the process, if it is running.
+     * This PerlServerProcess must no longer be used after dispose.
+     */
+    public synchronized void dispose()
+    {
+        disposed = true;
+        stop();
+    }
+
+    /**
+     * @return the command line with which this process is started
+     */
+    public List<String> getCommandLine()
+    {
+        return Collections.unmodifiableList(commandLine);
+    }
+
+    /**
+     * Sends a request to the process and blocks until its response
+     * is received.
+     *
+     * @param headers       request header lines, must not contain
+     *                      line separators
+     * @param body          request body
+     * @param timeout       maximum number of milliseconds to wait for
+     *                      the response, or 0 to wait indefinitely;
+     *                      when exceeded, the process is destroyed
+     *                      and an IOException is thrown
+     * @return response body
+     * @exception java.io.IOException
+     *            if the process could not be started or communication
+     *            problems were encountered
+     */
+    public synchronized byte[] exchange(
+        List<String> headers, byte[] body, long timeout) throws IOException
+    {
+        if (disposed) throw new IllegalStateException("PerlServerProcess disposed");
+        if (!isAlive()) start();
+
+        TimerTask timeoutTask = null;
+        if (timeout > 0)
+        {
+            final Process timedProc = proc;
+            timeoutTask = new TimerTask() {
+                public void run() { timedProc.destroy(); } };
+            watchdog.schedule(timeoutTask, timeout);
+        }
+
+        try
+        {
+            StringBuffer buf = new StringBuffer();
+            buf.append(headers.size());
+            buf.append('\n');
+            for (Iterator<String> i = headers.iterator(); i.hasNext();)
+            {
+                buf.append(i.next());
+                buf.append('\n');
+            }
+            buf.append(body.length);
+            buf.append('\n');
+
+            procStdin.write(buf.toString().getBytes("UTF-8"));
+            procStdin.write(body);
+            procStdin.flush();
+
+            int length = Integer.parseInt(readLine());
+            byte[] response = new byte[length];
+            int offset = 0;
+            while (offset < length)
+            {
+                int bread = procStdout.read(response, offset, length - offset);
+                if (bread < 0) throw new EOFException(
+                    "Perl server process terminated unexpectedly");
+                offset += bread;
+            }
+            return response;
+        }
+        catch (NumberFormatException e)
+        {
+            stop();
+            throw new IOException("Malformed response from Perl server process");
+        }
+        catch (IOException e)
+        {
+            stop();
+            throw e;
+        }
+        finally
+        {
+            if (timeoutTask != null) timeoutTask.cancel();
+        }
+    }
+
+    private boolean isAlive()
+    {
+        if (proc == null) return false;
+        try
+        {
+            proc.exitValue();
+            stop();
+            return false;
+        }
+        catch (IllegalThreadStateException e)
+        {
+            return true;
+        }
+    }
+
+    private String readLine() throws IOException
+    {
+        StringBuffer buf = new StringBuffer();
+        int c;
+        while ((c = procStdout.read()) != '\n')
+        {
+            if (c < 0) throw new EOFException(
+                "Perl server process terminated unexpectedly");
+            if (c != '\r') buf.append((char) c);
+        }
+        return buf.toString();
+    }
+
+    private void start() throws IOException
+    {
+        proc = Runtime.getRuntime().exec(
+            commandLine.toArray(new String[commandLine.size()]),
+            null,
+            workingDir);
+
+        procStdin = new BufferedOutputStream(proc.getOutputStream());
+        procStdout = new BufferedInputStream(proc.getInputStream());
+
+        // the server is not expected to write anything to stderr,
+        // but we must not let it block on a full pipe if it does
+        final InputStream procStderr = proc.getErrorStream();
+        Thread drain = new Thread("EPIC:PerlServerProcess:stderr") {
+            public void run()
+            {
+                byte[] buf = new byte[1024];
+                try { while (procStderr.read(buf) >= 0) { } }
+                catch (IOException e) { /* process terminated */ }
+            } };
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    private void stop()
+    {
+        if (proc == null) return;
+
+        try { procStdin.close(); }
+        catch (IOException e) { /* process already gone */ }
+        proc.destroy();
+        proc = null;
+        procStdin = null;
+        procStdout = null;
+    }
+}
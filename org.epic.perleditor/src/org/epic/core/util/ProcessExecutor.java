@@ -1,7 +1,9 @@
 package org.epic.core.util;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * Responsible for execution of external, non-interactive processes which
@@ -12,17 +14,20 @@ import java.util.List;
  * A specialized client class is available for this case and should be used
  * instead of the generic ProcessExecutor.
  * </p>
+ * <p>
+ * The output of the process is consumed by the shared {@link StreamPump},
+ * so that a ProcessExecutor does not hold any threads of its own.
+ * </p>
  * 
  * @see org.epic.core.util.PerlExecutor2
  * @author jploski
  */
 public class ProcessExecutor
 {
-    private boolean disposed;
+    private volatile boolean disposed;
     private boolean ignoreBrokenPipe;
     private final String charsetName;
-    private final StringReaderThread stdout;
-    private final StringReaderThread stderr;
+    private Process activeProc;
     
     /**
      * Creates a ProcessExecutor which will use the platform's default charset.
@@ -42,8 +47,6 @@ public class ProcessExecutor
     public ProcessExecutor(String charsetName)
     {
         this.charsetName = charsetName;
-        this.stdout = new StringReaderThread(":ProcessExecutor:stdout");
-        this.stderr = new StringReaderThread(":ProcessExecutor:stderr");        
     }
     
     /**
@@ -53,12 +56,13 @@ public class ProcessExecutor
      */
     public void dispose()
     {
-        disposed = true;
-
-        try { stdout.dispose(); }
-        catch (InterruptedException e) { /* should never happen */ }
-        try { stderr.dispose(); }
-        catch (InterruptedException e) { /* should never happen */ }
+        Process proc;
+        synchronized (this)
+        {
+            disposed = true;
+            proc = activeProc;
+        }
+        if (proc != null) proc.destroy();
     }
     
     /**
@@ -67,12 +71,38 @@ public class ProcessExecutor
      */
     public ProcessOutput execute(List<String> commandLine, String input, File workingDir, String charset)
         throws InterruptedException, IOException
+    {
+        return execute(commandLine, input, workingDir, charset, null);
+    }
+
+    /**
+     * Same as {@link #execute(String[], String, File, String, ILineListener)},
+     * except the command-line is provided as a List of Strings rather than
+     * an array. 
+     */
+    public ProcessOutput execute(
+        List<String> commandLine,
+        String input,
+        File workingDir,
+        String charset,
+        ILineListener stdoutListener) throws InterruptedException, IOException
     {
         return execute(
             commandLine.toArray(new String[commandLine.size()]),
             input,
             workingDir,
-            charset);
+            charset,
+            stdoutListener);
+    }
+    
+    /**
+     * Same as {@link #execute(String[], String, File, String, ILineListener)},
+     * except the process's stdout is collected in the returned ProcessOutput.
+     */
+    public ProcessOutput execute(String[] commandLine, String input, File workingDir, String inputCharset)
+        throws InterruptedException, IOException
+    {
+        return execute(commandLine, input, workingDir, inputCharset, null);
     }
     
     /**
@@ -86,16 +116,23 @@ public class ProcessExecutor
      * @param workingDir   working directory in which to execute the process
      * @param inputCharset name of the charset in which input should be encoded,
      *                     overrides the charset configured through constructor
-     * @return output provided by the process through stdour or stderr,
-     *         depending on this ProcessExecutor's configuration
+     * @param stdoutListener
+     *                     receives the lines of stdout while the process
+     *                     is running, or null to collect stdout instead
+     * @return output provided by the process through stdout and stderr;
+     *         stdout is empty if it was passed to a stdoutListener
      * @exception java.lang.InterruptedException
      *            if {@link #dispose} was called during this operation
      * @execption java.io.IOException
      *            if the process could not be started or communication problems
      *            were encountered 
      */
-    public ProcessOutput execute(String[] commandLine, String input, File workingDir, String inputCharset)
-        throws InterruptedException, IOException
+    public ProcessOutput execute(
+        String[] commandLine,
+        String input,
+        File workingDir,
+        String inputCharset,
+        ILineListener stdoutListener) throws InterruptedException, IOException
     {
         if (disposed) throw new IllegalStateException("ProcessExecutor disposed");
         
@@ -104,6 +141,7 @@ public class ProcessExecutor
         try
         {
             proc = Runtime.getRuntime().exec(commandLine, null, workingDir);
+            setActiveProcess(proc);
     
             /*
              * Due to Java Bug #4763384 sleep for a very small amount of time
@@ -120,31 +158,15 @@ public class ProcessExecutor
             InputStream procStdout = proc.getInputStream();
             OutputStream procStdin = proc.getOutputStream();
             
-            Reader stderrReader;
-            Reader stdoutReader;
-            Writer inputWriter;
-            
-            if (inputCharset != null)
-            {
-                stderrReader = new InputStreamReader(procStderr, inputCharset);
-                stdoutReader = new InputStreamReader(procStdout, inputCharset);
-                inputWriter = new OutputStreamWriter(procStdin, inputCharset);
-            }
-            else if (charsetName != null)
-            {
-                stderrReader = new InputStreamReader(procStderr, charsetName);
-                stdoutReader = new InputStreamReader(procStdout, charsetName);
-                inputWriter = new OutputStreamWriter(procStdin, charsetName);
-            }
-            else
-            {
-                stderrReader = new InputStreamReader(procStderr);
-                stdoutReader = new InputStreamReader(procStdout);
-                inputWriter = new OutputStreamWriter(procStdin);
-            }
+            Charset charset = getCharset(
+                inputCharset != null ? inputCharset : charsetName);
+            Writer inputWriter = new OutputStreamWriter(procStdin, charset);
         
-            stderr.read(stderrReader);
-            stdout.read(stdoutReader);
+            StreamPump pump = StreamPump.instance();
+            Future<String> stderr = pump.read(procStderr, charset);
+            Future<?> stdout = stdoutListener != null
+                ? pump.readLines(procStdout, charset, stdoutListener)
+                : pump.read(procStdout, charset);
             
             if (input.length() > 0)
             {
@@ -186,26 +208,41 @@ public class ProcessExecutor
     
             inputWriter.close();
                 
+            Object stdoutResult = StreamPump.getResult(stdout);
             ProcessOutput ret = new ProcessOutput(
-                stdout.getResult(),
-                stderr.getResult());
+                stdoutListener != null ? "" : (String) stdoutResult,
+                StreamPump.getResult(stderr));
             
-            stderrReader.close();
-            stdoutReader.close();
+            procStderr.close();
+            procStdout.close();
+
+            if (disposed) throw new InterruptedException(
+                "ProcessExecutor disposed during execute");
 
             return ret;
         }
         catch (InterruptedException e)
         {
-            // it must have been dispose()
             if (proc != null) proc.destroy();
             throw e;
         }
         catch (IOException e)
         { 
+            if (proc != null) proc.destroy();
+            if (disposed) throw new InterruptedException(
+                "ProcessExecutor disposed during execute");
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            // thrown by the stdoutListener
             if (proc != null) proc.destroy();
             throw e;
         }
+        finally
+        {
+            setActiveProcess(null);
+        }
     }
     
 
@@ -235,6 +272,35 @@ public class ProcessExecutor
         if (!ignoreBrokenPipe) throw e; // just rethrow by default
     }
     
+    private Charset getCharset(String name) throws UnsupportedEncodingException
+    {
+        if (name == null) return Charset.defaultCharset();
+        try
+        {
+            return Charset.forName(name);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // as thrown by InputStreamReader for an unsupported charset
+            throw new UnsupportedEncodingException(name);
+        }
+    }
+    
+    /**
+     * Records the process which is being executed, so that it can be
+     * terminated by {@link #dispose}.
+     */
+    private synchronized void setActiveProcess(Process proc)
+        throws InterruptedException
+    {
+        if (proc != null && disposed)
+        {
+            proc.destroy();
+            throw new InterruptedException("ProcessExecutor disposed");
+        }
+        activeProc = proc;
+    }
+    
     private int getBOMOffset(String bomChar) throws UnsupportedEncodingException {
     	byte[] bom = new byte[4];
     	//inputCharset = "UTF-32BE";
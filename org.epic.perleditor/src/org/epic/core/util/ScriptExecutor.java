@@ -13,6 +13,8 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 
 
 /**
@@ -22,9 +24,15 @@ import java.util.List;
  */
 public abstract class ScriptExecutor
 {
+    //~ Static fields/initializers
+
+    private static final Timer watchdog =
+        new Timer("EPIC:ScriptExecutor:watchdog", true);
+
     //~ Instance fields
 
     private ILog log;
+    private long timeout;
 
     //~ Constructors
 
@@ -66,18 +74,59 @@ public abstract class ScriptExecutor
      * @return execution results
      */
     public final ProcessOutput run(String text, List<String> additionalArgs) throws CoreException
+    {
+        return run(text, additionalArgs, null);
+    }
+
+    /**
+     * Runs the script with the given stdin and additional command line parameters, passing the
+     * lines of its stdout to the given listener as they arrive.
+     *
+     * @param text text passed to script over stdin
+     * @param additionalArgs additional command line arguments passed to the script during execution
+     * @param stdoutListener receives the lines of stdout, or null to collect them in the returned
+     *        execution results
+     *
+     * @return execution results; stdout is empty if it was passed to the listener
+     *
+     * @see ILineListener
+     */
+    public final ProcessOutput run(String text, List<String> additionalArgs,
+        ILineListener stdoutListener) throws CoreException
     {
         File workingDir = getWorkingDir();
 
-        PerlExecutor executor = new PerlExecutor(
+        final PerlExecutor executor = new PerlExecutor(
             getCharsetName(), ignoresBrokenPipe());
+
+        TimerTask timeoutTask = null;
+        if (timeout > 0)
+        {
+            timeoutTask = new TimerTask() {
+                public void run() { executor.dispose(); } };
+            watchdog.schedule(timeoutTask, timeout);
+        }
         try
         {
             List<String> cmdArgs = new ArrayList<String>(1);
             cmdArgs.add(getExecutable());
             cmdArgs.addAll(getCommandLineOpts(additionalArgs));
 
-            ProcessOutput output = executor.execute(workingDir, cmdArgs, text);
+            ProcessOutput output;
+            try
+            {
+                output = executor.execute(workingDir, cmdArgs, text, stdoutListener);
+            }
+            catch (IllegalStateException e)
+            {
+                // the watchdog disposed the executor before the script
+                // was started (e.g. a tiny timeout left by a failed attempt)
+                throw new CoreException(StatusFactory.createWarning(
+                    PerlEditorPlugin.getPluginId(),
+                    "Execution of a Perl process was aborted: timed out after " +
+                    timeout + " ms",
+                    e));
+            }
 
             /*
              * there are times that stderr and stdout are both set, even though an error has not
@@ -96,9 +145,32 @@ public abstract class ScriptExecutor
         }
         finally
         {
+            if (timeoutTask != null) timeoutTask.cancel();
             executor.dispose();
         }
     }
+
+    /**
+     * Sets the maximum time to wait for the script to finish. When exceeded,
+     * the script's process is destroyed and {@link #run} throws
+     * a CoreException.
+     *
+     * @param timeout maximum number of milliseconds, or 0 (the default)
+     *        to wait indefinitely
+     */
+    public void setTimeout(long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return the maximum number of milliseconds to wait for the script
+     *         to finish, or 0 to wait indefinitely
+     */
+    protected long getTimeout()
+    {
+        return timeout;
+    }
     
     /**
      * @return name of a supported
@@ -0,0 +1,194 @@
+package org.epic.core.util;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.concurrent.*;
+
+/**
+ * Asynchronously reads the output of external processes on a shared pool
+ * of daemon threads, so that starting a process does not involve creating
+ * new threads to consume its stdout and stderr. The output is either
+ * collected as bytes and decoded only once the end of the stream has been
+ * reached, or decoded incrementally and passed to an {@link ILineListener}
+ * line by line.
+ * <p>
+ * Read requests are never queued: a process whose output is not consumed
+ * may block forever on a full pipe. When all pooled threads are busy,
+ * a temporary thread is started to serve the request instead.
+ * </p>
+ * StreamPump is a singleton, use StreamPump.instance() to obtain
+ * an instance of it.
+ */
+public class StreamPump
+{
+    private static final int MAX_POOLED_THREADS = 8;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final int BUF_SIZE = 8192;
+
+    private static StreamPump instance;
+
+    private final ThreadFactory threadFactory;
+    private final ThreadPoolExecutor pool;
+
+    private StreamPump()
+    {
+        threadFactory = new ThreadFactory() {
+            private int count;
+
+            public synchronized Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "EPIC:StreamPump-" + (++count));
+                t.setDaemon(true);
+                return t;
+            } };
+
+        pool = new ThreadPoolExecutor(
+            0,
+            MAX_POOLED_THREADS,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(),
+            threadFactory,
+            new RejectedExecutionHandler() {
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+                {
+                    threadFactory.newThread(r).start();
+                } });
+    }
+
+    /**
+     * @return the StreamPump singleton
+     */
+    public synchronized static StreamPump instance()
+    {
+        if (instance == null) instance = new StreamPump();
+        return instance;
+    }
+
+    /**
+     * Terminates the pooled threads once they become idle.
+     * Invoked when the plug-in is stopped.
+     */
+    public synchronized static void shutdown()
+    {
+        if (instance != null) instance.pool.shutdown();
+        instance = null;
+    }
+
+    /**
+     * Starts reading from the given stream until its end.
+     *
+     * @param in        stream to be read, typically the stdout or stderr
+     *                  of a process; it is not closed by this method
+     * @param charset   charset in which the stream's content is encoded
+     * @return the content which has been read; if reading fails,
+     *         the future's ExecutionException is caused by an IOException
+     */
+    public Future<String> read(final InputStream in, final Charset charset)
+    {
+        FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+            public String call() throws IOException
+            {
+                return readFully(in, charset);
+            } });
+
+        pool.execute(task);
+        return task;
+    }
+
+    /**
+     * Starts reading from the given stream until its end, passing each
+     * line to the given listener as soon as it has been decoded.
+     * <p>
+     * If the listener throws a RuntimeException, the remaining content of
+     * the stream is discarded, so that the writing process can terminate,
+     * and the exception is rethrown by {@link #getResult} afterwards.
+     * </p>
+     *
+     * @param in        stream to be read, typically the stdout of
+     *                  a process; it is not closed by this method
+     * @param charset   charset in which the stream's content is encoded
+     * @param listener  receives the lines which have been read
+     * @return a future which completes with null once the end of the stream
+     *         has been reached; if reading fails, its ExecutionException
+     *         is caused by an IOException
+     */
+    public Future<Void> readLines(
+        final InputStream in, final Charset charset, final ILineListener listener)
+    {
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            public Void call() throws IOException
+            {
+                readLines(new InputStreamReader(in, charset), listener);
+                return null;
+            } });
+
+        pool.execute(task);
+        return task;
+    }
+
+    /**
+     * Blocks until the reading started by {@link #read} or {@link #readLines}
+     * is finished.
+     *
+     * @return the content which has been read
+     * @exception java.lang.InterruptedException
+     *            if the current thread is interrupted while waiting
+     * @exception java.io.IOException
+     *            if an exception occurred during the reading
+     */
+    public static <T> T getResult(Future<T> result)
+        throws IOException, InterruptedException
+    {
+        try
+        {
+            return result.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            IOException ioe = new IOException(String.valueOf(cause));
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+
+    private static String readFully(InputStream in, Charset charset)
+        throws IOException
+    {
+        byte[] buf = new byte[BUF_SIZE];
+        int len = 0;
+        int bread;
+
+        while ((bread = in.read(buf, len, buf.length - len)) >= 0)
+        {
+            len += bread;
+            if (len == buf.length)
+            {
+                byte[] tmp = buf;
+                buf = new byte[buf.length * 2];
+                System.arraycopy(tmp, 0, buf, 0, len);
+            }
+        }
+        return new String(buf, 0, len, charset);
+    }
+
+    private static void readLines(Reader r, ILineListener listener)
+        throws IOException
+    {
+        BufferedReader in = new BufferedReader(r, BUF_SIZE);
+        RuntimeException listenerError = null;
+        String line;
+
+        while ((line = in.readLine()) != null)
+        {
+            if (listenerError != null) continue;
+            try { listener.lineRead(line); }
+            catch (RuntimeException e) { listenerError = e; }
+        }
+        if (listenerError != null) throw listenerError;
+    }
+}
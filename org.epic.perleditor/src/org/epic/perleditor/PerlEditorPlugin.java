@@ -18,9 +18,17 @@ import org.eclipse.team.core.Team;
 import org.eclipse.ui.IWorkbenchWindow;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.eclipse.ui.texteditor.IDocumentProvider;
+import org.epic.core.builders.DependencyIndex;
 import org.epic.core.util.PerlExecutor;
+import org.epic.core.util.StreamPump;
+import org.epic.perleditor.editors.EditorScheduler;
 import org.epic.perleditor.editors.PerlDocumentProvider;
+import org.epic.perleditor.editors.util.FormatterCache;
 import org.epic.perleditor.editors.util.PerlColorProvider;
+import org.epic.perleditor.editors.util.PerlCompileServer;
+import org.epic.perleditor.editors.util.PerlCriticServer;
+import org.epic.perleditor.editors.util.PerlTidyServer;
+import org.epic.perleditor.editors.util.ValidationCache;
 import org.epic.perleditor.preferences.*;
 import org.osgi.framework.BundleContext;
 
@@ -298,6 +306,14 @@ public class PerlEditorPlugin extends AbstractUIPlugin {
         throws Exception
     {
         colorProvider.dispose();
+        EditorScheduler.shutdown();
+        PerlCompileServer.shutdown();
+        PerlTidyServer.shutdown();
+        PerlCriticServer.shutdown();
+        ValidationCache.shutdown();
+        FormatterCache.shutdown();
+        DependencyIndex.shutdown();
+        StreamPump.shutdown();
         super.stop(context);
     }
 }
\ No newline at end of file
@@ -1,19 +1,27 @@
 package org.epic.perleditor.actions;
 
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
 import org.eclipse.jface.dialogs.MessageDialog;
-import org.eclipse.jface.text.BadLocationException;
-import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.*;
 import org.eclipse.jface.text.source.ISourceViewer;
 import org.eclipse.swt.graphics.Point;
+import org.epic.perleditor.editors.PartitionTypes;
 import org.epic.perleditor.editors.PerlEditor;
 import org.epic.perleditor.editors.PerlEditorActionIds;
+import org.epic.perleditor.editors.PerlPartitioner;
+import org.epic.perleditor.editors.util.LineDiff;
 import org.epic.perleditor.editors.util.SourceFormatter;
 import org.epic.perleditor.editors.util.SourceFormatterException;
 
 /**
  * Reformats the edited document according to the style
- * specified by the Source Formatter preferences. 
+ * specified by the Source Formatter preferences. If text is selected,
+ * only the top-level statements which enclose the selection are
+ * reformatted. Only the lines changed by the formatter are replaced
+ * in the document, so that markers, folds and breakpoints on other
+ * lines are kept and only the changed lines need to be re-parsed.
  */
 public class FormatSourceAction extends PerlEditorAction
 {
@@ -28,23 +36,31 @@ public class FormatSourceAction extends PerlEditorAction
 
     protected void doRun()
     {
-        IDocument doc = getEditor().getDocumentProvider().getDocument(
-            getEditor().getEditorInput());
-
+        IDocument doc = getDocument();
         if (doc.getLength() == 0) return;
 
+        ISourceViewer viewer = getEditor().getViewer();
+        Point sel = viewer.getSelectedRange();
+        if (sel != null && sel.y > 0) formatSelection(viewer, doc, sel);
+        else formatDocument(viewer, doc);
+    }
+
+    private void formatDocument(ISourceViewer viewer, IDocument doc)
+    {
         StringBuffer text = new StringBuffer(doc.get());
         String anchor = getAnchorString(text);
 
-        ISourceViewer viewer = getEditor().getViewer();
         int anchorOffset = getAnchorOffset(viewer, doc);
         // insert an anchor comment at the end of the line with carret
         // we'll find it back to reposition the caret after reformatting
         text.insert(anchorOffset, anchor);
 
-        String formattedText = runFormatter(text);
+        String formattedText = runFormatter(text.toString());
 
-        if (formattedText == null ||            formattedText.equals(text.toString()) ||            formattedText.equals(anchor))        {
+        if (formattedText == null ||
+            formattedText.equals(text.toString()) ||
+            formattedText.equals(anchor))
+        {
             return;
         }
         
@@ -67,16 +83,59 @@ public class FormatSourceAction extends PerlEditorAction
         else
             anchorOffset = 0;
         
-        doc.set(newText.toString());
+        replace(doc, new Region(0, doc.getLength()), newText.toString());
         viewer.setSelectedRange(anchorOffset, 0);
         viewer.revealRange(anchorOffset, 0);
     }
 
+    private void formatSelection(ISourceViewer viewer, IDocument doc, Point sel)
+    {
+        IRegion region = getTopLevelRegion(doc, new Region(sel.x, sel.y));
+        if (region == null) return;
+
+        try
+        {
+            String formattedText = runFormatter(
+                doc.get(region.getOffset(), region.getLength()));
+            if (formattedText == null) return;
+
+            replace(doc, region, formattedText);
+            viewer.setSelectedRange(region.getOffset(), formattedText.length());
+            viewer.revealRange(region.getOffset(), formattedText.length());
+        }
+        catch (BadLocationException e)
+        {
+            handleBadLocation(e);
+        }
+    }
+
     protected String getPerlEditorActionId()
     {
         return PerlEditorActionIds.FORMAT_SOURCE;
     }
     
+    private IDocument getDocument()
+    {
+        return getEditor().getDocumentProvider().getDocument(
+            getEditor().getEditorInput());
+    }
+
+    /**
+     * @return the region consisting of the top-level statements which
+     *         enclose the given region, or null if there are none
+     *         (e.g. after __END__)
+     */
+    private IRegion getTopLevelRegion(IDocument doc, IRegion region)
+    {
+        PerlPartitioner partitioner =
+            (PerlPartitioner) PartitionTypes.getPerlPartitioner(doc);
+        if (partitioner == null) return null;
+
+        IRegion ret = partitioner.getTopLevelRegion(
+            region.getOffset(), region.getLength());
+        return ret != null && ret.getLength() > 0 ? ret : null;
+    }
+
     private int getAnchorOffset(ISourceViewer viewer, IDocument doc)
     {
         try
@@ -108,6 +167,21 @@ public class FormatSourceAction extends PerlEditorAction
         return buf.toString();
     }
     
+    /**
+     * BadLocationExceptions should never occur in FormatSourceAction,
+     * the regions examined and replaced are within the document.
+     */
+    private void handleBadLocation(BadLocationException e)
+    {
+        log(new Status(
+            IStatus.ERROR,
+            getPluginId(),
+            IStatus.OK,
+            "Unexpected exception; report it as a bug " +
+            "in plug-in " + getPluginId(),
+            e));
+    }
+
     private void handleCoreException(CoreException e)
     {
         log(e.getStatus());
@@ -117,11 +191,11 @@ public class FormatSourceAction extends PerlEditorAction
             e.getMessage());
     }
     
-    private String runFormatter(StringBuffer text)
+    private String runFormatter(String text)
     {
         try
         {
-            return SourceFormatter.format(text.toString(), getLog());
+            return SourceFormatter.format(text, getLog());
         }
         catch (SourceFormatterException e)
         {
@@ -146,4 +220,30 @@ public class FormatSourceAction extends PerlEditorAction
             return null;
         }
     }
+
+    /**
+     * Replaces the text of the given region with the given text,
+     * changing only those lines which differ, as a single undoable change.
+     */
+    private void replace(IDocument doc, IRegion region, String text)
+    {
+        ISourceViewer viewer = getEditor().getViewer();
+        IRewriteTarget target = viewer instanceof ITextViewerExtension
+            ? ((ITextViewerExtension) viewer).getRewriteTarget()
+            : null;
+
+        if (target != null) target.beginCompoundChange();
+        try
+        {
+            LineDiff.apply(doc, region.getOffset(), region.getLength(), text);
+        }
+        catch (BadLocationException e)
+        {
+            handleBadLocation(e);
+        }
+        finally
+        {
+            if (target != null) target.endCompoundChange();
+        }
+    }
 }
@@ -0,0 +1,256 @@
+package org.epic.perleditor.editors;
+
+import java.util.*;
+
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.epic.perleditor.PerlEditorPlugin;
+
+/**
+ * Workspace-wide scheduler shared by all Perl editors. It replaces
+ * the threads which used to be started for each opened editor:
+ * <ul>
+ * <li>a single timer thread dispatches delayed notifications
+ *     on behalf of all {@link IdleTimer}s;</li>
+ * <li>a bounded number of worker threads runs syntax validations
+ *     on behalf of all {@link PerlSyntaxValidationTask}s, so that
+ *     opening many editors does not result in as many concurrent
+ *     perl processes.</li>
+ * </ul>
+ * Validation requests are coalesced: a task which is already waiting
+ * for a worker is not queued again, and a task is never run by two
+ * workers at once. Urgent tasks (those submitted on behalf of the
+ * visible editor) are run before the others. Worker threads terminate
+ * when there is nothing left to do, so that no threads are kept while
+ * the editors are idle.
+ */
+public class EditorScheduler
+{
+    /**
+     * How long an idle worker thread waits for new tasks before it
+     * terminates (millis)
+     */
+    private static final long WORKER_KEEP_ALIVE = 5000;
+
+    private static EditorScheduler instance;
+
+    private final Object lock = new Object();
+    private final Timer timer;
+    private final int maxWorkers;
+    private final LinkedList<PerlSyntaxValidationTask> urgentTasks;
+    private final LinkedList<PerlSyntaxValidationTask> tasks;
+    private final Set<PerlSyntaxValidationTask> runningTasks;
+
+    /**
+     * Maps running tasks which were submitted again to their urgency
+     */
+    private final Map<PerlSyntaxValidationTask, Boolean> resubmittedTasks;
+    private int workers;
+    private int idleWorkers;
+    private boolean disposed;
+
+    private EditorScheduler()
+    {
+        timer = new Timer("EPIC:EditorScheduler", true);
+        maxWorkers = Math.max(1, Math.min(
+            2, Runtime.getRuntime().availableProcessors()));
+        urgentTasks = new LinkedList<PerlSyntaxValidationTask>();
+        tasks = new LinkedList<PerlSyntaxValidationTask>();
+        runningTasks = new HashSet<PerlSyntaxValidationTask>();
+        resubmittedTasks = new HashMap<PerlSyntaxValidationTask, Boolean>();
+    }
+
+    /**
+     * @return the EditorScheduler singleton
+     */
+    public synchronized static EditorScheduler instance()
+    {
+        if (instance == null) instance = new EditorScheduler();
+        return instance;
+    }
+
+    /**
+     * Stops the timer thread and the worker threads, if any were started.
+     * Pending tasks are discarded. Invoked when the plug-in is stopped.
+     */
+    public synchronized static void shutdown()
+    {
+        if (instance != null) instance.dispose();
+        instance = null;
+    }
+
+    /**
+     * Schedules the given TimerTask on the shared timer thread.
+     * The task must return quickly; in particular, it must not
+     * wait for the Display thread.
+     */
+    void schedule(TimerTask task, long delay)
+    {
+        synchronized (lock)
+        {
+            if (disposed) return;
+            timer.schedule(task, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * Queues the given task for execution by a worker thread,
+     * unless it is already queued. If the task is currently running,
+     * it is queued again as soon as it has finished.
+     *
+     * @param urgent    true if the task should be run before non-urgent
+     *                  tasks; an already queued task is promoted
+     */
+    void submit(PerlSyntaxValidationTask task, boolean urgent)
+    {
+        synchronized (lock)
+        {
+            if (disposed) return;
+
+            if (runningTasks.contains(task))
+            {
+                if (urgent || !resubmittedTasks.containsKey(task))
+                    resubmittedTasks.put(task, Boolean.valueOf(urgent));
+                return;
+            }
+            if (urgentTasks.contains(task)) return;
+            if (tasks.contains(task))
+            {
+                if (!urgent) return;
+                tasks.remove(task);
+            }
+            enqueue(task, urgent);
+        }
+    }
+
+    /**
+     * Removes the given task from the queue, if it is waiting there.
+     */
+    void cancel(PerlSyntaxValidationTask task)
+    {
+        synchronized (lock)
+        {
+            urgentTasks.remove(task);
+            tasks.remove(task);
+            resubmittedTasks.remove(task);
+        }
+    }
+
+    private void dispose()
+    {
+        synchronized (lock)
+        {
+            disposed = true;
+            timer.cancel();
+            urgentTasks.clear();
+            tasks.clear();
+            resubmittedTasks.clear();
+            lock.notifyAll();
+        }
+    }
+
+    private void enqueue(PerlSyntaxValidationTask task, boolean urgent)
+    {
+        if (urgent) urgentTasks.addLast(task);
+        else tasks.addLast(task);
+
+        if (idleWorkers > 0) lock.notify();
+        else if (workers < maxWorkers) startWorker();
+    }
+
+    private void finished(PerlSyntaxValidationTask task)
+    {
+        synchronized (lock)
+        {
+            runningTasks.remove(task);
+            Boolean urgent = resubmittedTasks.remove(task);
+            if (urgent != null && !disposed) enqueue(task, urgent.booleanValue());
+        }
+    }
+
+    /**
+     * @return the next task to be run, or null if the calling worker
+     *         should terminate
+     */
+    private PerlSyntaxValidationTask nextTask()
+    {
+        synchronized (lock)
+        {
+            long deadline = System.currentTimeMillis() + WORKER_KEEP_ALIVE;
+            long now;
+
+            while (!disposed && urgentTasks.isEmpty() && tasks.isEmpty() &&
+                   (now = System.currentTimeMillis()) < deadline)
+            {
+                idleWorkers++;
+                try { lock.wait(deadline - now); }
+                catch (InterruptedException e) { break; }
+                finally { idleWorkers--; }
+            }
+
+            PerlSyntaxValidationTask task = null;
+            if (!disposed)
+            {
+                if (!urgentTasks.isEmpty()) task = urgentTasks.removeFirst();
+                else if (!tasks.isEmpty()) task = tasks.removeFirst();
+            }
+
+            if (task == null) workers--;
+            else runningTasks.add(task);
+            return task;
+        }
+    }
+
+    /**
+     * Invoked when a worker thread is terminated by an Error,
+     * so that a replacement can be started for further tasks.
+     */
+    private void workerDied()
+    {
+        synchronized (lock)
+        {
+            workers--;
+            if (!disposed && (!urgentTasks.isEmpty() || !tasks.isEmpty()))
+                startWorker();
+        }
+    }
+
+    private static void logException(RuntimeException e)
+    {
+        PerlEditorPlugin.getDefault().getLog().log(
+            new Status(IStatus.ERROR,
+                PerlEditorPlugin.getPluginId(),
+                IStatus.OK,
+                "An unexpected exception occurred while validating syntax",
+                e));
+    }
+
+    private void startWorker()
+    {
+        Thread t = new Thread("EPIC:EditorScheduler:worker") {
+            public void run()
+            {
+                boolean terminated = false;
+                try
+                {
+                    PerlSyntaxValidationTask task;
+                    while ((task = nextTask()) != null)
+                    {
+                        try { task.run(); }
+                        catch (RuntimeException e) { logException(e); }
+                        finally { finished(task); }
+                    }
+                    terminated = true; // nextTask has accounted for us
+                }
+                finally
+                {
+                    if (!terminated) workerDied();
+                }
+            } };
+
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        workers++;
+        t.start();
+    }
+}
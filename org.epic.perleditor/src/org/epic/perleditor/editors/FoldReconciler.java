@@ -7,35 +7,64 @@ import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.Position;
 import org.eclipse.jface.text.source.Annotation;
 import org.eclipse.jface.text.source.IAnnotationModel;
+import org.eclipse.jface.text.source.IAnnotationModelExtension;
 import org.eclipse.jface.text.source.projection.ProjectionAnnotation;
 import org.eclipse.jface.text.source.projection.ProjectionAnnotationModel;
 import org.epic.core.model.IMultilineElement;
+import org.epic.core.model.PODComment;
 import org.epic.core.model.SourceFile;
+import org.epic.core.model.Subroutine;
+import org.epic.core.parser.CurlyToken;
+import org.epic.core.parser.PerlToken;
+import org.epic.core.parser.PerlTokenTypes;
 import org.epic.core.util.StatusFactory;
 import org.epic.perleditor.PerlEditorPlugin;
 import org.epic.perleditor.preferences.PreferenceConstants;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 
 /**
  *Responsible for keeping folds in sync with a source file's text within a PerlEditor. This class
  *relies on {@link org.epic.core.model.SourceFile} to obtain positions of foldable
- *{@link org.epic.core.model.SourceElement}s.
+ *{@link org.epic.core.model.SourceElement}s. Heredocs, BEGIN (END, ...) blocks and anonymous
+ *subroutines are folded based on the partitioner's tokens.
+ *<p>
+ *Existing fold annotations are matched with the required folds on each reconcile, so that
+ *only folds which actually appear, disappear or change their extent result in changes of the
+ *annotation model. Subroutine folds are matched by the subroutine's qualified name, other folds
+ *by their start offsets (the annotation model keeps these up to date while the document is
+ *edited, so that folds below an edited line are still matched). The extent of a matched fold
+ *is updated in place, which preserves its collapsed state.
+ *</p>
  *
  *@author jploski
  */
 public class FoldReconciler
 {
+    //~ Static fields/initializers
+
+    /** Minimal number of lines of a BEGIN block or anonymous subroutine to be folded */
+    private static final int MIN_BLOCK_LINES = 5;
+
+    private static final Set<String> BLOCK_NAMES = new HashSet<String>(Arrays.asList(
+        new String[] { "BEGIN", "END", "INIT", "CHECK", "UNITCHECK" }));
+
     //~ Instance fields
 
     private final PerlEditor editor;
 
-    private final Set<Tuple> folds; // of Annotation instances
+    private List<Fold> folds; // currently present in the annotation model
 
-    private boolean initialized = false;
+    private volatile boolean initialized = false;
 
     //~ Constructors
 
@@ -45,14 +74,14 @@ public class FoldReconciler
     public FoldReconciler(PerlEditor editor)
     {
         this.editor = editor;
-        this.folds = new HashSet<Tuple>();
+        this.folds = new ArrayList<Fold>();
     }
 
     //~ Methods
 
     /**
      * Updates folds based on the current state of the editor's SourceFile. An invocation results in
-     * removing/adding zero or more fold annotations to the document's annotation model.
+     * removing/adding/moving zero or more fold annotations in the document's annotation model.
      *
      * @see PerlEditor#getSourceFile()
      * @see org.eclipse.jface.text.source.projection.ProjectionAnnotationModel
@@ -66,17 +95,19 @@ public class FoldReconciler
             IAnnotationModel annotations = getAnnotations();
             if (annotations == null) { return; }
 
-            Set<Tuple> tuples = computeFoldPositions();
-
-            removeFolds(tuples);
-            addFolds(tuples);
+            SourceFile source = getSourceFile();
+            PerlPartitioner partitioner =
+                (PerlPartitioner) PartitionTypes.getPerlPartitioner(source.getDocument());
+            if (partitioner == null) { return; }
 
-            /*
-             * this should probably be handled via some kind of initialization that occurs in the
-             * constructor to set up the initial folds. due to the way the editor calls this method
-             * after the class has been instanciated, this achieves the desired behavior
-             */
-            initialized = true;
+            List<Fold> required;
+            synchronized (partitioner.getTokensLock())
+            {
+                required = computeFoldPositions(
+                    source.getDocument(), source.getPODs(), source.getSubs(),
+                    partitioner.getTokens());
+            }
+            applyFolds(required);
         }
         catch (BadLocationException e)
         {
@@ -87,64 +118,152 @@ public class FoldReconciler
         }
     }
 
-    protected ILog getLog()
+    /**
+     * Computes folds for the given parsed snapshot of the editor's SourceFile. Unlike
+     * {@link #reconcile()}, this method does not access the annotation model, so it may be
+     * called outside of the Display thread. The result should be passed to
+     * {@link #applyFolds} on the Display thread, provided that the snapshot is still current.
+     *
+     * @return the computed folds, or null if folding is disabled
+     * @throws BadLocationException if the snapshot is inconsistent (should never occur)
+     */
+    List<Fold> computeFolds(SourceFile.Snapshot snapshot) throws BadLocationException
     {
-        return PerlEditorPlugin.getDefault().getLog();
-    }
+        if (! isFoldingEnabled()) { return null; }
 
-    protected SourceFile getSourceFile()
-    {
-        return editor.getSourceFile();
+        return computeFoldPositions(
+            snapshot.getDocument(), snapshot.getPODs(), snapshot.getSubs(),
+            snapshot.getTokens());
     }
 
     /**
-     * Adds the specified set of new folds to the document's annotation model (and the <code>
-     * folds</code> instance variable).
-     *
-     * @param tuples <code>Tuple</code> instances representing new folds
+     * Updates the annotation model with folds obtained from {@link #computeFolds}. Folds which
+     * are no longer required are removed and new folds are added in a single batch; the positions
+     * of existing folds whose extent has changed are modified in place.
      */
-    private void addFolds(Set<Tuple> tuples)
+    void applyFolds(List<Fold> required)
     {
-        for (Iterator<Tuple> iter = tuples.iterator(); iter.hasNext();)
+        IAnnotationModel model = getAnnotations();
+        if (required == null || model == null) { return; }
+
+        IAnnotationModelExtension modelExt = (IAnnotationModelExtension) model;
+        Map<String, Fold> existing = new HashMap<String, Fold>();
+        List<Annotation> deletions = new ArrayList<Annotation>();
+
+        for (Iterator<Fold> iter = folds.iterator(); iter.hasNext();)
         {
-            Tuple t = iter.next();
-            if (! folds.contains(t))
+            Fold f = iter.next();
+            Position p = model.getPosition(f.annotation);
+
+            if (p == null) { continue; } // removed by someone else
+
+            String key = f.getKey(p.getOffset());
+            if (p.isDeleted() || existing.containsKey(key))
+            {
+                deletions.add(f.annotation);
+            }
+            else
             {
-                getAnnotations().addAnnotation(t.annotation, t.position);
-                folds.add(t);
+                existing.put(key, f);
             }
         }
+
+        List<Fold> current = new ArrayList<Fold>(required.size());
+        Map<Annotation, Position> additions = new HashMap<Annotation, Position>();
+
+        for (Iterator<Fold> iter = required.iterator(); iter.hasNext();)
+        {
+            Fold r = iter.next();
+            Fold f = existing.remove(r.getKey(r.offset));
+
+            if (f == null)
+            {
+                r.annotation = new ProjectionAnnotation(r.collapse);
+                additions.put(r.annotation, new Position(r.offset, r.length));
+                current.add(r);
+            }
+            else
+            {
+                Position p = model.getPosition(f.annotation);
+                if (p.getOffset() != r.offset || p.getLength() != r.length)
+                {
+                    modelExt.modifyAnnotationPosition(
+                        f.annotation, new Position(r.offset, r.length));
+                }
+                current.add(f);
+            }
+        }
+
+        for (Iterator<Fold> iter = existing.values().iterator(); iter.hasNext();)
+        {
+            deletions.add(iter.next().annotation);
+        }
+
+        if (! deletions.isEmpty() || ! additions.isEmpty())
+        {
+            modelExt.replaceAnnotations(
+                deletions.toArray(new Annotation[deletions.size()]), additions);
+        }
+        folds = current;
+
+        /*
+         * this should probably be handled via some kind of initialization that occurs in the
+         * constructor to set up the initial folds. due to the way the editor calls this method
+         * after the class has been instanciated, this achieves the desired behavior
+         */
+        initialized = true;
+    }
+
+    protected ILog getLog()
+    {
+        return PerlEditorPlugin.getDefault().getLog();
+    }
+
+    protected SourceFile getSourceFile()
+    {
+        return editor.getSourceFile();
     }
 
     /**
-     * Computes fold positions for <code>SourceElement</code>s
+     * Computes fold positions for <code>SourceElement</code>s and token-based folds
+     *
+     * @param doc the edited document, or a copy of it which matches the elements and tokens
      */
-    private Set<Tuple> computeFoldPositions() throws BadLocationException
+    private List<Fold> computeFoldPositions(
+        IDocument doc, Iterator<PODComment> pods, Iterator<Subroutine> subs,
+        List<PerlToken> tokens)
+        throws BadLocationException
     {
-        HashSet<Tuple> tuples = new HashSet<Tuple>();
+        List<Fold> folds = new ArrayList<Fold>();
 
-        computeFoldPositions(tuples, getSourceFile().getPODs(),
+        computeFoldPositions(doc, folds, pods, Fold.POD,
             initialized ? false : isFoldPerldoc());
 
-        computeFoldPositions(tuples, getSourceFile().getSubs(),
+        computeFoldPositions(doc, folds, subs, Fold.SUB,
             initialized ? false : isFoldSubroutines());
 
+        computeTokenFoldPositions(doc, folds, tokens);
+
         // TODO: add new fold position computations here
 
-        return tuples;
+        return folds;
     }
 
     /**
      * Computes fold elements for a given collection of <code>SourceElement</code>s
      *
-     * @param tuples object <code>Tuple</code>s representing folds will be added to
+     * @param doc the document in which the elements were found
+     * @param folds <code>Fold</code>s representing folds will be added to
      * @param elements iterator for a collection of <code>SourceElement</code>s
+     * @param kind kind of the created folds
      * @param collapse true if fold is initially collapsed, false otherwise
      */
-    private void computeFoldPositions(Set<Tuple> tuples, Iterator<? extends IMultilineElement> elements, boolean collapse)
+    private void computeFoldPositions(
+        IDocument doc, List<Fold> folds, Iterator<? extends IMultilineElement> elements,
+        int kind, boolean collapse)
         throws BadLocationException
     {
-        IDocument doc = getSourceFile().getDocument();
+        Map<String, Integer> names = new HashMap<String, Integer>();
 
         while (elements.hasNext())
         {
@@ -155,17 +274,120 @@ public class FoldReconciler
                 continue;
             }
 
-            int offset = doc.getLineOffset(e.getStartLine());
-            int length =
-                doc.getLineOffset(e.getEndLine()) - offset + doc.getLineLength(e.getEndLine());
+            String name = null;
+            if (e instanceof Subroutine)
+            {
+                // qualified name, with a counter to tell apart redefinitions
+                Subroutine sub = (Subroutine) e;
+                name = sub.getParent().getName() + "::" + sub.getName();
+                Integer count = names.get(name);
+                names.put(name, new Integer(count == null ? 1 : count.intValue() + 1));
+                if (count != null) name = name + "#" + count;
+            }
+            addFold(doc, folds, kind, name, e.getStartLine(), e.getEndLine(), collapse);
+        }
+    }
+
+    /**
+     * Computes folds for multi-line heredocs, and for BEGIN (END, ...) blocks and anonymous
+     * subroutines which span at least {@link #MIN_BLOCK_LINES} lines.
+     *
+     * @param doc the document from which the tokens were obtained
+     * @param folds <code>Fold</code>s representing folds will be added to
+     * @param tokens tokens of the edited document
+     */
+    private void computeTokenFoldPositions(IDocument doc, List<Fold> folds, List<PerlToken> tokens)
+        throws BadLocationException
+    {
+        LinkedList<Integer> heredocLines = new LinkedList<Integer>(); // awaiting their bodies
+        int lastHeredocLine = -1;
+        LinkedList<int[]> blocks = new LinkedList<int[]>(); // open { curly level, start line }
+        int blockLine = -1; // of a keyword which may be followed by a foldable block
+
+        for (Iterator<PerlToken> iter = tokens.iterator(); iter.hasNext();)
+        {
+            PerlToken t = iter.next();
+            int line = t.getLine() - 1;
+
+            switch (t.getType())
+            {
+            case PerlTokenTypes.WS:
+            case PerlTokenTypes.COMMENT:
+                continue;
+            case PerlTokenTypes.OPEN_HEREDOC:
+                heredocLines.add(new Integer(line));
+                break;
+            case PerlTokenTypes.CLOSE_HEREDOC:
+                // the token spans the heredoc's body and terminator
+                if (! heredocLines.isEmpty())
+                {
+                    int start = Math.max(
+                        heredocLines.removeFirst().intValue(), lastHeredocLine + 1);
+                    int end = doc.getLineOfOffset(t.getOffset() + t.getLength() - 1);
+                    addFold(doc, folds, Fold.HEREDOC, null, start, end, false);
+                    lastHeredocLine = end;
+                }
+                break;
+            case PerlTokenTypes.KEYWORD1:
+                if (BLOCK_NAMES.contains(t.getText()))
+                {
+                    blockLine = line;
+                    continue;
+                }
+                break;
+            case PerlTokenTypes.KEYWORD_SUB:
+                // a named subroutine is folded based on the SourceFile;
+                // its name will reset blockLine
+                blockLine = line;
+                continue;
+            case PerlTokenTypes.OPEN_CURLY:
+                if (blockLine != -1 && t instanceof CurlyToken)
+                {
+                    blocks.addFirst(new int[] { ((CurlyToken) t).getLevel(), blockLine });
+                }
+                break;
+            case PerlTokenTypes.CLOSE_CURLY:
+                if (t instanceof CurlyToken)
+                {
+                    // blocks left open at deeper levels end here, too
+                    int level = ((CurlyToken) t).getLevel();
+                    while (! blocks.isEmpty() && blocks.getFirst()[0] > level)
+                    {
+                        blocks.removeFirst();
+                    }
+                    if (! blocks.isEmpty() && blocks.getFirst()[0] == level)
+                    {
+                        int start = blocks.removeFirst()[1];
+                        if (line - start + 1 >= MIN_BLOCK_LINES)
+                        {
+                            addFold(doc, folds, Fold.BLOCK, null, start, line, false);
+                        }
+                    }
+                }
+                break;
+            default:
+            }
+            blockLine = -1;
+        }
+    }
 
-            /*
-             * store the position and annotation - the position is needed to create the fold, while
-             * the annotation is needed to remove it
-             */
-            Tuple t = new Tuple(new Position(offset, length), new ProjectionAnnotation(collapse));
-            tuples.add(t);
+    /**
+     * Adds a fold spanning the given lines of the document, unless they are the same line.
+     */
+    private void addFold(
+        IDocument doc, List<Fold> folds, int kind, String name, int startLine, int endLine,
+        boolean collapse)
+        throws BadLocationException
+    {
+        if (startLine >= endLine)
+        {
+            return;
         }
+
+        int offset = doc.getLineOffset(startLine);
+        int length = doc.getLineOffset(endLine) - offset + doc.getLineLength(endLine);
+
+        folds.add(new Fold(kind, name, offset, length, collapse));
     }
 
     /**
@@ -197,84 +419,44 @@ public class FoldReconciler
         return getPreference(PreferenceConstants.SUBROUTINE_FOLDING);
     }
 
-    /**
-     * Removes no longer required folds from the document's annotation model (and the <code>
-     * folds</code> instance variable). Removes positions of existing required folds from the
-     * argument set.
-     *
-     * @param toRemove the set of Tuple instances representing required positions of folds according
-     *                 to the current SourceFile of the editor; this set is updated by the method
-     */
-    private void removeFolds(Set<Tuple> toRemove)
-    {
-        for (Iterator<Tuple> iter = folds.iterator(); iter.hasNext();)
-        {
-            Tuple t = iter.next();
-            Position p = getAnnotations().getPosition(t.annotation);
-
-            if ((p != null) && (p.isDeleted() || ! toRemove.contains(t)))
-            {
-                getAnnotations().removeAnnotation(t.annotation);
-                iter.remove();
-            }
-            else
-            {
-                // filter out any tuple instances that already exist
-                toRemove.remove(t);
-            }
-        }
-    }
-
     //~ Inner Classes
 
     /**
      *Fold data container
      */
-    private class Tuple
+    static class Fold
     {
+        static final int POD = 0;
+        static final int SUB = 1;
+        static final int HEREDOC = 2;
+        static final int BLOCK = 3;
+
+        final int kind;
+        final String name;
+        final int offset;
+        final int length;
+        final boolean collapse;
+
+        /** set once the fold has been added to the annotation model */
         Annotation annotation;
-        Position position;
 
-        Tuple(Position p, Annotation a)
+        Fold(int kind, String name, int offset, int length, boolean collapse)
         {
-            this.position = p;
-            this.annotation = a;
+            this.kind = kind;
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.collapse = collapse;
         }
 
-        /*
-         * @see java.lang.Object#equals(java.lang.Object)
+        /**
+         * @param offset current start offset of the fold
+         * @return the key by which the fold is matched with folds computed
+         *         on subsequent reconciles
          */
-        public boolean equals(Object obj)
+        String getKey(int offset)
         {
-            if (this == obj) { return true; }
-
-            if (obj == null) { return false; }
-
-            if (getClass() != obj.getClass()) { return false; }
-
-            final Tuple other = (Tuple) obj;
-            if (position == null)
-            {
-                if (other.position != null) { return false; }
-            }
-            else if (! position.equals(other.position))
-            {
-                return false;
-            }
-
-            return true;
-        }
-
-        /*
-         * @see java.lang.Object#hashCode()
-         */
-        public int hashCode()
-        {
-            final int PRIME = 31;
-            int result = 1;
-            result = (PRIME * result) + ((position == null) ? 0 : position.hashCode());
-            return result;
+            return name != null ? kind + ":" + name : kind + "@" + offset;
         }
     }
-
 }
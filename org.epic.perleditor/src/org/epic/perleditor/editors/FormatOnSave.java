@@ -0,0 +1,313 @@
+package org.epic.perleditor.editors;
+
+import java.util.Collections;
+
+import org.eclipse.core.runtime.*;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.action.IStatusLineManager;
+import org.eclipse.jface.text.*;
+import org.eclipse.jface.text.source.ISourceViewer;
+import org.eclipse.swt.widgets.Display;
+import org.epic.perleditor.PerlEditorPlugin;
+import org.epic.perleditor.editors.util.LineDiff;
+import org.epic.perleditor.editors.util.SourceFormatter;
+import org.epic.perleditor.editors.util.SourceFormatterException;
+
+/**
+ * Formats the code of a PerlEditor's document which has been changed
+ * since the previous save, after the document has been saved. Formatting
+ * is done by a background job, so that saving never waits for perltidy:
+ * <ol>
+ * <li>on save, the top-level statements which enclose the changed code
+ *     are copied from the document, along with its modification stamp;</li>
+ * <li>a job formats the copy, giving up after {@link #TIMEOUT};</li>
+ * <li>back on the Display thread, the lines changed by formatting are
+ *     replaced (see {@link LineDiff}) and the document is saved again,
+ *     provided that it has not been modified in the meantime. Otherwise
+ *     the result is discarded and the statements are reported to the editor
+ *     as changed, so that they are formatted after the next save.</li>
+ * </ol>
+ * A save which occurs while a job is running cancels the job; its statements
+ * are then formatted together with the code changed before the new save.
+ * The time taken by each format on save is shown in the status line.
+ * <p>
+ * Note that a save which changes the formatting writes the file twice:
+ * first with the unformatted contents, then with the formatted ones.
+ * This is accepted deliberately. The first write cannot wait for
+ * perltidy because saving must not block the Display thread, and it
+ * cannot be postponed because callers of doSave (e.g. closing the editor
+ * or the workbench) expect the contents to be on disk when it returns.
+ * As a consequence, builders, validation and file system watchers
+ * (e.g. of version control tools) see the unformatted contents for
+ * a moment; a PerlBuilder job which still validates them is cancelled
+ * by the build triggered by the second write. No second write occurs
+ * if formatting changes nothing or fails.
+ * </p>
+ */
+class FormatOnSave
+{
+    /**
+     * Maximum time to wait for perltidy (millis)
+     */
+    private static final long TIMEOUT = 10000;
+
+    private final PerlEditor editor;
+
+    /**
+     * Incremented whenever a job is scheduled or cancelled, so that
+     * results of cancelled jobs can be recognized as stale
+     */
+    private int requestCount;
+
+    /** The most recently scheduled job, or null */
+    private Job job;
+
+    /**
+     * Region of the statements being formatted by the job, kept up to date
+     * with changes of the document; null if there is no job
+     */
+    private Position pending;
+    private IDocument pendingDoc;
+
+    public FormatOnSave(PerlEditor editor)
+    {
+        this.editor = editor;
+    }
+
+    /**
+     * Cancels the scheduled job, if any, and discards its results.
+     */
+    public void dispose()
+    {
+        cancelJob();
+    }
+
+    /**
+     * Schedules a job which formats the top-level statements enclosing
+     * the given region of the editor's document. Invoked on the Display
+     * thread after the document has been saved.
+     *
+     * @param changedRegion region changed since the previous save
+     */
+    public void schedule(IRegion changedRegion)
+    {
+        final long startTime = System.currentTimeMillis();
+
+        IRegion previous = cancelJob();
+        if (previous != null) changedRegion = union(changedRegion, previous);
+
+        ISourceViewer viewer = editor.getViewer();
+        IDocument doc = viewer.getDocument();
+        PerlPartitioner partitioner =
+            (PerlPartitioner) PartitionTypes.getPerlPartitioner(doc);
+        if (partitioner == null) return;
+
+        IRegion region = partitioner.getTopLevelRegion(
+            changedRegion.getOffset(), changedRegion.getLength());
+        if (region == null || region.getLength() == 0) return;
+
+        final String text;
+        try
+        {
+            text = doc.get(region.getOffset(), region.getLength());
+            pending = new Position(region.getOffset(), region.getLength());
+            doc.addPosition(pending);
+            pendingDoc = doc;
+        }
+        catch (BadLocationException e)
+        {
+            logBadLocationException(e);
+            pending = null;
+            return;
+        }
+
+        final int request = requestCount;
+        final long stamp = getModificationStamp(doc);
+        final Display display = viewer.getTextWidget().getDisplay();
+
+        job = new Job("Format on Save")
+        {
+            protected IStatus run(IProgressMonitor monitor)
+            {
+                long formatStart = System.currentTimeMillis();
+                final String formattedText = format(text);
+                final long formatTime = System.currentTimeMillis() - formatStart;
+
+                if (monitor.isCanceled()) return Status.CANCEL_STATUS;
+
+                if (!display.isDisposed()) display.asyncExec(new Runnable() {
+                    public void run()
+                    {
+                        apply(request, stamp, formattedText, startTime, formatTime);
+                    } });
+                return Status.OK_STATUS;
+            }
+        };
+        job.setSystem(true);
+        job.schedule();
+    }
+
+    /**
+     * Replaces the formatted statements in the document and saves it,
+     * unless the job has been cancelled or the document has changed
+     * since the statements were copied.
+     *
+     * @param request
+     *            value of requestCount when the job was scheduled
+     * @param stamp
+     *            modification stamp of the document when the job was scheduled
+     * @param formattedText
+     *            formatted statements, or null if formatting failed
+     */
+    private void apply(
+        int request, long stamp, String formattedText, long startTime, long formatTime)
+    {
+        if (request != requestCount) return;
+
+        IDocument doc = pendingDoc;
+        Position position = pending;
+        doc.removePosition(position);
+        job = null;
+        pending = null;
+        pendingDoc = null;
+
+        if (formattedText == null)
+        {
+            setStatusMessage("Format on save skipped: perltidy failed or reported problems");
+            return;
+        }
+        if (getModificationStamp(doc) != stamp)
+        {
+            if (!position.isDeleted())
+                editor.addChangedRegion(position.getOffset(), position.getLength());
+            setStatusMessage("Format on save skipped: the document was modified");
+            return;
+        }
+
+        if (replace(doc, position, formattedText) > 0) editor.saveFormatted();
+
+        setStatusMessage(
+            "Formatted on save in " + (System.currentTimeMillis() - startTime) +
+            " ms (perltidy: " + formatTime + " ms)");
+    }
+
+    /**
+     * Cancels the most recently scheduled job, if any, and makes sure
+     * that its results are discarded.
+     *
+     * @return current region of the statements which were to be formatted
+     *         by the cancelled job, or null if there was no such job
+     */
+    private IRegion cancelJob()
+    {
+        requestCount++;
+        if (job != null) job.cancel();
+        job = null;
+
+        if (pending == null) return null;
+
+        pendingDoc.removePosition(pending);
+        IRegion ret = pending.isDeleted()
+            ? null
+            : new Region(pending.getOffset(), pending.getLength());
+        pending = null;
+        pendingDoc = null;
+        return ret;
+    }
+
+    /**
+     * Invoked by the job to format the given statements.
+     *
+     * @return the formatted statements, or null if perltidy failed,
+     *         timed out or reported problems (e.g. syntax errors)
+     */
+    private String format(String text)
+    {
+        try
+        {
+            return SourceFormatter.format(
+                text, Collections.<String>emptyList(), TIMEOUT, getLog());
+        }
+        catch (SourceFormatterException e)
+        {
+            return null; // as with syntax errors, not worth logging
+        }
+        catch (CoreException e)
+        {
+            getLog().log(e.getStatus());
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the text of the given region with the given text,
+     * changing only those lines which differ, as a single undoable change.
+     *
+     * @return the number of replacements made
+     */
+    private int replace(IDocument doc, Position position, String text)
+    {
+        ISourceViewer viewer = editor.getViewer();
+        IRewriteTarget target = viewer instanceof ITextViewerExtension
+            ? ((ITextViewerExtension) viewer).getRewriteTarget()
+            : null;
+
+        if (target != null) target.beginCompoundChange();
+        try
+        {
+            return LineDiff.apply(
+                doc, position.getOffset(), position.getLength(), text);
+        }
+        catch (BadLocationException e)
+        {
+            logBadLocationException(e);
+            return 0;
+        }
+        finally
+        {
+            if (target != null) target.endCompoundChange();
+        }
+    }
+
+    private void setStatusMessage(String message)
+    {
+        IStatusLineManager statusLine =
+            editor.getEditorSite().getActionBars().getStatusLineManager();
+        if (statusLine != null) statusLine.setMessage(message);
+    }
+
+    private ILog getLog()
+    {
+        return PerlEditorPlugin.getDefault().getLog();
+    }
+
+    /**
+     * BadLocationExceptions should never occur in FormatOnSave,
+     * the regions are kept up to date with changes of the document.
+     */
+    private void logBadLocationException(BadLocationException e)
+    {
+        getLog().log(
+            new Status(Status.ERROR,
+                PerlEditorPlugin.getPluginId(),
+                IStatus.OK,
+                "Unexpected exception; report it as a bug " +
+                "in plug-in " + PerlEditorPlugin.getPluginId(),
+                e));
+    }
+
+    private static long getModificationStamp(IDocument doc)
+    {
+        return doc instanceof IDocumentExtension4
+            ? ((IDocumentExtension4) doc).getModificationStamp()
+            : IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+    }
+
+    private static IRegion union(IRegion r1, IRegion r2)
+    {
+        int start = Math.min(r1.getOffset(), r2.getOffset());
+        int end = Math.max(
+            r1.getOffset() + r1.getLength(), r2.getOffset() + r2.getLength());
+        return new Region(start, end - start);
+    }
+}
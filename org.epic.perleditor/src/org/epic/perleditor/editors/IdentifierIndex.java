@@ -0,0 +1,163 @@
+package org.epic.perleditor.editors;
+
+import java.util.*;
+
+/**
+ * An index of identifiers (variable names, barewords and variables
+ * interpolated in strings) maintained by PerlPartitioner, which maps
+ * each identifier to the sorted offsets of its occurrences.
+ * <p>
+ * On each document change, the partitioner reports the replaced range
+ * of the old document with {@link #update} and then adds the identifiers
+ * found in the re-lexed tokens with {@link #add}. To keep the cost of
+ * a change independent of the number of identifiers in the document,
+ * changes are only recorded in a pending list and applied to the offsets
+ * of a particular identifier when it is next accessed. The pending list
+ * is flushed to all identifiers once it grows too long.
+ * </p>
+ */
+class IdentifierIndex
+{
+    private static final int MAX_PENDING_CHANGES = 128;
+
+    private final Map<String, Postings> postings = new HashMap<String, Postings>();
+
+    // pending changes: the replaced range [start, end) of the old
+    // document and the change of the document's length
+    private int[] changeStarts = new int[MAX_PENDING_CHANGES];
+    private int[] changeEnds = new int[MAX_PENDING_CHANGES];
+    private int[] changeDeltas = new int[MAX_PENDING_CHANGES];
+    private int changeCount;
+
+    /**
+     * Records an occurrence of the given identifier. Occurrences added
+     * since the last call to {@link #update} must not overlap the replaced
+     * range in coordinates of the current document.
+     */
+    public void add(String name, int offset)
+    {
+        Postings p = postings.get(name);
+        if (p == null)
+        {
+            p = new Postings();
+            p.applied = changeCount;
+            postings.put(name, p);
+        }
+        else applyChanges(p);
+        p.add(offset);
+    }
+
+    /**
+     * Removes all occurrences.
+     */
+    public void clear()
+    {
+        postings.clear();
+        changeCount = 0;
+    }
+
+    /**
+     * @return offsets of all occurrences of the given identifier,
+     *         in ascending order
+     */
+    public int[] get(String name)
+    {
+        Postings p = postings.get(name);
+        if (p == null) return new int[0];
+
+        applyChanges(p);
+        int[] ret = new int[p.size];
+        System.arraycopy(p.offsets, 0, ret, 0, p.size);
+        return ret;
+    }
+
+    /**
+     * @return names of all identifiers which have occurrences
+     */
+    public Set<String> getNames()
+    {
+        flush();
+        return new HashSet<String>(postings.keySet());
+    }
+
+    /**
+     * Removes occurrences within the range [start, end) of the old document
+     * and shifts occurrences which follow it by the given number of
+     * characters.
+     */
+    public void update(int start, int end, int delta)
+    {
+        if (changeCount == MAX_PENDING_CHANGES) flush();
+
+        changeStarts[changeCount] = start;
+        changeEnds[changeCount] = end;
+        changeDeltas[changeCount] = delta;
+        changeCount++;
+    }
+
+    private void applyChanges(Postings p)
+    {
+        for (; p.applied < changeCount; p.applied++)
+        {
+            int i = p.applied;
+            p.replace(changeStarts[i], changeEnds[i], changeDeltas[i]);
+        }
+    }
+
+    private void flush()
+    {
+        for (Iterator<Postings> i = postings.values().iterator(); i.hasNext();)
+        {
+            Postings p = i.next();
+            applyChanges(p);
+            if (p.size == 0) i.remove();
+            else p.applied = 0;
+        }
+        changeCount = 0;
+    }
+
+    /**
+     * Sorted offsets of a single identifier's occurrences, valid after
+     * applying the first {@link #applied} pending changes.
+     */
+    private static class Postings
+    {
+        public int[] offsets = new int[4];
+        public int size;
+        public int applied;
+
+        public void add(int offset)
+        {
+            int i = indexOf(offset);
+            if (i < size && offsets[i] == offset) return;
+
+            if (size == offsets.length)
+            {
+                int[] tmp = offsets;
+                offsets = new int[size * 2];
+                System.arraycopy(tmp, 0, offsets, 0, size);
+            }
+            System.arraycopy(offsets, i, offsets, i+1, size - i);
+            offsets[i] = offset;
+            size++;
+        }
+
+        public void replace(int start, int end, int delta)
+        {
+            int from = indexOf(start);
+            int to = indexOf(end);
+            System.arraycopy(offsets, to, offsets, from, size - to);
+            size -= to - from;
+            if (delta != 0) for (int i = from; i < size; i++) offsets[i] += delta;
+        }
+
+        /**
+         * @return index of the first offset >= the given one
+         */
+        private int indexOf(int offset)
+        {
+            int i = Arrays.binarySearch(offsets, 0, size, offset);
+            return i >= 0 ? i : -(i+1);
+        }
+    }
+}
@@ -7,6 +7,7 @@ package org.epic.perleditor.editors;
 import java.util.*;
 
 import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IDocumentListener;
 import org.eclipse.jface.text.source.ISourceViewer;
 import org.eclipse.jface.text.source.SourceViewer;
@@ -21,18 +22,24 @@ import org.epic.perleditor.preferences.PreferenceConstants;
  * notifications to registered listeners. Not every change event is
  * reported: a configurable time period must pass after the most recent
  * change before a notification is sent out.
- * 
+ * <p>
+ * IdleTimers do not have threads of their own; the delays are tracked
+ * by the {@link EditorScheduler}'s timer thread shared by all editors.
+ * </p>
+ *
  * @author luelljoc
  * @author jploski
  */
-public class IdleTimer extends Thread
+public class IdleTimer
 {
 	private final ISourceViewer sourceViewer;
     private final Display display;
     private final List<IdleTimerListener> listeners = new ArrayList<IdleTimerListener>();
+    private final IDocumentListener changeListener;
 
     private long lastChange = -1L;
-	private int waitForTermination = 1000; // millis
+    private boolean scheduled;
+    private boolean disposed;
 
     /**
      * @param sourceViewer  viewer monitored for document changes
@@ -40,12 +47,17 @@ public class IdleTimer extends Thread
      */
 	public IdleTimer(ISourceViewer sourceViewer, Display display)
     {
-		super("IdleTimer");
         assert sourceViewer != null;
         assert display != null;
-        
+
 		this.sourceViewer = sourceViewer;
 		this.display = display;
+        this.changeListener = new IDocumentListener() {
+            public void documentAboutToBeChanged(DocumentEvent event) { }
+            public void documentChanged(DocumentEvent event)
+            {
+                changed();
+            } };
 	}
 
     /**
@@ -56,17 +68,23 @@ public class IdleTimer extends Thread
 	public synchronized void addListener(IdleTimerListener listener)
     {
         listeners.add(listener);
-        lastChange = System.currentTimeMillis();
-        notifyAll();
+        lastChange = System.currentTimeMillis() - getDelay();
+        scheduled = false; // don't wait for an already scheduled expiry
+        schedule(0);
 	}
-    
+
     /**
-     * Terminates the thread.
+     * Stops monitoring the document. Pending notifications are discarded.
      */
-    public void dispose() throws InterruptedException
+    public void dispose()
     {
-        this.interrupt();
-        this.join(this.waitForTermination);
+        synchronized (this)
+        {
+            disposed = true;
+            listeners.clear();
+        }
+        IDocument doc = sourceViewer.getDocument();
+        if (doc != null) doc.removeDocumentListener(changeListener);
     }
 
     /**
@@ -76,87 +94,99 @@ public class IdleTimer extends Thread
     {
 		listeners.remove(listener);
 	}
-	
+
     /**
      * @return true if the given listener is already registered,
-     *         false otherwise 
+     *         false otherwise
      */
 	public synchronized boolean isRegistered(IdleTimerListener listener)
     {
 		return listeners.contains(listener);
 	}
 
-	public void run()
+    /**
+     * Starts monitoring the document for changes.
+     */
+	public void start()
     {
-        IDocumentListener changeListener = new IDocumentListener() {
-            public void documentAboutToBeChanged(DocumentEvent event) { }
-            public void documentChanged(DocumentEvent event)
-            {
-                synchronized (IdleTimer.this)
-                {
-                    lastChange = System.currentTimeMillis();
-                    IdleTimer.this.notifyAll();
-                }
-            } };
-        
         sourceViewer.getDocument().addDocumentListener(changeListener);
-        // we don't ever call removeDocumentListener because the listener
-        // stays registered until the IDocument is disposed together with
-        // the editor
-        
-        try { runImpl(); }
-        catch (InterruptedException e) { /* normal termination */ }
     }
-    
-    private boolean isEditorVisible()
+
+    private synchronized void changed()
     {
-        StyledText widget = ((SourceViewer) sourceViewer).getTextWidget();        
-        return widget != null && widget.isVisible();
+        lastChange = System.currentTimeMillis();
+        schedule(getDelay());
     }
-    
-    private void runImpl() throws InterruptedException
-    {
-        while (!Thread.interrupted())
-        {
-            synchronized (this)
-            {
-                while (lastChange == -1) wait();
 
-                int sleep =
-                    PerlEditorPlugin.getDefault().getPreferenceStore().getInt(
-                        PreferenceConstants.EDITOR_SYNTAX_VALIDATION_INTERVAL);
+    /**
+     * Invoked on the EditorScheduler's timer thread when the delay
+     * requested by the last call to {@link #schedule} has passed.
+     * Note that lastChange might have been increased meanwhile,
+     * in which case we have to wait some more.
+     */
+    private void expired()
+    {
+        IdleTimerListener[] _listeners;
 
-                // note that lastChange might be increased by document
-                // changes occuring during the wait
-                while (System.currentTimeMillis() < lastChange + sleep)
-                    wait(sleep);
+        synchronized (this)
+        {
+            scheduled = false;
+            if (disposed || lastChange == -1L) return;
 
-                lastChange = -1L;
+            long remaining = lastChange + getDelay() - System.currentTimeMillis();
+            if (remaining > 0)
+            {
+                schedule(remaining);
+                return;
             }
+            lastChange = -1L;
+            _listeners = listeners.toArray(new IdleTimerListener[listeners.size()]);
+        }
 
+        // asyncExec, so that a busy Display thread does not delay
+        // notifications for the other editors
+        for (int i = 0; i < _listeners.length; i++)
+        {
+            final IdleTimerListener listener = _listeners[i];
             try
             {
-                IdleTimerListener[] _listeners = new IdleTimerListener[listeners.size()];
-                
-                synchronized (this)
-                {
-                    listeners.toArray(_listeners);
-                }
-                
-                for (int i = 0; i < _listeners.length; i++)
-                {
-                    final IdleTimerListener listener = _listeners[i];                    
-                    display.syncExec(new Runnable() {
-                        public void run() {
-                            if (isEditorVisible())
-                                listener.onEditorIdle(sourceViewer);
-                        } });
-                }
+                display.asyncExec(new Runnable() {
+                    public void run() {
+                        if (isEditorVisible() && isRegistered(listener))
+                            listener.onEditorIdle(sourceViewer);
+                    } });
             }
             catch (SWTException e)
             {
                 // This might happen if display is no longer available
-            }            
+                return;
+            }
         }
     }
+
+    private int getDelay()
+    {
+        return PerlEditorPlugin.getDefault().getPreferenceStore().getInt(
+            PreferenceConstants.EDITOR_SYNTAX_VALIDATION_INTERVAL);
+    }
+
+    private boolean isEditorVisible()
+    {
+        StyledText widget = ((SourceViewer) sourceViewer).getTextWidget();
+        return widget != null && !widget.isDisposed() && widget.isVisible();
+    }
+
+    /**
+     * Arranges for {@link #expired} to be invoked after the given delay,
+     * unless it is already scheduled. Rescheduling on every document
+     * change is not necessary because expired checks lastChange.
+     */
+    private void schedule(long delay)
+    {
+        if (scheduled || disposed) return;
+
+        scheduled = true;
+        EditorScheduler.instance().schedule(new TimerTask() {
+            public void run() { expired(); } }, delay);
+    }
 }
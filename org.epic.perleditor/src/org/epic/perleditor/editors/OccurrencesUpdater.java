@@ -3,9 +3,14 @@ package org.epic.perleditor.editors;
 import java.util.*;
 import java.util.regex.Pattern;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jface.text.*;
 import org.eclipse.jface.text.source.*;
 import org.eclipse.jface.viewers.*;
+import org.eclipse.swt.widgets.Display;
 import org.epic.core.util.StatusFactory;
 import org.epic.perleditor.PerlEditorPlugin;
 import org.epic.perleditor.preferences.MarkOccurrencesPreferences;
@@ -14,6 +19,14 @@ import org.epic.perleditor.preferences.MarkOccurrencesPreferences;
  * This class marks occurrences of a selection in the current document. The
  * class uses the document partitioner to mark the surrounding text. Which types
  * are provided, can be determined by the preference page "Mark Occurences".
+ * <p>
+ * Occurrences of variables and names are looked up in the partitioner's
+ * identifier index (see {@link PerlPartitioner#getIdentifierOffsets}),
+ * occurrences of other text are found by scanning the document.
+ * In either case, the occurrences are found by a background job.
+ * Its results are discarded if the selection or the document has
+ * changed in the meantime.
+ * </p>
  *
  * @author Katrin Dust
  */
@@ -41,6 +54,15 @@ public class OccurrencesUpdater implements ISelectionChangedListener
     /** Stores the last marked text */
     private String lastMarkedText = "";
 
+    /**
+     * Incremented whenever the marked text changes, so that results of
+     * jobs started for an earlier selection can be recognized as stale
+     */
+    private int requestCount;
+
+    /** The most recently scheduled job, or null */
+    private Job markJob;
+
     // ~ Methods
 
     /**
@@ -115,6 +137,7 @@ public class OccurrencesUpdater implements ISelectionChangedListener
             selectionProvider.removeSelectionChangedListener(this);
         }
 
+        cancelMarkJob();
         removeAnnotations();
         lastMarkedText = "";
         sourceViewer = null;
@@ -176,53 +199,129 @@ public class OccurrencesUpdater implements ISelectionChangedListener
     }
 
     /**
-     * Marks occurrences of the text in the document by adding annotations
-     * to the given model. Further occurrences of the text and the
-     * text itself will be marked, if they have the same contentType.
-     * Variables are also marked in strings.
+     * Finds occurrences of the text in the document. Further occurrences
+     * of the text and the text itself are reported, if they have the same
+     * contentType. Variables are also found in strings.
      *
      * @param doc
-     *            the document, used to get a FindReplaceDocumentAdapter
-     *            and the contentTypes
+     *            the document, used to get the contentTypes
+     * @param stamp
+     *            modification stamp of the document, from which docText
+     *            was obtained
+     * @param docText
+     *            text of the document
      * @param type
      *            the contentType of the associated text
      * @param text
-     *            the text, further occurrences will be marked
-     * @param model
-     *            the model, the annotation were added
+     *            the text, further occurrences will be found
+     * @param monitor
+     *            used to abort the search if the job is cancelled
+     * @return offsets of the occurrences, or null if the document
+     *         was changed during the search
      */
-    private void markText(
-        IDocument doc, String type, String text, IAnnotationModelExtension model)
-        throws BadLocationException, BadPartitioningException
+    private static List<Integer> findText(
+        IDocument doc, long stamp, String docText, String type, String text,
+        IProgressMonitor monitor)
     {
+        PerlPartitioner partitioner =
+            (PerlPartitioner) PartitionTypes.getPerlPartitioner(doc);
         int offset = 0;
-        String docText = doc.get();
         int index = docText.indexOf(text, offset);
 
-        Map<Annotation, Position> newAnnotations = new HashMap<Annotation, Position>();
-        while (index != -1)
+        List<Integer> ret = new ArrayList<Integer>();
+        while (index != -1 && !monitor.isCanceled())
         {
             offset = index + text.length();
-            String contentType = PartitionTypes.getPerlPartition(doc, index).getType();
+            String contentType;
+            synchronized (partitioner.getTokensLock())
+            {
+                // tokens may only be examined while they match docText
+                if (getModificationStamp(doc) != stamp) return null;
+                contentType = partitioner.getContentType(index);
+            }
             if (contentType.equals(type)
                 || (contentType.equals(PartitionTypes.LITERAL1) && type
                 	.equals(PartitionTypes.VARIABLE))
                 || (contentType.equals(PartitionTypes.VARIABLE) && type
                     .equals(PartitionTypes.LITERAL1)))
             {
-                if (offset < doc.getLength())
+                if (offset < docText.length())
                 {
-                    String behind = "" + doc.getChar(offset);
+                    String behind = "" + docText.charAt(offset);
     
                     if (!(LETTER_PATTERN.matcher(behind)).matches())
                     {
-                        addAnnotation(text, newAnnotations, index, text.length());
+                        ret.add(new Integer(index));
                     }
                 }
             }
             index = docText.indexOf(text, offset);
         }
-        model.replaceAnnotations(new Annotation[] {}, newAnnotations);
+        return ret;
+    }
+
+    /**
+     * Finds occurrences of a variable or name in the document
+     * using the partitioner's identifier index. Only those occurrences
+     * of a variable are reported which refer to the same declaration
+     * as the occurrence at the given offset.
+     *
+     * @return offsets of the occurrences
+     */
+    private static List<Integer> findIdentifier(
+        IDocument doc, String type, String text, int offset)
+    {
+        PerlPartitioner partitioner =
+            (PerlPartitioner) PartitionTypes.getPerlPartitioner(doc);
+        int[] offsets = type.equals(PartitionTypes.VARIABLE)
+            ? partitioner.getVariableOffsets(text, offset)
+            : partitioner.getIdentifierOffsets(text);
+
+        List<Integer> ret = new ArrayList<Integer>(offsets.length);
+        for (int i = 0; i < offsets.length; i++) ret.add(new Integer(offsets[i]));
+        return ret;
+    }
+
+    /**
+     * Replaces the current occurrence annotations with annotations of
+     * the given occurrences of a text, unless the selection or the document
+     * has changed since the occurrences were requested.
+     *
+     * @param request
+     *            value of requestCount when the occurrences were requested
+     * @param stamp
+     *            modification stamp of the document which was searched
+     * @param offsets
+     *            offsets of the occurrences, or null if the document
+     *            changed during the search
+     */
+    private void markOccurrences(
+        int request, long stamp, String text, List<Integer> offsets)
+    {
+        if (sourceViewer == null || request != requestCount) return;
+
+        IDocument doc = sourceViewer.getDocument();
+        IAnnotationModelExtension model =
+            (IAnnotationModelExtension) sourceViewer.getAnnotationModel();
+        if (doc == null || model == null) return;
+
+        if (offsets == null || getModificationStamp(doc) != stamp)
+        {
+            // the occurrences may have moved, search again
+            lastMarkedText = "";
+            updateAnnotations((ITextSelection) sourceViewer.getSelectionProvider().getSelection());
+            return;
+        }
+
+        Annotation[] oldAnnotations =
+            annotations.toArray(new Annotation[annotations.size()]);
+        annotations.clear();
+
+        Map<Annotation, Position> newAnnotations = new HashMap<Annotation, Position>();
+        for (Iterator<Integer> i = offsets.iterator(); i.hasNext();)
+            addAnnotation(text, newAnnotations, i.next().intValue(), text.length());
+
+        model.replaceAnnotations(oldAnnotations, newAnnotations);
     }
 
     /**
@@ -241,7 +340,79 @@ public class OccurrencesUpdater implements ISelectionChangedListener
 
         annotations.clear();
     }
-    
+
+    /**
+     * @return true if an occurrence annotation starts at the given offset
+     */
+    private boolean isMarked(int offset)
+    {
+        IAnnotationModel model = sourceViewer.getAnnotationModel();
+        for (Iterator<Annotation> i = annotations.iterator(); i.hasNext();)
+        {
+            Position p = model.getPosition(i.next());
+            if (p != null && p.getOffset() == offset) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Cancels the most recently scheduled job, if any, and makes sure
+     * that its results are discarded.
+     */
+    private void cancelMarkJob()
+    {
+        requestCount++;
+        if (markJob != null) markJob.cancel();
+        markJob = null;
+    }
+
+    /**
+     * Schedules a job which finds occurrences of the text and marks them,
+     * provided that the selection does not change in the meantime.
+     *
+     * @param offset
+     *            offset of the text in the document
+     * @param indexed
+     *            true if the text is a complete variable or name token,
+     *            so that its occurrences can be looked up in the index;
+     *            otherwise the document's text has to be scanned
+     */
+    private void scheduleMarkJob(
+        final IDocument doc,
+        final String type,
+        final String text,
+        final int offset,
+        final boolean indexed)
+    {
+        cancelMarkJob();
+
+        final int request = requestCount;
+        final long stamp = getModificationStamp(doc);
+        final String docText = indexed ? null : doc.get();
+        final Display display = sourceViewer.getTextWidget().getDisplay();
+
+        markJob = new Job("Mark Occurrences")
+        {
+            protected IStatus run(IProgressMonitor monitor)
+            {
+                final List<Integer> offsets = indexed
+                    ? findIdentifier(doc, type, text, offset)
+                    : findText(doc, stamp, docText, type, text, monitor);
+
+                if (monitor.isCanceled()) return Status.CANCEL_STATUS;
+
+                if (!display.isDisposed()) display.asyncExec(new Runnable() {
+                    public void run()
+                    {
+                        markOccurrences(request, stamp, text, offsets);
+                    } });
+                return Status.OK_STATUS;
+            }
+        };
+        markJob.setSystem(true);
+        markJob.schedule();
+    }
+
     /**
      * @return true if the given text selection should be marked as an occurrence;
      *         false otherwise
@@ -341,6 +512,17 @@ public class OccurrencesUpdater implements ISelectionChangedListener
         return true;
     }
 
+    /**
+     * @return the document's modification stamp, or
+     *         {@link IDocumentExtension4#UNKNOWN_MODIFICATION_STAMP}
+     */
+    private static long getModificationStamp(IDocument doc)
+    {
+        return doc instanceof IDocumentExtension4
+            ? ((IDocumentExtension4) doc).getModificationStamp()
+            : IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+    }
+
     /**
      * @return returns the boolean value for the given preference name
      */
@@ -371,6 +553,7 @@ public class OccurrencesUpdater implements ISelectionChangedListener
         {
             if (!getBoolPref(MarkOccurrencesPreferences.KEEP_MARKS))
             {
+                cancelMarkJob();
                 lastMarkedText = "";
                 removeAnnotations();
             }
@@ -380,31 +563,38 @@ public class OccurrencesUpdater implements ISelectionChangedListener
         try
         {
             String text = getMarkedText(doc, textSelection);
+            ITypedRegion partition =
+                PartitionTypes.getPerlPartition(doc, textSelection.getOffset());
+            String type = partition.getType();
 
             // Same text as before? avoid constantly removing/adding
             // occurrences while the caret is being moved within a marked
-            // occurrence or jumping from one occurrrence to another
-            if (text.equals(this.lastMarkedText)) return;
+            // occurrence or jumping from one occurrrence to another.
+            // A variable with the same name may belong to another scope,
+            // though, unless it is one of the marked occurrences.
+            if (text.equals(this.lastMarkedText) &&
+                (!type.equals(PartitionTypes.VARIABLE) ||
+                 isMarked(partition.getOffset()))) return;
 
             this.lastMarkedText = text;
-            removeAnnotations();
 
-            String type = PartitionTypes.getPerlPartition(doc, textSelection.getOffset()).getType();
-            markText(doc, type, text, model);
-        }
-        catch (BadPartitioningException e)
-        {
-            logUnexpected(e);
+            // Variables and names can be looked up in the index, unless
+            // only a part of the token is selected
+            boolean indexed =
+                (type.equals(PartitionTypes.VARIABLE) ||
+                 type.equals(PartitionTypes.DEFAULT)) &&
+                (textSelection.getLength() < 1 ||
+                 textSelection.getOffset() == partition.getOffset() &&
+                 textSelection.getLength() == partition.getLength());
 
-            // emergency clean-up
-            lastMarkedText = "";
-            removeAnnotations();
+            scheduleMarkJob(doc, type, text, partition.getOffset(), indexed);
         }
         catch (BadLocationException e)
         {
             logUnexpected(e);
 
             // emergency clean-up
+            cancelMarkJob();
             lastMarkedText = "";
             removeAnnotations();
         }
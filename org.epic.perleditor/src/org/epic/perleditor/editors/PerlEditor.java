@@ -1,5 +1,7 @@
 package org.epic.perleditor.editors;
 
+import java.util.List;
+
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.*;
 import org.eclipse.jface.action.*;
@@ -29,6 +31,7 @@ import org.epic.perleditor.PerlEditorPlugin;
 import org.epic.perleditor.actions.*;
 import org.epic.perleditor.preferences.MarkOccurrencesPreferences;
 import org.epic.perleditor.preferences.PreferenceConstants;
+import org.epic.perleditor.preferences.SourceFormatterPreferences;
 import org.epic.perleditor.templates.perl.ModuleCompletionHelper;
 import org.epic.perleditor.views.PerlOutlinePage;
 
@@ -48,11 +51,13 @@ public class PerlEditor extends TextEditor implements IPropertyChangeListener
     private FoldReconciler foldReconciler;
     private TasksReconciler tasksReconciler;
     private PerlOutlinePage outlinePage;
-    private PerlSyntaxValidationThread validationThread;
+    private PerlSyntaxValidationTask validationTask;
     private PerlSourceViewer sourceViewer;
     private IdleTimer idleTimer;
     private ProjectionSupport projectionSupport;
     private SourceFile source;
+    private final ChangedRegionTracker changedRegion = new ChangedRegionTracker();
+    private FormatOnSave formatOnSave;
 
     private OccurrencesUpdater occurrencesUpdater;
 
@@ -89,10 +94,12 @@ public class PerlEditor extends TextEditor implements IPropertyChangeListener
         installCaretMoveListener();
         installModuleCompletionHelper();
         installIdleTimer();
-        installSyntaxValidationThread();
+        installSyntaxValidationTask();
         installFoldReconciler();
         installTasksReconciler();
         installAnnotationListener();
+        changedRegion.install(getViewer().getDocument());
+        formatOnSave = new FormatOnSave(this);
 
         source = new SourceFile(
             PerlEditorPlugin.getDefault().getLog(),
@@ -110,32 +117,27 @@ public class PerlEditor extends TextEditor implements IPropertyChangeListener
         PerlEditorPlugin.getDefault().getPreferenceStore().removePropertyChangeListener(this);
 
         uninstallAnnotationListener();
+        changedRegion.uninstall();
+        if (formatOnSave != null) formatOnSave.dispose();
 
-        try
+        if (sourceViewer instanceof ITextViewerExtension &&
+            bracketInserter != null)
         {
-            if (sourceViewer instanceof ITextViewerExtension &&
-                bracketInserter != null)
-            {
-                ((ITextViewerExtension) sourceViewer).removeVerifyKeyListener(
-                    bracketInserter);
-            }
-            if (validationThread != null) validationThread.dispose();
-            if (idleTimer != null) idleTimer.dispose();
-
-            String[] actionIds = PerlEditorActionIds.getEditorActions();
-            for (int i = 0; i < actionIds.length; i++)
-            {
-                IAction action = getAction(actionIds[i]);
-                if (action instanceof PerlEditorAction)
-                    ((PerlEditorAction) action).dispose();
-            }
-
-            super.dispose();
+            ((ITextViewerExtension) sourceViewer).removeVerifyKeyListener(
+                bracketInserter);
         }
-        catch (InterruptedException e)
+        if (validationTask != null) validationTask.dispose();
+        if (idleTimer != null) idleTimer.dispose();
+
+        String[] actionIds = PerlEditorActionIds.getEditorActions();
+        for (int i = 0; i < actionIds.length; i++)
         {
-            e.printStackTrace(); // TODO log it
+            IAction action = getAction(actionIds[i]);
+            if (action instanceof PerlEditorAction)
+                ((PerlEditorAction) action).dispose();
         }
+
+        super.dispose();
     }
 
     /**
@@ -145,6 +147,7 @@ public class PerlEditor extends TextEditor implements IPropertyChangeListener
     public void doRevertToSaved()
     {
         super.doRevertToSaved();
+        changedRegion.reset();
         revalidateSyntax();
     }
 
@@ -154,7 +157,13 @@ public class PerlEditor extends TextEditor implements IPropertyChangeListener
      */
     public void doSave(IProgressMonitor monitor)
     {
+        IRegion changed = changedRegion.getRegion();
         super.doSave(monitor);
+        if (!isDirty())
+        {
+            changedRegion.reset();
+            formatOnSave(changed);
+        }
         revalidateSyntax();
     }
 
@@ -165,6 +174,7 @@ public class PerlEditor extends TextEditor implements IPropertyChangeListener
     public void doSaveAs()
     {
         super.doSaveAs();
+        if (!isDirty()) changedRegion.reset();
         revalidateSyntax();
     }
 
@@ -192,6 +202,7 @@ public class PerlEditor extends TextEditor implements IPropertyChangeListener
                 null));
         }
 
+        if (formatOnSave != null) formatOnSave.dispose();
         super.doSetInput(input);
 
         if (getViewer() != null)
@@ -202,6 +213,7 @@ public class PerlEditor extends TextEditor implements IPropertyChangeListener
             source = new SourceFile(
                 PerlEditorPlugin.getDefault().getLog(),
                 getViewer().getDocument());
+            changedRegion.install(getViewer().getDocument());
 
             reconcile();
         }
@@ -347,16 +359,16 @@ public class PerlEditor extends TextEditor implements IPropertyChangeListener
             if (PerlEditorPlugin.getDefault().getBooleanPreference(
                 PreferenceConstants.EDITOR_SYNTAX_VALIDATION))
             {
-                if (!idleTimer.isRegistered(validationThread))
+                if (!idleTimer.isRegistered(validationTask))
                 {
-                    this.registerIdleListener(validationThread);
+                    this.registerIdleListener(validationTask);
                 }
             }
             else
             {
-                if (idleTimer.isRegistered(validationThread))
+                if (idleTimer.isRegistered(validationTask))
                 {
-                    idleTimer.removeListener(validationThread);
+                    idleTimer.removeListener(validationTask);
                 }
             }
         }
@@ -380,23 +392,42 @@ public class PerlEditor extends TextEditor implements IPropertyChangeListener
         final IDocument doc = sourceViewer.getDocument();
         if (doc == null) return;
 
-        // We reconcile on the main (Display) thread in order to avoid
-        // race conditions due to user's modifications; this also means
-        // that the reconciling has to be FAST in order to keep the GUI
-        // responsive.
-        //
-        // An alternate (and better) solution would be to use a better
-        // implementation (wrapper?) of IDocument, which supports multithreaded
-        // access.
+        // The model is built from an immutable copy of the partitioner's
+        // tokens and of the document's text on the calling (reconciler)
+        // thread; only the resulting changes are applied on the main
+        // (Display) thread, so that typing is not blocked while a large
+        // file is parsed. If the document changes in the meantime, or is
+        // being changed when the copy is to be made, the results are
+        // discarded - the change will trigger another reconcile anyway.
         //
+        final SourceFile source = this.source;
+        if (source == null) return;
+        final SourceFile.Snapshot snapshot = source.parseSnapshot();
+        if (snapshot == null) return;
+
+        final List<FoldReconciler.Fold> folds;
+        try
+        {
+            folds = foldReconciler != null
+                ? foldReconciler.computeFolds(snapshot)
+                : null;
+        }
+        catch (BadLocationException e)
+        {
+            return; // the document has changed since the snapshot
+        }
+        final TasksReconciler.TaskList tasks = tasksReconciler != null
+            ? tasksReconciler.computeTasks(source.getDocument(), snapshot)
+            : null;
+
         display.syncExec(new Runnable() {
             public void run()
             {
-                source.parse();
+                if (!source.update(snapshot)) return;
 
                 if (outlinePage != null) outlinePage.updateContent(source);
-                if (foldReconciler != null) foldReconciler.reconcile();
-                if (tasksReconciler != null) tasksReconciler.reconcile();
+                if (foldReconciler != null) foldReconciler.applyFolds(folds);
+                if (tasksReconciler != null) tasksReconciler.applyTasks(tasks);
             } });
     }
 
@@ -412,11 +443,34 @@ public class PerlEditor extends TextEditor implements IPropertyChangeListener
 
     /**
      * Immediately revalidates syntax of the edited file.
-     * This method has no effect if the syntax validation thread is not installed.
+     * This method has no effect if the syntax validation task is not installed.
      */
     public void revalidateSyntax()
     {
-        if (validationThread != null) validationThread.revalidate();
+        if (validationTask != null) validationTask.revalidate();
+    }
+
+    /**
+     * Reports the given region of the document as changed since the last
+     * save, so that it is formatted after the next save. Invoked by
+     * FormatOnSave when it could not apply its results.
+     */
+    void addChangedRegion(int offset, int length)
+    {
+        changedRegion.add(offset, length);
+    }
+
+    /**
+     * Saves the document after FormatOnSave has formatted it,
+     * without scheduling another format on save. This is the second
+     * write of a save with format on save; see FormatOnSave for why
+     * the unformatted contents are written first.
+     */
+    void saveFormatted()
+    {
+        performSave(false, getProgressMonitor());
+        if (!isDirty()) changedRegion.reset();
+        revalidateSyntax();
     }
 
     protected boolean affectsTextPresentation(PropertyChangeEvent event)
@@ -673,6 +727,21 @@ public class PerlEditor extends TextEditor implements IPropertyChangeListener
             ((IAdaptable) getEditorInput()).getAdapter(IResource.class);
     }
 
+    /**
+     * Schedules formatting of the code changed before the document
+     * was saved, if enabled in the Source Formatter preferences.
+     *
+     * @param changed   region changed since the previous save, or null
+     */
+    private void formatOnSave(IRegion changed)
+    {
+        if (changed == null || formatOnSave == null) return;
+        if (!PerlEditorPlugin.getDefault().getBooleanPreference(
+            SourceFormatterPreferences.FORMAT_ON_SAVE)) return;
+
+        formatOnSave.schedule(changed);
+    }
+
     private void installBracketInserter()
     {
         bracketInserter =
@@ -762,25 +831,23 @@ public class PerlEditor extends TextEditor implements IPropertyChangeListener
         viewer.doOperation(ProjectionViewer.TOGGLE);
     }
 
-    private void installSyntaxValidationThread()
+    private void installSyntaxValidationTask()
     {
         IResource resource = getResource();
         if (resource == null) return;
         
         // Always check syntax when editor is opened
-        validationThread = new PerlSyntaxValidationThread();
-        validationThread.setPriority(Thread.MIN_PRIORITY);
-        validationThread.start();
-        validationThread.setDocument(
+        validationTask = new PerlSyntaxValidationTask();
+        validationTask.setDocument(
             resource,
             sourceViewer.getDocument());
 
-        // Register the validation thread if automatic checking is enabled
+        // Register the validation task if automatic checking is enabled
         if (PerlEditorPlugin.getDefault().getBooleanPreference(
             PreferenceConstants.EDITOR_SYNTAX_VALIDATION) &&
             idleTimer != null)
         {
-            registerIdleListener(validationThread);
+            registerIdleListener(validationTask);
         }
     }
 
@@ -816,6 +883,73 @@ public class PerlEditor extends TextEditor implements IPropertyChangeListener
         setAction(perlActionId, action);
     }
 
+    /**
+     * Keeps track of the region of the document which has been changed
+     * since the document was last saved or loaded, so that format on save
+     * can be restricted to the changed code.
+     */
+    private static class ChangedRegionTracker implements IDocumentListener
+    {
+        private IDocument doc;
+
+        /**
+         * Offset of the first changed character and length of the unchanged
+         * text at the end of the document, or Integer.MAX_VALUE if
+         * the document has not been changed
+         */
+        private int start, tail;
+
+        public void install(IDocument doc)
+        {
+            uninstall();
+            this.doc = doc;
+            reset();
+            if (doc != null) doc.addDocumentListener(this);
+        }
+
+        public void uninstall()
+        {
+            if (doc != null) doc.removeDocumentListener(this);
+            doc = null;
+        }
+
+        public void reset()
+        {
+            start = tail = Integer.MAX_VALUE;
+        }
+
+        public void add(int offset, int length)
+        {
+            if (doc == null) return;
+            start = Math.min(start, offset);
+            tail = Math.min(tail, doc.getLength() - offset - length);
+        }
+
+        /**
+         * @return the changed region, or null if the document
+         *         has not been changed
+         */
+        public IRegion getRegion()
+        {
+            if (doc == null || start == Integer.MAX_VALUE) return null;
+
+            int end = Math.max(start, doc.getLength() - tail);
+            return new Region(start, end - start);
+        }
+
+        public void documentAboutToBeChanged(DocumentEvent event)
+        {
+        }
+
+        public void documentChanged(DocumentEvent event)
+        {
+            // as in PerlPartitioner.getChangedRegion, a change does not move
+            // the text before its offset or after the inserted text
+            int textLength = event.getText() != null ? event.getText().length() : 0;
+            add(event.getOffset(), textLength);
+        }
+    }
+
     /**
      * Contains methods that provide access to internal workings of PerlEditor
      * intended to be available only to white-box test cases. Other clients
@@ -22,6 +22,12 @@ public class PerlPartitioner implements
     IDocumentPartitionerExtension2,
     IDocumentPartitionerExtension3
 {
+    /**
+     * Number of most recent token changes for which {@link #getChangedRegion}
+     * can report the affected region
+     */
+    private static final int CHANGE_LOG_SIZE = 64;
+
     private final Object TOKENS_LOCK = new Object();
     private final PerlMultiLexer lexer = new PerlMultiLexer();
     private final ILog log;
@@ -30,13 +36,34 @@ public class PerlPartitioner implements
     private DocumentRewriteSession activeRewriteSession;
     private boolean initialized;
     private TokensList tokens;
+    private IdentifierIndex identifiers;
+    private ScopeIndex scopes;
+    private int scopesVersion;
     private int lastUnaffectedTokenI = -1;
     private int syncTokenI = -1;
+    private int tokensVersion;
+    private long tokensStamp = IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+    
+    /**
+     * Set between documentAboutToBeChanged and documentChanged2, while
+     * the document's text may already differ from the tokens
+     */
+    private volatile boolean changePending;
+    
+    // ring buffers indexed by tokensVersion % CHANGE_LOG_SIZE:
+    // the start of the changed region, the length of the unchanged
+    // text following it and the change of the document's length
+    private final int[] changeStarts = new int[CHANGE_LOG_SIZE];
+    private final int[] changeTails = new int[CHANGE_LOG_SIZE];
+    private final int[] changeDeltas = new int[CHANGE_LOG_SIZE];
     
     public PerlPartitioner(ILog log)
     {
         this.log = log;
         tokens = new TokensList();
+        // TokensList keeps no token texts, so there is no point in
+        // having the lexer create them
+        lexer.setTextLazy(true);
     }
     
     public PerlPartitioner(ILog log, IDocument doc)
@@ -75,18 +102,19 @@ public class PerlPartitioner implements
              i < tokenCount;
              i++)
         {
-            PerlToken t = (PerlToken) tokens.get(i);
-            if (t.getOffset() >= offset + length) break;
+            int tOffset = tokens.getOffset(i);
+            int tLength = tokens.getLength(i);
+            if (tOffset >= offset + length) break;
             
             if (prevRegionEnd == -1)
             {
-                if (t.includes(offset))
+                if (tOffset <= offset && offset < tOffset + tLength)
                 {
                     // add the right piece of the leftmost token
                     rOffset = offset;
-                    rLength = t.getOffset() + t.getLength() - rOffset;
+                    rLength = tOffset + tLength - rOffset;
                     typedRegions.add(new TypedRegion(
-                        rOffset, rLength, getTokenContentType(t, i)));
+                        rOffset, rLength, getTokenContentType(i)));
                     if (includeZeroLengthPartitions) typedRegions.add(new TypedRegion(
                         rOffset + rLength, 0, PartitionTypes.DEFAULT));
                 }
@@ -98,18 +126,18 @@ public class PerlPartitioner implements
             }
             else
             {
-                if (t.getOffset() - prevRegionEnd > 0)
+                if (tOffset - prevRegionEnd > 0)
                 {
                     // add gap before the current position
                     rOffset = prevRegionEnd;
-                    rLength = t.getOffset() - rOffset;
+                    rLength = tOffset - rOffset;
                     typedRegions.add(new TypedRegion(
                         rOffset, rLength, PartitionTypes.DEFAULT));
                 }
-                rOffset = t.getOffset();
-                rLength = Math.min(t.getLength(), offset+length-rOffset);
+                rOffset = tOffset;
+                rLength = Math.min(tLength, offset+length-rOffset);
                 typedRegions.add(new TypedRegion(
-                    rOffset, rLength, getTokenContentType(t, i)));
+                    rOffset, rLength, getTokenContentType(i)));
                 if (includeZeroLengthPartitions) typedRegions.add(new TypedRegion(
                     rOffset + rLength, 0, PartitionTypes.DEFAULT));
             }
@@ -140,7 +168,11 @@ public class PerlPartitioner implements
     public void connect(IDocument document, boolean delayInitialization)
     {
         doc = document;
+        tokens.setDocument(document);
         initialized = false;
+        changePending = false;
+        identifiers = null;
+        scopes = null;
         
         if (!delayInitialization) initialize();
     }
@@ -153,6 +185,7 @@ public class PerlPartitioner implements
     public void documentAboutToBeChanged(DocumentEvent event)
     {
         // note: this is not ALWAYS called before documentChanged.. just sometimes
+        changePending = true;
         computeLastUnaffectedTokenI(event);
         computeSyncTokenI(event);
     }
@@ -168,6 +201,8 @@ public class PerlPartitioner implements
         {
             synchronized (TOKENS_LOCK)
             {
+                tokensVersion++;
+                tokensStamp = getModificationStamp();
                 IRegion ret = documentChanged2Impl(event);
                 //tokens.dump();
                 return ret;
@@ -176,6 +211,7 @@ public class PerlPartitioner implements
         finally
         {
             syncTokenI = lastUnaffectedTokenI = -1;
+            changePending = false;
         }
     }
     
@@ -204,6 +240,183 @@ public class PerlPartitioner implements
         return null;
     }
 
+    /**
+     * @return offsets of the occurrences of the given variable, bareword
+     *         or procedure reference, including variables referenced in
+     *         strings, in ascending order. The required index is created
+     *         on the first call and updated incrementally afterwards,
+     *         so that subsequent calls only involve a hash lookup.
+     *         If the document is being changed by another thread when
+     *         the index is to be created, an empty array is returned and
+     *         the index is created on a later call. This method may be
+     *         called from any thread.
+     */
+    public int[] getIdentifierOffsets(String name)
+    {
+        synchronized (TOKENS_LOCK)
+        {
+            IdentifierIndex identifiers = getIdentifiers();
+            if (identifiers == null) return new int[0];
+            return identifiers.get(name);
+        }
+    }
+
+    /**
+     * @return regions of the first occurrences of the variables which are
+     *         not declared with my or state anywhere in the document, such
+     *         as variables declared with "use vars", qualified package
+     *         variables and globals of scripts which do not use strict,
+     *         in the order of their names. This method may be called
+     *         from any thread.
+     */
+    public List<IRegion> getPackageVariables()
+    {
+        synchronized (TOKENS_LOCK)
+        {
+            IdentifierIndex identifiers = getIdentifiers();
+            ScopeIndex scopes = getScopes();
+            if (identifiers == null || scopes == null) return Collections.emptyList();
+
+            List<IRegion> ret = new ArrayList<IRegion>();
+            Set<String> names = new TreeSet<String>(identifiers.getNames());
+            for (Iterator<String> i = names.iterator(); i.hasNext();)
+            {
+                String name = i.next();
+                if (name.length() < 2 || "$@%".indexOf(name.charAt(0)) == -1) continue;
+                if (scopes.hasLexicalDeclaration(name)) continue;
+
+                int[] offsets = identifiers.get(name);
+                if (offsets.length > 0) ret.add(new Region(offsets[0], name.length()));
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * @return offsets of the occurrences of the given variable which refer
+     *         to the same declaration (my or state) as the occurrence at
+     *         the given offset, in ascending order. If the occurrence at
+     *         the given offset is not in the scope of such a declaration,
+     *         it refers to a package variable, and so do the occurrences
+     *         returned. This method may be called from any thread.
+     */
+    public int[] getVariableOffsets(String name, int offset)
+    {
+        synchronized (TOKENS_LOCK)
+        {
+            int[] offsets = getIdentifierOffsets(name);
+            ScopeIndex scopes = getScopes();
+            if (scopes == null) return offsets;
+
+            int decl = scopes.getDeclarationOffset(name, offset);
+            int count = 0;
+            for (int i = 0; i < offsets.length; i++)
+            {
+                if (scopes.getDeclarationOffset(name, offsets[i]) == decl)
+                    offsets[count++] = offsets[i];
+            }
+            int[] ret = new int[count];
+            System.arraycopy(offsets, 0, ret, 0, count);
+            return ret;
+        }
+    }
+
+    /**
+     * @return regions of the variables declared with my, our, local
+     *         or state whose declarations are visible at the given offset,
+     *         innermost scope first. The required index is rebuilt from
+     *         the tokens after they change, so that subsequent calls only
+     *         involve a binary search and a walk through the enclosing
+     *         blocks. This method may be called from any thread.
+     */
+    public List<IRegion> getVisibleVariables(int offset)
+    {
+        synchronized (TOKENS_LOCK)
+        {
+            ScopeIndex scopes = getScopes();
+            if (scopes == null) return Collections.emptyList();
+            return scopes.getVisibleDeclarations(offset);
+        }
+    }
+
+    /**
+     * @return the smallest region which consists of whole lines, contains
+     *         the given region and is a sequence of complete top-level
+     *         statements, such as sub declarations, so that it can be
+     *         processed (e.g. formatted) independently of the surrounding
+     *         code; null if the given region lies after __END__ or __DATA__.
+     *         This method may be called from any thread.
+     */
+    public IRegion getTopLevelRegion(int offset, int length)
+    {
+        synchronized (TOKENS_LOCK)
+        {
+            if (!initialized) initialize();
+            try
+            {
+                int start = doc.getLineOffset(doc.getLineOfOffset(offset));
+                int end = offset + length;
+                int endLine = doc.getLineOfOffset(end);
+                if (length == 0 || end != doc.getLineOffset(endLine))
+                    end = doc.getLineOffset(endLine) + doc.getLineLength(endLine);
+
+                // the lexer stops at __END__ or __DATA__
+                int tokenCount = tokens.size();
+                int codeEnd = tokenCount == 0 ? 0 :
+                    tokens.getOffset(tokenCount - 1) + tokens.getLength(tokenCount - 1);
+                if (start >= codeEnd && codeEnd < doc.getLength()) return null;
+
+                int regionStart = 0;
+                int regionEnd = codeEnd < doc.getLength() ? codeEnd : doc.getLength();
+                int depth = 0;
+
+                for (int i = 0; i < tokenCount; i++)
+                {
+                    int type = tokens.getType(i);
+                    boolean curly = tokens.isCurly(i);
+                    if (type == PerlTokenTypes.OPEN_PAREN ||
+                        type == PerlTokenTypes.OPEN_BRACKET ||
+                        type == PerlTokenTypes.OPEN_CURLY && curly)
+                    {
+                        depth++;
+                        continue;
+                    }
+                    if (type == PerlTokenTypes.CLOSE_PAREN ||
+                        type == PerlTokenTypes.CLOSE_BRACKET ||
+                        type == PerlTokenTypes.CLOSE_CURLY && curly)
+                    {
+                        if (depth > 0) depth--;
+                    }
+                    else if (type != PerlTokenTypes.SEMI) continue;
+
+                    if (depth > 0 || type == PerlTokenTypes.CLOSE_PAREN ||
+                        type == PerlTokenTypes.CLOSE_BRACKET) continue;
+
+                    int cut = getStatementEnd(i, type == PerlTokenTypes.CLOSE_CURLY);
+                    if (cut == -1) continue;
+                    if (cut <= start) regionStart = cut;
+                    else if (cut >= end)
+                    {
+                        regionEnd = Math.min(regionEnd, cut);
+                        break;
+                    }
+                }
+                return new Region(regionStart, regionEnd - regionStart);
+            }
+            catch (BadLocationException e)
+            {
+                // should never occur, the tokens match the document
+                log.log(new Status(
+                    IStatus.ERROR,
+                    PerlEditorPlugin.getPluginId(),
+                    IStatus.OK,
+                    "Could not determine the enclosing top-level statements",
+                    e));
+                return null;
+            }
+        }
+    }
+
     public ITypedRegion getPartition(int offset)
     {
         return getPartition(offset, false);
@@ -218,15 +431,124 @@ public class PerlPartitioner implements
         return ret;
     }
     
+    /**
+     * @return the current list of tokens; the caller must hold the lock
+     *         returned by {@link #getTokensLock} while examining it
+     */
     public List<PerlToken> getTokens()
     {
         return Collections.unmodifiableList(tokens);
     }
     
+    /**
+     * @return a copy of the document which matches the current tokens,
+     *         or null if the document is being changed by another thread
+     *         (in which case the tokens will change soon); the caller must
+     *         hold the lock returned by {@link #getTokensLock} while
+     *         calling this method
+     */
+    public IDocument getDocumentSnapshot()
+    {
+        if (changePending) return null;
+
+        String text;
+        try
+        {
+            text = doc.get();
+        }
+        catch (RuntimeException e)
+        {
+            // the text store was modified by another thread while we read it
+            return null;
+        }
+
+        // A change which began while we read the text cannot have completed
+        // because documentChanged2 waits for TOKENS_LOCK, so it is still
+        // pending; changes of which we were not notified are recognized
+        // by the modification stamp
+        if (changePending || getModificationStamp() != tokensStamp) return null;
+        return new Document(text);
+    }
+    
+    /**
+     * @param textSource    document from which texts of the copied tokens
+     *                      are read, usually obtained from
+     *                      {@link #getDocumentSnapshot}
+     * @return an immutable copy of the current list of tokens;
+     *         the caller must hold the lock returned by
+     *         {@link #getTokensLock} while calling this method
+     */
+    public List<PerlToken> getTokensSnapshot(IDocument textSource)
+    {
+        return Collections.unmodifiableList(tokens.copy(textSource));
+    }
+    
     public Object getTokensLock()
     {
         return TOKENS_LOCK;
     }
+    
+    /**
+     * @return the region in which tokens have changed since the given
+     *         version of the tokens (in coordinates of the current document),
+     *         including all changes reported by {@link #documentChanged2}
+     *         in between; tokens outside of this region were only shifted.
+     *         An empty region is returned if the tokens have not changed.
+     *         If the given version is too old, null is returned.
+     *         The caller must hold the lock returned by
+     *         {@link #getTokensLock} while calling this method.
+     * @see #getLengthDelta(int)
+     */
+    public IRegion getChangedRegion(int sinceVersion)
+    {
+        if (!isChangeLogged(sinceVersion)) return null;
+        if (sinceVersion == tokensVersion) return new Region(0, 0);
+        
+        // Regions reported for successive changes are combined by taking
+        // the minimum of their starts and the minimum of the lengths of
+        // unchanged text which follows them. This works because a change
+        // does not move the text before its region or after its end.
+        int start = Integer.MAX_VALUE;
+        int tail = Integer.MAX_VALUE;
+        for (int v = sinceVersion + 1; v <= tokensVersion; v++)
+        {
+            int i = v % CHANGE_LOG_SIZE;
+            start = Math.min(start, changeStarts[i]);
+            tail = Math.min(tail, changeTails[i]);
+        }
+        int end = Math.max(start, doc.getLength() - tail);
+        return new Region(start, end - start);
+    }
+    
+    /**
+     * @return the difference between the current document's length and
+     *         its length at the given version of the tokens, which is
+     *         also the distance by which tokens following the region
+     *         returned by {@link #getChangedRegion} have been shifted,
+     *         or 0 if the given version is too old.
+     *         The caller must hold the lock returned by
+     *         {@link #getTokensLock} while calling this method.
+     */
+    public int getLengthDelta(int sinceVersion)
+    {
+        if (!isChangeLogged(sinceVersion)) return 0;
+
+        int delta = 0;
+        for (int v = sinceVersion + 1; v <= tokensVersion; v++)
+            delta += changeDeltas[v % CHANGE_LOG_SIZE];
+        return delta;
+    }
+
+    /**
+     * @return a counter which is incremented whenever the list returned
+     *         by {@link #getTokens} changes; the caller must hold the lock
+     *         returned by {@link #getTokensLock} while calling this method
+     *         and examining the tokens
+     */
+    public int getTokensVersion()
+    {
+        return tokensVersion;
+    }
 
     public void startRewriteSession(DocumentRewriteSession session)
         throws IllegalStateException
@@ -240,9 +562,61 @@ public class PerlPartitioner implements
     public void stopRewriteSession(DocumentRewriteSession session)
     {
         activeRewriteSession = null;
-        initialize(); // reset state, e.g. after a series of find-replace operations
+
+        // tokens have been updated incrementally during the session;
+        // only reset state after sessions which might have rewritten large
+        // parts of the document, e.g. a series of find-replace operations
+        if (session.getSessionType() != DocumentRewriteSessionType.UNRESTRICTED_SMALL)
+            initialize();
     }
     
+    /**
+     * @param i         index of a semicolon or closing curly brace which
+     *                  might terminate a top-level statement
+     * @param block     true if the token is a closing curly brace
+     * @return offset of the line following the statement terminated by
+     *         the token, or -1 if the statement continues after the token
+     *         (e.g. with an else block) or the following line is not
+     *         a statement (e.g. the body of a here-document)
+     */
+    private int getStatementEnd(int i, boolean block) throws BadLocationException
+    {
+        int line = doc.getLineOfOffset(tokens.getOffset(i) + tokens.getLength(i));
+        int cut = line + 1 < doc.getNumberOfLines()
+            ? doc.getLineOffset(line + 1)
+            : doc.getLength();
+
+        int tokenCount = tokens.size();
+        for (int j = i + 1; j < tokenCount; j++)
+        {
+            int type = tokens.getType(j);
+            if (type == PerlTokenTypes.WS || type == PerlTokenTypes.COMMENT) continue;
+            if (tokens.getOffset(j) < cut) return -1;
+            if (type == PerlTokenTypes.CLOSE_HEREDOC) return -1;
+            if (block && isStatementContinuation(j)) return -1;
+            break;
+        }
+        return cut;
+    }
+
+    /**
+     * @return true if the token with the given index can only
+     *         continue the statement which precedes it
+     */
+    private boolean isStatementContinuation(int i) throws BadLocationException
+    {
+        if (tokens.getType(i) == PerlTokenTypes.SEMI || tokens.isOperator(i))
+            return true;
+
+        int length = tokens.getLength(i);
+        if (length > 8) return false;
+        String text = doc.get(tokens.getOffset(i), length);
+        return
+            text.equals("else") || text.equals("elsif") ||
+            text.equals("continue") || text.equals("and") ||
+            text.equals("or") || text.equals("xor");
+    }
+
     private void computeLastUnaffectedTokenI(DocumentEvent event)
     {
         try
@@ -252,51 +626,46 @@ public class PerlPartitioner implements
             
             if (lastUnaffectedTokenI >= 0)
             {
-                PerlToken t = (PerlToken) tokens.get(lastUnaffectedTokenI);
-                if (t.includes(event.getOffset())) lastUnaffectedTokenI--;                
+                int tOffset = tokens.getOffset(lastUnaffectedTokenI);
+                if (tOffset <= event.getOffset() &&
+                    event.getOffset() < tOffset + tokens.getLength(lastUnaffectedTokenI))
+                {
+                    lastUnaffectedTokenI--;
+                }
             }
             else lastUnaffectedTokenI = -1;
             
-            // scan back for a curly brace
-            while (lastUnaffectedTokenI >= 0)
+            // scan back for a lexer state checkpoint on a line preceding
+            // the change; tokens on the changed line are always re-lexed
+            // because the lexer might have looked ahead into the changed
+            // text when emitting them
+            int line = event.getDocument().getLineOfOffset(event.getOffset()) + 1;
+            while (lastUnaffectedTokenI >= 0 &&
+                   (tokens.getLine(lastUnaffectedTokenI) >= line ||
+                    tokens.getState(lastUnaffectedTokenI) == LexerState.NONE))
             {
-                PerlToken t = (PerlToken) tokens.get(lastUnaffectedTokenI);
-                PerlToken prevT = lastUnaffectedTokenI > 0
-                    ? (PerlToken) tokens.get(lastUnaffectedTokenI-1)
-                    : null;
-    
-                if (t.getType() == PerlTokenTypes.OPEN_CURLY &&
-                    (prevT == null || prevT.getType() != PerlTokenTypes.OPER_ARROW))
-                {
-                    break;
-                }
-                else lastUnaffectedTokenI--;
+                lastUnaffectedTokenI--;
             }
         }
+        catch (BadLocationException e)
+        {
+            lastUnaffectedTokenI = -1;
+        }
         finally
         {
             assert lastUnaffectedTokenI == -1 ||
-                   tokens.get(lastUnaffectedTokenI) instanceof CurlyToken;
+                   tokens.getState(lastUnaffectedTokenI) != LexerState.NONE;
         }
     }
     
     private void computeSyncTokenI(DocumentEvent event)
     {
+        // the first token which starts after the changed text
         int offset = event.getOffset() + event.getLength();
         syncTokenI = tokens.getTokenIndexPreceding(offset);
         
-        if (syncTokenI < 0) syncTokenI = -1;
-        else
-        {
-            // We add some extra tokens to syncTokenI in order to
-            // hit a token after the current line. This is important
-            // for performance when commenting out single lines in
-            // a large file - we want the sync token to be found
-            // and all tokens on the present line vanish because of
-            // the comment action:
-            syncTokenI += 50;
-            if (syncTokenI >= tokens.size()) syncTokenI = -1;
-        }
+        if (syncTokenI < 0 || tokens.getOffset(syncTokenI) < offset) syncTokenI++;
+        if (syncTokenI >= tokens.size()) syncTokenI = -1;
     }
     
     private IRegion documentChanged2Impl(DocumentEvent event)
@@ -307,74 +676,89 @@ public class PerlPartitioner implements
         if (repl == null) repl = "";
         int shiftDelta = repl.length() - event.getLength();
 
-        PerlToken sync;
+        // The tokens following the changed text are the sync tokens.
+        // We can stop re-lexing as soon as the lexer is about to emit
+        // a token at the (shifted) offset of a sync token in the same
+        // state as when the sync token was emitted before: from there on,
+        // the lexer would emit the same tokens again.
+        boolean sync;
         if (syncTokenI >= 0 && syncTokenI < tokens.size())
         {          
-            sync = (PerlToken) tokens.get(syncTokenI);
-            sync.shift(shiftDelta, 0);
-            tokens.markSync(syncTokenI+1);
+            sync = true;
+            tokens.markSync(syncTokenI);
         }
         else
         {
-            sync = null;
+            sync = false;
         }
 
-        CurlyToken parseStartCurly;
         int parseStartOffset;
+        int firstNewTokenI = Math.max(lastUnaffectedTokenI, 0);
         if (lastUnaffectedTokenI >= 0)
         {
-            parseStartCurly = (CurlyToken) tokens.get(lastUnaffectedTokenI);
-            parseStartOffset = parseStartCurly.getOffset();
+            parseStartOffset = tokens.getOffset(lastUnaffectedTokenI);
+            lexer.reset(doc, parseStartOffset, tokens.getState(lastUnaffectedTokenI));
             tokens.truncate(lastUnaffectedTokenI);
         }
         else
         {
             parseStartOffset = 0;
-            parseStartCurly = null;
+            lexer.reset(null, doc, null);
             tokens.truncate(0);
         }
-        lexer.reset(null, doc, parseStartCurly);
         try
         {
+            int syncI = 0;
+            int syncCount = sync ? tokens.getSyncCount() : 0;
+            int state = lexer.getState();
             PerlToken t;
             while ((t = nextToken(lexer)).getType() != Token.EOF_TYPE)
             {
-                if (t.equals(sync))
-                {
-                    int lineShiftDelta = t.getLine() - sync.getLine();
-                    tokens.add(t);
+                int tOffset = t.getOffset();
+                while (syncI < syncCount &&
+                       tokens.getSyncOffset(syncI) + shiftDelta < tOffset) syncI++;
 
+                if (syncI < syncCount &&
+                    tokens.getSyncOffset(syncI) + shiftDelta == tOffset &&
+                    LexerState.isSameLexicalState(state, tokens.getSyncState(syncI)))
+                {
                     // add remaining tokens unchanged, except for shifted
                     // token offsets and possibly adjusted bracket
                     // nesting levels
+
+                    int lineShiftDelta = t.getLine() - tokens.getSyncLine(syncI);
+                    int levelDelta =
+                        LexerState.getCurlyLevel(state) -
+                        LexerState.getCurlyLevel(tokens.getSyncState(syncI));
                     
                     int start = tokens.size();
-                    tokens.addSync();
-                    int pc = lexer.getCurlyLevel();
+                    tokens.addSync(syncI);
                     int tokenCount = tokens.size();
 
                     for (int i = start; i < tokenCount; i++)
                     {
-                        PerlToken pt = (PerlToken) tokens.get(i);
-                        pt.shift(shiftDelta, lineShiftDelta);
-                        if (pt instanceof CurlyToken)
-                        {
-                            if (pt.getType() == PerlTokenTypes.OPEN_CURLY)
-                            {
-                                ((CurlyToken) pt).setLevel(pc);
-                                pc++;
-                            }
-                            else
-                            {
-                                pc--;
-                                ((CurlyToken) pt).setLevel(pc);
-                            }
-                        }
+                        tokens.shift(i, shiftDelta, lineShiftDelta);
+                        if (levelDelta != 0) tokens.shiftLevel(i, levelDelta);
                     }
                     assert tokens.noOverlaps();
-                    return new Region(parseStartOffset, sync.getOffset() - parseStartOffset);
+
+                    if (identifiers != null)
+                    {
+                        identifiers.update(
+                            parseStartOffset, tOffset - shiftDelta, shiftDelta);
+                        indexIdentifiers(doc, firstNewTokenI, start);
+                    }
+                    
+                    // changed nesting levels of the following curlies are
+                    // reported as a change up to the end of the document
+                    logChange(
+                        parseStartOffset,
+                        levelDelta == 0 ? tOffset : doc.getLength(),
+                        shiftDelta);
+                    return new Region(parseStartOffset, tOffset - parseStartOffset);
                 }
-                else tokens.add(t);
+                else tokens.add(t, state);
+                state = lexer.getState();
             }
         }
         catch (TokenStreamException e)
@@ -405,9 +789,175 @@ public class PerlPartitioner implements
         }
         
         initialized = true;
+        if (identifiers != null)
+        {
+            if (parseStartOffset == 0) identifiers.clear();
+            else identifiers.update(
+                parseStartOffset, doc.getLength() - shiftDelta, shiftDelta);
+            indexIdentifiers(doc, firstNewTokenI, tokens.size());
+        }
+        logChange(parseStartOffset, doc.getLength(), shiftDelta);
         return new Region(parseStartOffset, doc.getLength() - parseStartOffset);    
     }
     
+    /**
+     * @return the document's modification stamp, or
+     *         {@link IDocumentExtension4#UNKNOWN_MODIFICATION_STAMP}
+     */
+    private long getModificationStamp()
+    {
+        return doc instanceof IDocumentExtension4
+            ? ((IDocumentExtension4) doc).getModificationStamp()
+            : IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+    }
+
+    private IdentifierIndex getIdentifiers()
+    {
+        if (!initialized) initialize();
+        if (identifiers == null)
+        {
+            // The caller's thread does not own the document, which may be
+            // changed by the UI thread while we read it; the index is built
+            // from a copy which matches the tokens, if one can be made
+            IDocument text = getDocumentSnapshot();
+            if (text == null) return null;
+            identifiers = new IdentifierIndex();
+            indexIdentifiers(text, 0, tokens.size());
+        }
+        return identifiers;
+    }
+
+    /**
+     * @return the scope index for the current tokens, or null if it
+     *         could not be built; the caller must hold TOKENS_LOCK
+     */
+    private ScopeIndex getScopes()
+    {
+        if (!initialized) initialize();
+        if (scopes != null && scopesVersion == tokensVersion) return scopes;
+        
+        try
+        {
+            // built from a copy of the document, see getIdentifiers
+            IDocument text = getDocumentSnapshot();
+            if (text == null) return null;
+            scopes = new ScopeIndex(tokens, text);
+            scopesVersion = tokensVersion;
+        }
+        catch (BadLocationException e)
+        {
+            // should never occur, the tokens match the document
+            log.log(new Status(
+                IStatus.ERROR,
+                PerlEditorPlugin.getPluginId(),
+                IStatus.OK,
+                "Could not build the scope index",
+                e));
+            scopes = null;
+        }
+        return scopes;
+    }
+
+    /**
+     * Adds identifiers found in the tokens with indices from..to-1
+     * to the identifier index. If the index cannot be updated,
+     * it is discarded, to be rebuilt on the next request.
+     *
+     * @param text  the document or a copy of it which matches the tokens
+     */
+    private void indexIdentifiers(IDocument text, int from, int to)
+    {
+        try
+        {
+            for (int i = from; i < to; i++)
+            {
+                switch (tokens.getType(i))
+                {
+                case PerlTokenTypes.VAR:
+                    String name = text.get(tokens.getOffset(i), tokens.getLength(i));
+                    identifiers.add(name, tokens.getOffset(i));
+                    if (name.length() > 1 && name.charAt(1) == '{')
+                        indexReferencedVariables(text, i, 1); // as in: @{$x}
+                    break;
+                case PerlTokenTypes.SPECIAL_VAR:
+                case PerlTokenTypes.PROC_REF:
+                case PerlTokenTypes.WORD:
+                    identifiers.add(
+                        text.get(tokens.getOffset(i), tokens.getLength(i)),
+                        tokens.getOffset(i));
+                    break;
+                case PerlTokenTypes.STRING_BODY:
+                    if (getTokenContentType(i).equals(PartitionTypes.LITERAL1))
+                        indexReferencedVariables(text, i, 0);
+                    break;
+                default:
+                }
+            }
+        }
+        catch (BadLocationException e)
+        {
+            // should never occur, the tokens match the document
+            log.log(new Status(
+                IStatus.ERROR,
+                PerlEditorPlugin.getPluginId(),
+                IStatus.OK,
+                "Could not update the identifier index",
+                e));
+            identifiers = null;
+        }
+    }
+
+    /**
+     * Adds the scalar, array and hash variables referenced in the given
+     * STRING_BODY or dereferencing VAR token to the identifier index.
+     *
+     * @param start index of the token's first character to examine
+     */
+    private void indexReferencedVariables(IDocument doc, int i, int start)
+        throws BadLocationException
+    {
+        int offset = tokens.getOffset(i);
+        String text = doc.get(offset, tokens.getLength(i));
+        int len = text.length();
+        for (int j = start; j < len - 1; j++)
+        {
+            char c = text.charAt(j);
+            char next = text.charAt(j+1);
+            if (c == '\\')
+            {
+                j++; // skip the escaped character
+                continue;
+            }
+            if ((c != '$' && c != '@' && c != '%') ||
+                (!Character.isLetter(next) && next != '_')) continue;
+
+            int end = j + 2;
+            while (end < len)
+            {
+                char d = text.charAt(end);
+                if (Character.isLetterOrDigit(d) || d == '_') end++;
+                else if (d == ':' && end + 2 < len && text.charAt(end+1) == ':' &&
+                         Character.isLetter(text.charAt(end+2))) end += 3;
+                else break;
+            }
+            identifiers.add(text.substring(j, end), offset + j);
+            j = end - 1;
+        }
+    }
+    
+    private boolean isChangeLogged(int version)
+    {
+        return version <= tokensVersion && tokensVersion - version < CHANGE_LOG_SIZE;
+    }
+    
+    private void logChange(int start, int end, int lengthDelta)
+    {
+        int i = tokensVersion % CHANGE_LOG_SIZE;
+        changeStarts[i] = start;
+        changeTails[i] = doc.getLength() - end;
+        changeDeltas[i] = lengthDelta;
+    }
+    
     private ITypedRegion getPartitionImpl(int offset, boolean preferOpenPartitions)
     {
         if (!initialized) initialize();
@@ -420,17 +970,18 @@ public class PerlPartitioner implements
             if (!tokens.isEmpty())
                 return new TypedRegion(
                     0,
-                    ((PerlToken) tokens.get(0)).getOffset(),
+                    tokens.getOffset(0),
                     PartitionTypes.DEFAULT);
             else
                 return new TypedRegion(0, 0, PartitionTypes.DEFAULT);
         }
         else
         {
-            PerlToken t = (PerlToken) tokens.get(i);
-            if (t.includes(offset))
+            int tOffset = tokens.getOffset(i);
+            int tEnd = tOffset + tokens.getLength(i);
+            if (tOffset <= offset && offset < tEnd)
             {
-                if (preferOpenPartitions && t.getOffset() == offset)
+                if (preferOpenPartitions && tOffset == offset)
                 {
                     // imaginary zero-length open partition before each token
                     return new TypedRegion(offset, 0, PartitionTypes.DEFAULT);
@@ -438,48 +989,46 @@ public class PerlPartitioner implements
                 else
                 {
                     if (i > 0 &&
-                        t.getOffset() == offset &&
-                        t.getType() == PerlTokenTypes.WS)
+                        tOffset == offset &&
+                        tokens.getType(i) == PerlTokenTypes.WS)
                     {
                         // if we are asked for partition at the beginning of
                         // a whitespace token following a non-whitespace token
                         // and preferOpenPartitions is false, we return the
                         // previous non-whitespace partition instead
                         
-                        PerlToken t2 = (PerlToken) tokens.get(i-1);
-                        if (t2.getOffset() + t2.getLength() == offset)
+                        if (tokens.getOffset(i-1) + tokens.getLength(i-1) == offset)
                         {
-                            return token2Region(t2, i-1);
+                            return token2Region(i-1);
                         }
-                        else return token2Region(t, i);
+                        else return token2Region(i);
                     }
-                    else return token2Region(t, i);
+                    else return token2Region(i);
                 }
             }
 
             if (i < tokens.size() - 1)
             {
                 // offset lies in a gap between tokens
-                PerlToken t2 = (PerlToken) tokens.get(i+1);
                 return new TypedRegion(
-                    t.getOffset() + t.getLength(),
-                    t2.getOffset() - (t.getOffset() + t.getLength()),
+                    tEnd,
+                    tokens.getOffset(i+1) - tEnd,
                     PartitionTypes.DEFAULT);
             }
             else                
             {
                 // offset lies after the last token
                 return new TypedRegion(
-                    t.getOffset() + t.getLength(),
-                    doc.getLength() - (t.getOffset() + t.getLength()),
+                    tEnd,
+                    doc.getLength() - tEnd,
                     PartitionTypes.DEFAULT);
             }
         }
     }
     
-    private String getTokenContentType(PerlToken t, int i)
+    private String getTokenContentType(int i)
     {   
-        switch (t.getType())
+        switch (tokens.getType(i))
         {
         case PerlTokenTypes.COMMENT:
             return PartitionTypes.COMMENT;
@@ -514,13 +1063,13 @@ public class PerlPartitioner implements
         case PerlTokenTypes.STRING_BODY:
         case PerlTokenTypes.STRING_SUFFIX:
             return i > 0
-                ? getTokenContentType((PerlToken) tokens.get(i-1), i-1)
+                ? getTokenContentType(i-1)
                 : PartitionTypes.DEFAULT;
         case PerlTokenTypes.NUMBER:
             return PartitionTypes.NUMBER;
         default:
-            if (t instanceof OperatorToken ||
-                t instanceof CurlyToken) return PartitionTypes.OPERATOR;
+            if (tokens.isOperator(i) ||
+                tokens.isCurly(i)) return PartitionTypes.OPERATOR;
             else return PartitionTypes.DEFAULT;
         }
     }
@@ -566,11 +1115,11 @@ public class PerlPartitioner implements
         }
     }
     
-    private TypedRegion token2Region(PerlToken t, int i)
+    private TypedRegion token2Region(int i)
     {
         return new TypedRegion(
-            t.getOffset(),
-            t.getLength(),
-            getTokenContentType(t, i));
+            tokens.getOffset(i),
+            tokens.getLength(i),
+            getTokenContentType(i));
     }
 }
\ No newline at end of file
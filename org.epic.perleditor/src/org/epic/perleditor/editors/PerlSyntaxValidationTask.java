@@ -0,0 +1,116 @@
+package org.epic.perleditor.editors;
+
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.*;
+import org.eclipse.jface.text.*;
+import org.eclipse.jface.text.source.ISourceViewer;
+import org.epic.perleditor.PerlEditorPlugin;
+import org.epic.perleditor.editors.util.*;
+
+/**
+ * Validates the syntax of a document edited in a PerlEditor.
+ * Validations are run by worker threads of the {@link EditorScheduler},
+ * which are shared by all editors. Requests for validation which arrive
+ * while a previous request is still waiting or running are coalesced:
+ * only the most recent text of the document is validated.
+ *
+ * @author Igor Alexeiuk <aie at mailru.com>
+ * @author skoehler
+ * @author jploski
+ */
+public class PerlSyntaxValidationTask
+    implements IdleTimerListener, Runnable
+{      
+    private final Object lock = new Object();
+    
+    private IResource resource;
+    private IDocument document;
+    private String code;
+    private int exceptions;
+    private boolean disposed;
+
+    /**
+     * Releases resources. A pending validation request is discarded.
+     */
+    public void dispose()
+    {
+        synchronized (lock)
+        {
+            disposed = true;
+            code = null;
+        }
+        EditorScheduler.instance().cancel(this);
+    }
+    
+    /**
+     * This notification only occurs for the visible editor,
+     * so the validation is urgent.
+     */
+    public void onEditorIdle(ISourceViewer viewer)
+    {
+        validate(true);
+    }
+    
+    public void revalidate()
+    {
+        validate(true);
+    }
+    
+    public void setDocument(IResource resource, IDocument document)
+    {
+        synchronized (lock)
+        {
+            this.document = document;
+            this.resource = resource;
+        }
+        if (document != null) validate(false);
+    }
+
+    /**
+     * Validates the most recently submitted text, if any.
+     * This method is only intended to be called by the EditorScheduler.
+     */
+	public void run()
+    {
+        String text;
+        IResource resource;
+        synchronized (lock)
+        {
+            if (code == null) return;
+            text = code;
+            resource = this.resource;
+            code = null;
+        }
+            
+        try { PerlValidator.instance().validate(resource, text); }
+        catch (CoreException e)
+        {
+            if (PerlEditorPlugin.getDefault().hasPerlInterpreter() &&
+                ++exceptions < 5) // avoid spamming the log
+            {
+                PerlEditorPlugin.getDefault().getLog().log(
+                    new MultiStatus(
+                        PerlEditorPlugin.getPluginId(),
+                        IStatus.OK,
+                        new IStatus[] { e.getStatus() },
+                        "An unexpected exception occurred while validating " +
+                        resource.getProjectRelativePath(),
+                        e));
+            }
+        }
+	}
+
+    /**
+     * @param urgent    true if the validation should be run before
+     *                  validations requested by other (invisible) editors
+     */
+	private void validate(boolean urgent)
+    {
+        synchronized (lock)
+        {
+            if (disposed || document == null) return;
+            code = document.get();
+        }
+        EditorScheduler.instance().submit(this, urgent);
+	}
+}
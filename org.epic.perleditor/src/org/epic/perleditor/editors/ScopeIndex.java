@@ -0,0 +1,357 @@
+package org.epic.perleditor.editors;
+
+import java.util.*;
+
+import org.eclipse.jface.text.*;
+import org.epic.core.parser.PerlTokenTypes;
+
+/**
+ * An index of variable declarations (my, our, local, state) and
+ * the curly blocks which delimit their scopes, built by PerlPartitioner
+ * from its tokens. The blocks are recovered from the nesting levels of
+ * curly tokens, so that an unbalanced closing curly only ends the blocks
+ * opened at deeper levels. A declaration is visible from its offset to
+ * the end of the enclosing block; a declaration of a foreach loop
+ * variable is visible to the end of the loop's block.
+ * <p>
+ * Declarations and blocks are stored in the order of their offsets,
+ * so that the declarations visible at a given position can be found
+ * with a binary search followed by a walk up the (shallow) chain of
+ * enclosing blocks.
+ * </p>
+ */
+class ScopeIndex
+{
+    private int blockCount;
+    private int[] blockStarts = new int[64];
+    private int[] blockEnds = new int[64];
+    private int[] blockParents = new int[64];
+    private int[] blockLevels = new int[64];
+    private IntList[] blockDecls = new IntList[64];
+
+    private int declCount;
+    private int[] declOffsets = new int[64];
+    private int[] declLengths = new int[64];
+    private int[] declBlocks = new int[64];
+    private boolean[] declLexical = new boolean[64];
+    private final Map<String, IntList> declsByName = new HashMap<String, IntList>();
+
+    /**
+     * Builds the index from the given tokens of the given document.
+     */
+    public ScopeIndex(TokensList tokens, IDocument doc) throws BadLocationException
+    {
+        addBlock(0, Integer.MAX_VALUE, -1, -1); // file scope
+
+        IntList stack = new IntList();
+        stack.add(0);
+        List<Integer> foreachDecls = new ArrayList<Integer>();
+        int foreachParens = 0; // nesting of parens in the foreach list
+        int prevKeyword = -1;
+        int tokenCount = tokens.size();
+
+        for (int i = 0; i < tokenCount; i++)
+        {
+            int type = tokens.getType(i);
+            if (type == PerlTokenTypes.OPEN_CURLY && tokens.isCurly(i))
+            {
+                int b = addBlock(
+                    tokens.getOffset(i), Integer.MAX_VALUE,
+                    stack.get(stack.size() - 1), tokens.getLevel(i));
+                stack.add(b);
+
+                if (foreachParens == 0)
+                {
+                    for (Iterator<Integer> j = foreachDecls.iterator(); j.hasNext();)
+                        addDeclToBlock(j.next().intValue(), b);
+                    foreachDecls.clear();
+                }
+            }
+            else if (type == PerlTokenTypes.CLOSE_CURLY && tokens.isCurly(i))
+            {
+                // blocks left open at deeper levels end here, too
+                int level = tokens.getLevel(i);
+                int offset = tokens.getOffset(i);
+                while (stack.size() > 1)
+                {
+                    int b = stack.get(stack.size() - 1);
+                    if (blockLevels[b] < level) break;
+                    blockEnds[b] = offset;
+                    stack.removeLast();
+                    if (blockLevels[b] == level) break;
+                }
+            }
+            else if (type == PerlTokenTypes.OPEN_PAREN && !foreachDecls.isEmpty())
+            {
+                foreachParens++;
+            }
+            else if (type == PerlTokenTypes.CLOSE_PAREN && !foreachDecls.isEmpty())
+            {
+                foreachParens--;
+            }
+            else if (type == PerlTokenTypes.KEYWORD1)
+            {
+                String keyword = doc.get(tokens.getOffset(i), tokens.getLength(i));
+                boolean lexical = keyword.equals("my") || keyword.equals("state");
+                if (lexical || keyword.equals("our") || keyword.equals("local"))
+                {
+                    boolean foreach = prevKeyword != -1 && isForeach(
+                        doc.get(tokens.getOffset(prevKeyword), tokens.getLength(prevKeyword)));
+                    int first = declCount;
+                    i = addDecls(tokens, doc, i + 1, lexical);
+                    for (int d = first; d < declCount; d++)
+                    {
+                        if (foreach) foreachDecls.add(new Integer(d));
+                        else addDeclToBlock(d, stack.get(stack.size() - 1));
+                    }
+                    foreachParens = 0;
+                    prevKeyword = -1;
+                }
+                else prevKeyword = i;
+                continue;
+            }
+            if (type != PerlTokenTypes.WS && type != PerlTokenTypes.COMMENT) prevKeyword = -1;
+        }
+
+        // a foreach loop without a block, as when the file ends prematurely
+        for (Iterator<Integer> j = foreachDecls.iterator(); j.hasNext();)
+            addDeclToBlock(j.next().intValue(), stack.get(stack.size() - 1));
+    }
+
+    /**
+     * @return offset of the declaration of the given variable which
+     *         is visible at the given offset, or -1 if there is none
+     *         or the variable is a package variable (declared with our
+     *         or local)
+     */
+    public int getDeclarationOffset(String name, int offset)
+    {
+        int d = findDecl(name, offset);
+        return d != -1 && declLexical[d] ? declOffsets[d] : -1;
+    }
+
+    /**
+     * @return true if the given variable is declared with my or state
+     *         anywhere in the document; for a scalar, a declaration of
+     *         an array or hash of the same name also counts, because
+     *         its elements are accessed as in: $x[0], $x{a}
+     */
+    public boolean hasLexicalDeclaration(String name)
+    {
+        if (hasLexicalDeclaration0(name)) return true;
+        if (!name.startsWith("$")) return false;
+
+        String rest = name.substring(1);
+        return hasLexicalDeclaration0("@" + rest) || hasLexicalDeclaration0("%" + rest);
+    }
+
+    /**
+     * @return regions of the declared variables which are visible at
+     *         the given offset, innermost scope first, and the most recent
+     *         declaration first within a scope
+     */
+    public List<IRegion> getVisibleDeclarations(int offset)
+    {
+        List<IRegion> ret = new ArrayList<IRegion>();
+        for (int b = findBlock(offset); b != -1; b = blockParents[b])
+        {
+            IntList decls = blockDecls[b];
+            if (decls == null) continue;
+            for (int j = decls.indexAfter(declOffsets, offset) - 1; j >= 0; j--)
+            {
+                int d = decls.get(j);
+                ret.add(new Region(declOffsets[d], declLengths[d]));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Adds declarations of the variables which follow a my, our, local
+     * or state keyword, either a single variable or a parenthesized list.
+     *
+     * @param i     index of the token following the keyword
+     * @return index of the last token which belongs to the declaration
+     */
+    private int addDecls(TokensList tokens, IDocument doc, int i, boolean lexical)
+        throws BadLocationException
+    {
+        int tokenCount = tokens.size();
+        boolean list = false;
+        for (; i < tokenCount; i++)
+        {
+            int type = tokens.getType(i);
+            if (type == PerlTokenTypes.VAR)
+            {
+                int offset = tokens.getOffset(i);
+                int length = tokens.getLength(i);
+                addDecl(doc.get(offset, length), offset, length, lexical);
+                if (!list) return i;
+            }
+            else if (type == PerlTokenTypes.OPEN_PAREN && !list) list = true;
+            else if (type == PerlTokenTypes.CLOSE_PAREN && list) return i;
+            else if (list
+                ? type == PerlTokenTypes.SEMI || tokens.isCurly(i)
+                : type != PerlTokenTypes.WS &&
+                  type != PerlTokenTypes.COMMENT &&
+                  type != PerlTokenTypes.WORD) // as in: my Dog $spot
+            {
+                return i - 1;
+            }
+        }
+        return i - 1;
+    }
+
+    private void addDecl(String name, int offset, int length, boolean lexical)
+    {
+        if (declCount == declOffsets.length)
+        {
+            int n = declCount * 2;
+            declOffsets = copy(declOffsets, n);
+            declLengths = copy(declLengths, n);
+            declBlocks = copy(declBlocks, n);
+            boolean[] tmp = declLexical;
+            declLexical = new boolean[n];
+            System.arraycopy(tmp, 0, declLexical, 0, declCount);
+        }
+        declOffsets[declCount] = offset;
+        declLengths[declCount] = length;
+        declLexical[declCount] = lexical;
+
+        IntList decls = declsByName.get(name);
+        if (decls == null)
+        {
+            decls = new IntList();
+            declsByName.put(name, decls);
+        }
+        decls.add(declCount);
+        declCount++;
+    }
+
+    private void addDeclToBlock(int d, int b)
+    {
+        declBlocks[d] = b;
+        if (blockDecls[b] == null) blockDecls[b] = new IntList();
+        blockDecls[b].add(d);
+    }
+
+    private int addBlock(int start, int end, int parent, int level)
+    {
+        if (blockCount == blockStarts.length)
+        {
+            int n = blockCount * 2;
+            blockStarts = copy(blockStarts, n);
+            blockEnds = copy(blockEnds, n);
+            blockParents = copy(blockParents, n);
+            blockLevels = copy(blockLevels, n);
+            IntList[] tmp = blockDecls;
+            blockDecls = new IntList[n];
+            System.arraycopy(tmp, 0, blockDecls, 0, blockCount);
+        }
+        blockStarts[blockCount] = start;
+        blockEnds[blockCount] = end;
+        blockParents[blockCount] = parent;
+        blockLevels[blockCount] = level;
+        return blockCount++;
+    }
+
+    /**
+     * @return index of the innermost block which contains the given offset
+     */
+    private int findBlock(int offset)
+    {
+        // the last block starting before the offset is nested within
+        // the innermost block containing the offset (or is this block)
+        int b = Arrays.binarySearch(blockStarts, 0, blockCount, offset);
+        b = b >= 0 ? b : -(b+1) - 1;
+        while (b > 0 && blockEnds[b] < offset) b = blockParents[b];
+        return Math.max(b, 0);
+    }
+
+    /**
+     * @return index of the declaration of the given variable which
+     *         is visible at the given offset, or -1 if there is none
+     */
+    private int findDecl(String name, int offset)
+    {
+        IntList decls = declsByName.get(name);
+        if (decls == null) return -1;
+
+        // the most recent declaration whose scope has not ended yet
+        for (int j = decls.indexAfter(declOffsets, offset) - 1; j >= 0; j--)
+        {
+            int d = decls.get(j);
+            if (blockEnds[declBlocks[d]] >= offset) return d;
+        }
+        return -1;
+    }
+
+    private boolean hasLexicalDeclaration0(String name)
+    {
+        IntList decls = declsByName.get(name);
+        if (decls == null) return false;
+
+        for (int j = 0; j < decls.size(); j++)
+            if (declLexical[decls.get(j)]) return true;
+        return false;
+    }
+
+    private static boolean isForeach(String keyword)
+    {
+        return keyword.equals("for") || keyword.equals("foreach");
+    }
+
+    private static int[] copy(int[] array, int length)
+    {
+        int[] ret = new int[length];
+        System.arraycopy(array, 0, ret, 0, Math.min(array.length, length));
+        return ret;
+    }
+
+    /**
+     * A growable list of declaration (or block) indices.
+     */
+    private static class IntList
+    {
+        private int[] values = new int[4];
+        private int size;
+
+        public void add(int value)
+        {
+            if (size == values.length) values = copy(values, size * 2);
+            values[size++] = value;
+        }
+
+        public int get(int i)
+        {
+            return values[i];
+        }
+
+        /**
+         * @return the number of leading declarations whose offsets,
+         *         as given by the offsets array, are <= the given offset;
+         *         the list must be sorted by these offsets
+         */
+        public int indexAfter(int[] offsets, int offset)
+        {
+            int low = 0, high = size;
+            while (low < high)
+            {
+                int mid = (low + high) >>> 1;
+                if (offsets[values[mid]] <= offset) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        public void removeLast()
+        {
+            size--;
+        }
+
+        public int size()
+        {
+            return size;
+        }
+    }
+}
@@ -5,16 +5,20 @@ import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.*;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
 import org.eclipse.ui.IEditorInput;
 import org.eclipse.ui.IFileEditorInput;
 import org.eclipse.ui.texteditor.IDocumentProvider;
+import org.eclipse.ui.texteditor.MarkerUtilities;
+import org.epic.core.model.SourceFile;
 import org.epic.core.parser.PerlToken;
 import org.epic.core.parser.PerlTokenTypes;
 import org.epic.perleditor.PerlEditorPlugin;
-import org.epic.perleditor.editors.util.MarkerUtil;
 import org.epic.perleditor.preferences.ITaskTagConstants;
 import org.epic.perleditor.preferences.TaskTagPreferences;
 
@@ -22,121 +26,415 @@ import org.epic.perleditor.preferences.TaskTagPreferences;
  * Scans an edited Perl source file for task markers,
  * adding/removing corresponding IMarkers to/from the resource
  * representing the source file.
- * 
+ * <p>
+ * Only comments within the region of tokens changed since the previous
+ * scan are examined; tasks found earlier outside of this region are
+ * taken over (and shifted if necessary). All task tags are searched for
+ * with a single pattern. The markers are compared with the found tasks
+ * and only the differences are applied, in a single workspace operation;
+ * the markers of tasks which have only been shifted are moved.
+ * </p>
+ *
  * @author jploski
  */
 public class TasksReconciler
 {
     private static final String EPIC_AUTOGENERATED = "epic.autogenerated";
-    
+
     private final PerlEditor editor;
-    private Pattern[] TODO_PATTERNS;
-    private boolean allowWhiteSpace;
-    private MarkerUtil markerUtil;
-    
+    private volatile TaskList appliedTasks;
+    private String tagPatternKey;
+    private Pattern tagPattern;
+
     public TasksReconciler(PerlEditor editor)
     {
         this.editor = editor;
 
     }
-    
+
     public void reconcile()
     {
         IEditorInput input = (IEditorInput) editor.getEditorInput();
         if (!(input instanceof IFileEditorInput)) return;
-        
+
         IDocumentProvider docProvider = editor.getDocumentProvider();
         if (docProvider == null) return;
-        
+
         IDocument doc = docProvider.getDocument(input);
         if (doc == null) return;
-        
+
         PerlPartitioner partitioner = (PerlPartitioner) PartitionTypes.getPerlPartitioner(doc);
         if (partitioner == null) return;
-        
-        markerUtil = new MarkerUtil(((IFileEditorInput) input).getFile());         
-        markerUtil.clearAllUsedFlags(IMarker.TASK, EPIC_AUTOGENERATED);
-        
-        IPreferenceStore store = PerlEditorPlugin.getDefault().getPreferenceStore();        
-        allowWhiteSpace = store.getBoolean(ITaskTagConstants.ID_WHITESPACE);
-        initSearchPatterns(store);
-        
+
+        TaskList tasks;
         synchronized (partitioner.getTokensLock())
         {
-            List<PerlToken> tokens = partitioner.getTokens();
-            
-            for (Iterator<PerlToken> i = tokens.iterator(); i.hasNext();)
+            tasks = computeTasks(
+                partitioner,
+                partitioner.getTokens(),
+                partitioner.getTokensVersion(),
+                appliedTasks);
+        }
+        applyTasks(tasks);
+    }
+
+    /**
+     * Finds task tags in comments contained in the tokens of the given
+     * snapshot of the given document. Unlike {@link #reconcile()}, this
+     * method does not access markers, so it may be called outside of
+     * the Display thread. The result should be passed to
+     * {@link #applyTasks} on the Display thread, provided that
+     * the snapshot is still current.
+     *
+     * @return the found tasks, or null if the document has changed
+     *         since the snapshot was taken
+     */
+    TaskList computeTasks(IDocument doc, SourceFile.Snapshot snapshot)
+    {
+        PerlPartitioner partitioner = (PerlPartitioner) PartitionTypes.getPerlPartitioner(doc);
+        if (partitioner == null) return null;
+
+        return computeTasks(
+            partitioner, snapshot.getTokens(), snapshot.getVersion(), appliedTasks);
+    }
+
+    /**
+     * Updates task markers of the edited file to match the tasks
+     * obtained from {@link #computeTasks}. Tasks are matched with
+     * the existing markers which have the same message, in the order of
+     * their positions, so that the markers of tasks which have only been
+     * shifted by an edit are kept and just moved. Markers left unmatched
+     * are deleted and new ones are created for tasks left unmatched,
+     * all in a single workspace operation.
+     */
+    void applyTasks(final TaskList tasks)
+    {
+        if (tasks == null) return;
+
+        IEditorInput input = (IEditorInput) editor.getEditorInput();
+        if (!(input instanceof IFileEditorInput)) return;
+
+        final IFile file = ((IFileEditorInput) input).getFile();
+        try
+        {
+            if (!file.exists()) return;
+
+            IMarker[] markers = file.findMarkers(IMarker.TASK, true, IResource.DEPTH_ONE);
+            Arrays.sort(markers, new Comparator<IMarker>() {
+                public int compare(IMarker m1, IMarker m2)
+                {
+                    int s1 = m1.getAttribute(IMarker.CHAR_START, -1);
+                    int s2 = m2.getAttribute(IMarker.CHAR_START, -1);
+                    return s1 < s2 ? -1 : s1 > s2 ? 1 : 0;
+                } });
+
+            // existing markers by message, in the order of their positions
+            Map<String, LinkedList<IMarker>> existing = new HashMap<String, LinkedList<IMarker>>();
+            for (int i = 0; i < markers.length; i++)
+            {
+                if (markers[i].getAttribute(EPIC_AUTOGENERATED) == null) continue;
+
+                String message = markers[i].getAttribute(IMarker.MESSAGE, "");
+                LinkedList<IMarker> list = existing.get(message);
+                if (list == null)
+                {
+                    list = new LinkedList<IMarker>();
+                    existing.put(message, list);
+                }
+                list.add(markers[i]);
+            }
+
+            final List<Task> additions = new ArrayList<Task>();
+            final Map<IMarker, Task> moves = new HashMap<IMarker, Task>();
+            for (Iterator<Task> i = tasks.tasks.iterator(); i.hasNext();)
+            {
+                Task task = i.next();
+                LinkedList<IMarker> list = existing.get(task.text);
+                if (list == null || list.isEmpty())
+                {
+                    additions.add(task);
+                    continue;
+                }
+
+                IMarker marker = list.removeFirst();
+                if (marker.getAttribute(IMarker.CHAR_START, -1) != task.start ||
+                    marker.getAttribute(IMarker.CHAR_END, -1) != task.stop ||
+                    marker.getAttribute(IMarker.LINE_NUMBER, -1) != task.line)
+                {
+                    moves.put(marker, task);
+                }
+            }
+
+            final List<IMarker> deletions = new ArrayList<IMarker>();
+            for (Iterator<LinkedList<IMarker>> i = existing.values().iterator(); i.hasNext();)
+                deletions.addAll(i.next());
+
+            if (!additions.isEmpty() || !deletions.isEmpty() || !moves.isEmpty())
+            {
+                IWorkspaceRunnable update = new IWorkspaceRunnable() {
+                    public void run(IProgressMonitor monitor) throws CoreException
+                    {
+                        IWorkspace workspace = file.getWorkspace();
+                        workspace.deleteMarkers(
+                            deletions.toArray(new IMarker[deletions.size()]));
+
+                        for (Iterator<Map.Entry<IMarker, Task>> i = moves.entrySet().iterator();
+                            i.hasNext();)
+                        {
+                            Map.Entry<IMarker, Task> move = i.next();
+                            moveTaskMarker(move.getKey(), move.getValue());
+                        }
+
+                        for (Iterator<Task> i = additions.iterator(); i.hasNext();)
+                            addTaskMarker(file, i.next());
+                    } };
+
+                IWorkspace workspace = ResourcesPlugin.getWorkspace();
+                workspace.run(
+                    update,
+                    workspace.getRuleFactory().markerRule(file),
+                    IWorkspace.AVOID_UPDATE,
+                    null);
+            }
+            appliedTasks = tasks;
+        }
+        catch (CoreException e)
+        {
+            PerlEditorPlugin.getDefault().getLog().log(e.getStatus());
+        }
+    }
+
+    /**
+     * Finds task tags in comments contained in the given list of tokens.
+     * If the given previous result was obtained with the same task tags
+     * and the partitioner still logs the changes since its tokens version,
+     * only comments within the changed region are examined.
+     * The caller must ensure that the tokens are not modified concurrently.
+     *
+     * @param tokens    tokens of the partitioner, or a copy of them
+     * @param version   version of the partitioner's tokens from which
+     *                  the tokens were obtained
+     * @param previous  a previous result of this method, or null
+     * @return the found tasks, ordered by offset,
+     *         or null if the tokens are no longer current
+     */
+    TaskList computeTasks(
+        PerlPartitioner partitioner, List<PerlToken> tokens, int version, TaskList previous)
+    {
+        Pattern pattern = getTagPattern();
+        if (previous == null || !previous.pattern.equals(pattern)) previous = null;
+
+        IRegion changed = null;
+        int delta = 0;
+        synchronized (partitioner.getTokensLock())
+        {
+            if (partitioner.getTokensVersion() != version) return null;
+            if (previous != null)
+            {
+                changed = partitioner.getChangedRegion(previous.version);
+                delta = partitioner.getLengthDelta(previous.version);
+            }
+        }
+
+        if (changed == null || tokens.isEmpty())
+        {
+            List<Task> tasks = new ArrayList<Task>();
+            parseComments(tasks, tokens, 0, tokens.size(), pattern);
+            return new TaskList(version, pattern, tasks);
+        }
+        if (changed.getLength() == 0 && delta == 0)
+        {
+            return new TaskList(version, pattern, previous.tasks);
+        }
+
+        // re-examine the tokens which overlap the changed region
+        int changedEnd = changed.getOffset() + changed.getLength();
+        int first = Math.max(0, getTokenIndexPreceding(tokens, changed.getOffset()));
+        int last = first;
+        while (last < tokens.size() && tokens.get(last).getOffset() < changedEnd) last++;
+
+        int start = Math.min(changed.getOffset(), tokens.get(first).getOffset());
+        int end = last < tokens.size() ? tokens.get(last).getOffset() : Integer.MAX_VALUE;
+
+        List<Task> tasks = new ArrayList<Task>(previous.tasks.size() + 4);
+        List<Task> oldTasks = previous.tasks;
+        int j = 0;
+
+        // tasks which precede the changed region remain unchanged
+        while (j < oldTasks.size() && oldTasks.get(j).start < start)
+            tasks.add(oldTasks.get(j++));
+
+        parseComments(tasks, tokens, first, last, pattern);
+
+        // tasks which follow the changed region are only shifted
+        while (j < oldTasks.size() && oldTasks.get(j).start + delta < end) j++;
+        if (j < oldTasks.size())
+        {
+            Task task = oldTasks.get(j);
+            int t = getTokenIndexPreceding(tokens, task.start + delta);
+            int lineDelta = tokens.get(t).getLine() - task.line;
+
+            for (; j < oldTasks.size(); j++)
             {
-                PerlToken t = i.next();
-                if (t.getType() == PerlTokenTypes.COMMENT) parseComment(t);
-            }            
+                task = oldTasks.get(j);
+                tasks.add(delta == 0 && lineDelta == 0 ? task : new Task(
+                    task.start + delta, task.stop + delta, task.line + lineDelta, task.text));
+            }
+        }
+        return new TaskList(version, pattern, tasks);
+    }
+
+    /**
+     * @return the pattern which matches a comment character followed
+     *         by one of the configured task tags, the tag being
+     *         captured by the group with the tag's number
+     */
+    protected synchronized Pattern getTagPattern()
+    {
+        IPreferenceStore store = PerlEditorPlugin.getDefault().getPreferenceStore();
+        boolean allowWhiteSpace = store.getBoolean(ITaskTagConstants.ID_WHITESPACE);
+        boolean ignoreCase = store.getBoolean(ITaskTagConstants.ID_IGNORE_CASE);
+        String taskTagList = store.getString(ITaskTagConstants.ID_TASK_TAGS);
+
+        String key = allowWhiteSpace + " " + ignoreCase + " " + taskTagList;
+        if (!key.equals(tagPatternKey))
+        {
+            tagPattern = createTagPattern(
+                TaskTagPreferences.parseStringList(taskTagList),
+                allowWhiteSpace,
+                ignoreCase);
+            tagPatternKey = key;
         }
+        return tagPattern;
+    }
 
-        markerUtil.removeUnusedMarkers(IMarker.TASK, EPIC_AUTOGENERATED);
+    static Pattern createTagPattern(
+        String[] tags, boolean allowWhiteSpace, boolean ignoreCase)
+    {
+        // construct the search string
+        StringBuffer buffy = new StringBuffer();
+        buffy.append("#");
+        if (allowWhiteSpace) buffy.append("\\s*");
+        buffy.append("(?:");
+        for (int i = 0; i < tags.length; i++)
+        {
+            if (i > 0) buffy.append('|');
+            buffy.append("(\\Q");
+            buffy.append(tags[i]);
+            buffy.append("\\E)");
+        }
+        if (tags.length == 0) buffy.append("(?!)"); // matches nothing
+        buffy.append(")");
+        return Pattern.compile(
+            buffy.toString(), ignoreCase ? Pattern.CASE_INSENSITIVE : 0);
     }
-    
-    private void addTaskMarker(int start, int stop, int lineNumber, String text)
+
+    private void addTaskMarker(IFile file, Task task) throws CoreException
     {
         Map<String, Serializable> attributes = new HashMap<String, Serializable>(11);
-        
-        attributes.put(IMarker.CHAR_START, new Integer(start));
-        attributes.put(IMarker.CHAR_END, new Integer(stop));
-        attributes.put(IMarker.LINE_NUMBER, new Integer(lineNumber));
-        attributes.put(IMarker.MESSAGE, text);
+
+        attributes.put(IMarker.CHAR_START, new Integer(task.start));
+        attributes.put(IMarker.CHAR_END, new Integer(task.stop));
+        attributes.put(IMarker.LINE_NUMBER, new Integer(task.line));
+        attributes.put(IMarker.MESSAGE, task.text);
         attributes.put(EPIC_AUTOGENERATED, new Integer(42));
-        markerUtil.addMarker(attributes, IMarker.TASK);
+        MarkerUtilities.createMarker(file, attributes, IMarker.TASK);
     }
-    
-    private void initSearchPatterns(IPreferenceStore store)    
+
+    private void moveTaskMarker(IMarker marker, Task task) throws CoreException
     {
-        int flags =
-            store.getBoolean(ITaskTagConstants.ID_IGNORE_CASE)
-            ? Pattern.CASE_INSENSITIVE
-            : 0;
-        String taskTagList = store.getString(ITaskTagConstants.ID_TASK_TAGS);
-        String[] TODO_STRINGS = TaskTagPreferences.parseStringList(taskTagList);
-        TODO_PATTERNS = new Pattern[TODO_STRINGS.length];
-        
-        for (int i = 0; i < TODO_STRINGS.length; i++)
-        {
-            // construct the search string
-            StringBuffer buffy = new StringBuffer();
-            buffy.append("#");
-            if (allowWhiteSpace) buffy.append("\\s*");
-            buffy.append("\\Q");
-            buffy.append(TODO_STRINGS[i]);
-            buffy.append("\\E");
-            TODO_PATTERNS[i] = Pattern.compile(buffy.toString(), flags);
-        }   
+        marker.setAttributes(
+            new String[] { IMarker.CHAR_START, IMarker.CHAR_END, IMarker.LINE_NUMBER },
+            new Object[] {
+                new Integer(task.start), new Integer(task.stop), new Integer(task.line) });
     }
-    
-    private void parseComment(PerlToken t)
+
+    private void parseComments(
+        List<Task> tasks, List<PerlToken> tokens, int from, int to, Pattern pattern)
     {
-        for (int i = 0; i < TODO_PATTERNS.length; i++)
-            parseComment(t, TODO_PATTERNS[i]);
+        for (int i = from; i < to; i++)
+        {
+            PerlToken t = tokens.get(i);
+            if (t.getType() == PerlTokenTypes.COMMENT) parseComment(tasks, t, pattern);
+        }
     }
-    
-    private void parseComment(PerlToken t, Pattern todoPattern)
+
+    private void parseComment(List<Task> tasks, PerlToken t, Pattern tagPattern)
     {
-        Matcher m = todoPattern.matcher(t.getText());
-        if (!m.find()) return;
-        
-        String todoText = t.getText().substring(m.end()).trim();
-        if (todoText.length() > 0)
+        String text = t.getText();
+        Matcher m = tagPattern.matcher(text);
+        Set<Integer> foundTags = null;
+
+        while (m.find())
         {
-            if(!markerUtil.isMarkerPresent(
-                IMarker.TASK,
-                t.getLine(),
-                todoText,
-                EPIC_AUTOGENERATED,
-                true))
+            // as before the tags were combined into one pattern,
+            // only the first occurrence of each tag counts
+            int tag = 1;
+            while (m.group(tag) == null) tag++;
+            if (foundTags == null) foundTags = new HashSet<Integer>();
+            if (!foundTags.add(new Integer(tag))) continue;
+
+            String todoText = text.substring(m.end()).trim();
+            if (todoText.length() > 0)
             {
-                addTaskMarker(
+                tasks.add(new Task(
                     t.getOffset() + m.start(),
                     t.getOffset() + m.start() + m.group().length() + todoText.length(),
                     t.getLine(),
-                    todoText);
+                    todoText));
             }
         }
     }
+
+    /**
+     * @return index of the last token which starts at or before
+     *         the given offset, or -1 if there is no such token
+     */
+    private static int getTokenIndexPreceding(List<PerlToken> tokens, int offset)
+    {
+        int low = 0, high = tokens.size();
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (tokens.get(mid).getOffset() <= offset) low = mid + 1;
+            else high = mid;
+        }
+        return low - 1;
+    }
+
+    /**
+     * A task tag found in a comment.
+     */
+    static class Task
+    {
+        final int start;
+        final int stop;
+        final int line;
+        final String text;
+
+        Task(int start, int stop, int line, String text)
+        {
+            this.start = start;
+            this.stop = stop;
+            this.line = line;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Tasks found in a particular version of the partitioner's tokens.
+     */
+    static class TaskList
+    {
+        final int version;
+        final Pattern pattern;
+        final List<Task> tasks;
+
+        TaskList(int version, Pattern pattern, List<Task> tasks)
+        {
+            this.version = version;
+            this.pattern = pattern;
+            this.tasks = tasks;
+        }
+    }
 }
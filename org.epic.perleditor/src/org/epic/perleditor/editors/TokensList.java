@@ -2,223 +2,344 @@ package org.epic.perleditor.editors;
 
 import java.util.*;
 
+import org.eclipse.jface.text.IDocument;
+import org.epic.core.parser.CurlyToken;
+import org.epic.core.parser.LexerState;
+import org.epic.core.parser.OperatorToken;
 import org.epic.core.parser.PerlToken;
 
 /**
  * An implementation of List used by PerlPartitioner to manage tokens.
- * We are not using a standard implementation ArrayList for efficiency,
- * to avoid too much copying of tokens. In addition to standard list
+ * To keep the memory footprint of large files low, TokensList does not
+ * retain the PerlToken instances added to it. Instead, it stores the
+ * attributes of tokens (type, offset, length, line, curly nesting level
+ * and the lexer state checkpoint preceding the token, see
+ * {@link LexerState}) in parallel arrays of primitives. Token texts are not stored
+ * at all; they can be read from the document, which the tokens were
+ * created from.
+ * <p>
+ * The List view creates a new PerlToken (or CurlyToken, OperatorToken)
+ * on each call to {@link #get}, whose text is read lazily from
+ * the document (see {@link PerlToken#setText(IDocument, int)}).
+ * Performance-critical clients should rather use the methods which
+ * access a token's attributes by index. In addition to standard list
  * operations, TokensList provides a lookup operation which takes
- * advantage of the fact that the list of tokens is ordered.   
- * 
+ * advantage of the fact that the list of tokens is ordered.
+ * </p>
+ *
  * @author jploski
  */
-class TokensList implements List<PerlToken>, RandomAccess
+class TokensList extends AbstractList<PerlToken> implements RandomAccess
 {
-    private final Comparator<PerlToken> tokenPosComparator = new Comparator<PerlToken>() {
-        public int compare(PerlToken p1, PerlToken p2)
-        {
-            return p1.getOffset() - p2.getOffset();
-        } };
-    
-    private final PerlToken OFFSET_TOKEN = new PerlToken();
-    private PerlToken[] tokens;
+    private static final byte KIND_PLAIN = 0;
+    private static final byte KIND_CURLY = 1;
+    private static final byte KIND_OPERATOR = 2;
+
+    private IDocument doc;
+    private Columns tokens;
     private int i;
-    private PerlToken[] syncBuffer;
+    private Columns syncBuffer;
     private int syncOffset, syncCount, syncBufferAlloc;
-    
+
     public TokensList()
     {
-        // 2000 is a little more than enough for 75% of Perl files I examined 
-        tokens = new PerlToken[2000];
+        // 2000 is a little more than enough for 75% of Perl files I examined
+        tokens = new Columns(2000);
+    }
+
+    private TokensList(IDocument doc, Columns tokens, int size)
+    {
+        this.doc = doc;
+        this.tokens = tokens;
+        this.i = size;
     }
-    
+
     public boolean add(PerlToken t)
     {
-        if (i == tokens.length) expand(Math.min(tokens.length, 30000));
-        
+        return add(t, LexerState.NONE);
+    }
+
+    /**
+     * Appends the given token along with the state in which the lexer
+     * was before emitting it.
+     */
+    public boolean add(PerlToken t, int state)
+    {
+        if (i == tokens.capacity()) expand(Math.min(tokens.capacity(), 30000));
+
         if (i == syncOffset)
         {
-            if (syncBuffer == null || syncBuffer.length < syncCount)
+            if (syncBuffer == null || syncBuffer.capacity() < syncCount)
             {
                 //System.err.println("TokensList, allocate syncBuffer of " + syncCount);
                 // syncBufferAlloc is a counter intended to reduce
                 // too frequent allocations
                 syncBufferAlloc++;
-                syncBuffer = new PerlToken[syncCount + syncBufferAlloc*4];
+                syncBuffer = new Columns(syncCount + syncBufferAlloc*4);
             }
-            System.arraycopy(tokens, syncOffset, syncBuffer, 0, syncCount);
+            Columns.copy(tokens, syncOffset, syncBuffer, 0, syncCount);
             syncOffset = -1;
         }
-        tokens[i] = t;
+        tokens.set(i, t, state);
         i++;
         assert noOverlaps();
         return true;
     }
-    
+
+    /**
+     * @return a new PerlToken representing the token with the given index;
+     *         note that subsequent modifications of the token are not
+     *         reflected in this TokensList
+     */
     public PerlToken get(int i)
     {
-        return tokens[i];
+        if (i < 0 || i >= this.i) throw new IndexOutOfBoundsException(
+            "index: " + i + ", size: " + this.i);
+
+        PerlToken t;
+        switch (tokens.kinds[i])
+        {
+        case KIND_CURLY:
+            t = new CurlyToken(tokens.types[i], null, tokens.levels[i]);
+            break;
+        case KIND_OPERATOR:
+            t = new OperatorToken(tokens.types[i], null);
+            break;
+        default:
+            t = new PerlToken();
+            t.setType(tokens.types[i]);
+        }
+        t.setLine(tokens.lines[i]);
+        t.setOffset(tokens.offsets[i]);
+        t.setText(doc, tokens.lengths[i]);
+        return t;
     }
 
-    public boolean isEmpty()
+    /**
+     * @return the curly nesting level of the token with the given index,
+     *         which must be a curly brace
+     */
+    public int getLevel(int i)
     {
-        return i == 0;
+        return tokens.levels[i];
     }
-    
-    public int size()
+
+    /**
+     * @return the length of the token with the given index
+     */
+    public int getLength(int i)
     {
-        return i;
+        return tokens.lengths[i];
     }
-    
-    public void addSync()
+
+    /**
+     * @return the line (1-based) of the token with the given index
+     */
+    public int getLine(int i)
     {
-        if (i > syncOffset)
-        {
-            if (i + syncCount > tokens.length) expand(i + syncCount - tokens.length);
-            System.arraycopy(syncBuffer, 0, tokens, i, syncCount);
-        }
-        else if (i < syncOffset)
-        {
-            System.arraycopy(tokens, syncOffset, tokens, i, syncCount);
-        }
-        i += syncCount;
+        return tokens.lines[i];
     }
-    
-    public void markSync(int offset)
+
+    /**
+     * @return the offset of the token with the given index
+     */
+    public int getOffset(int i)
     {
-        syncOffset = offset;
-        syncCount = i - syncOffset;
+        return tokens.offsets[i];
     }
-    
-    public void truncate(int offset)
+
+    /**
+     * @return the lexer state checkpoint preceding the token with
+     *         the given index, or {@link LexerState#NONE}
+     */
+    public int getState(int i)
     {
-        i = offset;
+        return tokens.states[i];
     }
-    
-    private void expand(int count)
-    {            
-        PerlToken[] tmp = tokens;
-        tokens = new PerlToken[tokens.length + count];
-        System.arraycopy(tmp, 0, tokens, 0, tmp.length);
-        //System.err.println("TokensList, expand to " + tokens.length);
+
+    /**
+     * @return the number of tokens in the range marked with
+     *         {@link #markSync}
+     */
+    public int getSyncCount()
+    {
+        return syncCount;
     }
 
-    public void clear()
+    /**
+     * @return the line of a token in the range marked with {@link #markSync},
+     *         identified by its index relative to the range's start
+     */
+    public int getSyncLine(int i)
     {
-        throw new UnsupportedOperationException();            
+        return syncOffset == -1 ? syncBuffer.lines[i] : tokens.lines[syncOffset + i];
     }
 
-    public PerlToken[] toArray()
+    /**
+     * @return the offset of a token in the range marked with {@link #markSync},
+     *         identified by its index relative to the range's start
+     */
+    public int getSyncOffset(int i)
     {
-        PerlToken[] ret = new PerlToken[i];
-        System.arraycopy(tokens, 0, ret, 0, i);
-        return ret;
+        return syncOffset == -1 ? syncBuffer.offsets[i] : tokens.offsets[syncOffset + i];
     }
 
-    public PerlToken remove(int index)
+    /**
+     * @return the lexer state checkpoint preceding a token in the range
+     *         marked with {@link #markSync}, identified by its index
+     *         relative to the range's start
+     */
+    public int getSyncState(int i)
     {
-        throw new UnsupportedOperationException();
+        return syncOffset == -1 ? syncBuffer.states[i] : tokens.states[syncOffset + i];
     }
 
-    public boolean remove(Object o)
+    /**
+     * @return the type of the token with the given index
+     */
+    public int getType(int i)
     {
-        throw new UnsupportedOperationException();
+        return tokens.types[i];
     }
 
-    public boolean removeAll(Collection<?> c)
+    /**
+     * @return true if the token with the given index is a CurlyToken
+     */
+    public boolean isCurly(int i)
     {
-        throw new UnsupportedOperationException();
+        return tokens.kinds[i] == KIND_CURLY;
     }
 
-    public void add(int index, PerlToken element)
+    /**
+     * @return true if the token with the given index is an OperatorToken
+     */
+    public boolean isOperator(int i)
     {
-        throw new UnsupportedOperationException();
+        return tokens.kinds[i] == KIND_OPERATOR;
+    }
+
+    public boolean isEmpty()
+    {
+        return i == 0;
     }
 
-    public int indexOf(Object o)
+    public int size()
     {
-        if (o == null) return -1;
-        for (int j = 0; j < i; j++)
-            if (tokens[j].equals(o)) return j;
-        return -1;
+        return i;
     }
 
-    public int lastIndexOf(Object o)
+    /**
+     * Appends tokens from the range marked with {@link #markSync},
+     * starting with the token at the given index relative to the range's
+     * start. The tokens of the range which were overwritten by
+     * {@link #add} in the meantime are retrieved from a backup copy.
+     */
+    public void addSync(int from)
     {
-        if (o == null) return -1;
-        for (int j = i-1; j >= 0; j--)
-            if (tokens[j].equals(o)) return j;
-        return -1;
+        int count = syncCount - from;
+        if (syncOffset == -1)
+        {
+            if (i + count > tokens.capacity()) expand(i + count - tokens.capacity());
+            Columns.copy(syncBuffer, from, tokens, i, count);
+        }
+        else if (i < syncOffset + from)
+        {
+            Columns.copy(tokens, syncOffset + from, tokens, i, count);
+        }
+        i += count;
     }
 
-    public boolean contains(Object o)
+    /**
+     * @param textSource    document from which texts of the copied tokens
+     *                      are read; it should not be the document of this
+     *                      TokensList if the copy is used by another thread
+     * @return an immutable copy of this TokensList, which shares no
+     *         other state with the original
+     */
+    public TokensList copy(IDocument textSource)
     {
-        return indexOf(o) != -1;
+        Columns copy = new Columns(i);
+        Columns.copy(tokens, 0, copy, 0, i);
+        return new TokensList(textSource, copy, i);
     }
 
-    public boolean containsAll(Collection<?> c)
+    /**
+     * Marks the range of tokens from the given index to the end of
+     * the list, so that they can be examined with the getSync* methods
+     * and appended again with {@link #addSync} after the list has been
+     * truncated and refilled with new tokens.
+     */
+    public void markSync(int offset)
     {
-        for (Iterator<?> i = c.iterator(); i.hasNext();)
-            if (!contains(i.next())) return false;
-        return true;
+        syncOffset = offset;
+        syncCount = i - syncOffset;
     }
 
-    public Iterator<PerlToken> iterator()
+    /**
+     * Sets the document from which token texts are read.
+     */
+    public void setDocument(IDocument doc)
     {
-        return new TokensListIterator(this);
+        this.doc = doc;
     }
 
-    public ListIterator<PerlToken> listIterator()
+    /**
+     * Changes the curly nesting level of the token with the given index,
+     * and the level recorded in its lexer state checkpoint, by the given
+     * difference.
+     */
+    public void shiftLevel(int i, int levelDelta)
     {
-        return new TokensListIterator(this);
+        if (tokens.kinds[i] == KIND_CURLY) tokens.levels[i] += levelDelta;
+        int state = tokens.states[i];
+        if (state != LexerState.NONE) tokens.states[i] = LexerState.withCurlyLevel(
+            state, LexerState.getCurlyLevel(state) + levelDelta);
     }
 
-    public ListIterator<PerlToken> listIterator(int index)
+    /**
+     * Shifts the token with the given index by the given number of
+     * characters and lines.
+     */
+    public void shift(int i, int offsetDelta, int lineDelta)
     {
-        return new TokensListIterator(this, index);
+        tokens.offsets[i] += offsetDelta;
+        tokens.lines[i] += lineDelta;
     }
 
-    public PerlToken set(int index, PerlToken element)
+    public void truncate(int offset)
     {
-        throw new UnsupportedOperationException();
+        i = offset;
     }
-    
-    public <T> T[] toArray(T[] a)
+
+    private void expand(int count)
     {
-        if (a.length < i)
-            a = (T[]) java.lang.reflect.Array.newInstance(
-                a.getClass().getComponentType(), i);
-        
-        System.arraycopy(tokens, 0, a, 0, i);
-        if (a.length > i) a[i] = null;
-        return a;
+        Columns tmp = tokens;
+        tokens = new Columns(tmp.capacity() + count);
+        Columns.copy(tmp, 0, tokens, 0, tmp.capacity());
+        //System.err.println("TokensList, expand to " + tokens.capacity());
     }
 
-    public List<PerlToken> subList(int fromIndex, int toIndex)
+    public void clear()
     {
-    	PerlToken[] ret = new PerlToken[toIndex - fromIndex];
-        System.arraycopy(tokens, fromIndex, ret, 0, ret.length);
-        return Collections.unmodifiableList(Arrays.asList(ret));
+        throw new UnsupportedOperationException();
     }
-    
+
     public void dump()
-    {            
+    {
         int size = size();
         System.err.println("Dumping " + size + " token(s):");
         for (int i = 0; i < size; i++) System.err.println(i + ": " + get(i));
         System.err.println("----- end of tokens dump");
     }
-    
+
     public int getTokenIndexPreceding(int offset)
     {
-        int i = Collections.binarySearch(
-            this, perlTokenWithOffset(offset), tokenPosComparator);        
-        
+        int i = Arrays.binarySearch(tokens.offsets, 0, this.i, offset);
+
         if (i >= 0) return i; // position with the same offset was found
         else return -(i+1) - 1; // index of last token < offset
     }
-    
+
     boolean noOverlaps()
     {
         // disabling assertions for this class seems too much of a hassle
@@ -226,35 +347,75 @@ class TokensList implements List<PerlToken>, RandomAccess
         boolean assertEnabled = false;
         assert assertEnabled = true;
         if (assertEnabled)
-        {        
+        {
             int size = size();
             for (int i = 1; i < size; i++)
             {
-                if (tokens[i].getOffset() < tokens[i-1].getOffset() + tokens[i-1].getLength())
+                if (tokens.offsets[i] < tokens.offsets[i-1] + tokens.lengths[i-1])
                     return false;
             }
         }*/
         return true;
     }
-    
-    private PerlToken perlTokenWithOffset(int offset)
+
+    /**
+     * Parallel arrays of token attributes.
+     */
+    private static class Columns
     {
-        OFFSET_TOKEN.setOffset(offset);
-        return OFFSET_TOKEN;
-    }
+        final int[] types;
+        final int[] offsets;
+        final int[] lengths;
+        final int[] lines;
+        final int[] levels;
+        final int[] states;
+        final byte[] kinds;
 
-	@Override
-	public boolean addAll(Collection<? extends PerlToken> c) {
-        throw new UnsupportedOperationException();
-	}
+        Columns(int capacity)
+        {
+            types = new int[capacity];
+            offsets = new int[capacity];
+            lengths = new int[capacity];
+            lines = new int[capacity];
+            levels = new int[capacity];
+            states = new int[capacity];
+            kinds = new byte[capacity];
+        }
 
-	@Override
-	public boolean addAll(int index, Collection<? extends PerlToken> c) {
-        throw new UnsupportedOperationException();
-	}
+        int capacity()
+        {
+            return types.length;
+        }
 
-	@Override
-	public boolean retainAll(Collection<?> c) {
-        throw new UnsupportedOperationException();
-	}
-}
\ No newline at end of file
+        void set(int i, PerlToken t, int state)
+        {
+            types[i] = t.getType();
+            states[i] = state;
+            offsets[i] = t.getOffset();
+            lengths[i] = t.getLength();
+            lines[i] = t.getLine();
+
+            if (t instanceof CurlyToken)
+            {
+                kinds[i] = KIND_CURLY;
+                levels[i] = ((CurlyToken) t).getLevel();
+            }
+            else
+            {
+                kinds[i] = t instanceof OperatorToken ? KIND_OPERATOR : KIND_PLAIN;
+                levels[i] = 0;
+            }
+        }
+
+        static void copy(Columns src, int srcPos, Columns dest, int destPos, int count)
+        {
+            System.arraycopy(src.types, srcPos, dest.types, destPos, count);
+            System.arraycopy(src.offsets, srcPos, dest.offsets, destPos, count);
+            System.arraycopy(src.lengths, srcPos, dest.lengths, destPos, count);
+            System.arraycopy(src.lines, srcPos, dest.lines, destPos, count);
+            System.arraycopy(src.levels, srcPos, dest.levels, destPos, count);
+            System.arraycopy(src.states, srcPos, dest.states, destPos, count);
+            System.arraycopy(src.kinds, srcPos, dest.kinds, destPos, count);
+        }
+    }
+}
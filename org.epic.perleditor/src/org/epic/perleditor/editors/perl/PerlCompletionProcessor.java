@@ -234,21 +234,20 @@ public class PerlCompletionProcessor implements IContentAssistProcessor
         
         if (!(p instanceof PerlPartitioner)) return Collections.emptyList();
 
-        ITypedRegion[] regions =
-            ((PerlPartitioner) p)
-            .computePartitioning(0, documentOffset);
+        // the variables declared in the enclosing scopes, followed by
+        // the package variables, which are visible everywhere
+        List<IRegion> regions = new ArrayList<IRegion>(
+            ((PerlPartitioner) p).getVisibleVariables(documentOffset));
+        regions.addAll(((PerlPartitioner) p).getPackageVariables());
         
         List<SourceElement> elements = new ArrayList<SourceElement>();
 
-        for (int i = 0; i < regions.length; i++)
+        for (Iterator<IRegion> i = regions.iterator(); i.hasNext();)
         {
-            if (regions[i].getType().equals(PartitionTypes.VARIABLE))
-            {
-                String name = doc.get(regions[i].getOffset(), regions[i].getLength());
-                if (name.length() > 1 && name.charAt(1) == '{') continue; // ignore ${@foo} and the like
-                elements.add(new SourceElement(
-                    name, regions[i].getOffset(), regions[i].getLength()));
-            }
+            IRegion r = i.next();
+            String name = doc.get(r.getOffset(), r.getLength());
+            if (name.length() > 1 && name.charAt(1) == '{') continue; // ignore ${@foo} and the like
+            elements.add(new SourceElement(name, r.getOffset(), r.getLength()));
         }
         return elements;
     }
@@ -0,0 +1,345 @@
+package org.epic.perleditor.editors.util;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.epic.core.util.PerlExecutableUtilities;
+import org.epic.perleditor.PerlEditorPlugin;
+
+/**
+ * Cache of perltidy outputs, consulted by SourceFormatter before perltidy
+ * is run, so that formatting source code which has been formatted before
+ * (in particular, source code which perltidy left unchanged) does not
+ * involve a Perl interpreter.
+ * <p>
+ * An entry is keyed by a hash of the source code, the perltidy options,
+ * the interpreter command line and the modification stamps of the files
+ * which affect perltidy's output: the bundled Perl::Tidy and the perltidyrc
+ * files which perltidy looks for. An output is not recorded as the output
+ * for itself: perltidy usually leaves its own output unchanged, but not
+ * always, and a cache hit must return what perltidy would.
+ * </p>
+ * <p>
+ * Recently used entries are kept in memory; all entries are also stored
+ * as files in the plug-in's state location, so that they survive restarts.
+ * Both parts are limited in size, the least recently used entries are
+ * discarded first.
+ * </p>
+ */
+public class FormatterCache
+{
+    private static final int FORMAT_VERSION = 2;
+    private static final int MAX_MEMORY_ENTRIES = 256;
+    private static final int MAX_MEMORY_CHARS = 4 * 1024 * 1024;
+    private static final int MAX_DISK_ENTRIES = 2000;
+    private static final long MAX_DISK_BYTES = 32 * 1024 * 1024;
+    private static final int PRUNE_INTERVAL = 100;
+    private static final String DIR_NAME = "formatter.cache"; //$NON-NLS-1$
+
+    /**
+     * In-memory value of entries whose output equals the source code;
+     * compared by identity
+     */
+    private static final String UNCHANGED = new String();
+
+    private static FormatterCache instance;
+
+    private final File dir;
+    private final Map<String, String> entries;
+    private int memoryChars;
+    private int putsSincePrune;
+
+    private FormatterCache(File dir)
+    {
+        this.dir = dir;
+        this.entries = new LinkedHashMap<String, String>(64, 0.75f, true);
+    }
+
+    /**
+     * @return the FormatterCache singleton
+     */
+    public synchronized static FormatterCache instance()
+    {
+        if (instance == null) instance = new FormatterCache(
+            PerlEditorPlugin.getDefault().getStateLocation().append(DIR_NAME).toFile());
+        return instance;
+    }
+
+    /**
+     * Discards the least recently used entries stored on disk beyond
+     * the size limits. Invoked when the plug-in is stopped.
+     */
+    public synchronized static void shutdown()
+    {
+        if (instance != null) instance.prune();
+        instance = null;
+    }
+
+    /**
+     * @param scriptDir     folder from which perltidy is run
+     * @param options       perltidy command line options
+     * @param sourceCode    source code to be formatted
+     * @return the cached output of perltidy for the given source code and
+     *         options, or null if there is no cache entry
+     */
+    public String get(File scriptDir, List<String> options, String sourceCode)
+    {
+        String key = getKey(scriptDir, options, sourceCode);
+        String output;
+
+        synchronized (this)
+        {
+            output = entries.get(key);
+        }
+        if (output == null)
+        {
+            output = readEntry(key);
+            if (output == null) return null;
+            addToMemory(key, output);
+        }
+        return output == UNCHANGED ? sourceCode : output;
+    }
+
+    /**
+     * Records the output of perltidy for the given source code and options.
+     * The output must not contain error messages.
+     *
+     * @param scriptDir     folder from which perltidy is run
+     * @param options       perltidy command line options
+     * @param sourceCode    source code which has been formatted
+     * @param output        formatted source code
+     */
+    public void put(
+        File scriptDir, List<String> options, String sourceCode, String output)
+    {
+        putEntry(
+            getKey(scriptDir, options, sourceCode),
+            output.equals(sourceCode) ? UNCHANGED : output);
+    }
+
+    private void putEntry(String key, String output)
+    {
+        addToMemory(key, output);
+        writeEntry(key, output);
+
+        boolean prune;
+        synchronized (this)
+        {
+            prune = ++putsSincePrune >= PRUNE_INTERVAL;
+        }
+        if (prune) prune();
+    }
+
+    private synchronized void addToMemory(String key, String output)
+    {
+        String old = entries.put(key, output);
+        if (old != null) memoryChars -= old.length();
+        memoryChars += output.length();
+
+        for (Iterator<String> i = entries.values().iterator();
+            i.hasNext() && (entries.size() > MAX_MEMORY_ENTRIES || memoryChars > MAX_MEMORY_CHARS);)
+        {
+            memoryChars -= i.next().length();
+            i.remove();
+        }
+    }
+
+    /**
+     * Deletes the least recently used entry files beyond the size limits.
+     */
+    private synchronized void prune()
+    {
+        putsSincePrune = 0;
+
+        File[] files = dir.listFiles();
+        if (files == null) return;
+
+        final Map<File, Long> modified = new HashMap<File, Long>();
+        for (int i = 0; i < files.length; i++)
+            modified.put(files[i], Long.valueOf(files[i].lastModified()));
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2)
+            {
+                return modified.get(f2).compareTo(modified.get(f1));
+            } });
+
+        long bytes = 0;
+        for (int i = 0; i < files.length; i++)
+        {
+            bytes += files[i].length();
+            if (i >= MAX_DISK_ENTRIES || bytes > MAX_DISK_BYTES) files[i].delete();
+        }
+    }
+
+    /**
+     * @return the output stored in the entry file with the given key,
+     *         or null if there is no such (readable) file; the file's
+     *         modification time is updated, so that it is pruned last
+     */
+    private String readEntry(String key)
+    {
+        File file = new File(dir, key);
+        if (!file.isFile()) return null;
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+
+            if (in.readInt() != FORMAT_VERSION) return null;
+
+            String output;
+            if (in.readBoolean()) output = UNCHANGED;
+            else
+            {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                output = new String(bytes, "UTF-8"); //$NON-NLS-1$
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return output;
+        }
+        catch (IOException e)
+        {
+            // a corrupt entry is no problem, perltidy is run instead
+            return null;
+        }
+        finally
+        {
+            if (in != null) try { in.close(); } catch (IOException e) { }
+        }
+    }
+
+    private void writeEntry(String key, String output)
+    {
+        File file = new File(dir, key);
+        File tmpFile = new File(dir, key + "." + Thread.currentThread().getId()); //$NON-NLS-1$
+        DataOutputStream out = null;
+        try
+        {
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException(
+                "Could not create " + dir);
+
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)));
+
+            out.writeInt(FORMAT_VERSION);
+            out.writeBoolean(output == UNCHANGED);
+            if (output != UNCHANGED)
+            {
+                byte[] bytes = output.getBytes("UTF-8"); //$NON-NLS-1$
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.close();
+            out = null;
+
+            file.delete();
+            if (!tmpFile.renameTo(file)) throw new IOException(
+                "Could not rename " + tmpFile + " to " + file);
+        }
+        catch (IOException e)
+        {
+            tmpFile.delete();
+            PerlEditorPlugin.getDefault().getLog().log(new Status(
+                IStatus.WARNING,
+                PerlEditorPlugin.getPluginId(),
+                IStatus.OK,
+                "Could not save formatter cache entry " + file.getAbsolutePath(),
+                e));
+        }
+        finally
+        {
+            if (out != null) try { out.close(); } catch (IOException e) { }
+        }
+    }
+
+    private String getKey(File scriptDir, List<String> options, String sourceCode)
+    {
+        StringBuffer buf = new StringBuffer();
+        buf.append(PerlExecutableUtilities.getPerlCommandLine());
+        buf.append('\0');
+        buf.append(options);
+        buf.append('\0');
+
+        List<File> deps = getDependencies(scriptDir, options);
+        for (Iterator<File> i = deps.iterator(); i.hasNext();)
+        {
+            File f = i.next();
+            buf.append(f.getPath());
+            buf.append(' ');
+            buf.append(f.lastModified());
+            buf.append(' ');
+            buf.append(f.length());
+            buf.append('\0');
+        }
+
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1"); //$NON-NLS-1$
+            digest.update(buf.toString().getBytes("UTF-8")); //$NON-NLS-1$
+            digest.update(sourceCode.getBytes("UTF-8")); //$NON-NLS-1$
+            return toHex(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e); // SHA-1 is always available
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e); // UTF-8 is always available
+        }
+    }
+
+    /**
+     * @return files which affect perltidy's output besides its options:
+     *         the bundled perltidy and Perl::Tidy, the profile given by
+     *         the options and the perltidyrc files which perltidy looks for
+     *         if no profile is given (whether they exist or not)
+     */
+    private static List<File> getDependencies(File scriptDir, List<String> options)
+    {
+        List<File> deps = new ArrayList<File>();
+        if (scriptDir != null)
+        {
+            deps.add(new File(scriptDir, "perltidy")); //$NON-NLS-1$
+            deps.add(new File(scriptDir, "Perl/Tidy.pm")); //$NON-NLS-1$
+            deps.add(new File(scriptDir, ".perltidyrc")); //$NON-NLS-1$
+        }
+
+        for (Iterator<String> i = options.iterator(); i.hasNext();)
+        {
+            String option = i.next();
+            int eq = option.indexOf('=');
+            if (eq != -1 && (option.startsWith("-pro=") || option.startsWith("--profile=")))
+                deps.add(new File(option.substring(eq + 1)));
+        }
+
+        String envFile = System.getenv("PERLTIDY"); //$NON-NLS-1$
+        if (envFile != null) deps.add(new File(envFile));
+
+        String home = System.getenv("HOME"); //$NON-NLS-1$
+        if (home != null) deps.add(new File(home, ".perltidyrc")); //$NON-NLS-1$
+        deps.add(new File("/usr/local/etc/perltidyrc")); //$NON-NLS-1$
+        deps.add(new File("/etc/perltidyrc")); //$NON-NLS-1$
+        return deps;
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuffer buf = new StringBuffer(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++)
+        {
+            int b = bytes[i] & 0xff;
+            if (b < 0x10) buf.append('0');
+            buf.append(Integer.toHexString(b));
+        }
+        return buf.toString();
+    }
+}
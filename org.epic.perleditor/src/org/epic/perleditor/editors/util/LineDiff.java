@@ -0,0 +1,275 @@
+package org.epic.perleditor.editors.util;
+
+import java.util.*;
+
+import org.eclipse.jface.text.*;
+
+/**
+ * Computes the differences between two texts line by line and applies
+ * them to a document as a small number of {@link IDocument#replace} calls,
+ * so that the document's listeners (partitioner, annotation model,
+ * position updaters) only process the lines which actually differ,
+ * as opposed to {@link IDocument#set}.
+ * <p>
+ * The differences are found with Myers' O(ND) algorithm on lines
+ * which remain after stripping the common leading and trailing lines.
+ * If the texts differ in too many lines, all of the lines in between
+ * the first and the last difference are replaced at once.
+ * </p>
+ */
+public class LineDiff
+{
+    /**
+     * Maximum edit distance (in lines) searched for by the diff algorithm
+     */
+    private static final int MAX_EDIT_DISTANCE = 1000;
+
+    /**
+     * Maximum number of replace calls made by {@link #apply};
+     * if there are more hunks, they are coalesced into a single one
+     */
+    private static final int MAX_HUNKS = 200;
+
+    private LineDiff() { }
+
+    /**
+     * Replaces the text of the given document region with the given text,
+     * changing only those lines of the region which differ from
+     * the lines of the new text. The changes are made within
+     * a {@link DocumentRewriteSessionType#UNRESTRICTED_SMALL} session.
+     *
+     * @return the number of {@link IDocument#replace} calls made,
+     *         0 if the region already contains the new text
+     */
+    public static int apply(IDocument doc, int offset, int length, String newText)
+        throws BadLocationException
+    {
+        String oldText = doc.get(offset, length);
+        List<Hunk> hunks = compute(oldText, newText);
+        if (hunks.isEmpty()) return 0;
+
+        if (hunks.size() > MAX_HUNKS)
+        {
+            Hunk first = hunks.get(0);
+            Hunk last = hunks.get(hunks.size() - 1);
+            hunks = Collections.singletonList(new Hunk(
+                first.oldStart, last.oldEnd, first.newStart, last.newEnd));
+        }
+
+        DocumentRewriteSession session = null;
+        if (doc instanceof IDocumentExtension4) session =
+            ((IDocumentExtension4) doc).startRewriteSession(
+                DocumentRewriteSessionType.UNRESTRICTED_SMALL);
+        try
+        {
+            // bottom-up, so that offsets of the remaining hunks stay valid
+            for (ListIterator<Hunk> i = hunks.listIterator(hunks.size()); i.hasPrevious();)
+            {
+                Hunk h = i.previous();
+                String oldChars = oldText.substring(h.oldStart, h.oldEnd);
+                String newChars = newText.substring(h.newStart, h.newEnd);
+
+                // replace just the differing characters, e.g. indentation
+                int prefix = commonPrefix(oldChars, newChars);
+                int suffix = commonSuffix(oldChars, newChars, prefix);
+                doc.replace(
+                    offset + h.oldStart + prefix,
+                    oldChars.length() - prefix - suffix,
+                    newChars.substring(prefix, newChars.length() - suffix));
+            }
+        }
+        finally
+        {
+            if (session != null)
+                ((IDocumentExtension4) doc).stopRewriteSession(session);
+        }
+        return hunks.size();
+    }
+
+    /**
+     * @return regions of the old text which have to be replaced by regions
+     *         of the new text to turn the former into the latter, expressed
+     *         as character offsets at line boundaries, in ascending order;
+     *         an empty list if the texts are equal
+     */
+    public static List<Hunk> compute(String oldText, String newText)
+    {
+        if (oldText.equals(newText)) return Collections.emptyList();
+
+        int[] oldLines = lineStarts(oldText);
+        int[] newLines = lineStarts(newText);
+        int n = oldLines.length - 1;
+        int m = newLines.length - 1;
+
+        // lines are compared by identifiers assigned to distinct strings
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        int[] a = lineIds(oldText, oldLines, ids);
+        int[] b = lineIds(newText, newLines, ids);
+
+        int prefix = 0;
+        while (prefix < n && prefix < m && a[prefix] == b[prefix]) prefix++;
+        int suffix = 0;
+        while (suffix < n - prefix && suffix < m - prefix &&
+            a[n - 1 - suffix] == b[m - 1 - suffix]) suffix++;
+
+        // matching runs of lines (oldLine, newLine, count) in the middle part
+        List<int[]> snakes = diff(a, prefix, n - suffix, b, prefix, m - suffix);
+
+        List<Hunk> hunks = new ArrayList<Hunk>();
+        int x = prefix, y = prefix;
+        snakes.add(new int[] { n - suffix, m - suffix, 0 });
+        for (Iterator<int[]> i = snakes.iterator(); i.hasNext();)
+        {
+            int[] snake = i.next();
+            if (snake[0] > x || snake[1] > y) hunks.add(new Hunk(
+                oldLines[x], oldLines[snake[0]], newLines[y], newLines[snake[1]]));
+            x = snake[0] + snake[2];
+            y = snake[1] + snake[2];
+        }
+        return hunks;
+    }
+
+    /**
+     * Myers' greedy algorithm applied to the lines a[aStart..aEnd) and
+     * b[bStart..bEnd), which must differ in their first and last lines.
+     *
+     * @return runs of matching lines { oldLine, newLine, count }
+     *         in ascending order; if the edit distance exceeds
+     *         {@link #MAX_EDIT_DISTANCE}, an empty list
+     */
+    private static List<int[]> diff(
+        int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd)
+    {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int maxD = Math.min(n + m, MAX_EDIT_DISTANCE);
+        int off = maxD + 1;
+        int[] v = new int[2 * maxD + 3];
+        List<int[]> trace = new ArrayList<int[]>();
+
+        for (int d = 0; d <= maxD; d++)
+        {
+            // v[k] for k in -d..d before step d, needed for backtracking
+            int[] snapshot = new int[2 * d + 1];
+            System.arraycopy(v, off - d, snapshot, 0, snapshot.length);
+            trace.add(snapshot);
+
+            for (int k = -d; k <= d; k += 2)
+            {
+                int x = k == -d || (k != d && v[off + k - 1] < v[off + k + 1])
+                    ? v[off + k + 1]
+                    : v[off + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aStart + x] == b[bStart + y]) { x++; y++; }
+                v[off + k] = x;
+
+                if (x >= n && y >= m)
+                    return backtrack(trace, d, k, x, aStart, bStart);
+            }
+        }
+        return new ArrayList<int[]>();
+    }
+
+    private static List<int[]> backtrack(
+        List<int[]> trace, int d, int k, int x, int aStart, int bStart)
+    {
+        LinkedList<int[]> snakes = new LinkedList<int[]>();
+        for (; d >= 0; d--)
+        {
+            // snake on diagonal k ends at x; find where it started
+            int startX;
+            int prevK = 0;
+            if (d == 0) startX = 0;
+            else
+            {
+                int[] v = trace.get(d); // indexed by k + d
+                prevK = k == -d || (k != d && v[k - 1 + d] < v[k + 1 + d]) ? k + 1 : k - 1;
+                startX = prevK == k + 1 ? v[prevK + d] : v[prevK + d] + 1;
+            }
+            if (x > startX) snakes.addFirst(new int[] {
+                aStart + startX, bStart + startX - k, x - startX });
+
+            if (d > 0)
+            {
+                x = trace.get(d)[prevK + d];
+                k = prevK;
+            }
+        }
+        return snakes;
+    }
+
+    private static int[] lineStarts(String text)
+    {
+        int count = 1;
+        for (int i = 0; i < text.length(); i++)
+            if (text.charAt(i) == '\n') count++;
+        if (text.length() == 0 || text.charAt(text.length() - 1) == '\n') count--;
+
+        int[] starts = new int[count + 1];
+        int line = 1;
+        for (int i = 0; i < text.length() && line < count; i++)
+            if (text.charAt(i) == '\n') starts[line++] = i + 1;
+        starts[count] = text.length();
+        return starts;
+    }
+
+    private static int[] lineIds(String text, int[] starts, Map<String, Integer> ids)
+    {
+        int[] ret = new int[starts.length - 1];
+        for (int i = 0; i < ret.length; i++)
+        {
+            String line = text.substring(starts[i], starts[i + 1]);
+            Integer id = ids.get(line);
+            if (id == null)
+            {
+                id = new Integer(ids.size());
+                ids.put(line, id);
+            }
+            ret[i] = id.intValue();
+        }
+        return ret;
+    }
+
+    private static int commonPrefix(String s1, String s2)
+    {
+        int len = Math.min(s1.length(), s2.length());
+        int i = 0;
+        while (i < len && s1.charAt(i) == s2.charAt(i)) i++;
+        return i;
+    }
+
+    private static int commonSuffix(String s1, String s2, int prefix)
+    {
+        int len = Math.min(s1.length(), s2.length()) - prefix;
+        int i = 0;
+        while (i < len &&
+            s1.charAt(s1.length() - 1 - i) == s2.charAt(s2.length() - 1 - i)) i++;
+        return i;
+    }
+
+    /**
+     * A region of the old text [oldStart, oldEnd) which is replaced by
+     * the region [newStart, newEnd) of the new text; both regions consist
+     * of whole lines (including their terminators).
+     */
+    public static class Hunk
+    {
+        public final int oldStart;
+        public final int oldEnd;
+        public final int newStart;
+        public final int newEnd;
+
+        public Hunk(int oldStart, int oldEnd, int newStart, int newEnd)
+        {
+            this.oldStart = oldStart;
+            this.oldEnd = oldEnd;
+            this.newStart = newStart;
+            this.newEnd = newEnd;
+        }
+
+        public String toString()
+        {
+            return oldStart + "-" + oldEnd + ">" + newStart + "-" + newEnd;
+        }
+    }
+}
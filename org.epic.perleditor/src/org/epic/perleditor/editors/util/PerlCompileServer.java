@@ -0,0 +1,283 @@
+package org.epic.perleditor.editors.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.*;
+import org.epic.core.PerlCore;
+import org.epic.core.PerlProject;
+import org.epic.core.util.*;
+import org.epic.perleditor.PerlEditorPlugin;
+
+/**
+ * Client of <code>perlutils/epicScripts/epicCompileServer.pl</code>,
+ * a resident replacement for "perl -c" used by PerlValidator.
+ * <p>
+ * Server processes are kept per project. They are started with the project's
+ * interpreter and include path, so that modules loaded while compiling
+ * one source remain available for the next one. A server process handles
+ * one request at a time; concurrent validations within the same project
+ * start additional server processes, which are kept for reuse afterwards.
+ * Servers are restarted when the project's command line changes (e.g.
+ * after the interpreter or include path has been reconfigured). Modules
+ * of the project itself are never kept loaded, so that their changes are
+ * seen by the next compilation.
+ * </p>
+ * <p>
+ * The diagnostics equal those of "perl -c", except that "used only once"
+ * warnings are missing and CHECK blocks are not run. Sources whose #! line
+ * contains switches other than -w are not accepted, see {@link #accepts}.
+ * </p>
+ */
+public class PerlCompileServer extends ScriptExecutor
+{
+    /**
+     * Maximum time to wait for a source to be compiled; if exceeded,
+     * the server is destroyed (BEGIN blocks may loop infinitely)
+     */
+    private static final long TIMEOUT = 30000;
+
+    private static PerlCompileServer instance;
+
+    /**
+     * Maps names of projects to lists of idle server processes
+     */
+    private final Map<String, List<PerlServerProcess>> idleServers;
+
+    private PerlCompileServer()
+    {
+        super(PerlEditorPlugin.getDefault().getLog());
+        idleServers = new HashMap<String, List<PerlServerProcess>>();
+    }
+
+    /**
+     * @return the PerlCompileServer singleton
+     */
+    public synchronized static PerlCompileServer instance()
+    {
+        if (instance == null) instance = new PerlCompileServer();
+        return instance;
+    }
+
+    /**
+     * Terminates all server processes, if any were started.
+     * Invoked when the plug-in is stopped.
+     */
+    public synchronized static void shutdown()
+    {
+        if (instance != null) instance.dispose();
+        instance = null;
+    }
+
+    /**
+     * @param perlArgs      command-line switches with which "perl -c"
+     *                      would be invoked
+     * @param sourceCode    source code to be compiled; perl also honours
+     *                      switches found on its #! line
+     * @return true if the server is able to emulate the given switches,
+     *         false if the source has to be validated with a new interpreter
+     *         process (in particular, taint mode can't be enabled in
+     *         a running interpreter)
+     */
+    public boolean accepts(List<String> perlArgs, String sourceCode)
+    {
+        for (Iterator<String> i = perlArgs.iterator(); i.hasNext();)
+        {
+            String arg = i.next();
+            if (!arg.equals("-c") && !arg.equals("-w")) return false;
+        }
+        for (Iterator<String> i = getShebangSwitches(sourceCode).iterator(); i.hasNext();)
+        {
+            if (!i.next().matches("-w+")) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compiles the given source code of a resource contained in a Perl project.
+     *
+     * @param resource      resource whose source code is compiled;
+     *                      its parent folder is the working directory
+     * @param perlArgs      command-line switches, see {@link #accepts};
+     *                      the -w switch is also taken from the #! line
+     * @param sourceCode    source code to compile
+     * @return diagnostics in the same format as printed by "perl -c"
+     *         to stderr
+     * @exception CoreException
+     *            if the server could not be started or failed
+     */
+    public String compile(IResource resource, List<String> perlArgs, String sourceCode)
+        throws CoreException
+    {
+        if (sourceCode.length() < 1) return "";
+        if (sourceCode.charAt(0) == '\uFEFF') sourceCode = sourceCode.substring(1);
+
+        PerlProject project = PerlCore.create(resource.getProject());
+        PerlServerProcess server = acquireServer(project);
+
+        List<String> headers = new ArrayList<String>(perlArgs);
+        headers.addAll(getShebangSwitches(sourceCode));
+        headers.add(PerlExecutableUtilities.resolveIncPath(
+            resource.getLocation().makeAbsolute().removeLastSegments(1).toString()));
+
+        try
+        {
+            String charset = resource instanceof IFile
+                ? ((IFile) resource).getCharset()
+                : null;
+
+            byte[] body = charset != null
+                ? sourceCode.getBytes(charset)
+                : sourceCode.getBytes();
+
+            byte[] output = server.exchange(headers, body, TIMEOUT);
+            releaseServer(project, server);
+
+            return charset != null
+                ? new String(output, charset)
+                : new String(output);
+        }
+        catch (IOException e)
+        {
+            server.dispose();
+            throw new CoreException(new Status(
+                IStatus.ERROR,
+                PerlEditorPlugin.getPluginId(),
+                IStatus.OK,
+                "Perl compile server failed, falling back to perl -c. " +
+                "Command line: " + server.getCommandLine(),
+                e));
+        }
+    }
+
+    protected String getExecutable()
+    {
+        return "epicCompileServer.pl";
+    }
+
+    protected String getScriptDir()
+    {
+        return "perlutils/epicScripts";
+    }
+
+    /**
+     * @return the switches which perl would take from the #! line of
+     *         the given source code: those following the first word which
+     *         contains "perl", up to the first argument which is not
+     *         a switch (the interpreter itself, as in "#!/usr/bin/perl -w"
+     *         or "#!/usr/bin/env perl -w", is not returned)
+     */
+    static List<String> getShebangSwitches(String sourceCode)
+    {
+        List<String> ret = new ArrayList<String>();
+        if (sourceCode.length() > 0 && sourceCode.charAt(0) == '\uFEFF')
+            sourceCode = sourceCode.substring(1);
+        if (!sourceCode.startsWith("#!")) return ret;
+
+        int eol = sourceCode.indexOf('\n');
+        String line = eol != -1 ? sourceCode.substring(0, eol) : sourceCode;
+        int perl = line.indexOf("perl");
+        if (perl == -1) return ret;
+
+        StringTokenizer st = new StringTokenizer(line.substring(perl), " \t\r");
+        st.nextToken(); // the word containing "perl"
+        while (st.hasMoreTokens())
+        {
+            String token = st.nextToken();
+            if (!token.startsWith("-") || token.equals("--")) break;
+            ret.add(token);
+        }
+        return ret;
+    }
+
+    private synchronized void dispose()
+    {
+        for (Iterator<List<PerlServerProcess>> i = idleServers.values().iterator(); i.hasNext();)
+            disposeAll(i.next());
+        idleServers.clear();
+    }
+
+    private void disposeAll(List<PerlServerProcess> servers)
+    {
+        for (Iterator<PerlServerProcess> i = servers.iterator(); i.hasNext();)
+            i.next().dispose();
+        servers.clear();
+    }
+
+    /**
+     * @return an idle server process for the given project, started with
+     *         the project's current command line; the caller becomes its
+     *         exclusive user until {@link #releaseServer}
+     */
+    private synchronized PerlServerProcess acquireServer(PerlProject project)
+        throws CoreException
+    {
+        List<String> commandLine =
+            PerlExecutableUtilities.getPerlCommandLine(project);
+        commandLine.add(getExecutable());
+        commandLine.addAll(getProjectDirs(project));
+
+        List<PerlServerProcess> servers = getIdleServers(project);
+
+        if (!servers.isEmpty() &&
+            !servers.get(0).getCommandLine().equals(commandLine))
+        {
+            disposeAll(servers);
+        }
+        if (!servers.isEmpty()) return servers.remove(servers.size() - 1);
+
+        File workingDir = getWorkingDir();
+        if (workingDir == null) throw new CoreException(new Status(
+            IStatus.ERROR,
+            PerlEditorPlugin.getPluginId(),
+            IStatus.OK,
+            "Could not locate " + getScriptDir() + "/" + getExecutable(),
+            null));
+
+        return new PerlServerProcess(commandLine, workingDir);
+    }
+
+    /**
+     * @return the project's folder and its include path; the server never
+     *         preloads modules found in these folders, because they may be
+     *         edited while the server is running
+     */
+    private List<String> getProjectDirs(PerlProject project)
+    {
+        List<String> dirs = new ArrayList<String>();
+        dirs.add(PerlExecutableUtilities.resolveIncPath(
+            project.getProject().getLocation().toString()));
+
+        for (Iterator<File> i = project.getIncPath().iterator(); i.hasNext();)
+            dirs.add(PerlExecutableUtilities.resolveIncPath(
+                i.next().getAbsolutePath()));
+        return dirs;
+    }
+
+    private List<PerlServerProcess> getIdleServers(PerlProject project)
+    {
+        String name = project.getProject().getName();
+        List<PerlServerProcess> servers = idleServers.get(name);
+
+        if (servers == null)
+        {
+            servers = new ArrayList<PerlServerProcess>();
+            idleServers.put(name, servers);
+        }
+        return servers;
+    }
+
+    /**
+     * Returns a server process obtained from {@link #acquireServer}
+     * to the pool of idle servers.
+     */
+    private synchronized void releaseServer(
+        PerlProject project, PerlServerProcess server)
+    {
+        if (instance != this) server.dispose(); // shut down meanwhile
+        else getIdleServers(project).add(server);
+    }
+}
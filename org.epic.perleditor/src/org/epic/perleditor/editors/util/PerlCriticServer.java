@@ -0,0 +1,211 @@
+package org.epic.perleditor.editors.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.*;
+import org.epic.core.util.*;
+import org.epic.perleditor.PerlEditorPlugin;
+
+/**
+ * Client of <code>perlutils/epicScripts/epicCriticServer.pl</code>,
+ * a resident replacement for the perlcritic script used by SourceCritic.
+ * <p>
+ * Server processes are kept per project and run in the project's folder,
+ * so that the project's .perlcriticrc is found as by perlcritic. A server
+ * keeps the Perl::Critic instances (with their profile already read and
+ * policies instantiated) created for each set of options, so that only
+ * the first file critiqued with given options pays for their creation.
+ * A server process handles one request at a time; concurrent requests
+ * within the same project start additional server processes, which are
+ * kept for reuse afterwards. Servers are restarted when the interpreter's
+ * command line changes.
+ * </p>
+ * <p>
+ * If a server cannot be started (most likely because Perl::Critic is not
+ * available to the interpreter), no further attempts are made until
+ * the command line changes.
+ * </p>
+ */
+public class PerlCriticServer extends ScriptExecutor
+{
+    /**
+     * Maximum time to wait for a file to be critiqued, multiplied by
+     * the number of files in a request; if exceeded, the server is destroyed
+     */
+    private static final long TIMEOUT_PER_FILE = 60000;
+
+    private static PerlCriticServer instance;
+
+    /**
+     * Maps names of projects to lists of idle server processes
+     */
+    private final Map<String, List<PerlServerProcess>> idleServers;
+
+    /**
+     * Command line of a server which failed, or null
+     */
+    private List<String> failedCommandLine;
+
+    private PerlCriticServer()
+    {
+        super(PerlEditorPlugin.getDefault().getLog());
+        idleServers = new HashMap<String, List<PerlServerProcess>>();
+    }
+
+    /**
+     * @return the PerlCriticServer singleton
+     */
+    public synchronized static PerlCriticServer instance()
+    {
+        if (instance == null) instance = new PerlCriticServer();
+        return instance;
+    }
+
+    /**
+     * Terminates all server processes, if any were started.
+     * Invoked when the plug-in is stopped or Perl::Critic preferences
+     * have changed.
+     */
+    public synchronized static void shutdown()
+    {
+        if (instance != null) instance.dispose();
+        instance = null;
+    }
+
+    /**
+     * Critiques the given files of a project.
+     *
+     * @param project       project which contains the files
+     * @param options       perlcritic command line options,
+     *                      followed by the paths of the files
+     * @param fileCount     number of the files
+     * @return output which the perlcritic script would print to stdout
+     *         when invoked with the given options, or null if the server
+     *         does not support these options, could not critique the files
+     *         or has failed before; perlcritic should be run instead then
+     * @exception CoreException
+     *            if the server could not be started or failed
+     */
+    public String critique(IProject project, List<String> options, int fileCount)
+        throws CoreException
+    {
+        PerlServerProcess server = acquireServer(project);
+        if (server == null) return null;
+
+        try
+        {
+            String response = new String(
+                server.exchange(options, new byte[0], TIMEOUT_PER_FILE * fileCount));
+            releaseServer(project, server);
+
+            return response.startsWith("OK\n")
+                ? response.substring(3)
+                : null; // ERROR\n<message>
+        }
+        catch (IOException e)
+        {
+            server.dispose();
+            markFailed(server.getCommandLine());
+            throw new CoreException(new Status(
+                IStatus.ERROR,
+                PerlEditorPlugin.getPluginId(),
+                IStatus.OK,
+                "Perl::Critic server failed, falling back to perlcritic. " +
+                "Command line: " + server.getCommandLine(),
+                e));
+        }
+    }
+
+    protected String getExecutable()
+    {
+        return "epicCriticServer.pl";
+    }
+
+    protected String getScriptDir()
+    {
+        return "perlutils/epicScripts";
+    }
+
+    private synchronized void dispose()
+    {
+        for (Iterator<List<PerlServerProcess>> i = idleServers.values().iterator(); i.hasNext();)
+            disposeAll(i.next());
+        idleServers.clear();
+    }
+
+    private void disposeAll(List<PerlServerProcess> servers)
+    {
+        for (Iterator<PerlServerProcess> i = servers.iterator(); i.hasNext();)
+            i.next().dispose();
+        servers.clear();
+    }
+
+    /**
+     * @return an idle server process for the given project, started
+     *         with the interpreter's current command line, or null if
+     *         a server with this command line has failed before;
+     *         the caller becomes its exclusive user until
+     *         {@link #releaseServer}
+     */
+    private synchronized PerlServerProcess acquireServer(IProject project)
+        throws CoreException
+    {
+        File scriptsDir = getWorkingDir();
+        if (scriptsDir == null) throw new CoreException(new Status(
+            IStatus.ERROR,
+            PerlEditorPlugin.getPluginId(),
+            IStatus.OK,
+            "Could not locate " + getScriptDir() + "/" + getExecutable(),
+            null));
+
+        List<String> commandLine = PerlExecutableUtilities.getPerlCommandLine();
+        commandLine.add(new File(scriptsDir, getExecutable()).getAbsolutePath());
+
+        if (commandLine.equals(failedCommandLine)) return null;
+
+        List<PerlServerProcess> servers = getIdleServers(project);
+
+        if (!servers.isEmpty() &&
+            !servers.get(0).getCommandLine().equals(commandLine))
+        {
+            disposeAll(servers);
+        }
+        if (!servers.isEmpty()) return servers.remove(servers.size() - 1);
+
+        return new PerlServerProcess(
+            commandLine,
+            new File(project.getLocation().toOSString()));
+    }
+
+    private List<PerlServerProcess> getIdleServers(IProject project)
+    {
+        String name = project.getName();
+        List<PerlServerProcess> servers = idleServers.get(name);
+
+        if (servers == null)
+        {
+            servers = new ArrayList<PerlServerProcess>();
+            idleServers.put(name, servers);
+        }
+        return servers;
+    }
+
+    private synchronized void markFailed(List<String> commandLine)
+    {
+        failedCommandLine = new ArrayList<String>(commandLine);
+    }
+
+    /**
+     * Returns a server process obtained from {@link #acquireServer}
+     * to the pool of idle servers.
+     */
+    private synchronized void releaseServer(
+        IProject project, PerlServerProcess server)
+    {
+        if (instance != this) server.dispose(); // shut down meanwhile
+        else getIdleServers(project).add(server);
+    }
+}
@@ -0,0 +1,200 @@
+package org.epic.perleditor.editors.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import org.eclipse.core.runtime.*;
+import org.epic.core.util.*;
+import org.epic.perleditor.PerlEditorPlugin;
+
+/**
+ * Client of <code>perlutils/perltidy/epicTidyServer.pl</code>,
+ * a resident replacement for the perltidy script used by SourceFormatter.
+ * <p>
+ * The server loads Perl::Tidy once and then formats any number of sources,
+ * each with its own perltidy options, so that changes of the Source
+ * Formatter preferences take effect with the next request. A server process
+ * handles one request at a time; concurrent requests start additional
+ * server processes, which are kept for reuse afterwards. Servers are
+ * restarted when the interpreter's command line changes.
+ * </p>
+ */
+public class PerlTidyServer extends ScriptExecutor
+{
+    /**
+     * Default maximum time to wait for a source to be formatted;
+     * if exceeded, the server is destroyed
+     */
+    private static final long TIMEOUT = 60000;
+
+    private static final String CHARSET = "UTF-8";
+
+    private static PerlTidyServer instance;
+
+    private final List<PerlServerProcess> idleServers;
+
+    private PerlTidyServer()
+    {
+        super(PerlEditorPlugin.getDefault().getLog());
+        idleServers = new ArrayList<PerlServerProcess>();
+    }
+
+    /**
+     * @return the PerlTidyServer singleton
+     */
+    public synchronized static PerlTidyServer instance()
+    {
+        if (instance == null) instance = new PerlTidyServer();
+        return instance;
+    }
+
+    /**
+     * Terminates all server processes, if any were started.
+     * Invoked when the plug-in is stopped.
+     */
+    public synchronized static void shutdown()
+    {
+        if (instance != null) instance.dispose();
+        instance = null;
+    }
+
+    /**
+     * Formats the given source code.
+     *
+     * @param sourceCode    source code to format
+     * @param options       perltidy command line options
+     * @return output which the perltidy script would print to stdout
+     *         and stderr when invoked with the given options and
+     *         the source code passed via stdin
+     * @exception CoreException
+     *            if the server could not be started or failed
+     */
+    public ProcessOutput format(String sourceCode, List<String> options)
+        throws CoreException
+    {
+        return format(sourceCode, options, TIMEOUT);
+    }
+
+    /**
+     * Formats the given source code, giving up after the given time.
+     *
+     * @param sourceCode    source code to format
+     * @param options       perltidy command line options
+     * @param timeout       maximum number of milliseconds to wait for
+     *                      the server; if exceeded, the server is destroyed
+     *                      and a CoreException is thrown
+     * @return output which the perltidy script would print to stdout
+     *         and stderr when invoked with the given options and
+     *         the source code passed via stdin
+     * @exception CoreException
+     *            if the server could not be started or failed
+     */
+    public ProcessOutput format(String sourceCode, List<String> options, long timeout)
+        throws CoreException
+    {
+        if (sourceCode.length() > 0 && sourceCode.charAt(0) == '\uFEFF')
+            sourceCode = sourceCode.substring(1);
+
+        PerlServerProcess server = acquireServer();
+
+        try
+        {
+            ProcessOutput output = parseResponse(server.exchange(
+                options, sourceCode.getBytes(CHARSET), timeout));
+            releaseServer(server);
+            return output;
+        }
+        catch (IOException e)
+        {
+            server.dispose();
+            throw new CoreException(new Status(
+                IStatus.ERROR,
+                PerlEditorPlugin.getPluginId(),
+                IStatus.OK,
+                "perltidy server failed, falling back to perltidy. " +
+                "Command line: " + server.getCommandLine(),
+                e));
+        }
+    }
+
+    protected String getExecutable()
+    {
+        return "epicTidyServer.pl";
+    }
+
+    protected String getScriptDir()
+    {
+        return "perlutils/perltidy";
+    }
+
+    /**
+     * @param response  &lt;length of stdout&gt;\n&lt;stdout&gt;&lt;stderr&gt;
+     */
+    private ProcessOutput parseResponse(byte[] response) throws IOException
+    {
+        int i = 0;
+        while (i < response.length && response[i] != '\n') i++;
+
+        try
+        {
+            int stdoutLength = Integer.parseInt(new String(response, 0, i, CHARSET));
+            int stderrStart = i + 1 + stdoutLength;
+            if (stdoutLength < 0 || stderrStart > response.length)
+                throw new NumberFormatException();
+
+            return new ProcessOutput(
+                new String(response, i + 1, stdoutLength, CHARSET),
+                new String(response, stderrStart, response.length - stderrStart, CHARSET));
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("Malformed response from perltidy server");
+        }
+    }
+
+    private synchronized void dispose()
+    {
+        for (Iterator<PerlServerProcess> i = idleServers.iterator(); i.hasNext();)
+            i.next().dispose();
+        idleServers.clear();
+    }
+
+    /**
+     * @return an idle server process started with the interpreter's current
+     *         command line; the caller becomes its exclusive user until
+     *         {@link #releaseServer}
+     */
+    private synchronized PerlServerProcess acquireServer() throws CoreException
+    {
+        List<String> commandLine = PerlExecutableUtilities.getPerlCommandLine();
+        commandLine.add(getExecutable());
+
+        if (!idleServers.isEmpty() &&
+            !idleServers.get(0).getCommandLine().equals(commandLine))
+        {
+            dispose();
+        }
+        if (!idleServers.isEmpty()) return idleServers.remove(idleServers.size() - 1);
+
+        File workingDir = getWorkingDir();
+        if (workingDir == null) throw new CoreException(new Status(
+            IStatus.ERROR,
+            PerlEditorPlugin.getPluginId(),
+            IStatus.OK,
+            "Could not locate " + getScriptDir() + "/" + getExecutable(),
+            null));
+
+        return new PerlServerProcess(commandLine, workingDir);
+    }
+
+    /**
+     * Returns a server process obtained from {@link #acquireServer}
+     * to the pool of idle servers.
+     */
+    private synchronized void releaseServer(PerlServerProcess server)
+    {
+        if (instance != this) server.dispose(); // shut down meanwhile
+        else idleServers.add(server);
+    }
+}
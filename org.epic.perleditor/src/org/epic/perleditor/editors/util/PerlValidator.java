@@ -4,11 +4,11 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
 
-import org.eclipse.core.resources.IMarker;
-import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.*;
 import org.eclipse.core.runtime.*;
 import org.eclipse.ui.IEditorDescriptor;
 import org.epic.core.Constants;
+import org.epic.core.util.MarkerUtilities;
 import org.epic.core.util.PerlExecutor;
 import org.epic.perleditor.PerlEditorPlugin;
 import org.epic.perleditor.preferences.PreferenceConstants;
@@ -52,7 +52,7 @@ public class PerlValidator extends PerlValidatorBase
      * @exception java.io.IOException
      *            if the source text of the resource could not be read
      */
-	public synchronized boolean validate(IResource resource)
+	public boolean validate(IResource resource)
         throws CoreException, IOException
     {
 		IEditorDescriptor defaultEditorDescriptor =
@@ -77,14 +77,16 @@ public class PerlValidator extends PerlValidatorBase
         return true;
 	} 
 
-    protected void addMarker(IResource resource, Map<String, Serializable> attributes)
+    protected void runMarkerUpdate(IResource resource, IWorkspaceRunnable update)
+        throws CoreException
     {
-        new MarkerUtil(resource).addMarker(attributes, Constants.PROBLEM_MARKER);
-    }
-    
-    protected void clearAllUsedMarkers(IResource resource)
-    {
-        new MarkerUtil(resource).clearAllUsedFlags(Constants.PROBLEM_MARKER);
+        IWorkspace workspace = ResourcesPlugin.getWorkspace();
+
+        workspace.run(
+            update,
+            workspace.getRuleFactory().markerRule(resource),
+            IWorkspace.AVOID_UPDATE,
+            null);
     }
     
     protected IResource getErrorResource(ParsedErrorLine line, IResource resource)
@@ -111,6 +113,33 @@ public class PerlValidator extends PerlValidatorBase
         return errorResource != null ? errorResource : resource;
     }
     
+    protected void cacheOutput(
+        IResource resource, List<String> perlArgs, String sourceCode, String perlOutput)
+    {
+        if (isValidationCacheEnabled())
+            ValidationCache.instance().put(resource, perlArgs, sourceCode, perlOutput);
+    }
+    
+    protected String getCachedOutput(
+        IResource resource, List<String> perlArgs, String sourceCode)
+    {
+        return isValidationCacheEnabled()
+            ? ValidationCache.instance().get(resource, perlArgs, sourceCode)
+            : null;
+    }
+    
+    protected PerlCompileServer getCompileServer(List<String> perlArgs, String sourceCode)
+    {
+        if (!PerlEditorPlugin.getDefault().getBooleanPreference(
+            PreferenceConstants.EDITOR_SYNTAX_VALIDATION_SERVER))
+        {
+            return null;
+        }
+
+        PerlCompileServer server = PerlCompileServer.instance();
+        return server.accepts(perlArgs, sourceCode) ? server : null;
+    }
+    
     protected List<String> getPerlArgs()
     {
         List<String> args = super.getPerlArgs();        
@@ -130,23 +159,30 @@ public class PerlValidator extends PerlValidatorBase
         return args;
     }
     
-    protected boolean isProblemMarkerPresent(
-        ParsedErrorLine line, IResource resource)
+    protected void updateMarkers(
+        IResource resource,
+        List<Map<String, Serializable>> markers,
+        boolean deleteUnmatched)
     {
-        return new MarkerUtil(resource).isMarkerPresent(
-            Constants.PROBLEM_MARKER, line.getLineNumber(), line.getMessage(), true);
+        if (deleteUnmatched) // TODO: remove when no longer needed
+            new MarkerUtil(resource).removeObsoleteProblemMarkers();
+
+        MarkerUtilities factory = new MarkerUtilities(
+            PerlEditorPlugin.getDefault().getLog(), PerlEditorPlugin.getPluginId());
+        factory.updateMarkers(
+            resource, Constants.PROBLEM_MARKER, markers, deleteUnmatched);
     }
     
-    protected void removeUnusedMarkers(IResource resource)
+    private boolean isValidationCacheEnabled()
     {
-        MarkerUtil util = new MarkerUtil(resource);
-        util.removeObsoleteProblemMarkers(); // TODO: remove when no longer needed
-        util.removeUnusedMarkers(Constants.PROBLEM_MARKER);
+        return PerlEditorPlugin.getDefault().getBooleanPreference(
+            PreferenceConstants.EDITOR_SYNTAX_VALIDATION_CACHE);
     }
     
     /**
      * @return true only if there is no existing marker with SEVERITY_ERROR
-     *         on the given line
+     *         on the given line, other than the problem markers updated
+     *         by this validator
      */
     protected boolean shouldUnderlineError(IResource resource, int lineNr)
     {
@@ -157,6 +193,8 @@ public class PerlValidator extends PerlValidatorBase
             IMarker marker = i.next();
             try
             {
+                if (Constants.PROBLEM_MARKER.equals(marker.getType())) continue;
+
                 Integer severity = (Integer) marker.getAttribute(IMarker.SEVERITY);
                 if (severity != null && severity.intValue() == IMarker.SEVERITY_ERROR)
                     return false;
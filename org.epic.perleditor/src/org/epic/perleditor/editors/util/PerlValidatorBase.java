@@ -31,12 +31,20 @@ abstract class PerlValidatorBase
     
     private final ILog log;
 	private final PerlValidatorErrors errors;
-    private final PerlExecutor executor;
+    private final Object markersLock = new Object();
+    
+    /**
+     * PerlExecutors which are not in use by any thread at the moment.
+     * A PerlExecutor can only run a single process at a time, so
+     * concurrent validations each need their own.
+     */
+    private final List<PerlExecutor> idleExecutors;
 	
     protected PerlValidatorBase(ILog log, PerlExecutor executor)
     {
         this.log = log;
-        this.executor = executor;
+        this.idleExecutors = new ArrayList<PerlExecutor>();
+        this.idleExecutors.add(executor);
         
         errors = new PerlValidatorErrors();
     }
@@ -44,32 +52,88 @@ abstract class PerlValidatorBase
     /**
      * Validates the provided source code, creates markers on the given
      * IResource.
+     * <p>
+     * This method may be called concurrently by multiple threads.
+     * The Perl interpreters run in parallel, while updates of markers
+     * are serialized and performed as a single batch per resource.
+     * </p>
      */
-	public synchronized void validate(IResource resource, String sourceCode)
+	public void validate(IResource resource, String sourceCode)
         throws CoreException
     {
-		//TODO check if perlOutput is empty (indicates error)           
-
-		// Mark problem markers as unused
-        //
-        // TODO: Scheduling all markers for removal at this point is actually
-        // wrong because some markers might have been added by validation of
-        // another resource (trigger). They should only disappear if validation
-        // of all triggers no longer signals a problem. However, for the time
-        // being we can live with disappearing markers - they typically do not
-        // vanish completely because a related marker is still left in
-        // the trigger as a reminder (at least this is the case for the most
-        // common 'Can't locate .. in @INC' error message, which always leaves
-        // "Compilation failed in require" in the trigger).
-        //
-        clearAllUsedMarkers(resource);
-        
-        if (isIgnoredPath(resource)) return;
+        if (isIgnoredPath(resource))
+        {
+            synchronized (markersLock)
+            {
+                runMarkerUpdate(resource, new IgnoredPathMarkerUpdate(resource));
+            }
+            return;
+        }
 
         String perlOutput = runPerl(resource, sourceCode);
 
         if (DEBUG) printPerlOutput(perlOutput);
         
+        synchronized (markersLock)
+        {
+            runMarkerUpdate(
+                resource,
+                new ValidationMarkerUpdate(resource, sourceCode, perlOutput));
+        }
+	}
+    
+    /**
+     * Creates a new PerlExecutor for a validation which runs concurrently
+     * with another one.
+     */
+    protected PerlExecutor createExecutor()
+    {
+        return new PerlExecutor(true);
+    }
+    
+    /**
+     * Executes the given update of markers caused by validation of
+     * a resource. The default implementation simply runs the update;
+     * subclasses may override to batch the resulting resource change
+     * notifications.
+     * 
+     * @param resource  validated resource
+     * @param update    operation which updates markers on this resource
+     *                  and possibly also related resources
+     */
+    protected void runMarkerUpdate(IResource resource, IWorkspaceRunnable update)
+        throws CoreException
+    {
+        update.run(null);
+    }
+    
+    /**
+     * Updates markers based on the output of "perl -c".
+     */
+    private void updateMarkers(
+        IResource resource, String sourceCode, String perlOutput)
+        throws CoreException
+    {
+		//TODO check if perlOutput is empty (indicates error)           
+
+        // The required problem markers are collected in memory first and
+        // then compared with the existing markers, so that only changed
+        // markers are written.
+        //
+        // TODO: Removing all other markers of the validated resource is
+        // actually wrong because some markers might have been added by
+        // validation of another resource (trigger). They should only disappear
+        // if validation of all triggers no longer signals a problem. However,
+        // for the time being we can live with disappearing markers - they
+        // typically do not vanish completely because a related marker is still
+        // left in the trigger as a reminder (at least this is the case for the
+        // most common 'Can't locate .. in @INC' error message, which always
+        // leaves "Compilation failed in require" in the trigger).
+        //
+        Map<IResource, RequiredMarkers> required =
+            new LinkedHashMap<IResource, RequiredMarkers>();
+        required.put(resource, new RequiredMarkers());
+        
         List<String> lines = makeLinesList(perlOutput);
         boolean continued = false;
 
@@ -94,19 +158,18 @@ abstract class PerlValidatorBase
             ParsedErrorLine pline = new ParsedErrorLine(line, log);            
             IResource errorResource = getErrorResource(pline, resource);
 
-            if (shouldIgnore(pline, errorResource)) continue;
+            if (errorResource == null || shouldIgnore(pline)) continue;
+
+            RequiredMarkers markers = required.get(errorResource);
+            if (markers == null)
+            {
+                markers = new RequiredMarkers();
+                required.put(errorResource, markers);
+            }
 
-            PerlValidatorErrors.ErrorMessage errorMsg =
-                errors.getErrorMessage(pline.getMessage());
-            
             Integer lineNr = new Integer(pline.getLineNumber());
             Map<String, Serializable> attributes = new HashMap<String, Serializable>();
 
-            attributes.put(IMarker.SEVERITY, errorMsg.getSeverity());
-			attributes.put(
-                Constants.MARKER_ATTR_PERL_ERROR_EXPLANATION,
-                errorMsg.getExplanation());            
-
             if (!pline.isLocalError() && errorResource == resource)
             {
                 // last resort: we have a non-local error, but the resource
@@ -120,47 +183,98 @@ abstract class PerlValidatorBase
             {
                 attributes.put(IMarker.MESSAGE, pline.getMessage());
                 attributes.put(IMarker.LINE_NUMBER, lineNr);
+            }
+
+            // Marker already present?
+            if (markers.contains(attributes)) continue;
+
+            PerlValidatorErrors.ErrorMessage errorMsg =
+                errors.getErrorMessage(pline.getMessage());
+
+            attributes.put(IMarker.SEVERITY, errorMsg.getSeverity());
+			attributes.put(
+                Constants.MARKER_ATTR_PERL_ERROR_EXPLANATION,
+                errorMsg.getExplanation());            
+
+            if (attributes.containsKey(IMarker.LINE_NUMBER) &&
+                !markers.hasError(lineNr) &&
+                shouldUnderlineError(errorResource, pline.getLineNumber()))
+            {
+                String errorSourceCode;
+                
+                try
+                {                    
+                    if (errorResource == resource) errorSourceCode = sourceCode;
+                    else errorSourceCode = readSourceFile(errorResource);
                 
-                if (shouldUnderlineError(errorResource, pline.getLineNumber()))
+                    underlineError(
+                        errorResource,
+                        errorSourceCode,
+                        pline.getLineNumber(),
+                        attributes);
+                }
+                catch (IOException e)
                 {
-                    String errorSourceCode;
-                    
-                    try
-                    {                    
-                        if (errorResource == resource) errorSourceCode = sourceCode;
-                        else errorSourceCode = readSourceFile(errorResource);
-                    
-                        underlineError(
-                            errorResource,
-                            errorSourceCode,
-                            pline.getLineNumber(),
-                            attributes);
-                    }
-                    catch (IOException e)
-                    {
-                        Status status = new Status(
-                            Status.ERROR,
-                            PerlEditorPlugin.getPluginId(),
-                            IStatus.OK,
-                            "Could not read source file of resource: " +
-                            errorResource.getLocation() + ". Error markers will " +
-                            "be incorrect for this resource.",
-                            e);
-                        // trouble reading the other file's source code
-                        throw new CoreException(status);
-                    }
+                    Status status = new Status(
+                        Status.ERROR,
+                        PerlEditorPlugin.getPluginId(),
+                        IStatus.OK,
+                        "Could not read source file of resource: " +
+                        errorResource.getLocation() + ". Error markers will " +
+                        "be incorrect for this resource.",
+                        e);
+                    // trouble reading the other file's source code
+                    throw new CoreException(status);
                 }
             }
             
-            addMarker(errorResource, attributes);
+            markers.add(attributes);
 		}
         
-        removeUnusedMarkers(resource);
+        for (Iterator<Map.Entry<IResource, RequiredMarkers>> i =
+            required.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry<IResource, RequiredMarkers> entry = i.next();
+            updateMarkers(
+                entry.getKey(),
+                entry.getValue().attributes,
+                entry.getKey() == resource);
+        }
 	}
-    
-    protected abstract void addMarker(IResource resource, Map<String, Serializable> attributes);
 
-    protected abstract void clearAllUsedMarkers(IResource resource);
+    /**
+     * Stores the output of "perl -c" for later reuse by
+     * {@link #getCachedOutput}. The default implementation does nothing.
+     */
+    protected void cacheOutput(
+        IResource resource, List<String> perlArgs, String sourceCode, String perlOutput)
+    {
+    }
+    
+    /**
+     * @return a previously recorded output of "perl -c" for the given
+     *         resource, its source code and interpreter switches,
+     *         which is still valid; or null if the Perl interpreter must
+     *         be run (default)
+     */
+    protected String getCachedOutput(
+        IResource resource, List<String> perlArgs, String sourceCode)
+    {
+        return null;
+    }
+    
+    /**
+     * @param perlArgs      command-line switches for the Perl interpreter
+     * @param sourceCode    source code to be validated
+     * @return a resident compile server which should be used instead of
+     *         a new interpreter process to validate the given source code
+     *         with the given switches, or null if a new interpreter process
+     *         should be used (default)
+     */
+    protected PerlCompileServer getCompileServer(List<String> perlArgs, String sourceCode)
+    {
+        return null;
+    }
 
     protected IResource getErrorResource(ParsedErrorLine line, IResource resource)
     {
@@ -174,9 +288,6 @@ abstract class PerlValidatorBase
         return args;
     }
     
-    protected abstract boolean isProblemMarkerPresent(
-        ParsedErrorLine line, IResource resource);
-
     /**
      * Reads contents of the given text file.
      * 
@@ -231,10 +342,28 @@ abstract class PerlValidatorBase
         return readSourceFile(resource.getLocation().makeAbsolute().toString(), charset);
     }
     
-    protected abstract void removeUnusedMarkers(IResource resource);
-    
+    /**
+     * @return true if an error on the given line of the given resource
+     *         should be underlined, considering markers other than those
+     *         managed by {@link #updateMarkers(IResource, List, boolean)};
+     *         at most one error per line is underlined in any case
+     */
     protected abstract boolean shouldUnderlineError(IResource resource, int lineNr);
     
+    /**
+     * Updates problem markers of the given resource so that they match
+     * the given list of marker attributes. This method is called from
+     * within the IWorkspaceRunnable passed to {@link #runMarkerUpdate}.
+     * 
+     * @param markers           attributes of the required markers
+     * @param deleteUnmatched   true if other existing problem markers of
+     *                          the resource should be deleted
+     */
+    protected abstract void updateMarkers(
+        IResource resource,
+        List<Map<String, Serializable>> markers,
+        boolean deleteUnmatched);
+    
     /**
      * Splits up the given text content into a list of up to maxErrorsShown lines.
      * If there are more lines in content, remaining lines are ignored.
@@ -269,11 +398,7 @@ abstract class PerlValidatorBase
             {
                 Pattern p = i.next();
                 String path = resource.getProjectRelativePath().toString();               
-                if (p.matcher(path).matches())
-                {
-                    removeUnusedMarkers(resource);
-                    return true;
-                }
+                if (p.matcher(path).matches()) return true;
             }
         }
         return false;
@@ -295,17 +420,11 @@ abstract class PerlValidatorBase
      * @return true if the error message contained in the line should
      *         be ignored, false otherwise
      */
-    private boolean shouldIgnore(ParsedErrorLine line, IResource resource)
+    private boolean shouldIgnore(ParsedErrorLine line)
     {       
         // No line number?
         if (line.getLineNumber() < 0) return true;
         
-        // Marker already present?        
-        if (isProblemMarkerPresent(line, resource))
-        {
-            return true;
-        }
-        
         // Useless error message, with better ones around in the same output?
         if (line.getMessage().indexOf("BEGIN failed--compilation aborted") == 0)
             return true;
@@ -323,7 +442,56 @@ abstract class PerlValidatorBase
     private String runPerl(IResource resource, String sourceCode)
         throws CoreException
     {
-        return executor.execute(resource, getPerlArgs(), sourceCode).stderr;
+        List<String> args = getPerlArgs();
+        String output = getCachedOutput(resource, args, sourceCode);
+        if (output != null) return output;
+        
+        output = runPerl(resource, args, sourceCode);
+        cacheOutput(resource, args, sourceCode, output);
+        return output;
+    }
+    
+    private String runPerl(IResource resource, List<String> args, String sourceCode)
+        throws CoreException
+    {
+        PerlCompileServer server = getCompileServer(args, sourceCode);
+
+        if (server != null)
+        {
+            try { return server.compile(resource, args, sourceCode); }
+            catch (CoreException e)
+            {
+                log.log(e.getStatus());
+                // fall back to a new interpreter process below
+            }
+        }
+        PerlExecutor executor = acquireExecutor();
+        try
+        {
+            return executor.execute(resource, args, sourceCode).stderr;
+        }
+        finally
+        {
+            releaseExecutor(executor);
+        }
+    }
+    
+    private PerlExecutor acquireExecutor()
+    {
+        synchronized (idleExecutors)
+        {
+            if (!idleExecutors.isEmpty())
+                return idleExecutors.remove(idleExecutors.size() - 1);
+        }
+        return createExecutor();
+    }
+    
+    private void releaseExecutor(PerlExecutor executor)
+    {
+        synchronized (idleExecutors)
+        {
+            idleExecutors.add(executor);
+        }
     }       
     
     private void underlineError(
@@ -378,6 +546,98 @@ abstract class PerlValidatorBase
         attributes.put(IMarker.CHAR_END, new Integer(end));
     }
     
+    /**
+     * Removes markers from a resource which is excluded from validation.
+     */
+    private class IgnoredPathMarkerUpdate implements IWorkspaceRunnable
+    {
+        private final IResource resource;
+        
+        public IgnoredPathMarkerUpdate(IResource resource)
+        {
+            this.resource = resource;
+        }
+        
+        public void run(IProgressMonitor monitor) throws CoreException
+        {
+            updateMarkers(
+                resource, new ArrayList<Map<String, Serializable>>(), true);
+        }
+    }
+    
+    /**
+     * Updates markers based on the output of "perl -c" for a resource.
+     */
+    private class ValidationMarkerUpdate implements IWorkspaceRunnable
+    {
+        private final IResource resource;
+        private final String sourceCode;
+        private final String perlOutput;
+        
+        public ValidationMarkerUpdate(
+            IResource resource, String sourceCode, String perlOutput)
+        {
+            this.resource = resource;
+            this.sourceCode = sourceCode;
+            this.perlOutput = perlOutput;
+        }
+        
+        public void run(IProgressMonitor monitor) throws CoreException
+        {
+            updateMarkers(resource, sourceCode, perlOutput);
+        }
+    }
+    
+    /**
+     * Problem markers required on a single resource, in the order
+     * of their creation.
+     */
+    private static class RequiredMarkers
+    {
+        public final List<Map<String, Serializable>> attributes =
+            new ArrayList<Map<String, Serializable>>();
+        private final Set<String> keys = new HashSet<String>();
+        private final Set<Integer> errorLines = new HashSet<Integer>();
+        
+        public void add(Map<String, Serializable> markerAttributes)
+        {
+            attributes.add(markerAttributes);
+            keys.add(getKey(markerAttributes));
+            
+            Integer severity = (Integer) markerAttributes.get(IMarker.SEVERITY);
+            Integer lineNr = (Integer) markerAttributes.get(IMarker.LINE_NUMBER);
+            if (lineNr != null && severity != null &&
+                severity.intValue() == IMarker.SEVERITY_ERROR)
+            {
+                errorLines.add(lineNr);
+            }
+        }
+        
+        /**
+         * @return true if a marker with the same line number and message
+         *         as the given one is already required
+         */
+        public boolean contains(Map<String, Serializable> markerAttributes)
+        {
+            return keys.contains(getKey(markerAttributes));
+        }
+        
+        /**
+         * @return true if an error marker is already required on
+         *         the given line
+         */
+        public boolean hasError(Integer lineNr)
+        {
+            return errorLines.contains(lineNr);
+        }
+        
+        private String getKey(Map<String, Serializable> markerAttributes)
+        {
+            return markerAttributes.get(IMarker.LINE_NUMBER) + ":" +
+                markerAttributes.get(IMarker.MESSAGE);
+        }
+    }
+    
     protected static class ParsedErrorLine
     {
         private static final Pattern errorLineNoPattern =
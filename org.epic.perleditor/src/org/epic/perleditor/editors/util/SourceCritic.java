@@ -1,9 +1,10 @@
 package org.epic.perleditor.editors.util;
 
-import java.io.File;
+import java.io.*;
 import java.util.*;
 
 import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.ILog;
@@ -22,7 +23,7 @@ public class SourceCritic extends ScriptExecutor
 
     private static Violation[] EMPTY_ARRAY = new Violation[0];
 
-    private IResource resource;
+    private List<IResource> resources;
 
     //~ Constructors
 
@@ -34,22 +35,122 @@ public class SourceCritic extends ScriptExecutor
     //~ Methods   
 
     public static Violation[] critique(IResource resource, ILog log)
+    {
+        Map<IResource, Violation[]> violations =
+            critique(Collections.singletonList(resource), log);
+
+        // nothing more we can do
+        return violations != null ? violations.get(resource) : EMPTY_ARRAY;
+    }
+
+    /**
+     * Critiques several files with a single run of perlcritic.
+     *
+     * @param resources     files to critique, all contained in the same
+     *                      project; their paths are passed on perlcritic's
+     *                      command line, so their number should be limited
+     * @param log           log for problems encountered while running
+     *                      perlcritic
+     * @return violations found in each of the files, or null if
+     *         perlcritic could not be run (the problem is logged)
+     */
+    public static Map<IResource, Violation[]> critique(List<IResource> resources, ILog log)
     {
         try
         {
             SourceCritic critic = new SourceCritic(log);
             // meh - not sure if i'm happy w/ this, but it's needed in getCommandLineOpts
-            critic.resource = resource;
+            critic.resources = resources;
 
-            String output = critic.run(new ArrayList<String>(4)).stdout;
-            return critic.parseViolations(output);
+            ViolationParser parser = critic.new ViolationParser();
+            if (!critic.critiqueWithServer(parser))
+                critic.run("", new ArrayList<String>(4), parser);
+            return critic.getViolationsByResource(parser.getViolations());
         }
         catch (CoreException e)
         {
             log.log(e.getStatus());
-            // nothing more we can do
-            return EMPTY_ARRAY;
+            return null;
+        }
+    }
+
+    /**
+     * Critiques the resources using the resident {@link PerlCriticServer},
+     * if enabled.
+     *
+     * @return true if the server's output has been passed to the listener,
+     *         false if perlcritic has to be run instead
+     */
+    private boolean critiqueWithServer(ILineListener listener)
+    {
+        if (!PerlCriticPreferencePage.isPerlCriticServerEnabled())
+        {
+            PerlCriticServer.shutdown(); // no longer needed
+            return false;
+        }
+
+        String output;
+        try
+        {
+            output = PerlCriticServer.instance().critique(
+                getProject(),
+                getCommandLineOpts(new ArrayList<String>(4)),
+                resources.size());
         }
+        catch (CoreException e)
+        {
+            log(e.getStatus());
+            return false;
+        }
+        if (output == null) return false;
+
+        BufferedReader r = new BufferedReader(new StringReader(output));
+        String line;
+        try { while ((line = r.readLine()) != null) listener.lineRead(line); }
+        catch (IOException e) { /* can't occur */ }
+        return true;
+    }
+
+    /**
+     * Assigns violations to the critiqued resources using the file paths
+     * reported by perlcritic.
+     */
+    private Map<IResource, Violation[]> getViolationsByResource(List<Violation> violations)
+    {
+        Map<String, IResource> resourcesByPath = new HashMap<String, IResource>();
+        Map<IResource, List<Violation>> lists = new HashMap<IResource, List<Violation>>();
+        for (Iterator<IResource> i = resources.iterator(); i.hasNext();)
+        {
+            IResource resource = i.next();
+            resourcesByPath.put(getPath(resource), resource);
+            lists.put(resource, new ArrayList<Violation>());
+        }
+
+        for (Iterator<Violation> i = violations.iterator(); i.hasNext();)
+        {
+            Violation v = i.next();
+            IResource resource = resourcesByPath.get(v.file);
+            if (resource == null && resources.size() == 1) resource = resources.get(0);
+            if (resource != null) lists.get(resource).add(v);
+        }
+
+        Map<IResource, Violation[]> ret = new HashMap<IResource, Violation[]>();
+        for (Iterator<Map.Entry<IResource, List<Violation>>> i = lists.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry<IResource, List<Violation>> e = i.next();
+            ret.put(e.getKey(), e.getValue().toArray(new Violation[e.getValue().size()]));
+        }
+        return ret;
+    }
+
+    private IProject getProject()
+    {
+        return resources.get(0).getProject();
+    }
+
+    private static String getPath(IResource resource)
+    {
+        return resource.getRawLocation().toOSString();
     }
 
     /*
@@ -63,7 +164,7 @@ public class SourceCritic extends ScriptExecutor
         }
 
         // project specific critic config files
-        IFile rc = resource.getProject().getFile(".perlcriticrc");
+        IFile rc = getProject().getFile(".perlcriticrc");
         File rcFile = new File(rc.getRawLocation().toOSString());
         if (rcFile.exists())
         {
@@ -86,16 +187,17 @@ public class SourceCritic extends ScriptExecutor
         	additionalOptions.addAll(CommandLineTokenizer.tokenize(otherOptions));
         }
 
-        IFile file = (IFile) resource;
         /*
          * it seems that Perl::Critic does not like receiving the editor input when invoked via the
          * perl executor (although it works fine from the command line outside of java land).
          *
-         * this work around is ok for now b/c metrics are only run against a single file, but this
-         * won't work for entire directories at a time - perhaps a background job that processes
-         * each one?
+         * so the files are passed by their paths; this also allows critiquing several files at
+         * a time, as in a build
          */
-        additionalOptions.add(file.getRawLocation().toOSString());
+        for (Iterator<IResource> i = resources.iterator(); i.hasNext();)
+        {
+            additionalOptions.add(getPath(i.next()));
+        }
         
         return additionalOptions;
     }
@@ -121,7 +223,7 @@ public class SourceCritic extends ScriptExecutor
         // Run perlcritic from project folder, not from the the one which
         // contains the script to be checked, in hope that some violations
         // of the sort "this file is in wrong directory" can be avoided that way.
-        return new File(resource.getProject().getLocation().toOSString());
+        return new File(getProject().getLocation().toOSString());
     }
 
     private final Violation parseLine(String toParse)
@@ -149,35 +251,60 @@ public class SourceCritic extends ScriptExecutor
         return violation;
     }
 
-    private final Violation[] parseViolations(String toParse)
+    /**
+     * Parses violations from the output of Perl::Critic while it is being
+     * read. Each violation is terminated by ~||~ at the end of a line.
+     * Files without violations are reported as "<file> source OK" lines.
+     */
+    private class ViolationParser implements ILineListener
     {
-        String separator = getLineSeparator(toParse);
+        private final List<Violation> violations = new ArrayList<Violation>();
+        private final StringBuffer record = new StringBuffer();
+        private String lastLine;
 
-        if ((toParse == null) || "".equals(toParse) || toParse.endsWith("OK" + separator))
+        public void lineRead(String line)
         {
-            return EMPTY_ARRAY;
+            lastLine = line;
+            if (record.length() == 0 && line.endsWith(" source OK")) return;
+            if (record.length() > 0) record.append('\n');
+
+            if (line.endsWith("~||~"))
+            {
+                record.append(line.substring(0, line.length() - 4));
+                parseRecord();
+            }
+            else record.append(line);
         }
 
-        String[] lines = toParse.split("~\\|\\|~" + separator);
-        ArrayList<Violation> violations = new ArrayList<Violation>();
-        for (int i = 0; i < lines.length; i++)
+        public List<Violation> getViolations()
         {
-            System.out.println("critic: " + lines[i]);
+            if (lastLine == null ||
+                (violations.isEmpty() && lastLine.endsWith("OK")))
+            {
+                return Collections.emptyList();
+            }
 
-            Violation v = parseLine(lines[i]);
-            if (v != null)
+            if (record.length() > 0) parseRecord();
+            if (violations.isEmpty())
             {
-                violations.add(v);
+                log(StatusFactory.createWarning(getPluginId(),
+                        "Perl::Critic violations.length == 0, output change?"));
             }
+
+            return violations;
         }
 
-        if (violations.size() == 0)
+        private void parseRecord()
         {
-            log(StatusFactory.createWarning(getPluginId(),
-                    "Perl::Critic violations.length == 0, output change?"));
-        }
+            System.out.println("critic: " + record);
 
-        return violations.toArray(new Violation[violations.size()]);
+            Violation v = parseLine(record.toString());
+            if (v != null)
+            {
+                violations.add(v);
+            }
+            record.setLength(0);
+        }
     }
 
     public static class Violation
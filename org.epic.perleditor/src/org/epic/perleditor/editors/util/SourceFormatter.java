@@ -1,5 +1,6 @@
 package org.epic.perleditor.editors.util;
 
+import java.io.File;
 import java.util.*;
 
 import org.eclipse.core.runtime.*;
@@ -55,8 +56,35 @@ public class SourceFormatter extends ScriptExecutor
     public static String format(String toFormat, List<String> additionalArgs, ILog log)
         throws CoreException
     {
-        ProcessOutput out = new SourceFormatter(log).run(toFormat, additionalArgs);
-        
+        return format(toFormat, additionalArgs, 0, log);
+    }
+
+    /**
+     * format perl source code, giving up after the given time
+     *
+     * @param toFormat source to format
+     * @param additionalArgs additional arguments that may be passed to the command line
+     * @param timeout maximum number of milliseconds to wait for perltidy, or 0 to wait
+     *        indefinitely; when exceeded, perltidy is terminated and a CoreException is thrown
+     * @param log log instance
+     *
+     * @return newly formatted source code
+     */
+    public static String format(
+        String toFormat, List<String> additionalArgs, long timeout, ILog log)
+        throws CoreException
+    {
+        SourceFormatter formatter = new SourceFormatter(log);
+        formatter.setTimeout(timeout);
+
+        FormatterCache cache = FormatterCache.instance();
+        File scriptDir = formatter.getWorkingDir();
+        List<String> options = formatter.getCommandLineOpts(additionalArgs);
+        String cached = cache.get(scriptDir, options, toFormat);
+        if (cached != null) return cached;
+
+        ProcessOutput out = formatter.tidy(toFormat, additionalArgs, options);
+
         if (out.stdout.startsWith("skipping file: "))
         {
             String error = truncateString(out.stdout, 160);
@@ -83,7 +111,51 @@ public class SourceFormatter extends ScriptExecutor
                 null),
                 out.stdout);
         }
-        else return out.stdout;
+        else
+        {
+            cache.put(scriptDir, options, toFormat, out.stdout);
+            return out.stdout;
+        }
+    }
+
+    /**
+     * Runs perltidy on the given source code, preferably using
+     * the resident {@link PerlTidyServer}. If a timeout is set,
+     * it limits the time spent in both attempts together.
+     *
+     * @param options   {@link #getCommandLineOpts} for additionalArgs
+     */
+    private ProcessOutput tidy(
+        String toFormat, List<String> additionalArgs, List<String> options)
+        throws CoreException
+    {
+        if (PerlEditorPlugin.getDefault().getPreferenceStore().getBoolean(
+            SourceFormatterPreferences.RESIDENT_PERLTIDY))
+        {
+            long timeout = getTimeout();
+            long deadline = System.currentTimeMillis() + timeout;
+            try
+            {
+                PerlTidyServer server = PerlTidyServer.instance();
+                return timeout > 0
+                    ? server.format(toFormat, options, timeout)
+                    : server.format(toFormat, options);
+            }
+            catch (CoreException e)
+            {
+                log(e.getStatus());
+                if (timeout > 0)
+                {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) throw e;
+                    setTimeout(remaining);
+                }
+                // fall back to running the perltidy script below
+            }
+        }
+        else PerlTidyServer.shutdown(); // no longer needed
+
+        return run(toFormat, additionalArgs);
     }
     
     protected String getCharsetName()
@@ -0,0 +1,456 @@
+package org.epic.perleditor.editors.util;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.*;
+import org.epic.core.PerlCore;
+import org.epic.core.PerlProject;
+import org.epic.core.util.ModuleReferences;
+import org.epic.core.util.PerlExecutableUtilities;
+import org.epic.perleditor.PerlEditorPlugin;
+
+/**
+ * Persistent cache of "perl -c" outputs, stored in the plug-in's state
+ * location. PerlValidator consults this cache before starting a Perl
+ * interpreter, so that unchanged files are not compiled again (in
+ * particular, during the full build after a restart).
+ * <p>
+ * An entry is keyed by a hash of the resource's path, its source code,
+ * the interpreter command line (which includes the project's include
+ * path) and the switches passed to the interpreter. Because the output
+ * also depends on modules used by the source code, each entry records
+ * the modification stamps of project modules and files which the source
+ * (directly or indirectly) refers to through <code>use</code> (including
+ * base classes listed in <code>use parent</code> and <code>use base</code>)
+ * or <code>require</code>, as reported by {@link ModuleReferences}.
+ * An entry is only valid while these stamps remain unchanged.
+ * </p>
+ * <p>
+ * Only modules whose names start with an upper-case letter are tracked
+ * (pragmas are not). Outputs which report missing modules are never
+ * cached because they typically depend on modules installed outside
+ * of the project.
+ * </p>
+ */
+public class ValidationCache
+{
+    private static final int FORMAT_VERSION = 2;
+    private static final int MAX_ENTRIES = 20000;
+    private static final int MAX_DEPENDENCIES = 500;
+    private static final String FILE_NAME = "validation.cache"; //$NON-NLS-1$
+
+    private static ValidationCache instance;
+
+    private final File file;
+    private final Map<String, Entry> entries;
+    private boolean dirty;
+
+    private ValidationCache(File file)
+    {
+        this.file = file;
+        this.entries = new LinkedHashMap<String, Entry>(1024, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                return size() > MAX_ENTRIES;
+            } };
+
+        load();
+    }
+
+    /**
+     * @return the ValidationCache singleton
+     */
+    public synchronized static ValidationCache instance()
+    {
+        if (instance == null) instance = new ValidationCache(
+            PerlEditorPlugin.getDefault().getStateLocation().append(FILE_NAME).toFile());
+        return instance;
+    }
+
+    /**
+     * Saves the cache, if it was used. Invoked when the plug-in is stopped.
+     */
+    public synchronized static void shutdown()
+    {
+        if (instance != null) instance.save();
+        instance = null;
+    }
+
+    /**
+     * Removes all entries for resources of the given project.
+     */
+    public synchronized void clear(IProject project)
+    {
+        String name = project.getName();
+        for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();)
+        {
+            if (i.next().projectName.equals(name))
+            {
+                i.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * @return the cached output of "perl -c" for the given resource,
+     *         source code and interpreter switches; or null if there is
+     *         no valid cache entry
+     */
+    public String get(IResource resource, List<String> perlArgs, String sourceCode)
+    {
+        String key = getKey(resource, perlArgs, sourceCode);
+        Entry entry;
+
+        synchronized (this)
+        {
+            entry = entries.get(key);
+        }
+        if (entry == null) return null;
+
+        if (entry.isUpToDate()) return entry.output;
+
+        synchronized (this)
+        {
+            if (entries.get(key) == entry)
+            {
+                entries.remove(key);
+                dirty = true;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the output of "perl -c" for the given resource, source code
+     * and interpreter switches.
+     */
+    public void put(
+        IResource resource, List<String> perlArgs, String sourceCode, String output)
+    {
+        if (output.indexOf("Can't locate ") != -1) return;
+
+        String key = getKey(resource, perlArgs, sourceCode);
+        Entry entry = new Entry(
+            resource.getProject().getName(),
+            output,
+            findDependencies(resource, sourceCode));
+
+        synchronized (this)
+        {
+            entries.put(key, entry);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Writes the cache to the state location, if it has been modified.
+     */
+    public synchronized void save()
+    {
+        if (!dirty) return;
+
+        File tmpFile = new File(file.getPath() + ".tmp"); //$NON-NLS-1$
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)));
+
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); i.hasNext();)
+            {
+                Map.Entry<String, Entry> e = i.next();
+                out.writeUTF(e.getKey());
+                e.getValue().write(out);
+            }
+            out.close();
+            out = null;
+
+            file.delete();
+            if (!tmpFile.renameTo(file)) throw new IOException(
+                "Could not rename " + tmpFile + " to " + file);
+            dirty = false;
+        }
+        catch (IOException e)
+        {
+            PerlEditorPlugin.getDefault().getLog().log(new Status(
+                IStatus.WARNING,
+                PerlEditorPlugin.getPluginId(),
+                IStatus.OK,
+                "Could not save validation cache " + file.getAbsolutePath(),
+                e));
+        }
+        finally
+        {
+            if (out != null) try { out.close(); } catch (IOException e) { }
+        }
+    }
+
+    private void load()
+    {
+        if (!file.isFile()) return;
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+
+            if (in.readInt() != FORMAT_VERSION) return;
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                String key = in.readUTF();
+                entries.put(key, Entry.read(in));
+            }
+        }
+        catch (IOException e)
+        {
+            // a corrupt cache is no problem, we just start from scratch
+            entries.clear();
+        }
+        finally
+        {
+            if (in != null) try { in.close(); } catch (IOException e) { }
+        }
+    }
+
+    /**
+     * @return files of modules and required files referred to by the given
+     *         source code, found by following <code>use</code> and
+     *         <code>require</code> statements through the project's include
+     *         path and the resource's parent folder; for each module or file,
+     *         the candidate files which do not exist are also returned, so
+     *         that a module added to the project later invalidates the entry
+     */
+    private List<File> findDependencies(IResource resource, String sourceCode)
+    {
+        List<File> incDirs = new ArrayList<File>();
+        incDirs.addAll(PerlCore.create(resource.getProject()).getIncPath());
+        incDirs.add(resource.getLocation().toFile().getParentFile());
+
+        Set<File> seen = new HashSet<File>();
+        List<File> deps = new ArrayList<File>();
+        LinkedList<String> sources = new LinkedList<String>();
+        sources.add(sourceCode);
+
+        while (!sources.isEmpty() && deps.size() < MAX_DEPENDENCIES)
+        {
+            String text = sources.removeFirst();
+            List<String> paths = new ArrayList<String>();
+
+            for (Iterator<String> i = ModuleReferences.getModuleNames(text).iterator(); i.hasNext();)
+            {
+                String name = i.next();
+                if (Character.isUpperCase(name.charAt(0)))
+                    paths.add(ModuleReferences.getModulePath(name));
+            }
+            paths.addAll(ModuleReferences.getRequiredPaths(text));
+
+            for (Iterator<String> i = paths.iterator(); i.hasNext();)
+                findDependency(incDirs, i.next(), seen, deps, sources);
+        }
+        return deps;
+    }
+
+    /**
+     * Adds the candidate files for the given path to deps, up to the
+     * first one which exists; the contents of that file are added to
+     * sources, so that its own dependencies are followed as well.
+     */
+    private void findDependency(
+        List<File> incDirs, String path, Set<File> seen, List<File> deps,
+        List<String> sources)
+    {
+        List<File> candidates = new ArrayList<File>();
+        if (new File(path).isAbsolute()) candidates.add(new File(path));
+        else for (Iterator<File> i = incDirs.iterator(); i.hasNext();)
+            candidates.add(new File(i.next(), path));
+
+        for (Iterator<File> i = candidates.iterator(); i.hasNext();)
+        {
+            File f = i.next();
+            if (!seen.add(f)) break;
+            deps.add(f);
+
+            if (f.isFile())
+            {
+                String text = readFile(f);
+                if (text != null) sources.add(text);
+                break;
+            }
+        }
+    }
+
+    private String getKey(IResource resource, List<String> perlArgs, String sourceCode)
+    {
+        PerlProject project = PerlCore.create(resource.getProject());
+
+        StringBuffer buf = new StringBuffer();
+        buf.append(resource.getFullPath().toString());
+        buf.append('\0');
+        buf.append(PerlExecutableUtilities.getPerlCommandLine(project));
+        buf.append('\0');
+        buf.append(perlArgs);
+        buf.append('\0');
+
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1"); //$NON-NLS-1$
+            digest.update(buf.toString().getBytes("UTF-8")); //$NON-NLS-1$
+            digest.update(sourceCode.getBytes("UTF-8")); //$NON-NLS-1$
+            return toHex(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e); // SHA-1 is always available
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e); // UTF-8 is always available
+        }
+    }
+
+    private static String readFile(File f)
+    {
+        Reader r = null;
+        try
+        {
+            r = new InputStreamReader(new FileInputStream(f), "ISO-8859-1"); //$NON-NLS-1$
+            StringWriter sw = new StringWriter();
+            char[] buf = new char[4096];
+            int bread;
+            while ((bread = r.read(buf)) > 0) sw.write(buf, 0, bread);
+            return sw.toString();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        finally
+        {
+            if (r != null) try { r.close(); } catch (IOException e) { }
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuffer buf = new StringBuffer(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++)
+        {
+            int b = bytes[i] & 0xff;
+            if (b < 0x10) buf.append('0');
+            buf.append(Integer.toHexString(b));
+        }
+        return buf.toString();
+    }
+
+    private static class Entry
+    {
+        public final String projectName;
+        public final String output;
+        private final String[] depPaths;
+        private final long[] depModified;
+        private final long[] depLengths;
+
+        public Entry(String projectName, String output, List<File> deps)
+        {
+            this.projectName = projectName;
+            this.output = output;
+            this.depPaths = new String[deps.size()];
+            this.depModified = new long[deps.size()];
+            this.depLengths = new long[deps.size()];
+
+            for (int i = 0; i < depPaths.length; i++)
+            {
+                File f = deps.get(i);
+                depPaths[i] = f.getAbsolutePath();
+                depModified[i] = f.lastModified();
+                depLengths[i] = f.length();
+            }
+        }
+
+        private Entry(
+            String projectName, String output,
+            String[] depPaths, long[] depModified, long[] depLengths)
+        {
+            this.projectName = projectName;
+            this.output = output;
+            this.depPaths = depPaths;
+            this.depModified = depModified;
+            this.depLengths = depLengths;
+        }
+
+        /**
+         * @return true if none of the modules referred to by the cached
+         *         source has changed since the entry was created
+         */
+        public boolean isUpToDate()
+        {
+            for (int i = 0; i < depPaths.length; i++)
+            {
+                File f = new File(depPaths[i]);
+                if (f.lastModified() != depModified[i] ||
+                    f.length() != depLengths[i]) return false;
+            }
+            return true;
+        }
+
+        public static Entry read(DataInputStream in) throws IOException
+        {
+            String projectName = in.readUTF();
+            String output = readLongUTF(in);
+            int count = in.readInt();
+            String[] depPaths = new String[count];
+            long[] depModified = new long[count];
+            long[] depLengths = new long[count];
+
+            for (int i = 0; i < count; i++)
+            {
+                depPaths[i] = in.readUTF();
+                depModified[i] = in.readLong();
+                depLengths[i] = in.readLong();
+            }
+            return new Entry(projectName, output, depPaths, depModified, depLengths);
+        }
+
+        public void write(DataOutputStream out) throws IOException
+        {
+            out.writeUTF(projectName);
+            writeLongUTF(out, output);
+            out.writeInt(depPaths.length);
+            for (int i = 0; i < depPaths.length; i++)
+            {
+                out.writeUTF(depPaths[i]);
+                out.writeLong(depModified[i]);
+                out.writeLong(depLengths[i]);
+            }
+        }
+
+        // writeUTF is limited to 64 KB, which Perl output may exceed
+        private static String readLongUTF(DataInputStream in) throws IOException
+        {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, "UTF-8"); //$NON-NLS-1$
+        }
+
+        private static void writeLongUTF(DataOutputStream out, String str)
+            throws IOException
+        {
+            byte[] bytes = str.getBytes("UTF-8"); //$NON-NLS-1$
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
@@ -22,6 +22,7 @@ import org.eclipse.ui.IWorkbenchPreferencePage;
 import org.epic.core.builders.PerlCriticBuilderHelper;
 import org.epic.core.util.WidgetUtils;
 import org.epic.perleditor.PerlEditorPlugin;
+import org.epic.perleditor.editors.util.PerlCriticServer;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -48,6 +49,8 @@ public class PerlCriticPreferencePage extends PreferencePage implements IWorkben
 
     private Button jobEnabledButton;
 
+    private Button serverEnabledButton;
+
     private List<String> errors = new ArrayList<String>(5);
     private Button useCustomButton;
 
@@ -101,6 +104,12 @@ public class PerlCriticPreferencePage extends PreferencePage implements IWorkben
             PreferenceConstants.SOURCE_CRITIC_JOB_ENABLED);
     }
     
+    public static boolean isPerlCriticServerEnabled()
+    {
+        return PerlEditorPlugin.getDefault().getPreferenceStore().getBoolean(
+            PreferenceConstants.SOURCE_CRITIC_SERVER);
+    }
+    
     public static String getSeverity()
     {
     	 return PerlEditorPlugin.getDefault().getPreferenceStore().getString(
@@ -127,6 +136,7 @@ public class PerlCriticPreferencePage extends PreferencePage implements IWorkben
     {
         storeBoolean(PreferenceConstants.SOURCE_CRITIC_ENABLED, enabledButton.getSelection());
         storeBoolean(PreferenceConstants.SOURCE_CRITIC_JOB_ENABLED, jobEnabledButton.getSelection());
+        storeBoolean(PreferenceConstants.SOURCE_CRITIC_SERVER, serverEnabledButton.getSelection());
         storeBoolean(PreferenceConstants.SOURCE_CRITIC_DEFAULT_LOCATION,
             useDefaultButton.getSelection());
 
@@ -144,6 +154,8 @@ public class PerlCriticPreferencePage extends PreferencePage implements IWorkben
 
         // invalidate PerlCriticBuilderHelper to force update of settings
         PerlCriticBuilderHelper.destroy();
+        // restart resident critics, if any, with the new settings
+        PerlCriticServer.shutdown();
         
         return super.performOk();
     }
@@ -171,6 +183,9 @@ public class PerlCriticPreferencePage extends PreferencePage implements IWorkben
                 }
             });
         
+        serverEnabledButton = WidgetUtils.createButton(composite,
+            "Keep Perl::Critic loaded in a resident Perl process", SWT.CHECK | SWT.LEFT);
+        
         Composite locations = WidgetUtils.createGroup(composite, GridData.FILL_HORIZONTAL);
 
         useDefaultButton =
@@ -264,6 +279,8 @@ public class PerlCriticPreferencePage extends PreferencePage implements IWorkben
     {
         enabledButton.setSelection(false);
         jobEnabledButton.setSelection(false);
+        serverEnabledButton.setSelection(
+            getPreferenceStore().getDefaultBoolean(PreferenceConstants.SOURCE_CRITIC_SERVER));
         useDefaultButton.setSelection(true);
         useCustomButton.setSelection(false);
 
@@ -318,6 +335,7 @@ public class PerlCriticPreferencePage extends PreferencePage implements IWorkben
     {
         enabledButton.setSelection(loadBoolean(PreferenceConstants.SOURCE_CRITIC_ENABLED));
         jobEnabledButton.setSelection(loadBoolean(PreferenceConstants.SOURCE_CRITIC_JOB_ENABLED));
+        serverEnabledButton.setSelection(loadBoolean(PreferenceConstants.SOURCE_CRITIC_SERVER));
 
         boolean useDefault = loadBoolean(PreferenceConstants.SOURCE_CRITIC_DEFAULT_LOCATION);
         useDefaultButton.setSelection(useDefault);
@@ -362,6 +380,7 @@ public class PerlCriticPreferencePage extends PreferencePage implements IWorkben
         otherOptions.setEnabled(enabled);
         severityOptions.setEnabled(enabled);
         jobEnabledButton.setEnabled(enabled);
+        serverEnabledButton.setEnabled(enabled);
         
         customText.setEnabled((enabled && ! useDefaultButton.getSelection()));
 
@@ -155,6 +155,24 @@ public class PreferenceConstants
      */
     public static final String EDITOR_SYNTAX_VALIDATION_INTERVAL = "SYNTAX_VALIDATION_IDLE_INTERVAL"; //$NON-NLS-1$
 
+    /**
+     * Whether syntax validation should be performed by a resident Perl
+     * process (one per project) instead of starting "perl -c" each time
+     */
+    public static final String EDITOR_SYNTAX_VALIDATION_SERVER = "SYNTAX_VALIDATION_SERVER"; //$NON-NLS-1$
+
+    /**
+     * Whether results of syntax validation should be cached across sessions
+     * to avoid validating unchanged files again
+     */
+    public static final String EDITOR_SYNTAX_VALIDATION_CACHE = "SYNTAX_VALIDATION_CACHE"; //$NON-NLS-1$
+
+    /**
+     * Maximum number of Perl files validated in parallel during builds,
+     * 0 means the number of available processors
+     */
+    public static final String BUILDER_VALIDATION_WORKERS = "BUILDER_VALIDATION_WORKERS"; //$NON-NLS-1$
+
     /**
      * A named preference that controls whether the 'line wrap' feature is
      * enabled.
@@ -429,6 +447,12 @@ public class PreferenceConstants
 
     public static final String SOURCE_CRITIC_OTHEROPTIONS = "sourceCriticOtherOptions"; //$NON-NLS-1$
 
+    /**
+     * Whether Perl::Critic should be kept loaded in a resident Perl process
+     * (one per project) instead of starting perlcritic for each file
+     */
+    public static final String SOURCE_CRITIC_SERVER = "sourceCriticServer"; //$NON-NLS-1$
+
     public static final String MODULE_STARTER_ENABLED = "moduleStarterEnabled"; //$NON-NLS-1$
     public static final String MODULE_STARTER_DEFAULT_LOCATION = "moduleStarterDefaultLocation"; //$NON-NLS-1$
     public static final String MODULE_STARTER_LOCATION = "moduleStarterLocation"; //$NON-NLS-1$
@@ -482,6 +506,9 @@ public class PreferenceConstants
         store.setDefault(EDITOR_SYNC_OUTLINE_ON_CURSOR_MOVE, true);
         store.setDefault(EDITOR_SYNTAX_VALIDATION, true);
         store.setDefault(EDITOR_SYNTAX_VALIDATION_INTERVAL, 400);
+        store.setDefault(EDITOR_SYNTAX_VALIDATION_SERVER, false);
+        store.setDefault(EDITOR_SYNTAX_VALIDATION_CACHE, true);
+        store.setDefault(BUILDER_VALIDATION_WORKERS, 0);
         store.setDefault(EDITOR_OVERVIEW_RULER, true);
         store.setDefault(EDITOR_TAB_WIDTH, 4);
         store.setDefault(EDITOR_SMART_HOME_END, true);
@@ -500,6 +527,7 @@ public class PreferenceConstants
         store.setDefault(SOURCE_CRITIC_JOB_ENABLED, false);
         store.setDefault(SOURCE_CRITIC_DEFAULT_LOCATION, true);
         store.setDefault(SOURCE_CRITIC_LOCATION, "");
+        store.setDefault(SOURCE_CRITIC_SERVER, true);
         store.setDefault(AUTO_COMPLETION_QUOTE1, true);
         store.setDefault(AUTO_COMPLETION_QUOTE2, true);
         store.setDefault(AUTO_COMPLETION_BRACKET1, true);
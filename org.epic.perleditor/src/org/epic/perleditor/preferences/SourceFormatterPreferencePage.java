@@ -82,6 +82,16 @@ public class SourceFormatterPreferencePage
 						SourceFormatterPreferences.SWALLOW_OPTIONAL_BLANK_LINES,
 						"Swallow optional blank lines",
 						composite));
+		addField(
+			new BooleanFieldEditor(
+				SourceFormatterPreferences.RESIDENT_PERLTIDY,
+				"Keep PerlTidy loaded in a resident Perl process",
+				composite));
+		addField(
+			new BooleanFieldEditor(
+				SourceFormatterPreferences.FORMAT_ON_SAVE,
+				"Format changed code on save",
+				composite));
  
 
 //        addField(new SpacerFieldEditor(composite));
@@ -12,6 +12,7 @@ import org.eclipse.jface.text.contentassist.IContextInformation;
 import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.graphics.Point;
 import org.eclipse.ui.editors.text.TextEditor;
+import org.epic.core.util.ILineListener;
 import org.epic.core.util.PerlExecutor;
 import org.epic.perleditor.PerlEditorPlugin;
 import org.epic.perleditor.templates.ui.LinkedPositionManager;
@@ -84,8 +85,9 @@ public class ModuleCompletionHelper  {
         PerlExecutor executor = new PerlExecutor();
         try
         {
-            List<String> names =
-                executor.execute(textEditor, null, perlCode).getStdoutLines();
+            final List<String> names = new ArrayList<String>();
+            executor.execute(textEditor, null, perlCode, new ILineListener() {
+                public void lineRead(String line) { names.add(line); } });
             moduleNames = names.toArray(new String[names.size()]);
         }
         finally {
@@ -17,23 +17,21 @@ public class PerlOutlineContentProvider implements ITreeContentProvider
 
     private static final Object[] EMPTY_ARRAY = new Object[0];
 
-    private final List<Subroutine> prevSubsContent;
-    private final List<ModuleUse> prevUsesContent;
     private final ISourceFileListener listener = new ISourceFileListener()
     {
-        public void sourceFileChanged(SourceFile source)
+        public void sourceFileChanged(SourceFile source, SourceFileDelta delta)
         {
-            PerlOutlineContentProvider.this.modelChanged();
+            PerlOutlineContentProvider.this.modelChanged(delta);
         }
     };
 
     private SourceFile model;
     private TreeViewer viewer;
+    private List<Package> prevPackages;
 
     public PerlOutlineContentProvider()
     {
-        this.prevSubsContent = new ArrayList<Subroutine>();
-        this.prevUsesContent = new ArrayList<ModuleUse>();
+        this.prevPackages = Collections.emptyList();
     }
 
     public void dispose()
@@ -85,6 +83,49 @@ public class PerlOutlineContentProvider implements ITreeContentProvider
         return EMPTY_ARRAY;
     }
 
+    /**
+     * Elements of the model are identified by their positions within
+     * the model rather than by their names or offsets. When the model
+     * changes without affecting what is displayed, the viewer's items are
+     * not updated and keep referring to the previous elements, whose
+     * offsets may be outdated.
+     *
+     * @return the element of the current model which is equal to
+     *         the given element, or the given element if there is none
+     */
+    public Object getCurrentElement(Object element)
+    {
+        if (model == null) return element;
+
+        List<Package> packages = model.getPackages();
+        if (element instanceof Package)
+        {
+            int i = ((Package) element).getIndex();
+            if (i < packages.size()) return packages.get(i);
+        }
+        else if (element instanceof Subroutine)
+        {
+            Subroutine sub = (Subroutine) element;
+            int i = sub.getParent().getIndex();
+            if (i < packages.size())
+            {
+                List<Subroutine> subs = packages.get(i).getSubs();
+                if (sub.getIndex() < subs.size()) return subs.get(sub.getIndex());
+            }
+        }
+        else if (element instanceof ModuleUse)
+        {
+            ModuleUse use = (ModuleUse) element;
+            int i = use.getParent().getIndex();
+            if (i < packages.size())
+            {
+                List<ModuleUse> uses = packages.get(i).getUses();
+                if (use.getIndex() < uses.size()) return uses.get(use.getIndex());
+            }
+        }
+        return element;
+    }
+
     public Object getParent(Object element)
     {
         if (element instanceof Subroutine) return ((Subroutine) element)
@@ -113,63 +154,155 @@ public class PerlOutlineContentProvider implements ITreeContentProvider
      */
     private boolean contentChanged()
     {
-        return packageContentChanged(model.getSubs(),
-            prevSubsContent.iterator())
-            || packageContentChanged(model.getUses(),
-                prevUsesContent.iterator());
-    }
+        List<Package> packages = model.getPackages();
+        if (packages.size() != prevPackages.size()) return true;
 
-    private boolean packageContentChanged(Iterator<? extends IPackageElement> curContent,
-        Iterator<? extends IPackageElement> prevContent)
-    {
-        while (curContent.hasNext() && prevContent.hasNext())
+        for (int i = 0; i < packages.size(); i++)
         {
-            IPackageElement curElem = curContent.next();
-            IPackageElement prevElem = prevContent.next();
+            Package pkg = packages.get(i);
+            Package prevPkg = prevPackages.get(i);
 
-            if (packageElementsDiffer(curElem, prevElem))
+            if (!pkg.getName().equals(prevPkg.getName()) ||
+                firstDifference(pkg.getSubs(), prevPkg.getSubs()) >= 0 ||
+                firstDifference(pkg.getUses(), prevPkg.getUses()) >= 0)
             {
                 return true;
             }
         }
-        return curContent.hasNext() != prevContent.hasNext();
+        return false;
     }
 
-    private boolean packageElementsDiffer(IPackageElement curElem,
-        IPackageElement prevElem)
+    /**
+     * @return index of the first element which differs in the two lists
+     *         (as presented in the outline page), or -1 if there is none
+     */
+    private int firstDifference(
+        List<? extends IPackageElement> curContent,
+        List<? extends IPackageElement> prevContent)
     {
-        return !curElem.getName().equals(prevElem.getName())
-            || curElem.getOffset() != prevElem.getOffset()
-            || !curElem.getParent().getName()
-                .equals(prevElem.getParent().getName());
+        int n = Math.min(curContent.size(), prevContent.size());
+        for (int i = 0; i < n; i++)
+        {
+            if (!curContent.get(i).getName().equals(prevContent.get(i).getName()))
+                return i;
+        }
+        return curContent.size() != prevContent.size() ? n : -1;
     }
 
-    private void modelChanged()
+    private void modelChanged(SourceFileDelta delta)
     {
-        if (contentChanged())
+        if (delta.isStructureUnchanged())
+        {
+            // Elements may have moved, but they keep their names and
+            // identities, see getCurrentElement. There is nothing to do.
+        }
+        else if (delta.isFullChange() || packagesChanged(delta))
+        {
+            if (contentChanged()) updateViewer();
+        }
+        else
         {
-            updateViewer();
-            rememberContent();
+            updateViewer(delta);
         }
+        rememberContent();
+    }
+
+    /**
+     * @return true if the given delta adds or removes packages
+     */
+    private boolean packagesChanged(SourceFileDelta delta)
+    {
+        if (model.getPackages().size() != prevPackages.size()) return true;
+
+        for (Iterator<ISourceElement> i = delta.getAddedElements().iterator(); i.hasNext();)
+            if (i.next() instanceof Package) return true;
+        for (Iterator<ISourceElement> i = delta.getRemovedElements().iterator(); i.hasNext();)
+            if (i.next() instanceof Package) return true;
+        return false;
     }
 
     /**
      * Caches the content of the outline page derived from the model. This is
      * necessary to avoid calling {@link #updateViewer} every time the model
-     * changes insignificantly.
+     * changes insignificantly. Note that the model's lists of packages,
+     * subroutines and uses are replaced rather than modified when it changes.
      */
     private void rememberContent()
     {
-        prevSubsContent.clear();
-        prevUsesContent.clear();
+        prevPackages = model != null
+            ? model.getPackages()
+            : Collections.<Package>emptyList();
+    }
+
+    /**
+     * Updates the tree viewer's items which present the subroutines and
+     * uses of packages affected by the given delta, without touching
+     * the remaining items.
+     */
+    private void updateViewer(SourceFileDelta delta)
+    {
+        Set<PackageElem> changed = new LinkedHashSet<PackageElem>();
+        addChangedElems(delta.getRemovedElements(), changed);
+        addChangedElems(delta.getAddedElements(), changed);
+
+        List<Package> packages = model.getPackages();
+        boolean expand = false;
+        for (Iterator<PackageElem> i = changed.iterator(); i.hasNext();)
+        {
+            PackageElem elem = i.next();
+            Package pkg = packages.get(elem.pkg.getIndex());
+            Package prevPkg = prevPackages.get(elem.pkg.getIndex());
+
+            if (elem.name.equals(SUBROUTINES)) expand |= updateViewer(
+                new PackageElem(pkg, SUBROUTINES), pkg.getSubs(), prevPkg.getSubs());
+            else expand |= updateViewer(
+                new PackageElem(pkg, MODULES), pkg.getUses(), prevPkg.getUses());
+        }
+        if (expand) correctViewerExpansion();
+    }
+
+    /**
+     * Updates the tree viewer's children of the given node.
+     *
+     * @return true if the node has received its first children
+     */
+    private boolean updateViewer(
+        PackageElem parent,
+        List<? extends IPackageElement> curContent,
+        List<? extends IPackageElement> prevContent)
+    {
+        int first = firstDifference(curContent, prevContent);
+        if (first < 0) return false;
 
-        if (model != null)
+        // Elements are identified by their positions, so the items from
+        // the first difference on are relabelled rather than moved
+        int common = Math.min(curContent.size(), prevContent.size());
+        if (first < common && viewer.getSorter() != null)
         {
-            for (Iterator<Subroutine> i = model.getSubs(); i.hasNext();)
-                prevSubsContent.add(i.next());
+            // the positions of relabelled items depend on their labels
+            viewer.refresh(parent);
+            return false;
+        }
+
+        if (prevContent.size() > common) viewer.remove(
+            prevContent.subList(common, prevContent.size()).toArray());
+        if (first < common) viewer.update(
+            curContent.subList(first, common).toArray(), null);
+        if (curContent.size() > common) viewer.add(
+            parent, curContent.subList(common, curContent.size()).toArray());
+
+        return prevContent.isEmpty();
+    }
 
-            for (Iterator<ModuleUse> i = model.getUses(); i.hasNext();)
-                prevUsesContent.add(i.next());
+    private void addChangedElems(List<ISourceElement> elements, Set<PackageElem> changed)
+    {
+        for (Iterator<ISourceElement> i = elements.iterator(); i.hasNext();)
+        {
+            ISourceElement elem = i.next();
+            if (elem instanceof Subroutine)
+                changed.add(new PackageElem(((Subroutine) elem).getParent(), SUBROUTINES));
+            else if (elem instanceof ModuleUse)
+                changed.add(new PackageElem(((ModuleUse) elem).getParent(), MODULES));
         }
     }
 
@@ -259,11 +392,12 @@ public class PerlOutlineContentProvider implements ITreeContentProvider
         public boolean equals(Object obj)
         {
             if (obj == this) return true;
-            if ((obj instanceof PackageElem)) obj = ((PackageElem) obj).pkg;
-            else if (!(obj instanceof Package)) return false;
+            if (!(obj instanceof PackageElem)) return false;
 
-            Package pkg = (Package) obj;
-            return pkg.equals(this.pkg) && name.equals(this.name);
+            // the viewer locates items with equals, so the "Modules" and
+            // "Subroutines" nodes of a package must not be equal
+            PackageElem elem = (PackageElem) obj;
+            return pkg.equals(elem.pkg) && name.equals(elem.name);
         }
 
         public int hashCode()
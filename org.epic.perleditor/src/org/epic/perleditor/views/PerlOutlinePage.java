@@ -68,6 +68,21 @@ public class PerlOutlinePage extends ContentOutlinePage
         }
     }
 
+    public void selectionChanged(SelectionChangedEvent event)
+    {
+        // The selected items may refer to elements of a previous model,
+        // whose offsets are outdated; listeners get the current ones
+        ISelection selection = event.getSelection();
+        if (selection instanceof IStructuredSelection && !selection.isEmpty())
+        {
+            Object[] elements = ((IStructuredSelection) selection).toArray();
+            for (int i = 0; i < elements.length; i++)
+                elements[i] = contentProvider.getCurrentElement(elements[i]);
+            selection = new StructuredSelection(elements);
+        }
+        fireSelectionChanged(selection);
+    }
+
     public void updateContent(SourceFile source)
     {
         lastCaretSub = null;